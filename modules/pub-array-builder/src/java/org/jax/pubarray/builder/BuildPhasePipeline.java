@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jax.util.concurrent.SimpleLongRunningTask;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Runs the phases of a build. Every phase starts as soon as all of the
+ * phases that it depends on are done so that phases which don't depend on
+ * each other (like copying the WAR template and parsing the data files)
+ * overlap. Progress is reported through a {@link SimpleLongRunningTask}
+ * where each phase counts for its weight once it completes
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+/*package-protected*/ class BuildPhasePipeline
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            BuildPhasePipeline.class.getName());
+    
+    private final SimpleLongRunningTask progressTask;
+    
+    private final List<Phase> phases = new ArrayList<Phase>();
+    
+    /**
+     * A single phase of the build
+     */
+    public static final class Phase
+    {
+        private final String name;
+        private final int weight;
+        private final Callable<Void> work;
+        private final List<Phase> dependencies;
+        
+        private volatile long elapsedMillis = -1L;
+        
+        /**
+         * Constructor
+         * @param name          the name shown to the user while this runs
+         * @param weight        the number of work units this phase is worth
+         * @param work          the work to do
+         * @param dependencies  the phases that must complete first
+         */
+        private Phase(
+                String name,
+                int weight,
+                Callable<Void> work,
+                List<Phase> dependencies)
+        {
+            this.name = name;
+            this.weight = weight;
+            this.work = work;
+            this.dependencies = dependencies;
+        }
+        
+        /**
+         * Getter for the phase name
+         * @return the name
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+        
+        /**
+         * Getter for the phase weight
+         * @return the weight
+         */
+        public int getWeight()
+        {
+            return this.weight;
+        }
+        
+        /**
+         * Getter for how long the phase took to run
+         * @return the time in milliseconds or -1 if the phase hasn't
+         *         completed
+         */
+        public long getElapsedMillis()
+        {
+            return this.elapsedMillis;
+        }
+    }
+    
+    /**
+     * Constructor
+     * @param progressTask
+     *          the task that we report progress through
+     */
+    public BuildPhasePipeline(SimpleLongRunningTask progressTask)
+    {
+        this.progressTask = progressTask;
+    }
+    
+    /**
+     * Add a phase to the pipeline
+     * @param name
+     *          the name shown to the user while this phase runs
+     * @param weight
+     *          the number of work units that this phase is worth. This
+     *          should be proportional to how long we expect the phase to
+     *          take (the builder uses the number of kilobytes processed)
+     * @param work
+     *          the work to do
+     * @param dependencies
+     *          the phases that must complete before this one can start.
+     *          These must have already been added
+     * @return
+     *          the new phase
+     */
+    public Phase addPhase(
+            String name,
+            int weight,
+            Callable<Void> work,
+            Phase... dependencies)
+    {
+        for(Phase dependency: dependencies)
+        {
+            if(!this.phases.contains(dependency))
+            {
+                throw new IllegalArgumentException(
+                        "phase \"" + name + "\" depends on \"" +
+                        dependency.getName() + "\" which is not part of " +
+                        "this pipeline");
+            }
+        }
+        
+        Phase phase = new Phase(
+                name,
+                Math.max(weight, 1),
+                work,
+                Arrays.asList(dependencies));
+        this.phases.add(phase);
+        return phase;
+    }
+    
+    /**
+     * Run all of the phases. If any phase fails the phases that are still
+     * running are interrupted, no new phases are started and the failure
+     * is thrown from here once the interrupted phases have stopped (so the
+     * caller can safely clean up after the build)
+     * @param threadCount
+     *          the maximum number of phases to run at once
+     * @throws IllegalFormatException
+     *          if a phase throws it
+     * @throws IOException
+     *          if a phase throws it
+     * @throws SQLException
+     *          if a phase throws it
+     */
+    public void run(int threadCount)
+    throws IllegalFormatException, IOException, SQLException
+    {
+        int totalWorkUnits = 0;
+        for(Phase phase: this.phases)
+        {
+            totalWorkUnits += phase.getWeight();
+        }
+        this.progressTask.setTotalWorkUnits(totalWorkUnits);
+        this.progressTask.setWorkUnitsCompleted(0);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(threadCount, 1));
+        CompletionService<Phase> completionService =
+            new ExecutorCompletionService<Phase>(executor);
+        Set<Phase> completedPhases = new HashSet<Phase>();
+        Set<Phase> runningPhases = new LinkedHashSet<Phase>();
+        List<Phase> waitingPhases = new ArrayList<Phase>(this.phases);
+        int workUnitsCompleted = 0;
+        try
+        {
+            while(!waitingPhases.isEmpty() || !runningPhases.isEmpty())
+            {
+                // start everything that is ready to go
+                for(int i = 0; i < waitingPhases.size(); )
+                {
+                    final Phase currPhase = waitingPhases.get(i);
+                    if(completedPhases.containsAll(currPhase.dependencies))
+                    {
+                        waitingPhases.remove(i);
+                        runningPhases.add(currPhase);
+                        completionService.submit(new Callable<Phase>()
+                        {
+                            /**
+                             * {@inheritDoc}
+                             */
+                            public Phase call() throws Exception
+                            {
+                                long startMillis = System.currentTimeMillis();
+                                currPhase.work.call();
+                                currPhase.elapsedMillis =
+                                    System.currentTimeMillis() - startMillis;
+                                return currPhase;
+                            }
+                        });
+                    }
+                    else
+                    {
+                        i++;
+                    }
+                }
+                
+                if(runningPhases.isEmpty())
+                {
+                    throw new IllegalStateException(
+                            "build phases have a dependency cycle: " +
+                            waitingPhases.size() + " phases can never run");
+                }
+                
+                this.updateTaskName(runningPhases);
+                Phase completedPhase = this.takeCompletedPhase(completionService);
+                runningPhases.remove(completedPhase);
+                completedPhases.add(completedPhase);
+                workUnitsCompleted += completedPhase.getWeight();
+                this.progressTask.setWorkUnitsCompleted(workUnitsCompleted);
+                
+                LOG.info(
+                        "build phase \"" + completedPhase.getName() +
+                        "\" finished in " + completedPhase.getElapsedMillis() +
+                        " ms");
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            this.awaitTermination(executor);
+        }
+    }
+    
+    /**
+     * Wait for every phase that is still running to stop. Phases doing
+     * JDBC or file work may not notice that they've been interrupted right
+     * away but we can't return until they're done touching the build
+     * outputs. If we're interrupted while waiting we keep waiting and
+     * restore the interrupt status afterward
+     * @param executor
+     *          the executor that has already been shut down
+     */
+    private void awaitTermination(ExecutorService executor)
+    {
+        boolean interrupted = false;
+        while(!executor.isTerminated())
+        {
+            try
+            {
+                if(!executor.awaitTermination(10L, TimeUnit.SECONDS))
+                {
+                    LOG.info("waiting on interrupted build phases to stop");
+                }
+            }
+            catch(InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Getter for the phases in the order that they were added
+     * @return the phases
+     */
+    public List<Phase> getPhases()
+    {
+        return this.phases;
+    }
+    
+    private void updateTaskName(Set<Phase> runningPhases)
+    {
+        StringBuilder taskName = new StringBuilder();
+        for(Phase phase: runningPhases)
+        {
+            if(taskName.length() > 0)
+            {
+                taskName.append(" | ");
+            }
+            taskName.append(phase.getName());
+        }
+        this.progressTask.setTaskName(taskName.toString());
+    }
+    
+    /**
+     * Wait for the next phase to complete, unwrapping its exception if it
+     * failed
+     * @param completionService
+     *          the completion service that the phases were submitted to
+     * @return
+     *          the completed phase
+     * @throws IllegalFormatException
+     *          if the phase threw it
+     * @throws IOException
+     *          if the phase threw it
+     * @throws SQLException
+     *          if the phase threw it
+     */
+    private Phase takeCompletedPhase(CompletionService<Phase> completionService)
+    throws IllegalFormatException, IOException, SQLException
+    {
+        try
+        {
+            Future<Phase> completedFuture = completionService.take();
+            return completedFuture.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting on build phases");
+        }
+        catch(ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IllegalFormatException)
+            {
+                throw (IllegalFormatException)cause;
+            }
+            else if(cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            else if(cause instanceof SQLException)
+            {
+                throw (SQLException)cause;
+            }
+            else if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else if(cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
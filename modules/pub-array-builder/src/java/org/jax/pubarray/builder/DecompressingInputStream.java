@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.pubarray.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * An input stream that reads a (decompressing) source stream on its own
+ * thread so that decompression overlaps with whatever is consuming the
+ * stream (usually flat file parsing). The decompressing thread stays a
+ * bounded number of blocks ahead of the reader. Use
+ * {@link #detectCompression(File)} and {@link #open(File, Compression)}
+ * (or just {@link #openReader(File)}) to read gzip and zip files and
+ * {@link #openReader(File, String)} to read a given entry of a zip archive
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class DecompressingInputStream extends InputStream
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            DecompressingInputStream.class.getName());
+    
+    /**
+     * The kinds of compression that we recognize
+     */
+    public enum Compression
+    {
+        /**
+         * not compressed (or at least not in a format we recognize)
+         */
+        NONE,
+        
+        /**
+         * a gzip file
+         */
+        GZIP,
+        
+        /**
+         * a zip archive. The first file in the archive is read
+         */
+        ZIP
+    }
+    
+    private static final int BLOCK_SIZE = 256 * 1024;
+    
+    private static final int MAX_QUEUED_BLOCKS = 8;
+    
+    private static final int SOURCE_BUFFER_SIZE = 64 * 1024;
+    
+    private static final int READER_BUFFER_SIZE = 1024 * 1024;
+    
+    /**
+     * the decompressing thread queues this once it's done (or has failed)
+     */
+    private static final byte[] END_OF_STREAM = new byte[0];
+    
+    private final BlockingQueue<byte[]> blocks =
+        new ArrayBlockingQueue<byte[]>(MAX_QUEUED_BLOCKS);
+    
+    private final Thread decompressingThread;
+    
+    private volatile Throwable failure = null;
+    
+    private byte[] currBlock = null;
+    
+    private int currBlockPosition = 0;
+    
+    private boolean closed = false;
+    
+    /**
+     * Constructor. Starts reading the source right away
+     * @param source
+     *          the source stream. This is only read from (and closed by) the
+     *          decompressing thread
+     * @param name
+     *          a name for the decompressing thread
+     */
+    public DecompressingInputStream(final InputStream source, String name)
+    {
+        this.decompressingThread = new Thread(new Runnable()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void run()
+            {
+                DecompressingInputStream.this.decompress(source);
+            }
+        }, "decompress " + name);
+        this.decompressingThread.setDaemon(true);
+        this.decompressingThread.start();
+    }
+    
+    /**
+     * Look at the first bytes of the file to see if it's compressed
+     * @param file
+     *          the file
+     * @return
+     *          the compression
+     * @throws IOException
+     *          if we can't read the file
+     */
+    public static Compression detectCompression(File file) throws IOException
+    {
+        byte[] magic = new byte[4];
+        int magicLength = 0;
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int readCount;
+            while(magicLength < magic.length &&
+                  (readCount = in.read(magic, magicLength, magic.length - magicLength)) > 0)
+            {
+                magicLength += readCount;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        if(magicLength >= 2 &&
+           (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B)
+        {
+            return Compression.GZIP;
+        }
+        else if(magicLength == 4 &&
+                magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4)
+        {
+            return Compression.ZIP;
+        }
+        else
+        {
+            return Compression.NONE;
+        }
+    }
+    
+    /**
+     * Open the given compressed file
+     * @param file
+     *          the file
+     * @param compression
+     *          the file's compression (see {@link #detectCompression(File)})
+     * @return
+     *          the decompressed stream
+     * @throws IOException
+     *          if we fail to open the file
+     */
+    public static InputStream open(File file, Compression compression)
+    throws IOException
+    {
+        InputStream fileIn = new BufferedInputStream(
+                new FileInputStream(file),
+                SOURCE_BUFFER_SIZE);
+        try
+        {
+            switch(compression)
+            {
+                case GZIP:
+                {
+                    return new DecompressingInputStream(
+                            new GZIPInputStream(fileIn, SOURCE_BUFFER_SIZE),
+                            file.getName());
+                }
+                
+                case ZIP:
+                {
+                    ZipInputStream zipIn = new ZipInputStream(fileIn);
+                    ZipEntry entry;
+                    while((entry = zipIn.getNextEntry()) != null && entry.isDirectory())
+                    {
+                        // keep looking for a file
+                    }
+                    
+                    if(entry == null)
+                    {
+                        throw new IOException(
+                                "there are no files in " + file.getPath());
+                    }
+                    
+                    return new DecompressingInputStream(zipIn, file.getName());
+                }
+                
+                default:
+                {
+                    return fileIn;
+                }
+            }
+        }
+        catch(IOException ex)
+        {
+            fileIn.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Create a reader for the given file. Gzip and zip files (detected by
+     * their magic bytes rather than their extension) are decompressed on the
+     * fly and everything else gets a {@link FileReader} with a large buffer
+     * @param file
+     *          the file to read
+     * @return
+     *          the reader
+     * @throws IOException
+     *          if we fail to open the file
+     */
+    public static Reader openReader(File file) throws IOException
+    {
+        Compression compression = detectCompression(file);
+        if(compression == Compression.NONE)
+        {
+            return new BufferedReader(new FileReader(file), READER_BUFFER_SIZE);
+        }
+        else
+        {
+            return new BufferedReader(
+                    new InputStreamReader(open(file, compression)),
+                    READER_BUFFER_SIZE);
+        }
+    }
+    
+    /**
+     * Create a reader for a single entry of a zip archive. The entry is
+     * decompressed on the fly and the archive is closed along with the
+     * reader
+     * @param zipFile
+     *          the zip archive
+     * @param entryName
+     *          the name of the entry to read
+     * @return
+     *          the reader
+     * @throws IOException
+     *          if we fail to open the archive or it has no such entry
+     */
+    public static Reader openReader(File zipFile, String entryName)
+    throws IOException
+    {
+        final ZipFile zip = new ZipFile(zipFile);
+        try
+        {
+            ZipEntry entry = zip.getEntry(entryName);
+            if(entry == null)
+            {
+                throw new FileNotFoundException(
+                        "there is no " + entryName + " in " + zipFile.getPath());
+            }
+            
+            InputStream entryIn = new FilterInputStream(zip.getInputStream(entry))
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        zip.close();
+                    }
+                }
+            };
+            return new BufferedReader(
+                    new InputStreamReader(new DecompressingInputStream(
+                            entryIn,
+                            entryName)),
+                    READER_BUFFER_SIZE);
+        }
+        catch(IOException ex)
+        {
+            zip.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Read the whole source into blocks. This runs on the decompressing
+     * thread
+     * @param source
+     *          the source
+     */
+    private void decompress(InputStream source)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while(true)
+            {
+                byte[] block = new byte[BLOCK_SIZE];
+                int blockLength = 0;
+                int readCount;
+                while(blockLength < BLOCK_SIZE &&
+                      (readCount = source.read(block, blockLength, BLOCK_SIZE - blockLength)) > 0)
+                {
+                    blockLength += readCount;
+                }
+                
+                if(blockLength == 0)
+                {
+                    break;
+                }
+                else if(blockLength < BLOCK_SIZE)
+                {
+                    byte[] lastBlock = new byte[blockLength];
+                    System.arraycopy(block, 0, lastBlock, 0, blockLength);
+                    block = lastBlock;
+                }
+                this.blocks.put(block);
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            // the stream was closed before we got to the end
+            interrupted = true;
+        }
+        catch(Throwable ex)
+        {
+            // this includes runtime exceptions from the source (a corrupt
+            // zip can throw those). whatever it is the reader has to hear
+            // about it or it will wait on the queue forever
+            this.failure = ex;
+        }
+        finally
+        {
+            try
+            {
+                source.close();
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.FINE, "failed to close source", ex);
+            }
+            
+            if(!interrupted)
+            {
+                try
+                {
+                    this.blocks.put(END_OF_STREAM);
+                }
+                catch(InterruptedException ex)
+                {
+                    // the stream was closed while we were waiting to add
+                    // the end marker so nobody is reading anymore
+                }
+            }
+        }
+    }
+    
+    /**
+     * Make sure that there's something left in the current block
+     * @return
+     *          false if we're at the end of the stream
+     * @throws IOException
+     *          if decompression failed or we're interrupted
+     */
+    private boolean fillBlock() throws IOException
+    {
+        if(this.closed)
+        {
+            throw new IOException("the stream has been closed");
+        }
+        
+        while(this.currBlock != END_OF_STREAM &&
+              (this.currBlock == null || this.currBlockPosition >= this.currBlock.length))
+        {
+            try
+            {
+                this.currBlock = this.blocks.take();
+                this.currBlockPosition = 0;
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting on decompression");
+            }
+        }
+        
+        if(this.currBlock == END_OF_STREAM)
+        {
+            Throwable failure = this.failure;
+            if(failure != null)
+            {
+                IOException rethrown = new IOException(
+                        "decompression failed: " + failure);
+                rethrown.initCause(failure);
+                throw rethrown;
+            }
+            return false;
+        }
+        else
+        {
+            return true;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+        if(this.fillBlock())
+        {
+            int b = this.currBlock[this.currBlockPosition] & 0xFF;
+            this.currBlockPosition++;
+            return b;
+        }
+        else
+        {
+            return -1;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if(len == 0)
+        {
+            return 0;
+        }
+        else if(this.fillBlock())
+        {
+            int readCount = Math.min(
+                    len,
+                    this.currBlock.length - this.currBlockPosition);
+            System.arraycopy(
+                    this.currBlock,
+                    this.currBlockPosition,
+                    b,
+                    off,
+                    readCount);
+            this.currBlockPosition += readCount;
+            return readCount;
+        }
+        else
+        {
+            return -1;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available()
+    {
+        if(this.currBlock == null || this.currBlock == END_OF_STREAM)
+        {
+            return 0;
+        }
+        else
+        {
+            return this.currBlock.length - this.currBlockPosition;
+        }
+    }
+    
+    /**
+     * Stops the decompressing thread (if it isn't already done)
+     */
+    @Override
+    public void close()
+    {
+        if(!this.closed)
+        {
+            this.closed = true;
+            this.decompressingThread.interrupt();
+            this.blocks.clear();
+            this.currBlock = null;
+        }
+    }
+}
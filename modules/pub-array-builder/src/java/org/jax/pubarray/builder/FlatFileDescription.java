@@ -17,10 +17,8 @@
 
 package org.jax.pubarray.builder;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 
 import org.jax.util.io.FlatFileFormat;
 import org.jax.util.io.FlatFileReader;
@@ -37,6 +35,8 @@ public class FlatFileDescription
     
     private FlatFileFormat format;
     
+    private String archiveEntryName;
+    
     /**
      * Default constructor (leaves everything null)
      */
@@ -61,16 +61,45 @@ public class FlatFileDescription
     }
     
     /**
-     * Convenience function to create a flat file reader from this description
+     * Constructor for an entry of a zip archive
+     * @param flatFile  see {@link #getFlatFile()}
+     * @param archiveEntryName  see {@link #getArchiveEntryName()}
+     * @param tableName see {@link #getTableName()}
+     * @param format    see {@link #getFormat()}
+     */
+    public FlatFileDescription(
+            File flatFile,
+            String archiveEntryName,
+            String tableName,
+            FlatFileFormat format)
+    {
+        this(flatFile, tableName, format);
+        this.archiveEntryName = archiveEntryName;
+    }
+    
+    /**
+     * Convenience function to create a flat file reader from this description.
+     * Compressed files are read through a {@link DecompressingInputStream}
      * @return the reader
-     * @throws FileNotFoundException
-     *          if the file from {@link #getFlatFile()} doesn't exist
+     * @throws IOException
+     *          if the file from {@link #getFlatFile()} can't be opened
      */
-    public FlatFileReader createReader() throws FileNotFoundException
+    public FlatFileReader createReader() throws IOException
     {
-        return new FlatFileReader(
-                new BufferedReader(new FileReader(this.getFlatFile())),
-                this.getFormat());
+        if(this.archiveEntryName == null)
+        {
+            return new FlatFileReader(
+                    DecompressingInputStream.openReader(this.getFlatFile()),
+                    this.getFormat());
+        }
+        else
+        {
+            return new FlatFileReader(
+                    DecompressingInputStream.openReader(
+                            this.getFlatFile(),
+                            this.archiveEntryName),
+                    this.getFormat());
+        }
     }
 
     /**
@@ -91,6 +120,25 @@ public class FlatFileDescription
         this.flatFile = flatFile;
     }
 
+    /**
+     * Getter for the name of the zip archive entry that this class describes
+     * @return  the entry name or null if {@link #getFlatFile()} is the flat
+     *          file itself rather than an archive holding it
+     */
+    public String getArchiveEntryName()
+    {
+        return this.archiveEntryName;
+    }
+
+    /**
+     * Setter for the archive entry name
+     * @param archiveEntryName the archive entry name
+     */
+    public void setArchiveEntryName(String archiveEntryName)
+    {
+        this.archiveEntryName = archiveEntryName;
+    }
+
     /**
      * Getter for the table name
      * @return  the table name
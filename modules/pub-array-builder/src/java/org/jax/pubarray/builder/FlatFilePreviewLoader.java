@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import javax.swing.SwingUtilities;
+
+import org.jax.util.io.FlatFileFormat;
+
+/**
+ * Loads a flat file preview off of the Swing event thread using a
+ * {@link FlatFileSampler}. The first rows of the file are handed to the
+ * {@link PreviewListener} as they arrive (so a slow network mount fills the
+ * preview progressively) and then the sample is handed over once the file
+ * has been sampled. All {@link PreviewListener} callbacks happen on the
+ * event thread and stop once {@link #cancel()} is called
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class FlatFilePreviewLoader implements Runnable
+{
+    /**
+     * Receives the results of a {@link FlatFilePreviewLoader}. These are
+     * all called from the Swing event thread
+     */
+    interface PreviewListener
+    {
+        /**
+         * Called as the preview rows arrive
+         * @param previewText
+         *          the text of the header and preview rows read so far
+         *          (always ending on a line boundary)
+         * @param done
+         *          true if this is the last update for the preview rows
+         */
+        void previewRowsLoaded(String previewText, boolean done);
+        
+        /**
+         * Called once the file has been sampled
+         * @param sample
+         *          the sample
+         */
+        void sampleInferred(FlatFileSample sample);
+        
+        /**
+         * Called if loading fails
+         * @param ex
+         *          the cause
+         * @param openFailed
+         *          true if we couldn't even open the file (usually this
+         *          means the user is still typing the file name)
+         */
+        void previewFailed(Exception ex, boolean openFailed);
+    }
+    
+    private final File flatFile;
+    
+    private final FlatFileSampler sampler;
+    
+    private final int maxPreviewRowCount;
+    
+    private final PreviewListener listener;
+    
+    /**
+     * Constructor
+     * @param flatFile
+     *          the file to preview
+     * @param format
+     *          the file's format
+     * @param maxPreviewRowCount
+     *          the number of rows (not counting the header) to preview
+     * @param listener
+     *          the listener for results
+     */
+    public FlatFilePreviewLoader(
+            File flatFile,
+            FlatFileFormat format,
+            int maxPreviewRowCount,
+            PreviewListener listener)
+    {
+        this.flatFile = flatFile;
+        this.sampler = new FlatFileSampler(flatFile, format);
+        this.maxPreviewRowCount = maxPreviewRowCount;
+        this.listener = listener;
+    }
+    
+    /**
+     * Start loading on a new daemon thread
+     */
+    public void start()
+    {
+        Thread loaderThread = new Thread(
+                this,
+                "preview " + this.flatFile.getName());
+        loaderThread.setDaemon(true);
+        loaderThread.start();
+    }
+    
+    /**
+     * Stop loading. No listener callbacks will happen after this is called
+     * (as long as it's called from the event thread)
+     */
+    public void cancel()
+    {
+        this.sampler.cancel();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void run()
+    {
+        try
+        {
+            final FlatFileSample sample = this.sampler.sample(
+                    this.maxPreviewRowCount,
+                    new FlatFileSampler.HeadListener()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void headTextRead(
+                                final String headText,
+                                final boolean done)
+                        {
+                            FlatFilePreviewLoader.this.fireLater(new Runnable()
+                            {
+                                /**
+                                 * {@inheritDoc}
+                                 */
+                                public void run()
+                                {
+                                    FlatFilePreviewLoader.this.listener.previewRowsLoaded(
+                                            headText,
+                                            done);
+                                }
+                            });
+                        }
+                    });
+            
+            if(sample != null)
+            {
+                this.fireLater(new Runnable()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public void run()
+                    {
+                        FlatFilePreviewLoader.this.listener.sampleInferred(sample);
+                    }
+                });
+            }
+        }
+        catch(final Exception ex)
+        {
+            this.fireLater(new Runnable()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public void run()
+                {
+                    FlatFilePreviewLoader.this.listener.previewFailed(
+                            ex,
+                            ex instanceof FileNotFoundException);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Run the given listener callback on the event thread unless we've been
+     * cancelled by then
+     * @param callback
+     *          the callback
+     */
+    private void fireLater(final Runnable callback)
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void run()
+            {
+                if(!FlatFilePreviewLoader.this.sampler.isCancelled())
+                {
+                    callback.run();
+                }
+            }
+        });
+    }
+}
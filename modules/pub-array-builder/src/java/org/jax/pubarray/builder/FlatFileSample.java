@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.File;
+import java.util.List;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+
+/**
+ * The result of sampling a flat file with a {@link FlatFileSampler}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class FlatFileSample
+{
+    private final File flatFile;
+    
+    private final String headText;
+    
+    private final long estimatedRowCount;
+    
+    private final boolean exactRowCount;
+    
+    private final long estimatedTextLength;
+    
+    private final TableColumnMetadata[] provisionalMetadata;
+    
+    private final long[] totalStringLengths;
+    
+    private final List<String[]> sampledRows;
+    
+    private final int sampledRowCount;
+    
+    private final int mismatchedRowCount;
+    
+    private final long sampledByteCount;
+    
+    private final long parseNanos;
+    
+    /**
+     * Constructor
+     * @param flatFile
+     *          see {@link #getFlatFile()}
+     * @param headText
+     *          see {@link #getHeadText()}
+     * @param estimatedRowCount
+     *          see {@link #getEstimatedRowCount()}
+     * @param exactRowCount
+     *          see {@link #isExactRowCount()}
+     * @param estimatedTextLength
+     *          see {@link #getEstimatedTextLength()}
+     * @param provisionalMetadata
+     *          see {@link #getProvisionalMetadata()}
+     * @param totalStringLengths
+     *          the total length of every sampled cell in each column
+     *          (used for {@link #getAverageStringLength(int)})
+     * @param sampledRows
+     *          see {@link #getSampledRows()}
+     * @param sampledRowCount
+     *          see {@link #getSampledRowCount()}
+     * @param mismatchedRowCount
+     *          see {@link #getMismatchedRowCount()}
+     * @param sampledByteCount
+     *          see {@link #getSampledByteCount()}
+     * @param parseNanos
+     *          see {@link #getParseNanos()}
+     */
+    public FlatFileSample(
+            File flatFile,
+            String headText,
+            long estimatedRowCount,
+            boolean exactRowCount,
+            long estimatedTextLength,
+            TableColumnMetadata[] provisionalMetadata,
+            long[] totalStringLengths,
+            List<String[]> sampledRows,
+            int sampledRowCount,
+            int mismatchedRowCount,
+            long sampledByteCount,
+            long parseNanos)
+    {
+        this.flatFile = flatFile;
+        this.headText = headText;
+        this.estimatedRowCount = estimatedRowCount;
+        this.exactRowCount = exactRowCount;
+        this.estimatedTextLength = estimatedTextLength;
+        this.provisionalMetadata = provisionalMetadata;
+        this.totalStringLengths = totalStringLengths;
+        this.sampledRows = sampledRows;
+        this.sampledRowCount = sampledRowCount;
+        this.mismatchedRowCount = mismatchedRowCount;
+        this.sampledByteCount = sampledByteCount;
+        this.parseNanos = parseNanos;
+    }
+    
+    /**
+     * Getter for the flat file that was sampled
+     * @return the flat file
+     */
+    public File getFlatFile()
+    {
+        return this.flatFile;
+    }
+    
+    /**
+     * Getter for the text of the header and the first rows of the file
+     * (ending on a line boundary)
+     * @return the head text
+     */
+    public String getHeadText()
+    {
+        return this.headText;
+    }
+    
+    /**
+     * Getter for the estimated number of rows (not counting the header)
+     * @return the estimated row count or -1 if it can't be estimated
+     */
+    public long getEstimatedRowCount()
+    {
+        return this.estimatedRowCount;
+    }
+    
+    /**
+     * Determine if {@link #getEstimatedRowCount()} is really exact (the
+     * whole file was read)
+     * @return true if it's exact
+     */
+    public boolean isExactRowCount()
+    {
+        return this.exactRowCount;
+    }
+    
+    /**
+     * Getter for the estimated length of the (uncompressed) flat file
+     * @return the length in bytes or -1 if it's unknown
+     */
+    public long getEstimatedTextLength()
+    {
+        return this.estimatedTextLength;
+    }
+    
+    /**
+     * Getter for the column metadata inferred from the sampled rows. Columns
+     * that didn't have any sampled values have a null data type
+     * @return the provisional metadata
+     */
+    public TableColumnMetadata[] getProvisionalMetadata()
+    {
+        return this.provisionalMetadata;
+    }
+    
+    /**
+     * Get the average length of the sampled cells in the given column
+     * @param columnIndex
+     *          the column index
+     * @return
+     *          the average length
+     */
+    public double getAverageStringLength(int columnIndex)
+    {
+        int matchingRowCount = this.sampledRowCount - this.mismatchedRowCount;
+        if(matchingRowCount == 0)
+        {
+            return 0.0;
+        }
+        else
+        {
+            return this.totalStringLengths[columnIndex] / (double)matchingRowCount;
+        }
+    }
+    
+    /**
+     * Getter for the sampled rows that match the header's column count. This
+     * may be a subset of the rows counted by {@link #getSampledRowCount()}
+     * @return the sampled rows
+     */
+    public List<String[]> getSampledRows()
+    {
+        return this.sampledRows;
+    }
+    
+    /**
+     * Getter for the number of rows that were sampled
+     * @return the sampled row count
+     */
+    public int getSampledRowCount()
+    {
+        return this.sampledRowCount;
+    }
+    
+    /**
+     * Getter for the number of sampled rows that don't match the header's
+     * column count
+     * @return the mismatched row count
+     */
+    public int getMismatchedRowCount()
+    {
+        return this.mismatchedRowCount;
+    }
+    
+    /**
+     * Getter for the number of (uncompressed) bytes that were parsed
+     * @return the sampled byte count
+     */
+    public long getSampledByteCount()
+    {
+        return this.sampledByteCount;
+    }
+    
+    /**
+     * Getter for the time spent parsing and inferring types for the sampled
+     * rows
+     * @return the parse time in nanoseconds
+     */
+    public long getParseNanos()
+    {
+        return this.parseNanos;
+    }
+}
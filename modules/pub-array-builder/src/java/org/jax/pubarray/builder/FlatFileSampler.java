@@ -0,0 +1,693 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jax.pubarray.db.ColumnTypeInferrer;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.util.io.FlatFileFormat;
+import org.jax.util.io.FlatFileReader;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Samples a flat file without reading all of it. The first rows of the file
+ * are read and then the file is sampled at several evenly spaced offsets to
+ * estimate the total row count and provisionally infer the column types.
+ * Compressed files (and entries of zip archives) can't be sampled at an
+ * offset so only their first rows are used
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class FlatFileSampler
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            FlatFileSampler.class.getName());
+    
+    /**
+     * the number of offsets (not counting the start of the file) that we
+     * sample for row count estimation and type inference
+     */
+    private static final int SAMPLE_COUNT = 8;
+    
+    private static final int SAMPLE_BYTE_COUNT = 64 * 1024;
+    
+    private static final int READ_CHUNK_SIZE = 8 * 1024;
+    
+    /**
+     * the number of uncompressed bytes that we decompress from the start of
+     * a gzip file to estimate its compression ratio
+     */
+    private static final int COMPRESSION_SAMPLE_BYTE_COUNT = 8 * 1024 * 1024;
+    
+    /**
+     * we stop reading head rows after this many characters even if we
+     * haven't seen all of the rows yet (guards against files without line
+     * breaks in the format we expect)
+     */
+    private static final int MAX_HEAD_CHAR_COUNT = 16 * 1024 * 1024;
+    
+    /**
+     * the most sampled rows that we hang on to for
+     * {@link FlatFileSample#getSampledRows()}
+     */
+    private static final int MAX_KEPT_ROW_COUNT = 10000;
+    
+    /**
+     * the minimum time between {@link HeadListener} updates
+     */
+    private static final long HEAD_UPDATE_INTERVAL_MILLIS = 200L;
+    
+    /**
+     * Gets progressive updates as the first rows of the file are read
+     */
+    public interface HeadListener
+    {
+        /**
+         * Called as the head rows arrive (from the sampling thread)
+         * @param headText
+         *          the text of the header and rows read so far (always
+         *          ending on a line boundary)
+         * @param done
+         *          true if this is the last update for the head rows
+         */
+        void headTextRead(String headText, boolean done);
+    }
+    
+    private final File flatFile;
+    
+    private final String archiveEntryName;
+    
+    private final FlatFileFormat format;
+    
+    private volatile boolean cancelled = false;
+    
+    /**
+     * Constructor
+     * @param flatFile
+     *          the file to sample
+     * @param format
+     *          the file's format
+     */
+    public FlatFileSampler(File flatFile, FlatFileFormat format)
+    {
+        this(flatFile, null, format);
+    }
+    
+    /**
+     * Constructor
+     * @param flatFile
+     *          the file to sample (or the zip archive holding it)
+     * @param archiveEntryName
+     *          the name of the zip archive entry to sample or null if
+     *          flatFile isn't an archive
+     * @param format
+     *          the file's format
+     */
+    public FlatFileSampler(
+            File flatFile,
+            String archiveEntryName,
+            FlatFileFormat format)
+    {
+        this.flatFile = flatFile;
+        this.archiveEntryName = archiveEntryName;
+        this.format = format;
+    }
+    
+    /**
+     * Stop sampling. {@link #sample(int, HeadListener)} returns null once
+     * it notices
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+    
+    /**
+     * Determine if this sampler has been cancelled
+     * @return
+     *          true if it's cancelled
+     */
+    public boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+    
+    /**
+     * Sample the file
+     * @param maxHeadRowCount
+     *          the number of rows (not counting the header) to read from the
+     *          start of the file
+     * @param headListener
+     *          the listener for the head rows (null is allowed)
+     * @return
+     *          the sample or null if we were cancelled
+     * @throws IOException
+     *          if we fail to read the file. A
+     *          {@link java.io.FileNotFoundException} means that we couldn't
+     *          open it at all
+     * @throws IllegalFormatException
+     *          if the start of the file can't be parsed
+     */
+    public FlatFileSample sample(int maxHeadRowCount, HeadListener headListener)
+    throws IOException, IllegalFormatException
+    {
+        DecompressingInputStream.Compression compression;
+        Reader reader;
+        if(this.archiveEntryName == null)
+        {
+            compression = DecompressingInputStream.detectCompression(this.flatFile);
+            reader = DecompressingInputStream.openReader(this.flatFile);
+        }
+        else
+        {
+            compression = DecompressingInputStream.Compression.ZIP;
+            reader = DecompressingInputStream.openReader(
+                    this.flatFile,
+                    this.archiveEntryName);
+        }
+        
+        // read the head rows
+        StringBuilder headBuilder = new StringBuilder();
+        int headLineCount = 0;
+        int lastLineEnd = 0;
+        boolean endOfFile = false;
+        try
+        {
+            long lastUpdateTime = System.currentTimeMillis();
+            char[] chunk = new char[READ_CHUNK_SIZE];
+            while(!this.cancelled &&
+                  headLineCount <= maxHeadRowCount &&
+                  headBuilder.length() < MAX_HEAD_CHAR_COUNT)
+            {
+                int readCount = reader.read(chunk);
+                if(readCount == -1)
+                {
+                    endOfFile = true;
+                    break;
+                }
+                
+                for(int i = 0; i < readCount && headLineCount <= maxHeadRowCount; i++)
+                {
+                    headBuilder.append(chunk[i]);
+                    if(chunk[i] == '\n')
+                    {
+                        headLineCount++;
+                        lastLineEnd = headBuilder.length();
+                    }
+                }
+                
+                long currTime = System.currentTimeMillis();
+                if(headListener != null &&
+                   currTime - lastUpdateTime >= HEAD_UPDATE_INTERVAL_MILLIS)
+                {
+                    lastUpdateTime = currTime;
+                    headListener.headTextRead(
+                            headBuilder.substring(0, lastLineEnd),
+                            false);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        if(this.cancelled)
+        {
+            return null;
+        }
+        
+        if(endOfFile)
+        {
+            // the last line doesn't need a line ending
+            lastLineEnd = headBuilder.length();
+            if(lastLineEnd > 0 && headBuilder.charAt(lastLineEnd - 1) != '\n')
+            {
+                headLineCount++;
+            }
+        }
+        
+        String headText = headBuilder.substring(0, lastLineEnd);
+        if(headListener != null)
+        {
+            headListener.headTextRead(headText, true);
+        }
+        
+        return this.sampleOffsets(headText, headLineCount, endOfFile, compression);
+    }
+    
+    /**
+     * Infer types for the head rows and then estimate the row count and
+     * infer types for the rows at the sample offsets
+     * @param headText
+     *          the text from the start of the file
+     * @param headLineCount
+     *          the number of lines in the head text (including the header)
+     * @param endOfFile
+     *          true if the head text is the whole file
+     * @param compression
+     *          the file's compression
+     * @return
+     *          the sample or null if we were cancelled
+     * @throws IOException
+     *          if we fail to read the file
+     * @throws IllegalFormatException
+     *          if the head of the file can't be parsed
+     */
+    private FlatFileSample sampleOffsets(
+            String headText,
+            int headLineCount,
+            boolean endOfFile,
+            DecompressingInputStream.Compression compression)
+    throws IOException, IllegalFormatException
+    {
+        FlatFileReader headReader = new FlatFileReader(
+                new StringReader(headText),
+                this.format);
+        String[] header = headReader.readRow();
+        if(header == null)
+        {
+            return new FlatFileSample(
+                    this.flatFile,
+                    headText,
+                    0L,
+                    true,
+                    0L,
+                    new TableColumnMetadata[0],
+                    new long[0],
+                    new ArrayList<String[]>(),
+                    0,
+                    0,
+                    0L,
+                    0L);
+        }
+        
+        SampleAccumulator accumulator = new SampleAccumulator(header);
+        int headerByteCount = headText.substring(
+                0,
+                headText.indexOf('\n') + 1).getBytes().length;
+        long headRowByteCount = headText.getBytes().length - headerByteCount;
+        accumulator.inferRows(headReader, 1, headRowByteCount);
+        
+        long sampledLineCount = headLineCount - 1;
+        long sampledLineByteCount = headRowByteCount;
+        
+        long textLength;
+        if(endOfFile)
+        {
+            textLength = headerByteCount + headRowByteCount;
+        }
+        else
+        {
+            textLength = estimateTextLength(
+                    this.flatFile,
+                    this.archiveEntryName,
+                    compression);
+        }
+        
+        // we can't seek into a compressed file so only uncompressed files
+        // get sampled at offsets
+        if(!endOfFile && compression == DecompressingInputStream.Compression.NONE)
+        {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(
+                    this.flatFile,
+                    "r");
+            try
+            {
+                byte[] sampleBytes = new byte[SAMPLE_BYTE_COUNT];
+                for(int sampleIndex = 1;
+                    sampleIndex <= SAMPLE_COUNT && !this.cancelled;
+                    sampleIndex++)
+                {
+                    long offset = (textLength * sampleIndex) / (SAMPLE_COUNT + 1);
+                    randomAccessFile.seek(offset);
+                    int sampleLength = 0;
+                    int readCount;
+                    while(sampleLength < sampleBytes.length &&
+                          (readCount = randomAccessFile.read(
+                                  sampleBytes,
+                                  sampleLength,
+                                  sampleBytes.length - sampleLength)) > 0)
+                    {
+                        sampleLength += readCount;
+                    }
+                    
+                    // only use whole lines
+                    int sampleStart = indexOfNewline(sampleBytes, sampleLength) + 1;
+                    int sampleEnd = lastIndexOfNewline(sampleBytes, sampleLength) + 1;
+                    if(sampleStart >= 1 && sampleEnd > sampleStart)
+                    {
+                        for(int i = sampleStart; i < sampleEnd; i++)
+                        {
+                            if(sampleBytes[i] == '\n')
+                            {
+                                sampledLineCount++;
+                            }
+                        }
+                        sampledLineByteCount += sampleEnd - sampleStart;
+                        
+                        // a quoted field with line breaks can make us start
+                        // parsing in the middle of a row. we just skip
+                        // samples that we can't parse
+                        try
+                        {
+                            int approxRowNumber = (int)(
+                                    (offset * sampledLineCount) / Math.max(1L, sampledLineByteCount));
+                            accumulator.inferRows(
+                                    new FlatFileReader(
+                                            new StringReader(new String(
+                                                    sampleBytes,
+                                                    sampleStart,
+                                                    sampleEnd - sampleStart)),
+                                            this.format),
+                                    approxRowNumber,
+                                    sampleEnd - sampleStart);
+                        }
+                        catch(IllegalFormatException ex)
+                        {
+                            LOG.log(Level.FINE,
+                                    "skipping unparsable sample at " + offset,
+                                    ex);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                randomAccessFile.close();
+            }
+        }
+        
+        if(this.cancelled)
+        {
+            return null;
+        }
+        
+        long estimatedRowCount;
+        if(endOfFile)
+        {
+            estimatedRowCount = headLineCount - 1;
+        }
+        else if(textLength < 0L || sampledLineCount == 0L)
+        {
+            estimatedRowCount = -1L;
+        }
+        else
+        {
+            estimatedRowCount = Math.round(
+                    (textLength - headerByteCount) /
+                    ((double)sampledLineByteCount / sampledLineCount));
+        }
+        
+        return new FlatFileSample(
+                this.flatFile,
+                headText,
+                estimatedRowCount,
+                endOfFile,
+                textLength,
+                accumulator.metadata,
+                accumulator.totalStringLengths,
+                accumulator.keptRows,
+                accumulator.sampledRowCount,
+                accumulator.mismatchedRowCount,
+                accumulator.sampledByteCount,
+                accumulator.parseNanos);
+    }
+    
+    /**
+     * Estimate the uncompressed length of the given file (or archive entry).
+     * Zip files record the uncompressed size of each entry. The size in a gzip trailer can't
+     * be trusted (it wraps at 4GB and only covers the last member of a
+     * concatenated file) so for gzip the compression ratio of the start of
+     * the file is scaled up to the whole file
+     * @param file
+     *          the file
+     * @param archiveEntryName
+     *          the zip archive entry or null to use the first file in a zip
+     *          archive
+     * @param compression
+     *          the file's compression
+     * @return
+     *          the estimated length or -1 if we can't tell
+     * @throws IOException
+     *          if we can't read the file
+     */
+    private static long estimateTextLength(
+            File file,
+            String archiveEntryName,
+            DecompressingInputStream.Compression compression)
+    throws IOException
+    {
+        switch(compression)
+        {
+            case GZIP:
+            {
+                final long[] compressedByteCount = new long[1];
+                InputStream countingIn = new FilterInputStream(
+                        new FileInputStream(file))
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public int read() throws IOException
+                    {
+                        int b = super.read();
+                        if(b != -1)
+                        {
+                            compressedByteCount[0]++;
+                        }
+                        return b;
+                    }
+                    
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException
+                    {
+                        int readCount = super.read(b, off, len);
+                        if(readCount > 0)
+                        {
+                            compressedByteCount[0] += readCount;
+                        }
+                        return readCount;
+                    }
+                };
+                
+                InputStream gzipIn = new GZIPInputStream(countingIn);
+                try
+                {
+                    long uncompressedByteCount = 0L;
+                    boolean endOfFile = false;
+                    byte[] buffer = new byte[READ_CHUNK_SIZE];
+                    while(!endOfFile &&
+                          uncompressedByteCount < COMPRESSION_SAMPLE_BYTE_COUNT)
+                    {
+                        int readCount = gzipIn.read(buffer);
+                        if(readCount == -1)
+                        {
+                            endOfFile = true;
+                        }
+                        else
+                        {
+                            uncompressedByteCount += readCount;
+                        }
+                    }
+                    
+                    if(endOfFile)
+                    {
+                        // we got to the end so this is exact
+                        return uncompressedByteCount;
+                    }
+                    else
+                    {
+                        // the inflater reads ahead a little so the ratio
+                        // comes out a little low
+                        return Math.round(
+                                file.length() *
+                                ((double)uncompressedByteCount / Math.max(1L, compressedByteCount[0])));
+                    }
+                }
+                finally
+                {
+                    gzipIn.close();
+                }
+            }
+            
+            case ZIP:
+            {
+                ZipFile zipFile = new ZipFile(file);
+                try
+                {
+                    if(archiveEntryName != null)
+                    {
+                        ZipEntry entry = zipFile.getEntry(archiveEntryName);
+                        return entry == null ? -1L : entry.getSize();
+                    }
+                    
+                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                    while(entries.hasMoreElements())
+                    {
+                        ZipEntry entry = entries.nextElement();
+                        if(!entry.isDirectory())
+                        {
+                            return entry.getSize();
+                        }
+                    }
+                    return -1L;
+                }
+                finally
+                {
+                    zipFile.close();
+                }
+            }
+            
+            default:
+            {
+                return file.length();
+            }
+        }
+    }
+    
+    private static int indexOfNewline(byte[] bytes, int end)
+    {
+        for(int i = 0; i < end; i++)
+        {
+            if(bytes[i] == '\n')
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int lastIndexOfNewline(byte[] bytes, int end)
+    {
+        for(int i = end - 1; i >= 0; i--)
+        {
+            if(bytes[i] == '\n')
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Accumulates the inference results across the head rows and the
+     * sampled offsets
+     */
+    private class SampleAccumulator
+    {
+        private final TableColumnMetadata[] metadata;
+        
+        private final long[] totalStringLengths;
+        
+        private final List<String[]> keptRows = new ArrayList<String[]>();
+        
+        private int sampledRowCount = 0;
+        
+        private int mismatchedRowCount = 0;
+        
+        private long sampledByteCount = 0L;
+        
+        private long parseNanos = 0L;
+        
+        /**
+         * Constructor
+         * @param header
+         *          the header row
+         */
+        public SampleAccumulator(String[] header)
+        {
+            this.metadata = new TableColumnMetadata[header.length];
+            for(int i = 0; i < header.length; i++)
+            {
+                this.metadata[i] = new TableColumnMetadata(header[i]);
+            }
+            this.totalStringLengths = new long[header.length];
+        }
+        
+        /**
+         * Run type inference on all of the rows from the given reader
+         * @param reader
+         *          the reader
+         * @param firstRowNumber
+         *          the row number of the reader's first row
+         * @param byteCount
+         *          the number of bytes that the reader covers
+         * @throws IOException
+         *          if the read fails
+         * @throws IllegalFormatException
+         *          if the rows can't be parsed
+         */
+        public void inferRows(
+                FlatFileReader reader,
+                int firstRowNumber,
+                long byteCount)
+        throws IOException, IllegalFormatException
+        {
+            long startTime = System.nanoTime();
+            int rowNumber = firstRowNumber;
+            String[] currRow;
+            while(!FlatFileSampler.this.cancelled && (currRow = reader.readRow()) != null)
+            {
+                this.sampledRowCount++;
+                if(currRow.length == this.metadata.length)
+                {
+                    for(int i = 0; i < this.metadata.length; i++)
+                    {
+                        ColumnTypeInferrer.inferCell(this.metadata[i], currRow[i], rowNumber);
+                        this.totalStringLengths[i] += currRow[i].length();
+                    }
+                    
+                    if(this.keptRows.size() < MAX_KEPT_ROW_COUNT)
+                    {
+                        this.keptRows.add(currRow);
+                    }
+                }
+                else
+                {
+                    this.mismatchedRowCount++;
+                }
+                rowNumber++;
+            }
+            this.parseNanos += System.nanoTime() - startTime;
+            this.sampledByteCount += byteCount;
+        }
+    }
+}
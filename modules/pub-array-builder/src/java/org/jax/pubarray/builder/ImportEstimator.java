@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.db.HSQLDBConnectionManager;
+import org.jax.pubarray.db.PersistenceManager;
+import org.jax.pubarray.db.StorageEstimator;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.util.io.FileUtilities;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Estimates how long an import will take and how big the database will be
+ * without doing the import (a "dry run"). Every input file is sampled with
+ * a {@link FlatFileSampler}, the database size is projected from the column
+ * layout that {@link PersistenceManager} would create and the build time is
+ * projected from the parse rate measured on the sample and the insert rate
+ * measured by inserting the sampled rows into a scratch database
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ImportEstimator
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            ImportEstimator.class.getName());
+    
+    /**
+     * text columns with values at least this long get flagged in the report
+     */
+    public static final int WIDE_TEXT_COLUMN_LENGTH = 1024;
+    
+    /**
+     * the number of rows that we read from the start of each file
+     */
+    private static final int HEAD_ROW_COUNT = 1000;
+    
+    private static final String SCRATCH_DATABASE_NAME = "insert-rate-db";
+    
+    /**
+     * The estimate for a single table
+     */
+    public static class TableEstimate
+    {
+        private final String tableName;
+        
+        private final FlatFileSample sample;
+        
+        private final long storedRowLength;
+        
+        private final double insertRowsPerSecond;
+        
+        /**
+         * Constructor
+         * @param tableName
+         *          see {@link #getTableName()}
+         * @param sample
+         *          see {@link #getSample()}
+         * @param storedRowLength
+         *          see {@link #getStoredRowLength()}
+         * @param insertRowsPerSecond
+         *          see {@link #getInsertRowsPerSecond()}
+         */
+        public TableEstimate(
+                String tableName,
+                FlatFileSample sample,
+                long storedRowLength,
+                double insertRowsPerSecond)
+        {
+            this.tableName = tableName;
+            this.sample = sample;
+            this.storedRowLength = storedRowLength;
+            this.insertRowsPerSecond = insertRowsPerSecond;
+        }
+        
+        /**
+         * Getter for the table name
+         * @return the table name
+         */
+        public String getTableName()
+        {
+            return this.tableName;
+        }
+        
+        /**
+         * Getter for the sample that this estimate is based on
+         * @return the sample
+         */
+        public FlatFileSample getSample()
+        {
+            return this.sample;
+        }
+        
+        /**
+         * Getter for the estimated number of bytes that each row takes up in
+         * the database
+         * @return the stored row length
+         */
+        public long getStoredRowLength()
+        {
+            return this.storedRowLength;
+        }
+        
+        /**
+         * Getter for the measured insert rate
+         * @return the rows inserted per second or -1 if it's unknown
+         */
+        public double getInsertRowsPerSecond()
+        {
+            return this.insertRowsPerSecond;
+        }
+        
+        /**
+         * Get the estimated size of this table in the database
+         * @return the size in bytes or -1 if it's unknown
+         */
+        public long getEstimatedDatabaseBytes()
+        {
+            long rowCount = this.sample.getEstimatedRowCount();
+            return rowCount < 0L ? -1L : rowCount * this.storedRowLength;
+        }
+        
+        /**
+         * Get the estimated time to parse the flat file (including type
+         * inference)
+         * @return the time in milliseconds or -1 if it's unknown
+         */
+        public long getEstimatedParseMillis()
+        {
+            long textLength = this.sample.getEstimatedTextLength();
+            if(textLength < 0L ||
+               this.sample.getSampledByteCount() == 0L ||
+               this.sample.getParseNanos() == 0L)
+            {
+                return -1L;
+            }
+            else
+            {
+                double bytesPerMilli =
+                    this.sample.getSampledByteCount() /
+                    (this.sample.getParseNanos() / 1000000.0);
+                return Math.round(textLength / bytesPerMilli);
+            }
+        }
+        
+        /**
+         * Get the estimated time to insert the rows into the database
+         * @return the time in milliseconds or -1 if it's unknown
+         */
+        public long getEstimatedInsertMillis()
+        {
+            long rowCount = this.sample.getEstimatedRowCount();
+            if(rowCount < 0L || this.insertRowsPerSecond <= 0.0)
+            {
+                return -1L;
+            }
+            else
+            {
+                return Math.round(1000.0 * rowCount / this.insertRowsPerSecond);
+            }
+        }
+        
+        /**
+         * Get the indices of the text columns that have sampled values of at
+         * least {@link ImportEstimator#WIDE_TEXT_COLUMN_LENGTH} characters
+         * @return the column indices
+         */
+        public List<Integer> getWideTextColumns()
+        {
+            List<Integer> wideColumns = new ArrayList<Integer>();
+            TableColumnMetadata[] metadata = this.sample.getProvisionalMetadata();
+            for(int i = 0; i < metadata.length; i++)
+            {
+                if(metadata[i].getDataType() == DataType.TEXT &&
+                   metadata[i].getLongestStringLength() >= WIDE_TEXT_COLUMN_LENGTH)
+                {
+                    wideColumns.add(i);
+                }
+            }
+            return wideColumns;
+        }
+    }
+    
+    private final List<TableEstimate> designAndDataEstimates =
+        new ArrayList<TableEstimate>();
+    
+    private final List<TableEstimate> annotationEstimates =
+        new ArrayList<TableEstimate>();
+    
+    private volatile int maxTableBuildThreads =
+        PersistenceManager.DEFAULT_MAX_TABLE_BUILD_THREADS;
+    
+    private volatile boolean singlePrecisionDataEnabled = false;
+    
+    private volatile boolean log2DataEnabled = false;
+    
+    private volatile boolean packedProbeVectorsEnabled = false;
+    
+    private volatile boolean probeSummaryTableEnabled = false;
+    
+    /**
+     * Getter for the number of annotation tables that the build will load
+     * concurrently (used for the build time estimate)
+     * @return the thread count
+     */
+    public int getMaxTableBuildThreads()
+    {
+        return this.maxTableBuildThreads;
+    }
+    
+    /**
+     * Setter for the number of annotation tables that the build will load
+     * concurrently (used for the build time estimate)
+     * @param maxTableBuildThreads the thread count
+     */
+    public void setMaxTableBuildThreads(int maxTableBuildThreads)
+    {
+        this.maxTableBuildThreads = maxTableBuildThreads;
+    }
+    
+    /**
+     * Determine if the build will store intensities in single precision
+     * (see {@link PersistenceManager#isSinglePrecisionDataEnabled()})
+     * @return true for single precision
+     */
+    public boolean isSinglePrecisionDataEnabled()
+    {
+        return this.singlePrecisionDataEnabled;
+    }
+    
+    /**
+     * Setter for single precision intensity storage
+     * @see #isSinglePrecisionDataEnabled()
+     * @param singlePrecisionDataEnabled true for single precision
+     */
+    public void setSinglePrecisionDataEnabled(boolean singlePrecisionDataEnabled)
+    {
+        this.singlePrecisionDataEnabled = singlePrecisionDataEnabled;
+    }
+    
+    /**
+     * Determine if the build will also store log2 intensities
+     * (see {@link PersistenceManager#isLog2DataEnabled()})
+     * @return true for log2 intensities
+     */
+    public boolean isLog2DataEnabled()
+    {
+        return this.log2DataEnabled;
+    }
+    
+    /**
+     * Setter for log2 intensity storage
+     * @see #isLog2DataEnabled()
+     * @param log2DataEnabled true for log2 intensities
+     */
+    public void setLog2DataEnabled(boolean log2DataEnabled)
+    {
+        this.log2DataEnabled = log2DataEnabled;
+    }
+    
+    /**
+     * Determine if the build will also store the intensities as packed
+     * probe vectors
+     * (see {@link PersistenceManager#isPackedProbeVectorsEnabled()})
+     * @return true for packed probe vectors
+     */
+    public boolean isPackedProbeVectorsEnabled()
+    {
+        return this.packedProbeVectorsEnabled;
+    }
+    
+    /**
+     * Setter for packed probe vector storage
+     * @see #isPackedProbeVectorsEnabled()
+     * @param packedProbeVectorsEnabled true for packed probe vectors
+     */
+    public void setPackedProbeVectorsEnabled(boolean packedProbeVectorsEnabled)
+    {
+        this.packedProbeVectorsEnabled = packedProbeVectorsEnabled;
+    }
+    
+    /**
+     * Determine if the build will also store the probe summary table
+     * (see {@link PersistenceManager#isProbeSummaryTableEnabled()})
+     * @return true for the summary table
+     */
+    public boolean isProbeSummaryTableEnabled()
+    {
+        return this.probeSummaryTableEnabled;
+    }
+    
+    /**
+     * Setter for building the probe summary table
+     * @see #isProbeSummaryTableEnabled()
+     * @param probeSummaryTableEnabled true for the summary table
+     */
+    public void setProbeSummaryTableEnabled(boolean probeSummaryTableEnabled)
+    {
+        this.probeSummaryTableEnabled = probeSummaryTableEnabled;
+    }
+    
+    /**
+     * Sample the given files and estimate their tables
+     * @param designFile
+     *          the design file
+     * @param dataFile
+     *          the data file
+     * @param annotationFiles
+     *          the annotation files
+     * @throws IOException
+     *          if we fail to read the files or the scratch database
+     * @throws IllegalFormatException
+     *          if the start of a file can't be parsed
+     * @throws SQLException
+     *          if the scratch database fails
+     */
+    public void estimate(
+            FlatFileDescription designFile,
+            FlatFileDescription dataFile,
+            List<FlatFileDescription> annotationFiles)
+    throws IOException, IllegalFormatException, SQLException
+    {
+        File scratchDir = FileUtilities.createTempDir();
+        try
+        {
+            HSQLDBConnectionManager connectionMgr = new HSQLDBConnectionManager(
+                    new File(scratchDir, SCRATCH_DATABASE_NAME).getPath(),
+                    false,
+                    true);
+            Connection connection = connectionMgr.createConnection();
+            try
+            {
+                PersistenceManager persistenceMgr = new PersistenceManager();
+                persistenceMgr.setSinglePrecisionDataEnabled(
+                        this.singlePrecisionDataEnabled);
+                persistenceMgr.setLog2DataEnabled(this.log2DataEnabled);
+                persistenceMgr.setPackedProbeVectorsEnabled(
+                        this.packedProbeVectorsEnabled);
+                persistenceMgr.setProbeSummaryTableEnabled(
+                        this.probeSummaryTableEnabled);
+                if(designFile != null)
+                {
+                    this.designAndDataEstimates.add(this.estimateTable(
+                            persistenceMgr,
+                            connection,
+                            designFile,
+                            false));
+                }
+                if(dataFile != null)
+                {
+                    this.designAndDataEstimates.add(this.estimateTable(
+                            persistenceMgr,
+                            connection,
+                            dataFile,
+                            true));
+                }
+                for(FlatFileDescription annotationFile: annotationFiles)
+                {
+                    this.annotationEstimates.add(this.estimateTable(
+                            persistenceMgr,
+                            connection,
+                            annotationFile,
+                            false));
+                }
+            }
+            finally
+            {
+                connectionMgr.suspendDatabase(connection);
+            }
+        }
+        finally
+        {
+            FileUtilities.recursiveDelete(scratchDir);
+        }
+    }
+    
+    private TableEstimate estimateTable(
+            PersistenceManager persistenceMgr,
+            Connection connection,
+            FlatFileDescription flatFile,
+            boolean isDataTable)
+    throws IOException, IllegalFormatException, SQLException
+    {
+        LOG.info("sampling " + flatFile.getFlatFile().getPath() +
+                (flatFile.getArchiveEntryName() == null ?
+                        "" :
+                        "!" + flatFile.getArchiveEntryName()));
+        FlatFileSample sample = new FlatFileSampler(
+                flatFile.getFlatFile(),
+                flatFile.getArchiveEntryName(),
+                flatFile.getFormat()).sample(HEAD_ROW_COUNT, null);
+        
+        // untyped columns (no values sampled) would end up as text
+        TableColumnMetadata[] provisionalMetadata = sample.getProvisionalMetadata();
+        TableColumnMetadata[] metadata =
+            new TableColumnMetadata[provisionalMetadata.length];
+        double[] averageStringLengths = new double[provisionalMetadata.length];
+        for(int i = 0; i < provisionalMetadata.length; i++)
+        {
+            metadata[i] = new TableColumnMetadata(
+                    provisionalMetadata[i].getName(),
+                    provisionalMetadata[i].getDataType() == null ?
+                            DataType.TEXT :
+                            provisionalMetadata[i].getDataType(),
+                    null);
+            metadata[i].setLongestStringLength(
+                    provisionalMetadata[i].getLongestStringLength());
+            averageStringLengths[i] = sample.getAverageStringLength(i);
+        }
+        
+        double insertRowsPerSecond = -1.0;
+        if(metadata.length >= 1 && !sample.getSampledRows().isEmpty())
+        {
+            insertRowsPerSecond = persistenceMgr.measureInsertRate(
+                    connection,
+                    metadata,
+                    sample.getSampledRows());
+        }
+        
+        // the data table's rows are also stored as packed vectors,
+        // summarized in the probe summary table and possibly copied as log2
+        long storedRowLength = StorageEstimator.estimateStoredRowLength(
+                metadata,
+                averageStringLengths);
+        if(isDataTable && metadata.length >= 1 && persistenceMgr.isPackedProbeVectorsEnabled())
+        {
+            storedRowLength += StorageEstimator.estimatePackedVectorRowLength(
+                    metadata,
+                    averageStringLengths[0],
+                    persistenceMgr.isSinglePrecisionDataEnabled(),
+                    persistenceMgr.isLog2DataEnabled());
+        }
+        if(isDataTable && persistenceMgr.isLog2DataEnabled())
+        {
+            storedRowLength += StorageEstimator.estimateStoredRowLength(
+                    metadata,
+                    averageStringLengths);
+        }
+        if(isDataTable && metadata.length >= 1 && persistenceMgr.isProbeSummaryTableEnabled())
+        {
+            storedRowLength += StorageEstimator.estimateProbeSummaryRowLength(
+                    metadata,
+                    averageStringLengths[0]);
+        }
+        
+        return new TableEstimate(
+                flatFile.getTableName(),
+                sample,
+                storedRowLength,
+                insertRowsPerSecond);
+    }
+    
+    /**
+     * Get all of the table estimates made so far (design, data and then
+     * annotations)
+     * @return the estimates
+     */
+    public List<TableEstimate> getTableEstimates()
+    {
+        List<TableEstimate> allEstimates = new ArrayList<TableEstimate>(
+                this.designAndDataEstimates);
+        allEstimates.addAll(this.annotationEstimates);
+        return allEstimates;
+    }
+    
+    /**
+     * Get the estimated size of the database
+     * @return the size in bytes (tables whose size is unknown are left out)
+     */
+    public long getEstimatedDatabaseBytes()
+    {
+        long totalBytes = 0L;
+        for(TableEstimate tableEstimate: this.getTableEstimates())
+        {
+            totalBytes += Math.max(tableEstimate.getEstimatedDatabaseBytes(), 0L);
+        }
+        return totalBytes;
+    }
+    
+    /**
+     * Get the estimated build time. Parsing and the design and data inserts
+     * happen one after the other while the annotation tables are inserted
+     * concurrently (see {@link #getMaxTableBuildThreads()}). Database
+     * compaction and packaging aren't included
+     * @return the time in milliseconds (tables whose time is unknown are
+     *          left out)
+     */
+    public long getEstimatedBuildMillis()
+    {
+        long buildMillis = 0L;
+        for(TableEstimate tableEstimate: this.getTableEstimates())
+        {
+            buildMillis += Math.max(tableEstimate.getEstimatedParseMillis(), 0L);
+        }
+        
+        for(TableEstimate tableEstimate: this.designAndDataEstimates)
+        {
+            buildMillis += Math.max(tableEstimate.getEstimatedInsertMillis(), 0L);
+        }
+        
+        long annotationInsertMillis = 0L;
+        long longestAnnotationInsertMillis = 0L;
+        for(TableEstimate tableEstimate: this.annotationEstimates)
+        {
+            long insertMillis = Math.max(tableEstimate.getEstimatedInsertMillis(), 0L);
+            annotationInsertMillis += insertMillis;
+            longestAnnotationInsertMillis = Math.max(
+                    longestAnnotationInsertMillis,
+                    insertMillis);
+        }
+        int annotationThreads = Math.max(1, Math.min(
+                this.maxTableBuildThreads,
+                this.annotationEstimates.size()));
+        buildMillis += Math.max(
+                longestAnnotationInsertMillis,
+                annotationInsertMillis / annotationThreads);
+        
+        return buildMillis;
+    }
+    
+    /**
+     * Create a human readable report of the estimates
+     * @return the report
+     */
+    public String toReport()
+    {
+        NumberFormat numberFormat = NumberFormat.getIntegerInstance();
+        StringBuilder report = new StringBuilder();
+        for(TableEstimate tableEstimate: this.getTableEstimates())
+        {
+            FlatFileSample sample = tableEstimate.getSample();
+            TableColumnMetadata[] metadata = sample.getProvisionalMetadata();
+            
+            report.append(tableEstimate.getTableName());
+            report.append(" (");
+            report.append(sample.getFlatFile().getPath());
+            report.append(")\n");
+            
+            long rowCount = sample.getEstimatedRowCount();
+            report.append("  rows: ");
+            if(rowCount < 0L)
+            {
+                report.append("unknown");
+            }
+            else
+            {
+                if(!sample.isExactRowCount())
+                {
+                    report.append("about ");
+                }
+                report.append(numberFormat.format(rowCount));
+            }
+            report.append('\n');
+            
+            int textCount = 0;
+            int realCount = 0;
+            int integerCount = 0;
+            for(TableColumnMetadata columnMetadata: metadata)
+            {
+                if(columnMetadata.getDataType() == DataType.REAL)
+                {
+                    realCount++;
+                }
+                else if(columnMetadata.getDataType() == DataType.INTEGER)
+                {
+                    integerCount++;
+                }
+                else
+                {
+                    textCount++;
+                }
+            }
+            report.append("  columns: ");
+            report.append(numberFormat.format(metadata.length));
+            report.append(" (");
+            report.append(textCount);
+            report.append(" text, ");
+            report.append(realCount);
+            report.append(" real, ");
+            report.append(integerCount);
+            report.append(" integer from ");
+            report.append(numberFormat.format(sample.getSampledRowCount()));
+            report.append(" sampled rows)\n");
+            
+            report.append("  database size: ");
+            report.append(formatBytes(tableEstimate.getEstimatedDatabaseBytes()));
+            report.append(" (");
+            report.append(numberFormat.format(tableEstimate.getStoredRowLength()));
+            report.append(" bytes per row)\n");
+            
+            report.append("  parse time: ");
+            report.append(formatMillis(tableEstimate.getEstimatedParseMillis()));
+            report.append(", insert time: ");
+            report.append(formatMillis(tableEstimate.getEstimatedInsertMillis()));
+            if(tableEstimate.getInsertRowsPerSecond() > 0.0)
+            {
+                report.append(" (");
+                report.append(numberFormat.format(tableEstimate.getInsertRowsPerSecond()));
+                report.append(" rows/s)");
+            }
+            report.append('\n');
+            
+            for(int wideColumn: tableEstimate.getWideTextColumns())
+            {
+                report.append("  WARNING: column \"");
+                report.append(metadata[wideColumn].getName());
+                report.append("\" has values up to ");
+                report.append(numberFormat.format(metadata[wideColumn].getLongestStringLength()));
+                report.append(" characters long (averaging ");
+                report.append(numberFormat.format(sample.getAverageStringLength(wideColumn)));
+                report.append(")\n");
+            }
+            
+            if(sample.getMismatchedRowCount() > 0)
+            {
+                report.append("  WARNING: ");
+                report.append(numberFormat.format(sample.getMismatchedRowCount()));
+                report.append(" sampled rows don't have the ");
+                report.append(metadata.length);
+                report.append(" columns that the header has\n");
+            }
+        }
+        
+        report.append("estimated database size: ");
+        report.append(formatBytes(this.getEstimatedDatabaseBytes()));
+        report.append('\n');
+        report.append("estimated build time (not counting compaction and packaging): ");
+        report.append(formatMillis(this.getEstimatedBuildMillis()));
+        report.append('\n');
+        
+        return report.toString();
+    }
+    
+    private static String formatBytes(long byteCount)
+    {
+        if(byteCount < 0L)
+        {
+            return "unknown";
+        }
+        else if(byteCount < 1024L * 1024L)
+        {
+            return NumberFormat.getIntegerInstance().format(byteCount / 1024L) + " KB";
+        }
+        else
+        {
+            return NumberFormat.getIntegerInstance().format(
+                    byteCount / (1024L * 1024L)) + " MB";
+        }
+    }
+    
+    private static String formatMillis(long millis)
+    {
+        if(millis < 0L)
+        {
+            return "unknown";
+        }
+        
+        long seconds = (millis + 500L) / 1000L;
+        if(seconds < 60L)
+        {
+            return seconds + " s";
+        }
+        else if(seconds < 60L * 60L)
+        {
+            return (seconds / 60L) + " min " + (seconds % 60L) + " s";
+        }
+        else
+        {
+            return (seconds / (60L * 60L)) + " h " + ((seconds / 60L) % 60L) + " min";
+        }
+    }
+}
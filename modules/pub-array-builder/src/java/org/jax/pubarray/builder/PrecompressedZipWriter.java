@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * A minimal zip writer for entries whose data has already been compressed
+ * (or is stored as-is) along with a known CRC and sizes. This is what lets
+ * {@link WarPackager} deflate entries on worker threads and still write the
+ * archive out in order, which {@link java.util.zip.ZipOutputStream} can't do
+ * since it insists on compressing the data itself. ZIP64 extra fields are
+ * written for entries of 4GB or more (and for entries that start past 4GB)
+ * and ZIP64 end records are written when there are more than 65535 entries
+ * or the archive grows past 4GB
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+/*package-protected*/ class PrecompressedZipWriter
+{
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    
+    /**
+     * general purpose flag saying that names are UTF-8
+     */
+    private static final int UTF8_FLAG = 0x0800;
+    
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    
+    private static final long MAX_INT_FIELD = 0xFFFFFFFFL;
+    private static final int MAX_SHORT_FIELD = 0xFFFF;
+    
+    private final OutputStream out;
+    private long position = 0L;
+    private final List<CentralDirectoryRecord> records =
+        new ArrayList<CentralDirectoryRecord>();
+    private final Set<String> names = new HashSet<String>();
+    private final byte[] copyBuffer = new byte[64 * 1024];
+    
+    /**
+     * What we need to remember about an entry to write its central
+     * directory record
+     */
+    private static class CentralDirectoryRecord
+    {
+        private final byte[] nameBytes;
+        private final int method;
+        private final int dosTime;
+        private final int dosDate;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long localHeaderOffset;
+        
+        /**
+         * Constructor
+         * @param nameBytes     the UTF-8 name
+         * @param method        the compression method
+         * @param dosTime       the DOS time
+         * @param dosDate       the DOS date
+         * @param crc           the CRC-32 of the uncompressed data
+         * @param size          the uncompressed size
+         * @param compressedSize    the compressed size
+         * @param localHeaderOffset the offset of the local header
+         */
+        public CentralDirectoryRecord(
+                byte[] nameBytes,
+                int method,
+                int dosTime,
+                int dosDate,
+                long crc,
+                long size,
+                long compressedSize,
+                long localHeaderOffset)
+        {
+            this.nameBytes = nameBytes;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.dosDate = dosDate;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+    
+    /**
+     * Constructor
+     * @param out
+     *          the stream to write the archive to. This should be buffered
+     */
+    public PrecompressedZipWriter(OutputStream out)
+    {
+        this.out = out;
+    }
+    
+    /**
+     * Getter for the number of bytes written so far
+     * @return the byte count
+     */
+    public long getPosition()
+    {
+        return this.position;
+    }
+    
+    /**
+     * Write an entry
+     * @param name
+     *          the entry name
+     * @param time
+     *          the modification time in milliseconds
+     * @param method
+     *          {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc
+     *          the CRC-32 of the uncompressed data
+     * @param size
+     *          the uncompressed size
+     * @param compressedSize
+     *          the number of bytes to copy from data
+     * @param data
+     *          the entry data (raw deflate data for {@link ZipEntry#DEFLATED})
+     * @throws IOException
+     *          if the write fails or the entry is a duplicate
+     */
+    public void writeEntry(
+            String name,
+            long time,
+            int method,
+            long crc,
+            long size,
+            long compressedSize,
+            InputStream data)
+    throws IOException
+    {
+        if(!this.names.add(name))
+        {
+            throw new IOException("duplicate archive entry: " + name);
+        }
+        
+        byte[] nameBytes = name.getBytes("UTF-8");
+        int[] dosTimeAndDate = toDosTimeAndDate(time);
+        CentralDirectoryRecord record = new CentralDirectoryRecord(
+                nameBytes,
+                method,
+                dosTimeAndDate[0],
+                dosTimeAndDate[1],
+                crc,
+                size,
+                compressedSize,
+                this.position);
+        
+        // the local ZIP64 extra field has to hold both sizes if it holds
+        // either of them
+        boolean zip64Sizes =
+            size >= MAX_INT_FIELD ||
+            compressedSize >= MAX_INT_FIELD;
+        
+        this.writeInt(LOCAL_HEADER_SIGNATURE);
+        this.writeShort(zip64Sizes ? VERSION_ZIP64 : VERSION_DEFAULT);
+        this.writeShort(UTF8_FLAG);
+        this.writeShort(method);
+        this.writeShort(record.dosTime);
+        this.writeShort(record.dosDate);
+        this.writeInt(crc);
+        this.writeInt(zip64Sizes ? MAX_INT_FIELD : compressedSize);
+        this.writeInt(zip64Sizes ? MAX_INT_FIELD : size);
+        this.writeShort(nameBytes.length);
+        this.writeShort(zip64Sizes ? 20 : 0);
+        this.writeBytes(nameBytes, nameBytes.length);
+        if(zip64Sizes)
+        {
+            this.writeShort(ZIP64_EXTRA_ID);
+            this.writeShort(16);
+            this.writeLong(size);
+            this.writeLong(compressedSize);
+        }
+        
+        long remaining = compressedSize;
+        while(remaining > 0L)
+        {
+            int readCount = data.read(
+                    this.copyBuffer,
+                    0,
+                    (int)Math.min(this.copyBuffer.length, remaining));
+            if(readCount < 0)
+            {
+                throw new IOException(
+                        "unexpected end of data for archive entry " + name);
+            }
+            this.writeBytes(this.copyBuffer, readCount);
+            remaining -= readCount;
+        }
+        
+        this.records.add(record);
+    }
+    
+    /**
+     * Write the central directory and flush. The underlying stream is not
+     * closed
+     * @throws IOException
+     *          if the write fails
+     */
+    public void finish() throws IOException
+    {
+        long centralDirectoryOffset = this.position;
+        for(CentralDirectoryRecord record: this.records)
+        {
+            // the central ZIP64 extra field only holds the values that
+            // don't fit in their header fields (in this order)
+            boolean zip64Size = record.size >= MAX_INT_FIELD;
+            boolean zip64CompressedSize = record.compressedSize >= MAX_INT_FIELD;
+            boolean zip64Offset = record.localHeaderOffset >= MAX_INT_FIELD;
+            int zip64DataSize = 0;
+            if(zip64Size)
+            {
+                zip64DataSize += 8;
+            }
+            if(zip64CompressedSize)
+            {
+                zip64DataSize += 8;
+            }
+            if(zip64Offset)
+            {
+                zip64DataSize += 8;
+            }
+            boolean zip64 = zip64DataSize > 0;
+            
+            this.writeInt(CENTRAL_HEADER_SIGNATURE);
+            this.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            this.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            this.writeShort(UTF8_FLAG);
+            this.writeShort(record.method);
+            this.writeShort(record.dosTime);
+            this.writeShort(record.dosDate);
+            this.writeInt(record.crc);
+            this.writeInt(zip64CompressedSize ? MAX_INT_FIELD : record.compressedSize);
+            this.writeInt(zip64Size ? MAX_INT_FIELD : record.size);
+            this.writeShort(record.nameBytes.length);
+            this.writeShort(zip64 ? 4 + zip64DataSize : 0);
+            this.writeShort(0);
+            this.writeShort(0);
+            this.writeShort(0);
+            this.writeInt(0L);
+            this.writeInt(zip64Offset ? MAX_INT_FIELD : record.localHeaderOffset);
+            this.writeBytes(record.nameBytes, record.nameBytes.length);
+            if(zip64)
+            {
+                this.writeShort(ZIP64_EXTRA_ID);
+                this.writeShort(zip64DataSize);
+                if(zip64Size)
+                {
+                    this.writeLong(record.size);
+                }
+                if(zip64CompressedSize)
+                {
+                    this.writeLong(record.compressedSize);
+                }
+                if(zip64Offset)
+                {
+                    this.writeLong(record.localHeaderOffset);
+                }
+            }
+        }
+        long centralDirectorySize = this.position - centralDirectoryOffset;
+        
+        long entryCount = this.records.size();
+        boolean zip64 =
+            entryCount >= MAX_SHORT_FIELD ||
+            centralDirectoryOffset >= MAX_INT_FIELD ||
+            centralDirectorySize >= MAX_INT_FIELD;
+        if(zip64)
+        {
+            long zip64EndOffset = this.position;
+            this.writeInt(ZIP64_END_SIGNATURE);
+            this.writeLong(44L);
+            this.writeShort(VERSION_ZIP64);
+            this.writeShort(VERSION_ZIP64);
+            this.writeInt(0L);
+            this.writeInt(0L);
+            this.writeLong(entryCount);
+            this.writeLong(entryCount);
+            this.writeLong(centralDirectorySize);
+            this.writeLong(centralDirectoryOffset);
+            
+            this.writeInt(ZIP64_LOCATOR_SIGNATURE);
+            this.writeInt(0L);
+            this.writeLong(zip64EndOffset);
+            this.writeInt(1L);
+        }
+        
+        this.writeInt(END_SIGNATURE);
+        this.writeShort(0);
+        this.writeShort(0);
+        this.writeShort((int)Math.min(entryCount, MAX_SHORT_FIELD));
+        this.writeShort((int)Math.min(entryCount, MAX_SHORT_FIELD));
+        this.writeInt(Math.min(centralDirectorySize, MAX_INT_FIELD));
+        this.writeInt(Math.min(centralDirectoryOffset, MAX_INT_FIELD));
+        this.writeShort(0);
+        
+        this.out.flush();
+    }
+    
+    /**
+     * Convert the java time to a DOS time and date
+     * @param time
+     *          the time in milliseconds
+     * @return
+     *          the DOS time followed by the DOS date
+     */
+    private static int[] toDosTimeAndDate(long time)
+    {
+        Calendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if(year < 1980)
+        {
+            // the earliest date that DOS can represent
+            return new int[] {0, (1 << 5) | 1};
+        }
+        else
+        {
+            int dosTime =
+                (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+                (calendar.get(Calendar.MINUTE) << 5) |
+                (calendar.get(Calendar.SECOND) >> 1);
+            int dosDate =
+                ((year - 1980) << 9) |
+                ((calendar.get(Calendar.MONTH) + 1) << 5) |
+                calendar.get(Calendar.DAY_OF_MONTH);
+            return new int[] {dosTime, dosDate};
+        }
+    }
+    
+    private void writeShort(int value) throws IOException
+    {
+        this.out.write(value & 0xFF);
+        this.out.write((value >>> 8) & 0xFF);
+        this.position += 2;
+    }
+    
+    private void writeInt(long value) throws IOException
+    {
+        this.writeShort((int)(value & 0xFFFF));
+        this.writeShort((int)((value >>> 16) & 0xFFFF));
+    }
+    
+    private void writeLong(long value) throws IOException
+    {
+        this.writeInt(value & MAX_INT_FIELD);
+        this.writeInt(value >>> 32);
+    }
+    
+    private void writeBytes(byte[] bytes, int length) throws IOException
+    {
+        this.out.write(bytes, 0, length);
+        this.position += length;
+    }
+}
@@ -18,30 +18,38 @@
 package org.jax.pubarray.builder;
 
 import java.awt.Component;
-import java.io.BufferedOutputStream;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import javax.jnlp.BasicService;
 import javax.jnlp.ServiceManager;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 
+import org.jax.pubarray.builder.BuildPhasePipeline.Phase;
+import org.jax.pubarray.db.BuildCheckpoint;
 import org.jax.pubarray.db.CandidateDatabaseManager;
-import org.jax.pubarray.db.ConnectionManager;
+import org.jax.pubarray.db.CandidateTable;
 import org.jax.pubarray.db.ExperimentMetadata;
 import org.jax.pubarray.db.HSQLDBConnectionManager;
+import org.jax.pubarray.db.ImportCache;
+import org.jax.pubarray.db.ImportProfiler;
 import org.jax.pubarray.db.PerGeneImageDirectoryDescription;
 import org.jax.pubarray.db.PersistenceManager;
+import org.jax.pubarray.db.SpillManager;
 import org.jax.util.concurrent.SafeAWTInvoker;
 import org.jax.util.concurrent.SimpleLongRunningTask;
 import org.jax.util.gui.BroadcastingWizardController;
@@ -73,6 +81,26 @@ public class PubArrayWizardController implements BroadcastingWizardController
     // we have a real web application
     private static final String WAR_TEMPLATE_RESOURCE = "/pub-array-gwt-server-1.0.war";
     
+    // build progress is measured in kilobytes processed
+    private static final long BYTES_PER_WORK_UNIT = 1024L;
+    
+    // the WAR template is a resource so we don't know its size up front
+    private static final int TEMPLATE_WORK_UNITS = 8 * 1024;
+    
+    // the most build phases that we'll run at once. Most phases do their own
+    // multithreading so this is about overlapping independent phases
+    private static final int PIPELINE_THREAD_COUNT = 4;
+    
+    // the build checkpoint steps (see BuildCheckpoint)
+    private static final String DESIGN_STEP = "design";
+    private static final String DATA_STEP = "data";
+    private static final String ANNOTATION_STEP_PREFIX = "annotation:";
+    private static final String DATABASE_STEP = "database";
+    
+    // the WAR is written to a file with this suffix and then moved into
+    // place so that a failed build never clobbers an existing WAR
+    private static final String PARTIAL_WAR_SUFFIX = ".partial";
+    
     private final WizardEventSupport wizardEventSupport;
     
     private final ValidatablePanel[] wizardPanels;
@@ -133,6 +161,17 @@ public class PubArrayWizardController implements BroadcastingWizardController
                 this.annotationsPanel,
                 this.perGeneImageDirectoriesPanel,
                 this.webAppOutputPanel};
+        
+        this.webAppOutputPanel.addEstimateBuildListener(new ActionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void actionPerformed(ActionEvent e)
+            {
+                PubArrayWizardController.this.estimateBuild();
+            }
+        });
     }
     
     /**
@@ -220,7 +259,8 @@ public class PubArrayWizardController implements BroadcastingWizardController
                             this.buildWARTask,
                             true);
                     this.buildWebApplication();
-                    this.buildWARTask.setWorkUnitsCompleted(1);
+                    this.buildWARTask.setWorkUnitsCompleted(
+                            this.buildWARTask.getTotalWorkUnits());
                     
                     this.wizardEventSupport.fireWizardFinished();
                     return true;
@@ -249,68 +289,106 @@ public class PubArrayWizardController implements BroadcastingWizardController
         }
     }
     
-    private boolean validateCurrPanel()
+    /**
+     * Estimate the database size and build time for the files selected in
+     * the wizard without building anything. The estimate runs on a worker
+     * thread and the report is shown in a dialog when it's done. This
+     * should be called from the AWT thread.
+     */
+    private void estimateBuild()
     {
-        return this.wizardPanels[this.currPanelIndex].validateData();
+        final FlatFileDescription designFileDesc =
+            this.microarrayDesignPanel.getFlatFileDescription();
+        final FlatFileDescription dataFileDesc =
+            this.microarrayDataPanel.getFlatFileDescription();
+        final List<FlatFileDescription> annotationDescriptions =
+            this.annotationsPanel.getFlatFileDescriptions();
+        final boolean singlePrecisionData =
+            this.webAppOutputPanel.isSinglePrecisionDataSelected();
+        final boolean log2Data = this.webAppOutputPanel.isLog2DataSelected();
+        final boolean packedVectors =
+            this.webAppOutputPanel.isPackedProbeVectorsSelected();
+        final boolean probeSummary =
+            this.webAppOutputPanel.isProbeSummaryTableSelected();
+        this.webAppOutputPanel.setEstimateBuildEnabled(false);
+        
+        Thread estimateThread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                final ImportEstimator estimator = new ImportEstimator();
+                estimator.setSinglePrecisionDataEnabled(singlePrecisionData);
+                estimator.setLog2DataEnabled(log2Data);
+                estimator.setPackedProbeVectorsEnabled(packedVectors);
+                estimator.setProbeSummaryTableEnabled(probeSummary);
+                Exception failure = null;
+                try
+                {
+                    estimator.estimate(
+                            designFileDesc,
+                            dataFileDesc,
+                            annotationDescriptions);
+                }
+                catch(Exception ex)
+                {
+                    LOG.log(Level.SEVERE,
+                            "Failed to estimate build",
+                            ex);
+                    failure = ex;
+                }
+                
+                final Exception finalFailure = failure;
+                SafeAWTInvoker.safeInvokeNowOrLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        PubArrayWizardController.this.estimateFinished(
+                                estimator,
+                                finalFailure);
+                    }
+                });
+            }
+        }, "build-estimate");
+        estimateThread.setDaemon(true);
+        estimateThread.start();
     }
     
-    private void buildWebApplication()
-    throws IllegalFormatException, IOException, SQLException
+    private void estimateFinished(ImportEstimator estimator, Exception failure)
     {
-        // create the database in a temporary directory
-        File dbTempDir = FileUtilities.createTempDir();
-        
-        try
+        this.webAppOutputPanel.setEstimateBuildEnabled(true);
+        if(failure == null)
         {
-            this.buildDatabase(dbTempDir);
-            
-            // OK we have our DB... now merge it with the WAR template and
-            // presto! ... we have a web app
-            this.buildWARTask.setTaskName(
-                    "Packaging Up Web Application Into WAR File (Final Step)");
-            ZipInputStream inWARTemplate = new ZipInputStream(
-                    PubArrayWizardController.class.getResourceAsStream(
-                            WAR_TEMPLATE_RESOURCE));
-            File outWARFile = this.webAppOutputPanel.getWebApplicationFile();
-            ZipOutputStream warOut = new ZipOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(outWARFile)));
-            FileUtilities.unzipToZip(
-                    inWARTemplate,
-                    warOut);
-            FileUtilities.zipRecursive(
-                    dbTempDir,
-                    warOut,
-                    "WEB-INF/classes/");
-            this.zipPerProbeImages(warOut);
-            warOut.flush();
-            warOut.close();
+            JTextArea reportTextArea = new JTextArea(estimator.toReport(), 20, 60);
+            reportTextArea.setEditable(false);
+            JOptionPane.showMessageDialog(
+                    this.parentComponent,
+                    new JScrollPane(reportTextArea),
+                    "Build Estimate",
+                    JOptionPane.INFORMATION_MESSAGE);
         }
-        finally
+        else
         {
-            // clean up!
-            FileUtilities.recursiveDelete(dbTempDir);
+            MessageDialogUtilities.error(
+                    this.parentComponent,
+                    failure.getMessage(),
+                    "Failed to Estimate Build");
         }
     }
     
-    private void zipPerProbeImages(ZipOutputStream warOut) throws IOException
+    private boolean validateCurrPanel()
     {
-        List<PerGeneImageDirectoryDescription> perProbeImageDirDesc =
-            this.perGeneImageDirectoriesPanel.getDescriptions();
-        int count = perProbeImageDirDesc.size();
-        for(int i = 0; i < count; i++)
-        {
-            FileUtilities.zipRecursive(
-                    perProbeImageDirDesc.get(i).getDirectory(),
-                    warOut,
-                    PerGeneImageDirectoryDescription.PER_PROBE_IMAGE_PREFIX + i + "/");
-        }
+        return this.wizardPanels[this.currPanelIndex].validateData();
     }
-
+    
     /**
-     * Builds the database by reading in all of the files that the user
-     * provided to the wizard
-     * @param dbDirectory
-     *          the directory to write the database to
+     * Builds the web application from all of the files that the user
+     * provided to the wizard. The build is broken into phases which run as
+     * soon as the phases they depend on are done: the WAR template and
+     * per-gene images are packaged while the flat files are still loading
+     * and the database is written once all of the flat files are loaded.
+     * The loaded flat files and the database are checkpointed next to the
+     * WAR file so that if the build fails, building again with the same
+     * inputs skips the steps that already completed
      * @throws IllegalFormatException
      *          if any of the files that we're parsing are not properly
      *          formatted
@@ -319,82 +397,645 @@ public class PubArrayWizardController implements BroadcastingWizardController
      * @throws SQLException
      *          if JDBC doesn't like what we're trying to do
      */
-    private final void buildDatabase(File dbDirectory)
+    private void buildWebApplication()
     throws IllegalFormatException, IOException, SQLException
     {
         final CandidateDatabaseManager candidateDatabaseManager =
             new CandidateDatabaseManager();
+        final ImportCache importCache;
+        if(this.webAppOutputPanel.isImportCacheSelected())
+        {
+            importCache = new ImportCache(ImportCache.getDefaultDirectory());
+            candidateDatabaseManager.setImportCache(importCache);
+        }
+        else
+        {
+            importCache = null;
+        }
+        final WarPackager warPackager = new WarPackager();
+        final ImportProfiler importProfiler = new ImportProfiler();
+        candidateDatabaseManager.setImportProfiler(importProfiler);
+        final File outWARFile = this.webAppOutputPanel.getWebApplicationFile();
+        final File partialWARFile = new File(
+                outWARFile.getAbsoluteFile().getParentFile(),
+                outWARFile.getName() + PARTIAL_WAR_SUFFIX);
+        boolean warFinished = false;
         
-        // the experiment metadata
-        candidateDatabaseManager.setExperimentMetadata(new ExperimentMetadata(
+        // gather everything we need from the panels up front since the
+        // phases run on worker threads
+        ExperimentMetadata experimentMetadata = new ExperimentMetadata(
                 this.experimentOverviewPanel.getExperimentName(),
-                this.experimentOverviewPanel.getDescription()));
-        
-        // the design file
+                this.experimentOverviewPanel.getDescription());
+        candidateDatabaseManager.setExperimentMetadata(experimentMetadata);
         final FlatFileDescription designFileDesc =
             this.microarrayDesignPanel.getFlatFileDescription();
-        LOG.info("Loading design file: " + designFileDesc.getFlatFile().getPath());
-        this.buildWARTask.setTaskName(
-                "Loading Design File (" +
-                designFileDesc.getFlatFile().getName() + ")");
-        final FlatFileReader designFlatFileReader = designFileDesc.createReader();
-        candidateDatabaseManager.uploadDesignFile(
-                designFileDesc.getTableName(),
-                designFlatFileReader);
-        designFlatFileReader.close();
-        candidateDatabaseManager.setMatchDesignAndDataOnFactor(
-                this.microarrayDesignPanel.getDesignColumnToMatch());
-        
-        // the data file
+        final String designColumnToMatch =
+            this.microarrayDesignPanel.getDesignColumnToMatch();
         final FlatFileDescription dataFileDesc =
             this.microarrayDataPanel.getFlatFileDescription();
-        this.buildWARTask.setTaskName(
-                "Loading Data File (" +
-                dataFileDesc.getFlatFile().getName() + ")");
-        LOG.info("Loading data file: " + dataFileDesc.getFlatFile().getPath());
-        final FlatFileReader dataFlatFileReader = dataFileDesc.createReader();
-        candidateDatabaseManager.uploadDataFile(
-                dataFileDesc.getTableName(),
-                dataFlatFileReader);
-        dataFlatFileReader.close();
-        
-        // the annotation files
-        List<FlatFileDescription> annotationDescriptions =
+        final List<FlatFileDescription> annotationDescriptions =
             this.annotationsPanel.getFlatFileDescriptions();
+        final List<PerGeneImageDirectoryDescription> perProbeImageDirDescs =
+            this.perGeneImageDirectoriesPanel.getDescriptions();
+        final PersistenceManager persistenceMgr = new PersistenceManager();
+        persistenceMgr.setImportProfiler(importProfiler);
+        persistenceMgr.setSinglePrecisionDataEnabled(
+                this.webAppOutputPanel.isSinglePrecisionDataSelected());
+        persistenceMgr.setLog2DataEnabled(
+                this.webAppOutputPanel.isLog2DataSelected());
+        persistenceMgr.setPackedProbeVectorsEnabled(
+                this.webAppOutputPanel.isPackedProbeVectorsSelected());
+        persistenceMgr.setProbeSummaryTableEnabled(
+                this.webAppOutputPanel.isProbeSummaryTableSelected());
+        persistenceMgr.setDictionaryEncodingEnabled(
+                this.webAppOutputPanel.isDictionaryEncodingSelected());
+        candidateDatabaseManager.setDictionaryEncodingEnabled(
+                persistenceMgr.isDictionaryEncodingEnabled());
+        
+        // the loaded flat files and the database live in the checkpoint
+        // directory so that they survive a failed build
+        List<String> inputDescriptions = new ArrayList<String>();
+        inputDescriptions.add(experimentMetadata.getExperimentName());
+        inputDescriptions.add(experimentMetadata.getExperimentDescription());
+        inputDescriptions.add(designColumnToMatch);
+        inputDescriptions.add(describeFlatFile(designFileDesc));
+        inputDescriptions.add(describeFlatFile(dataFileDesc));
+        BuildCheckpoint.describeBuildOptions(persistenceMgr, inputDescriptions);
         for(FlatFileDescription currAnnoDesc: annotationDescriptions)
         {
-            this.buildWARTask.setTaskName(
-                    "Loading Annotation File (" +
-                    currAnnoDesc.getFlatFile().getName() + ")");
-            LOG.info(
-                    "Loading annotation file: " +
-                    currAnnoDesc.getFlatFile().getAbsolutePath());
-            FlatFileReader currAnnoFFR = currAnnoDesc.createReader();
-            candidateDatabaseManager.uploadAnnotationFile(
-                    currAnnoDesc.getTableName(),
-                    currAnnoDesc.getTableName(),
-                    currAnnoFFR);
-            currAnnoFFR.close();
+            inputDescriptions.add(describeFlatFile(currAnnoDesc));
         }
+        final BuildCheckpoint checkpoint = new BuildCheckpoint(
+                BuildCheckpoint.getCheckpointDirectory(outWARFile),
+                inputDescriptions);
+        persistenceMgr.setBuildCheckpoint(checkpoint);
+        candidateDatabaseManager.setSpillManager(new SpillManager(
+                checkpoint.getSpillDirectory(),
+                SpillManager.UNLIMITED_BUDGET,
+                true));
+        final boolean databaseCheckpointed =
+            checkpoint.isStepComplete(DATABASE_STEP);
         
-        // the image dirs
-        candidateDatabaseManager.setPerGeneImageDirectories(
-                this.perGeneImageDirectoriesPanel.getDescriptions());
-        
-        this.buildWARTask.setTaskName("Building Database From Flat Files");
-        String dbPath = dbDirectory.getPath() + "/" + DATABASE_NAME;
-        ConnectionManager connectionMgr = new HSQLDBConnectionManager(
+        try
+        {
+            BuildPhasePipeline pipeline = new BuildPhasePipeline(this.buildWARTask);
+            
+            // the WAR template and the per-gene images don't depend on the
+            // database at all so they go into the WAR first
+            Phase templatePhase = pipeline.addPhase(
+                    "Copying Web Application Template",
+                    TEMPLATE_WORK_UNITS,
+                    new Callable<Void>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public Void call() throws IOException
+                        {
+                            ImportProfiler.Phase packagingPhase = importProfiler.startPhase(
+                                    ImportProfiler.PACKAGING_CATEGORY,
+                                    "WAR template");
+                            try
+                            {
+                                warPackager.start(partialWARFile);
+                                ZipInputStream inWARTemplate = new ZipInputStream(
+                                        PubArrayWizardController.class.getResourceAsStream(
+                                                WAR_TEMPLATE_RESOURCE));
+                                try
+                                {
+                                    warPackager.addZipContents(inWARTemplate);
+                                }
+                                finally
+                                {
+                                    inWARTemplate.close();
+                                }
+                            }
+                            finally
+                            {
+                                packagingPhase.addBytesRead(
+                                        warPackager.getUncompressedByteCount());
+                                packagingPhase.finish();
+                            }
+                            return null;
+                        }
+                    });
+            
+            long imageBytes = 0L;
+            for(PerGeneImageDirectoryDescription currDesc: perProbeImageDirDescs)
+            {
+                imageBytes += recursiveLength(currDesc.getDirectory());
+            }
+            Phase imagesPhase = pipeline.addPhase(
+                    "Packaging Per-Gene Images",
+                    toWorkUnits(imageBytes),
+                    new Callable<Void>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public Void call() throws IOException
+                        {
+                            ImportProfiler.Phase packagingPhase = importProfiler.startPhase(
+                                    ImportProfiler.PACKAGING_CATEGORY,
+                                    "per-gene images");
+                            long startByteCount = warPackager.getUncompressedByteCount();
+                            try
+                            {
+                                int count = perProbeImageDirDescs.size();
+                                for(int i = 0; i < count; i++)
+                                {
+                                    warPackager.addDirectory(
+                                            perProbeImageDirDescs.get(i).getDirectory(),
+                                            PerGeneImageDirectoryDescription.PER_PROBE_IMAGE_PREFIX + i + "/");
+                                }
+                            }
+                            finally
+                            {
+                                packagingPhase.addBytesRead(
+                                        warPackager.getUncompressedByteCount() - startByteCount);
+                                packagingPhase.finish();
+                            }
+                            return null;
+                        }
+                    },
+                    templatePhase);
+            
+            // the flat files. the design, data and annotations don't depend
+            // on each other but the annotations are loaded one after the
+            // other so that they keep the order that the user gave them
+            long flatFileBytes = designFileDesc.getFlatFile().length();
+            Phase designPhase = pipeline.addPhase(
+                    "Loading Design File (" +
+                    designFileDesc.getFlatFile().getName() + ")",
+                    toWorkUnits(designFileDesc.getFlatFile().length()),
+                    new Callable<Void>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public Void call() throws IllegalFormatException, IOException
+                        {
+                            candidateDatabaseManager.setMatchDesignAndDataOnFactor(
+                                    designColumnToMatch);
+                            if(databaseCheckpointed)
+                            {
+                                return null;
+                            }
+                            
+                            CandidateTable designTable = checkpoint.loadCandidateTable(
+                                    DESIGN_STEP,
+                                    candidateDatabaseManager.getSpillManager());
+                            if(designTable != null)
+                            {
+                                LOG.info("Restored design file from build checkpoint");
+                                candidateDatabaseManager.setDesignTable(designTable);
+                                return null;
+                            }
+                            
+                            LOG.info("Loading design file: " + designFileDesc.getFlatFile().getPath());
+                            FlatFileReader designFlatFileReader = designFileDesc.createReader();
+                            try
+                            {
+                                candidateDatabaseManager.uploadDesignFile(
+                                        designFileDesc.getTableName(),
+                                        designFlatFileReader,
+                                        getContentKey(importCache, designFileDesc));
+                            }
+                            finally
+                            {
+                                designFlatFileReader.close();
+                            }
+                            addInferenceBytesRead(importProfiler, designFileDesc);
+                            checkpoint.saveCandidateTable(
+                                    DESIGN_STEP,
+                                    candidateDatabaseManager.getDesignTable());
+                            return null;
+                        }
+                    });
+            
+            flatFileBytes += dataFileDesc.getFlatFile().length();
+            Phase dataPhase = pipeline.addPhase(
+                    "Loading Data File (" +
+                    dataFileDesc.getFlatFile().getName() + ")",
+                    toWorkUnits(dataFileDesc.getFlatFile().length()),
+                    new Callable<Void>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public Void call() throws IllegalFormatException, IOException
+                        {
+                            if(databaseCheckpointed)
+                            {
+                                return null;
+                            }
+                            
+                            CandidateTable dataTable = checkpoint.loadCandidateTable(
+                                    DATA_STEP,
+                                    candidateDatabaseManager.getSpillManager());
+                            if(dataTable != null)
+                            {
+                                LOG.info("Restored data file from build checkpoint");
+                                candidateDatabaseManager.setDataTable(dataTable);
+                                return null;
+                            }
+                            
+                            LOG.info("Loading data file: " + dataFileDesc.getFlatFile().getPath());
+                            FlatFileReader dataFlatFileReader = dataFileDesc.createReader();
+                            try
+                            {
+                                candidateDatabaseManager.uploadDataFile(
+                                        dataFileDesc.getTableName(),
+                                        dataFlatFileReader,
+                                        getContentKey(importCache, dataFileDesc));
+                            }
+                            finally
+                            {
+                                dataFlatFileReader.close();
+                            }
+                            addInferenceBytesRead(importProfiler, dataFileDesc);
+                            checkpoint.saveCandidateTable(
+                                    DATA_STEP,
+                                    candidateDatabaseManager.getDataTable());
+                            return null;
+                        }
+                    });
+            
+            List<Phase> databaseDependencies = new ArrayList<Phase>();
+            databaseDependencies.add(designPhase);
+            databaseDependencies.add(dataPhase);
+            Phase prevAnnotationPhase = null;
+            for(final FlatFileDescription currAnnoDesc: annotationDescriptions)
+            {
+                flatFileBytes += currAnnoDesc.getFlatFile().length();
+                Callable<Void> annotationWork = new Callable<Void>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public Void call() throws IllegalFormatException, IOException
+                    {
+                        if(databaseCheckpointed)
+                        {
+                            return null;
+                        }
+                        
+                        String step =
+                            ANNOTATION_STEP_PREFIX +
+                            currAnnoDesc.getFlatFile().getAbsolutePath();
+                        CandidateTable annotationTable = checkpoint.loadCandidateTable(
+                                step,
+                                candidateDatabaseManager.getSpillManager());
+                        if(annotationTable != null)
+                        {
+                            LOG.info(
+                                    "Restored annotation file from build checkpoint: " +
+                                    currAnnoDesc.getFlatFile().getAbsolutePath());
+                            candidateDatabaseManager.addAnnotationTable(annotationTable);
+                            return null;
+                        }
+                        
+                        LOG.info(
+                                "Loading annotation file: " +
+                                currAnnoDesc.getFlatFile().getAbsolutePath());
+                        FlatFileReader currAnnoFFR = currAnnoDesc.createReader();
+                        try
+                        {
+                            candidateDatabaseManager.uploadAnnotationFile(
+                                    currAnnoDesc.getTableName(),
+                                    currAnnoDesc.getTableName(),
+                                    currAnnoFFR,
+                                    getContentKey(importCache, currAnnoDesc));
+                        }
+                        finally
+                        {
+                            currAnnoFFR.close();
+                        }
+                        addInferenceBytesRead(importProfiler, currAnnoDesc);
+                        checkpoint.saveCandidateTable(
+                                step,
+                                candidateDatabaseManager.getAnnotationTables().get(
+                                        currAnnoDesc.getTableName()));
+                        return null;
+                    }
+                };
+                
+                String phaseName =
+                    "Loading Annotation File (" +
+                    currAnnoDesc.getFlatFile().getName() + ")";
+                int workUnits = toWorkUnits(currAnnoDesc.getFlatFile().length());
+                if(prevAnnotationPhase == null)
+                {
+                    prevAnnotationPhase = pipeline.addPhase(
+                            phaseName,
+                            workUnits,
+                            annotationWork);
+                }
+                else
+                {
+                    prevAnnotationPhase = pipeline.addPhase(
+                            phaseName,
+                            workUnits,
+                            annotationWork,
+                            prevAnnotationPhase);
+                }
+            }
+            if(prevAnnotationPhase != null)
+            {
+                databaseDependencies.add(prevAnnotationPhase);
+            }
+            
+            // the database needs all of the flat files
+            candidateDatabaseManager.setPerGeneImageDirectories(
+                    perProbeImageDirDescs);
+            Phase databasePhase = pipeline.addPhase(
+                    "Building Database From Flat Files",
+                    toWorkUnits(flatFileBytes),
+                    new Callable<Void>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public Void call()
+                        throws IllegalFormatException, IOException, SQLException
+                        {
+                            if(databaseCheckpointed)
+                            {
+                                LOG.info("Using database from build checkpoint");
+                            }
+                            else
+                            {
+                                PubArrayWizardController.this.buildDatabase(
+                                        checkpoint,
+                                        candidateDatabaseManager,
+                                        persistenceMgr,
+                                        importProfiler);
+                            }
+                            return null;
+                        }
+                    },
+                    databaseDependencies.toArray(new Phase[databaseDependencies.size()]));
+            
+            // OK we have our DB... now merge it with the rest of the WAR
+            // and presto! ... we have a web app
+            pipeline.addPhase(
+                    "Packaging Database Into WAR File (Final Step)",
+                    toWorkUnits(flatFileBytes / 4L),
+                    new Callable<Void>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public Void call() throws IOException
+                        {
+                            ImportProfiler.Phase packagingPhase = importProfiler.startPhase(
+                                    ImportProfiler.PACKAGING_CATEGORY,
+                                    "database");
+                            long startByteCount = warPackager.getUncompressedByteCount();
+                            try
+                            {
+                                warPackager.addDirectory(
+                                        checkpoint.getDatabaseDirectory(),
+                                        "WEB-INF/classes/");
+                                warPackager.finish();
+                                packagingPhase.addBytesWritten(
+                                        warPackager.getArchiveByteCount());
+                            }
+                            finally
+                            {
+                                packagingPhase.addBytesRead(
+                                        warPackager.getUncompressedByteCount() - startByteCount);
+                                packagingPhase.finish();
+                            }
+                            return null;
+                        }
+                    },
+                    databasePhase,
+                    imagesPhase);
+            
+            pipeline.run(PIPELINE_THREAD_COUNT);
+            
+            if(outWARFile.exists() && !outWARFile.delete())
+            {
+                throw new IOException(
+                        "failed to replace WAR file: " + outWARFile.getPath());
+            }
+            if(!partialWARFile.renameTo(outWARFile))
+            {
+                throw new IOException(
+                        "failed to move " + partialWARFile.getPath() +
+                        " to " + outWARFile.getPath());
+            }
+            warFinished = true;
+        }
+        finally
+        {
+            // clean up! the checkpoint is only kept if the build failed
+            if(warFinished)
+            {
+                checkpoint.delete();
+            }
+            else
+            {
+                warPackager.abort();
+                partialWARFile.delete();
+                LOG.info(
+                        "keeping build checkpoint so that the build can be " +
+                        "resumed: " + checkpoint.getDirectory().getAbsolutePath());
+            }
+            
+            // the report is written even if the build failed since that's
+            // when it's most likely to be wanted
+            File reportFile = ImportProfiler.getReportFile(outWARFile);
+            try
+            {
+                importProfiler.writeReport(reportFile);
+                LOG.info("Wrote import profile to: " + reportFile.getPath());
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "failed to write import profile to: " + reportFile.getPath(),
+                        ex);
+            }
+        }
+    }
+    
+    /**
+     * Get the import cache content key for the given flat file
+     * @param importCache
+     *          the import cache or null if we aren't using one
+     * @param flatFileDesc
+     *          the flat file
+     * @return
+     *          the key or null if there's no cache (the file is only hashed
+     *          when there is one)
+     * @throws IOException
+     *          if we fail to read the file
+     */
+    private static String getContentKey(
+            ImportCache importCache,
+            FlatFileDescription flatFileDesc) throws IOException
+    {
+        if(importCache == null)
+        {
+            return null;
+        }
+        else
+        {
+            return importCache.getContentKey(
+                    flatFileDesc.getFlatFile(),
+                    flatFileDesc.getFormat());
+        }
+    }
+    
+    /**
+     * Record the size of the given flat file as the bytes read by its
+     * column type inference phase
+     * @param importProfiler
+     *          the profiler that the phase was recorded to
+     * @param flatFileDesc
+     *          the flat file
+     */
+    private static void addInferenceBytesRead(
+            ImportProfiler importProfiler,
+            FlatFileDescription flatFileDesc)
+    {
+        ImportProfiler.Phase inferencePhase = importProfiler.findPhase(
+                ImportProfiler.INFERENCE_CATEGORY,
+                flatFileDesc.getTableName());
+        if(inferencePhase != null)
+        {
+            inferencePhase.addBytesRead(flatFileDesc.getFlatFile().length());
+        }
+    }
+    
+    /**
+     * Describe the given flat file for the build checkpoint's fingerprint
+     * @param flatFileDesc
+     *          the flat file
+     * @return
+     *          the description
+     */
+    private static String describeFlatFile(FlatFileDescription flatFileDesc)
+    {
+        return BuildCheckpoint.describeFile(flatFileDesc.getFlatFile()) +
+               ":" + flatFileDesc.getTableName() +
+               ":" + flatFileDesc.getFormat();
+    }
+    
+    /**
+     * Convert a byte count into build progress work units
+     * @param byteCount
+     *          the byte count
+     * @return
+     *          the work units (always at least 1)
+     */
+    private static int toWorkUnits(long byteCount)
+    {
+        return (int)Math.min(
+                Integer.MAX_VALUE / 64,
+                Math.max(1L, byteCount / BYTES_PER_WORK_UNIT));
+    }
+    
+    /**
+     * Get the total length of all of the files under the given file
+     * @param file
+     *          the file or directory
+     * @return
+     *          the length in bytes
+     */
+    private static long recursiveLength(File file)
+    {
+        long length = 0L;
+        File[] children = file.listFiles();
+        if(children == null)
+        {
+            length = file.length();
+        }
+        else
+        {
+            for(File child: children)
+            {
+                length += recursiveLength(child);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Builds the database from the flat files that have been loaded into
+     * the candidate database manager
+     * @param checkpoint
+     *          the build checkpoint. The database is written to its
+     *          database directory and if the build fails the database is
+     *          shut down without compacting so that a later build can
+     *          resume from the tables that were completed
+     * @param candidateDatabaseManager
+     *          the candidates to write
+     * @param persistenceMgr
+     *          the persistence manager (with all of the build options set)
+     *          that writes the database
+     * @param importProfiler
+     *          the profiler that the database phases are recorded to
+     * @throws IllegalFormatException
+     *          if the candidate data can't be parsed back in
+     * @throws IOException
+     *          if we run into trouble reading/writing data
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    private final void buildDatabase(
+            BuildCheckpoint checkpoint,
+            CandidateDatabaseManager candidateDatabaseManager,
+            PersistenceManager persistenceMgr,
+            ImportProfiler importProfiler)
+    throws IllegalFormatException, IOException, SQLException
+    {
+        String dbPath = checkpoint.getDatabaseDirectory().getPath() + "/" + DATABASE_NAME;
+        HSQLDBConnectionManager connectionMgr = new HSQLDBConnectionManager(
                 dbPath,
-                false);
+                false,
+                true);
         Connection connection = connectionMgr.createConnection();
-        PersistenceManager persistenceMgr = new PersistenceManager();
         
         LOG.info("Writing DB to: " + dbPath);
-        persistenceMgr.writeCandidatesToDatabase(
-                connection,
-                candidateDatabaseManager);
-        connection.commit();
-        connectionMgr.shutdownDatabase(connection);
+        boolean tablesWritten = false;
+        try
+        {
+            persistenceMgr.writeCandidatesToDatabase(
+                    connectionMgr,
+                    connection,
+                    candidateDatabaseManager);
+            tablesWritten = true;
+        }
+        finally
+        {
+            if(!tablesWritten)
+            {
+                connectionMgr.suspendDatabase(connection);
+            }
+        }
+        
+        ImportProfiler.Phase shutdownPhase = importProfiler.startPhase(
+                ImportProfiler.DATABASE_SHUTDOWN_CATEGORY,
+                DATABASE_NAME);
+        try
+        {
+            connection.commit();
+            connectionMgr.shutdownDatabase(connection);
+        }
+        finally
+        {
+            shutdownPhase.finish();
+        }
+        
+        checkpoint.markStepComplete(DATABASE_STEP);
+        
+        // the spill files are no longer needed and we'd rather have the disk
+        // space back before the database is packaged
+        candidateDatabaseManager.deleteSpillFiles();
+        FileUtilities.recursiveDelete(checkpoint.getSpillDirectory());
     }
     
     /**
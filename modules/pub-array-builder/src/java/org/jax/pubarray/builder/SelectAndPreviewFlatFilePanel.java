@@ -20,10 +20,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.StringReader;
+import java.text.NumberFormat;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +32,8 @@ import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.event.DocumentEvent;
 
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
 import org.jax.util.gui.FlatFileTable;
 import org.jax.util.gui.MessageDialogUtilities;
 import org.jax.util.gui.SimplifiedDocumentListener;
@@ -38,7 +41,6 @@ import org.jax.util.gui.ValidatablePanel;
 import org.jax.util.io.CommonFlatFileFormat;
 import org.jax.util.io.FlatFileFormat;
 import org.jax.util.io.FlatFileReader;
-import org.jax.util.io.IllegalFormatException;
 
 /**
  * The panel for microarray data
@@ -56,6 +58,8 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
     
     private static final int MAX_PREVIEW_ROW_COUNT = 100;
     
+    private static final int MAX_TOOL_TIP_COLUMN_COUNT = 40;
+    
     private final FlatFileTable flatFileTable;
 
     private final SharedDirectoryContainer startingDirectory;
@@ -63,6 +67,8 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
     private final boolean isDesignFile;
     
     private boolean synchTableNameToFileName;
+    
+    private FlatFilePreviewLoader previewLoader = null;
 
     /**
      * Default constructor
@@ -163,22 +169,7 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
             {
                 if(e.getStateChange() == ItemEvent.SELECTED)
                 {
-                    try
-                    {
-                        SelectAndPreviewFlatFilePanel.this.refreshTable();
-                        SelectAndPreviewFlatFilePanel.this.refreshMatchUsingItems();
-                    }
-                    catch(Exception ex)
-                    {
-                        String title = "Error Loading Flat File";
-                        LOG.log(Level.SEVERE,
-                                title,
-                                ex);
-                        MessageDialogUtilities.error(
-                                SelectAndPreviewFlatFilePanel.this,
-                                ex.getMessage(),
-                                title);
-                    }
+                    SelectAndPreviewFlatFilePanel.this.refreshPreview();
                 }
             }
         });
@@ -230,24 +221,9 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
             this.matchUsingLabel.setVisible(false);
             this.matchUsingComboBox.setVisible(false);
         }
-        else
+        else if(this.previewLoader == null)
         {
-            try
-            {
-                this.refreshMatchUsingItems();
-            }
-            catch(Exception ex)
-            {
-                // we really should never get here because the file field is
-                // blank and no IO or parsing should be attempted at this point
-                LOG.log(Level.SEVERE,
-                        "Unexpected exception",
-                        ex);
-                MessageDialogUtilities.error(
-                        this,
-                        ex.getMessage(),
-                        "Unexpected Error");
-            }
+            this.setMatchUsingItems(null);
         }
     }
 
@@ -278,22 +254,7 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
             this.synchTableName();
         }
         
-        try
-        {
-            this.refreshTable();
-            this.refreshMatchUsingItems();
-        }
-        catch(Exception ex)
-        {
-            String title = "Error Loading Flat File";
-            LOG.log(Level.SEVERE,
-                    title,
-                    ex);
-            MessageDialogUtilities.error(
-                    this,
-                    ex.getMessage(),
-                    title);
-        }
+        this.refreshPreview();
     }
 
     private void synchTableName()
@@ -314,31 +275,6 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
         }
     }
 
-    private FlatFileReader getFlatFileReader()
-    {
-        String fileString = this.fileTextField.getText();
-        if(fileString != null && fileString.trim().length() >= 1)
-        {
-            try
-            {
-                BufferedReader br = new BufferedReader(new FileReader(
-                        fileString));
-                return new FlatFileReader(br, this.getSelectedFormat());
-            }
-            catch(IOException ex)
-            {
-                // don't care. this doesn't necessarily mean that there is a
-                // problem. the user could be in the middle of typing out
-                // a file name
-                return null;
-            }
-        }
-        else
-        {
-            return null;
-        }
-    }
-
     private void browseFiles()
     {
         JFileChooser fileChooser = new JFileChooser();
@@ -357,65 +293,257 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
         }
     }
     
-    private void refreshTable() throws IOException, IllegalFormatException
+    /**
+     * Cancel any preview that's loading and start loading a preview for the
+     * currently selected file and format in the background
+     */
+    private void refreshPreview()
     {
-        FlatFileReader ffr = this.getFlatFileReader();
-        if(ffr == null)
+        if(this.previewLoader != null)
+        {
+            this.previewLoader.cancel();
+            this.previewLoader = null;
+        }
+        
+        String fileString = this.fileTextField.getText().trim();
+        if(fileString.length() == 0)
         {
-            this.flatFileTable.clearTable();
+            this.clearPreview();
         }
         else
         {
-            if(this.dataPreviewScrollPane.getComponentCount() == 0)
+            this.previewStatusLabel.setText("Loading preview...");
+            this.previewStatusLabel.setToolTipText(null);
+            if(this.isDesignFile)
             {
-                this.dataPreviewScrollPane.add(this.flatFileTable);
+                this.matchUsingComboBox.removeAllItems();
+                this.matchUsingComboBox.addItem("Loading...");
+                this.matchUsingComboBox.setEnabled(false);
             }
             
-            try
+            final FlatFileFormat format = this.getSelectedFormat();
+            this.previewLoader = new FlatFilePreviewLoader(
+                    new File(fileString),
+                    format,
+                    MAX_PREVIEW_ROW_COUNT,
+                    new FlatFilePreviewLoader.PreviewListener()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void previewRowsLoaded(String previewText, boolean done)
+                        {
+                            SelectAndPreviewFlatFilePanel.this.previewRowsLoaded(
+                                    previewText,
+                                    format,
+                                    done);
+                        }
+                        
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void sampleInferred(FlatFileSample sample)
+                        {
+                            SelectAndPreviewFlatFilePanel.this.sampleInferred(
+                                    sample);
+                        }
+                        
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void previewFailed(Exception ex, boolean openFailed)
+                        {
+                            SelectAndPreviewFlatFilePanel.this.previewFailed(
+                                    ex,
+                                    openFailed);
+                        }
+                    });
+            this.previewLoader.start();
+        }
+    }
+    
+    private void clearPreview()
+    {
+        this.flatFileTable.clearTable();
+        this.previewStatusLabel.setText(" ");
+        this.previewStatusLabel.setToolTipText(null);
+        this.setMatchUsingItems(null);
+    }
+    
+    private void previewRowsLoaded(
+            String previewText,
+            FlatFileFormat format,
+            boolean done)
+    {
+        if(this.dataPreviewScrollPane.getComponentCount() == 0)
+        {
+            this.dataPreviewScrollPane.add(this.flatFileTable);
+        }
+        
+        try
+        {
+            this.flatFileTable.loadTable(
+                    new FlatFileReader(new StringReader(previewText), format),
+                    true,
+                    this.dataPreviewScrollPane.getWidth());
+            
+            if(done)
             {
-                this.flatFileTable.loadTable(
-                        ffr,
-                        true,
-                        this.dataPreviewScrollPane.getWidth());
+                this.setMatchUsingItems(new FlatFileReader(
+                        new StringReader(previewText),
+                        format).readRow());
             }
-            finally
+        }
+        catch(Exception ex)
+        {
+            // partial previews can end in the middle of a quoted field so
+            // we only complain about the final preview
+            if(done)
             {
-                ffr.close();
+                this.previewFailed(ex, false);
             }
         }
     }
     
-    private void refreshMatchUsingItems() throws IOException, IllegalFormatException
+    private void sampleInferred(FlatFileSample sample)
     {
-        FlatFileReader ffr = this.getFlatFileReader();
-        this.matchUsingLabel.setEnabled(ffr != null);
-        this.matchUsingComboBox.setEnabled(ffr != null);
-        this.matchUsingComboBox.removeAllItems();
-        if(ffr == null)
+        long estimatedRowCount = sample.getEstimatedRowCount();
+        TableColumnMetadata[] provisionalMetadata = sample.getProvisionalMetadata();
+        int mismatchedRowCount = sample.getMismatchedRowCount();
+        
+        NumberFormat numberFormat = NumberFormat.getIntegerInstance();
+        StringBuilder statusText = new StringBuilder();
+        if(estimatedRowCount < 0L)
         {
-            this.matchUsingComboBox.addItem("No Valid File Selected");
+            statusText.append("Row count unknown");
+        }
+        else if(sample.isExactRowCount())
+        {
+            statusText.append(numberFormat.format(estimatedRowCount));
+            statusText.append(" rows");
         }
         else
         {
-            try
+            statusText.append("About ");
+            statusText.append(numberFormat.format(estimatedRowCount));
+            statusText.append(" rows (estimated)");
+        }
+        
+        // count up the columns of each type
+        Map<DataType, Integer> typeCounts =
+            new EnumMap<DataType, Integer>(DataType.class);
+        int untypedCount = 0;
+        StringBuilder toolTipText = new StringBuilder("<html>");
+        for(int i = 0; i < provisionalMetadata.length; i++)
+        {
+            DataType dataType = provisionalMetadata[i].getDataType();
+            if(dataType == null)
             {
-                // Start by adding an item for matching purely on the row
-                // ordering
-                this.matchUsingComboBox.addItem("Row Ordering");
-                
-                String[] headerRow = ffr.readRow();
-                for(String headerItem: headerRow)
-                {
-                    this.matchUsingComboBox.addItem(headerItem);
-                }
+                untypedCount++;
+            }
+            else
+            {
+                Integer typeCount = typeCounts.get(dataType);
+                typeCounts.put(dataType, typeCount == null ? 1 : typeCount + 1);
             }
-            finally
+            
+            if(i < MAX_TOOL_TIP_COLUMN_COUNT)
             {
-                ffr.close();
+                toolTipText.append(provisionalMetadata[i].getName());
+                toolTipText.append(": ");
+                toolTipText.append(dataType == null ? "Unknown" : dataType.toString());
+                toolTipText.append("<br>");
             }
         }
+        if(provisionalMetadata.length > MAX_TOOL_TIP_COLUMN_COUNT)
+        {
+            toolTipText.append("...");
+        }
+        toolTipText.append("</html>");
+        
+        statusText.append(", ");
+        statusText.append(numberFormat.format(provisionalMetadata.length));
+        statusText.append(provisionalMetadata.length == 1 ? " column" : " columns");
+        if(!typeCounts.isEmpty() || untypedCount > 0)
+        {
+            statusText.append(" (provisional types from ");
+            statusText.append(numberFormat.format(sample.getSampledRowCount()));
+            statusText.append(" sampled rows:");
+            for(Map.Entry<DataType, Integer> typeCount: typeCounts.entrySet())
+            {
+                statusText.append(' ');
+                statusText.append(numberFormat.format(typeCount.getValue()));
+                statusText.append(' ');
+                statusText.append(typeCount.getKey().toString());
+                statusText.append(',');
+            }
+            if(untypedCount > 0)
+            {
+                statusText.append(' ');
+                statusText.append(numberFormat.format(untypedCount));
+                statusText.append(" Unknown,");
+            }
+            statusText.setCharAt(statusText.length() - 1, ')');
+        }
+        
+        if(mismatchedRowCount > 0)
+        {
+            statusText.append(". Warning: ");
+            statusText.append(numberFormat.format(mismatchedRowCount));
+            statusText.append(" sampled rows don't match the header's column count");
+        }
+        
+        this.previewStatusLabel.setText(statusText.toString());
+        this.previewStatusLabel.setToolTipText(toolTipText.toString());
     }
-
+    
+    private void previewFailed(Exception ex, boolean openFailed)
+    {
+        this.clearPreview();
+        
+        // failing to open the file doesn't necessarily mean that there is a
+        // problem. the user could be in the middle of typing out a file name
+        if(!openFailed)
+        {
+            String title = "Error Loading Flat File";
+            LOG.log(Level.SEVERE,
+                    title,
+                    ex);
+            MessageDialogUtilities.error(
+                    this,
+                    ex.getMessage(),
+                    title);
+        }
+    }
+    
+    /**
+     * Refresh the "match using" items
+     * @param headerRow
+     *          the header row of the selected file or null if there's no
+     *          valid file selected
+     */
+    private void setMatchUsingItems(String[] headerRow)
+    {
+        this.matchUsingLabel.setEnabled(headerRow != null);
+        this.matchUsingComboBox.setEnabled(headerRow != null);
+        this.matchUsingComboBox.removeAllItems();
+        if(headerRow == null)
+        {
+            this.matchUsingComboBox.addItem("No Valid File Selected");
+        }
+        else
+        {
+            // Start by adding an item for matching purely on the row
+            // ordering
+            this.matchUsingComboBox.addItem("Row Ordering");
+            
+            for(String headerItem: headerRow)
+            {
+                this.matchUsingComboBox.addItem(headerItem);
+            }
+        }
+    }
+    
     /**
      * Create a string which is a "pretty" table name for the given file name
      * @param file  the file that we want a pretty name for
@@ -425,6 +553,14 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
     {
         String prettyName = file.getName();
 
+        // remove any compression extension (like "genes.txt.gz") so that
+        // we're left with the format extension
+        String lowerName = prettyName.toLowerCase();
+        if(lowerName.endsWith(".gz") || lowerName.endsWith(".zip"))
+        {
+            prettyName = prettyName.substring(0, prettyName.lastIndexOf('.'));
+        }
+
         // remove extension
         int lastDotIndex = prettyName.lastIndexOf('.');
         if(lastDotIndex >= 1)
@@ -551,6 +687,7 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
         fileFormatComboBox = new javax.swing.JComboBox();
         javax.swing.JLabel dataPreviewLabel = new javax.swing.JLabel();
         dataPreviewScrollPane = new javax.swing.JScrollPane();
+        previewStatusLabel = new javax.swing.JLabel();
         matchUsingLabel = new javax.swing.JLabel();
         matchUsingComboBox = new javax.swing.JComboBox();
 
@@ -564,6 +701,8 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
 
         dataPreviewLabel.setText("File Preview (First 100 Lines Only):");
 
+        previewStatusLabel.setText(" ");
+
         matchUsingLabel.setText("Match Design Rows to Data Columns Using:");
 
         org.jdesktop.layout.GroupLayout layout = new org.jdesktop.layout.GroupLayout(this);
@@ -574,6 +713,7 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
                 .addContainerGap()
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                     .add(dataPreviewScrollPane, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 494, Short.MAX_VALUE)
+                    .add(previewStatusLabel, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 494, Short.MAX_VALUE)
                     .add(dataPreviewLabel)
                     .add(layout.createSequentialGroup()
                         .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
@@ -615,6 +755,8 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(dataPreviewScrollPane, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 137, Short.MAX_VALUE)
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(previewStatusLabel)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
                     .add(matchUsingLabel)
                     .add(matchUsingComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
@@ -630,6 +772,7 @@ public class SelectAndPreviewFlatFilePanel extends ValidatablePanel
     private javax.swing.JTextField fileTextField;
     private javax.swing.JComboBox matchUsingComboBox;
     private javax.swing.JLabel matchUsingLabel;
+    private javax.swing.JLabel previewStatusLabel;
     private javax.swing.JTextField tableNameTextField;
     // End of variables declaration//GEN-END:variables
 
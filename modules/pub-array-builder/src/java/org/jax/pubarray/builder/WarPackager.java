@@ -0,0 +1,904 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Packages up a web application archive. After {@link #start(File)} is
+ * called entries are compressed on a pool of threads as soon as they're
+ * added and written out in the order that they were added, so a caller can
+ * package whatever is ready while the rest is still being built.
+ * {@link #finish()} completes the archive. Files that are already
+ * compressed (like PNG and JPEG images) are stored rather than deflated
+ * since deflating them again just burns CPU
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class WarPackager
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            WarPackager.class.getName());
+    
+    /**
+     * entries with these (lower case) extensions are stored without
+     * compression
+     */
+    public static final Set<String> STORED_EXTENSIONS = new HashSet<String>(
+            Arrays.asList("png", "jpg", "jpeg", "gif", "zip", "gz", "jar"));
+    
+    /**
+     * entries up to this size are compressed in memory. Larger entries are
+     * compressed to a temporary file
+     */
+    private static final long MAX_IN_MEMORY_ENTRY_BYTES = 8L * 1024L * 1024L;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private volatile int threadCount = Runtime.getRuntime().availableProcessors();
+    
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    
+    private long uncompressedByteCount = 0L;
+    
+    private long archiveByteCount = 0L;
+    
+    private int entryCount = 0;
+    
+    private long startTimeMillis = 0L;
+    
+    private File warFile = null;
+    
+    private OutputStream warOut = null;
+    
+    private PrecompressedZipWriter zipWriter = null;
+    
+    private ExecutorService executor = null;
+    
+    private int maxPendingEntries = 0;
+    
+    private final LinkedList<Future<PackagedEntry>> pendingEntries =
+        new LinkedList<Future<PackagedEntry>>();
+    
+    /**
+     * Where an entry's data comes from
+     */
+    private static abstract class EntrySource
+    {
+        private final String name;
+        private final long time;
+        
+        /**
+         * Constructor
+         * @param name  the entry name
+         * @param time  the entry modification time
+         */
+        public EntrySource(String name, long time)
+        {
+            this.name = name;
+            this.time = time;
+        }
+        
+        /**
+         * Getter for the entry name
+         * @return the name
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+        
+        /**
+         * Getter for the modification time
+         * @return the time
+         */
+        public long getTime()
+        {
+            return this.time;
+        }
+        
+        /**
+         * Getter for the uncompressed length
+         * @return the length
+         */
+        public abstract long getLength();
+        
+        /**
+         * Open the uncompressed data
+         * @return the stream
+         * @throws IOException if the open fails
+         */
+        public abstract InputStream open() throws IOException;
+        
+        /**
+         * Get the file backing this source
+         * @return the file or null if the data is in memory
+         */
+        public abstract File getFile();
+    }
+    
+    /**
+     * An entry that is already held in memory (used for the template entries)
+     */
+    private static class InMemoryEntrySource extends EntrySource
+    {
+        private final byte[] data;
+        
+        /**
+         * Constructor
+         * @param name  the entry name
+         * @param time  the entry modification time
+         * @param data  the uncompressed data
+         */
+        public InMemoryEntrySource(String name, long time, byte[] data)
+        {
+            super(name, time);
+            this.data = data;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getLength()
+        {
+            return this.data.length;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public InputStream open()
+        {
+            return new ByteArrayInputStream(this.data);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public File getFile()
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * An entry whose data is in a file
+     */
+    private static class FileEntrySource extends EntrySource
+    {
+        private final File file;
+        
+        /**
+         * Constructor
+         * @param name  the entry name
+         * @param file  the file
+         */
+        public FileEntrySource(String name, File file)
+        {
+            super(name, file.lastModified());
+            this.file = file;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getLength()
+        {
+            return this.file.length();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public InputStream open() throws IOException
+        {
+            return new BufferedInputStream(
+                    new FileInputStream(this.file),
+                    BUFFER_SIZE);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public File getFile()
+        {
+            return this.file;
+        }
+    }
+    
+    /**
+     * An entry that is ready to be written to the archive
+     */
+    private static class PackagedEntry
+    {
+        private final EntrySource source;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final byte[] data;
+        private final File dataFile;
+        private final boolean temporaryDataFile;
+        
+        /**
+         * Constructor
+         * @param source            where the entry came from
+         * @param method            the zip method
+         * @param crc               the CRC of the uncompressed data
+         * @param size              the uncompressed size
+         * @param compressedSize    the size of the data to write
+         * @param data              the data to write (or null)
+         * @param dataFile          the file holding the data to write if data
+         *                          is null
+         * @param temporaryDataFile true if the data file should be deleted
+         *                          once it is written
+         */
+        public PackagedEntry(
+                EntrySource source,
+                int method,
+                long crc,
+                long size,
+                long compressedSize,
+                byte[] data,
+                File dataFile,
+                boolean temporaryDataFile)
+        {
+            this.source = source;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.data = data;
+            this.dataFile = dataFile;
+            this.temporaryDataFile = temporaryDataFile;
+        }
+        
+        /**
+         * Delete the temporary data file if there is one
+         */
+        public void dispose()
+        {
+            if(this.temporaryDataFile && this.dataFile.exists() &&
+               !this.dataFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete temporary file: " +
+                        this.dataFile.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Constructor
+     */
+    public WarPackager()
+    {
+    }
+    
+    /**
+     * Getter for the number of threads used to compress entries
+     * @return the thread count
+     */
+    public int getThreadCount()
+    {
+        return this.threadCount;
+    }
+    
+    /**
+     * Setter for the number of threads used to compress entries
+     * @param threadCount the thread count
+     */
+    public void setThreadCount(int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Getter for the deflate level used for entries that are compressed
+     * @return the compression level
+     */
+    public int getCompressionLevel()
+    {
+        return this.compressionLevel;
+    }
+    
+    /**
+     * Setter for the deflate level
+     * @param compressionLevel
+     *          the compression level (see {@link Deflater})
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * Getter for the number of uncompressed bytes that have gone into the
+     * archive
+     * @return the byte count
+     */
+    public synchronized long getUncompressedByteCount()
+    {
+        return this.uncompressedByteCount;
+    }
+    
+    /**
+     * Getter for the size of the archive. This is only known once
+     * {@link #finish()} has been called
+     * @return the byte count
+     */
+    public synchronized long getArchiveByteCount()
+    {
+        return this.archiveByteCount;
+    }
+    
+    /**
+     * Start writing the given WAR file. Entries can be added once this has
+     * been called
+     * @param warFile
+     *          the file to write
+     * @throws IOException
+     *          if we can't open the file
+     */
+    public synchronized void start(File warFile) throws IOException
+    {
+        if(this.zipWriter != null)
+        {
+            throw new IllegalStateException(
+                    "the packager has already been started");
+        }
+        
+        int threads = Math.max(1, this.threadCount);
+        this.startTimeMillis = System.currentTimeMillis();
+        this.warFile = warFile;
+        this.warOut = new BufferedOutputStream(
+                new FileOutputStream(warFile),
+                BUFFER_SIZE);
+        this.zipWriter = new PrecompressedZipWriter(this.warOut);
+        this.executor = Executors.newFixedThreadPool(threads);
+        
+        // keep a bounded number of entries in flight so that we don't
+        // hold too many compressed entries in memory at once
+        this.maxPendingEntries = 4 * threads;
+        this.entryCount = 0;
+        this.uncompressedByteCount = 0L;
+        this.archiveByteCount = 0L;
+    }
+    
+    /**
+     * Add all of the entries in the given zip stream (this is how the WAR
+     * template gets copied). The stream is read to the end but not closed
+     * @param zipIn
+     *          the zip stream
+     * @throws IOException
+     *          if we fail to read the stream or write the archive
+     */
+    public synchronized void addZipContents(ZipInputStream zipIn) throws IOException
+    {
+        this.addZipContents(zipIn, null);
+    }
+    
+    /**
+     * Add the entries in the given zip stream except for the ones whose
+     * names start with the given prefix (this is how an existing WAR gets
+     * copied without its database). The stream is read to the end but not
+     * closed
+     * @param zipIn
+     *          the zip stream
+     * @param excludedEntryPrefix
+     *          entries starting with this prefix are skipped. If this is
+     *          null nothing is skipped
+     * @throws IOException
+     *          if we fail to read the stream or write the archive
+     */
+    public synchronized void addZipContents(
+            ZipInputStream zipIn,
+            String excludedEntryPrefix) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ZipEntry currEntry;
+        while((currEntry = zipIn.getNextEntry()) != null)
+        {
+            if(excludedEntryPrefix != null &&
+               currEntry.getName().startsWith(excludedEntryPrefix))
+            {
+                continue;
+            }
+            
+            ByteArrayOutputStream entryData = new ByteArrayOutputStream();
+            int readCount;
+            while((readCount = zipIn.read(buffer)) > 0)
+            {
+                entryData.write(buffer, 0, readCount);
+            }
+            
+            this.addEntry(new InMemoryEntrySource(
+                    currEntry.getName(),
+                    currEntry.getTime(),
+                    entryData.toByteArray()));
+        }
+    }
+    
+    /**
+     * Add all of the files under the given directory
+     * @param directory
+     *          the directory
+     * @param entryPrefix
+     *          the prefix to put in front of the relative file paths. This
+     *          should end with a '/'
+     * @throws IOException
+     *          if we fail to read the files or write the archive
+     */
+    public synchronized void addDirectory(File directory, String entryPrefix)
+    throws IOException
+    {
+        File[] files = directory.listFiles();
+        if(files != null)
+        {
+            // sort so that the archive layout doesn't depend on the file system
+            Arrays.sort(files);
+            for(File currFile: files)
+            {
+                String entryName = entryPrefix + currFile.getName();
+                if(currFile.isDirectory())
+                {
+                    this.addDirectory(currFile, entryName + "/");
+                }
+                else
+                {
+                    this.addEntry(new FileEntrySource(
+                            entryName,
+                            currFile));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Hand the given entry off to the compression pool, writing out any
+     * earlier entries that we have to wait on to keep the number in flight
+     * bounded
+     * @param source
+     *          the entry source
+     * @throws IOException
+     *          if we fail to package or write an entry
+     */
+    private void addEntry(final EntrySource source) throws IOException
+    {
+        if(this.zipWriter == null)
+        {
+            throw new IllegalStateException(
+                    "start must be called before entries are added");
+        }
+        
+        this.pendingEntries.addLast(this.executor.submit(new Callable<PackagedEntry>()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public PackagedEntry call() throws IOException
+            {
+                return WarPackager.this.packageEntry(source);
+            }
+        }));
+        this.entryCount++;
+        this.uncompressedByteCount += source.getLength();
+        
+        while(this.pendingEntries.size() > this.maxPendingEntries)
+        {
+            this.writePackagedEntry(this.getPackagedEntry(
+                    this.pendingEntries.removeFirst()));
+        }
+    }
+    
+    /**
+     * Write out everything that's still pending and complete the archive
+     * @throws IOException
+     *          if we fail to package or write an entry
+     */
+    public synchronized void finish() throws IOException
+    {
+        if(this.zipWriter == null)
+        {
+            throw new IllegalStateException(
+                    "start must be called before finish");
+        }
+        
+        boolean finished = false;
+        try
+        {
+            while(!this.pendingEntries.isEmpty())
+            {
+                this.writePackagedEntry(this.getPackagedEntry(
+                        this.pendingEntries.removeFirst()));
+            }
+            
+            this.zipWriter.finish();
+            this.archiveByteCount = this.zipWriter.getPosition();
+            this.warOut.close();
+            finished = true;
+        }
+        finally
+        {
+            if(!finished)
+            {
+                this.abort();
+            }
+            else
+            {
+                this.executor.shutdownNow();
+                this.zipWriter = null;
+            }
+        }
+        
+        long elapsedMillis = System.currentTimeMillis() - this.startTimeMillis;
+        LOG.info(
+                "packaged " + this.entryCount + " entries (" +
+                this.uncompressedByteCount + " bytes) into a " +
+                this.archiveByteCount + " byte archive using " +
+                Math.max(1, this.threadCount) + " threads in " +
+                elapsedMillis + " ms (" +
+                (this.uncompressedByteCount * 1000L / Math.max(elapsedMillis, 1L)) +
+                " bytes/second)");
+    }
+    
+    /**
+     * Abandon the archive, cleaning up any temporary files and deleting the
+     * partially written WAR. This does nothing unless the packager has been
+     * started and not yet finished
+     */
+    public synchronized void abort()
+    {
+        if(this.zipWriter != null)
+        {
+            // the in flight entries are allowed to finish (there are only a
+            // few of them) so that we can clean up their temporary files
+            this.executor.shutdown();
+            
+            // clean up after any entries that were packaged but not written
+            for(Future<PackagedEntry> currPending: this.pendingEntries)
+            {
+                try
+                {
+                    currPending.get().dispose();
+                }
+                catch(Exception ex)
+                {
+                    // the entry failed so there's nothing to clean up
+                }
+            }
+            this.pendingEntries.clear();
+            
+            try
+            {
+                this.warOut.close();
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "failed to close " + this.warFile.getAbsolutePath(),
+                        ex);
+            }
+            
+            if(this.warFile.exists() && !this.warFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete incomplete WAR file: " +
+                        this.warFile.getAbsolutePath());
+            }
+            this.zipWriter = null;
+        }
+    }
+    
+    private PackagedEntry getPackagedEntry(Future<PackagedEntry> entryFuture)
+    throws IOException
+    {
+        try
+        {
+            return entryFuture.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while packaging archive");
+        }
+        catch(ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            else if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+    
+    /**
+     * Write the packaged entry and then dispose of it
+     * @param entry
+     *          the entry
+     * @throws IOException
+     *          if the write fails
+     */
+    private void writePackagedEntry(PackagedEntry entry)
+    throws IOException
+    {
+        try
+        {
+            InputStream data = entry.data != null ?
+                    new ByteArrayInputStream(entry.data) :
+                    new BufferedInputStream(
+                            new FileInputStream(entry.dataFile),
+                            BUFFER_SIZE);
+            try
+            {
+                this.zipWriter.writeEntry(
+                        entry.source.getName(),
+                        entry.source.getTime(),
+                        entry.method,
+                        entry.crc,
+                        entry.size,
+                        entry.compressedSize,
+                        data);
+            }
+            finally
+            {
+                data.close();
+            }
+        }
+        finally
+        {
+            entry.dispose();
+        }
+    }
+    
+    /**
+     * Compute the CRC for the given source and compress it if it's worth
+     * compressing. This is what runs on the worker threads
+     * @param source
+     *          the source
+     * @return
+     *          the packaged entry
+     * @throws IOException
+     *          if we have trouble reading or writing data
+     */
+    private PackagedEntry packageEntry(EntrySource source) throws IOException
+    {
+        long length = source.getLength();
+        boolean inMemory = length <= MAX_IN_MEMORY_ENTRY_BYTES;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        
+        if(this.isStoredEntry(source))
+        {
+            // we only need the CRC, the data is copied from the source later
+            byte[] data = null;
+            ByteArrayOutputStream dataOut = inMemory && source.getFile() != null ?
+                    new ByteArrayOutputStream((int)length) :
+                    null;
+            InputStream in = source.open();
+            try
+            {
+                int readCount;
+                while((readCount = in.read(buffer)) > 0)
+                {
+                    crc.update(buffer, 0, readCount);
+                    if(dataOut != null)
+                    {
+                        dataOut.write(buffer, 0, readCount);
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            
+            if(dataOut != null)
+            {
+                data = dataOut.toByteArray();
+            }
+            else if(source.getFile() == null)
+            {
+                data = ((InMemoryEntrySource)source).data;
+            }
+            
+            return new PackagedEntry(
+                    source,
+                    ZipEntry.STORED,
+                    crc.getValue(),
+                    length,
+                    length,
+                    data,
+                    source.getFile(),
+                    false);
+        }
+        else
+        {
+            ByteArrayOutputStream memoryOut = null;
+            File tempFile = null;
+            OutputStream compressedOut;
+            if(inMemory)
+            {
+                memoryOut = new ByteArrayOutputStream((int)Math.max(length / 2L, 32L));
+                compressedOut = memoryOut;
+            }
+            else
+            {
+                tempFile = File.createTempFile("war-entry", ".deflated");
+                compressedOut = new BufferedOutputStream(
+                        new FileOutputStream(tempFile),
+                        BUFFER_SIZE);
+            }
+            
+            Deflater deflater = new Deflater(this.compressionLevel, true);
+            long compressedSize;
+            try
+            {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(
+                        compressedOut,
+                        deflater,
+                        BUFFER_SIZE);
+                InputStream in = source.open();
+                try
+                {
+                    int readCount;
+                    while((readCount = in.read(buffer)) > 0)
+                    {
+                        crc.update(buffer, 0, readCount);
+                        deflaterOut.write(buffer, 0, readCount);
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+                deflaterOut.finish();
+                deflaterOut.close();
+                compressedSize = deflater.getBytesWritten();
+            }
+            catch(IOException ex)
+            {
+                if(tempFile != null)
+                {
+                    tempFile.delete();
+                }
+                throw ex;
+            }
+            finally
+            {
+                deflater.end();
+            }
+            
+            if(memoryOut != null && compressedSize >= length)
+            {
+                // deflating didn't buy us anything so store it instead
+                ByteArrayOutputStream dataOut = new ByteArrayOutputStream((int)length);
+                InputStream in = source.open();
+                try
+                {
+                    int readCount;
+                    while((readCount = in.read(buffer)) > 0)
+                    {
+                        dataOut.write(buffer, 0, readCount);
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+
+                return new PackagedEntry(
+                        source,
+                        ZipEntry.STORED,
+                        crc.getValue(),
+                        length,
+                        length,
+                        dataOut.toByteArray(),
+                        null,
+                        false);
+            }
+            else if(memoryOut != null)
+            {
+                return new PackagedEntry(
+                        source,
+                        ZipEntry.DEFLATED,
+                        crc.getValue(),
+                        length,
+                        compressedSize,
+                        memoryOut.toByteArray(),
+                        null,
+                        false);
+            }
+            else
+            {
+                return new PackagedEntry(
+                        source,
+                        ZipEntry.DEFLATED,
+                        crc.getValue(),
+                        length,
+                        compressedSize,
+                        null,
+                        tempFile,
+                        true);
+            }
+        }
+    }
+    
+    /**
+     * Determine if the given entry should be stored rather than deflated
+     * @param source
+     *          the entry source
+     * @return
+     *          true if it should be stored
+     */
+    private boolean isStoredEntry(EntrySource source)
+    {
+        String name = source.getName();
+        if(name.endsWith("/") || source.getLength() == 0L)
+        {
+            return true;
+        }
+        else
+        {
+            int lastDotIndex = name.lastIndexOf('.');
+            return lastDotIndex >= 0 && STORED_EXTENSIONS.contains(
+                    name.substring(lastDotIndex + 1).toLowerCase());
+        }
+    }
+}
@@ -68,6 +68,27 @@ public class WebAppOutputPanel extends ValidatablePanel
         return this.progressPanel;
     }
     
+    /**
+     * Add a listener that is notified when the user asks for a build
+     * estimate
+     * @param listener
+     *          the listener to add
+     */
+    public void addEstimateBuildListener(ActionListener listener)
+    {
+        this.estimateBuildButton.addActionListener(listener);
+    }
+    
+    /**
+     * Enable or disable the estimate build button
+     * @param enabled
+     *          true if the button should be enabled
+     */
+    public void setEstimateBuildEnabled(boolean enabled)
+    {
+        this.estimateBuildButton.setEnabled(enabled);
+    }
+    
     /**
      * Take care of the initialization that the GUI builder doesn't handle for
      * us
@@ -165,6 +186,69 @@ public class WebAppOutputPanel extends ValidatablePanel
         return new File(fileName);
     }
     
+    /**
+     * Determine if the user wants intensities stored as 32 bit floats
+     * @see org.jax.pubarray.db.PersistenceManager#isSinglePrecisionDataEnabled()
+     * @return true for single precision
+     */
+    public boolean isSinglePrecisionDataSelected()
+    {
+        return this.singlePrecisionCheckBox.isSelected();
+    }
+    
+    /**
+     * Determine if the user wants log2 intensities stored too
+     * @see org.jax.pubarray.db.PersistenceManager#isLog2DataEnabled()
+     * @return true for log2 intensities
+     */
+    public boolean isLog2DataSelected()
+    {
+        return this.log2DataCheckBox.isSelected();
+    }
+    
+    /**
+     * Determine if the user wants intensities stored as packed probe vectors
+     * too
+     * @see org.jax.pubarray.db.PersistenceManager#isPackedProbeVectorsEnabled()
+     * @return true for packed probe vectors
+     */
+    public boolean isPackedProbeVectorsSelected()
+    {
+        return this.packedVectorsCheckBox.isSelected();
+    }
+    
+    /**
+     * Determine if the user wants the probe summary statistics table built
+     * @see org.jax.pubarray.db.PersistenceManager#isProbeSummaryTableEnabled()
+     * @return true for the summary table
+     */
+    public boolean isProbeSummaryTableSelected()
+    {
+        return this.probeSummaryCheckBox.isSelected();
+    }
+    
+    /**
+     * Determine if the user wants low cardinality annotation columns
+     * dictionary encoded
+     * @see org.jax.pubarray.db.PersistenceManager#isDictionaryEncodingEnabled()
+     * @return true for dictionary encoding
+     */
+    public boolean isDictionaryEncodingSelected()
+    {
+        return this.dictionaryEncodingCheckBox.isSelected();
+    }
+    
+    /**
+     * Determine if the user wants unchanged input files to be loaded from
+     * the import cache
+     * @see org.jax.pubarray.db.ImportCache
+     * @return true to use the import cache
+     */
+    public boolean isImportCacheSelected()
+    {
+        return this.importCacheCheckBox.isSelected();
+    }
+    
     /**
      * Use the experiment name to create a WAR file name
      * @param experimentName the experiment name
@@ -229,6 +313,13 @@ public class WebAppOutputPanel extends ValidatablePanel
         javax.swing.JLabel webAppFileLabel = new javax.swing.JLabel();
         browseWebAppFilesButton = new javax.swing.JButton();
         webAppFileTextField = new javax.swing.JTextField();
+        singlePrecisionCheckBox = new javax.swing.JCheckBox();
+        estimateBuildButton = new javax.swing.JButton();
+        log2DataCheckBox = new javax.swing.JCheckBox();
+        packedVectorsCheckBox = new javax.swing.JCheckBox();
+        probeSummaryCheckBox = new javax.swing.JCheckBox();
+        dictionaryEncodingCheckBox = new javax.swing.JCheckBox();
+        importCacheCheckBox = new javax.swing.JCheckBox();
         javax.swing.JPanel lowerPanel = new javax.swing.JPanel();
         javax.swing.JPanel progressPanelHandle = this.progressPanel;
 
@@ -236,6 +327,20 @@ public class WebAppOutputPanel extends ValidatablePanel
 
         browseWebAppFilesButton.setText("Browse...");
 
+        singlePrecisionCheckBox.setText("Store Intensities in Single Precision (Smaller Database)");
+
+        estimateBuildButton.setText("Estimate Build...");
+
+        log2DataCheckBox.setText("Also Store Log2 Intensities (Filterable, Larger Database)");
+
+        packedVectorsCheckBox.setText("Also Store Packed Probe Vectors (Faster Graphs, Larger Database)");
+
+        probeSummaryCheckBox.setText("Add a Probe Summary Statistics Table (Filterable, Larger Database)");
+
+        dictionaryEncodingCheckBox.setText("Dictionary Encode Repetitive Annotation Columns (Smaller Database)");
+
+        importCacheCheckBox.setText("Cache Parsed Input Files for Faster Rebuilds (Uses Disk Space)");
+
         lowerPanel.setLayout(new java.awt.GridBagLayout());
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
@@ -257,7 +362,16 @@ public class WebAppOutputPanel extends ValidatablePanel
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                         .add(webAppFileTextField, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 341, Short.MAX_VALUE)
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
-                        .add(browseWebAppFilesButton)))
+                        .add(browseWebAppFilesButton))
+                    .add(layout.createSequentialGroup()
+                        .add(singlePrecisionCheckBox)
+                        .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED, 12, Short.MAX_VALUE)
+                        .add(estimateBuildButton))
+                    .add(org.jdesktop.layout.GroupLayout.LEADING, log2DataCheckBox)
+                    .add(org.jdesktop.layout.GroupLayout.LEADING, packedVectorsCheckBox)
+                    .add(org.jdesktop.layout.GroupLayout.LEADING, probeSummaryCheckBox)
+                    .add(org.jdesktop.layout.GroupLayout.LEADING, dictionaryEncodingCheckBox)
+                    .add(org.jdesktop.layout.GroupLayout.LEADING, importCacheCheckBox))
                 .addContainerGap())
         );
         layout.setVerticalGroup(
@@ -269,6 +383,20 @@ public class WebAppOutputPanel extends ValidatablePanel
                     .add(browseWebAppFilesButton)
                     .add(webAppFileTextField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(singlePrecisionCheckBox)
+                    .add(estimateBuildButton))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(log2DataCheckBox)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(packedVectorsCheckBox)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(probeSummaryCheckBox)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(dictionaryEncodingCheckBox)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(importCacheCheckBox)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(lowerPanel, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 262, Short.MAX_VALUE)
                 .addContainerGap())
         );
@@ -277,6 +405,13 @@ public class WebAppOutputPanel extends ValidatablePanel
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton browseWebAppFilesButton;
+    private javax.swing.JCheckBox dictionaryEncodingCheckBox;
+    private javax.swing.JButton estimateBuildButton;
+    private javax.swing.JCheckBox importCacheCheckBox;
+    private javax.swing.JCheckBox log2DataCheckBox;
+    private javax.swing.JCheckBox packedVectorsCheckBox;
+    private javax.swing.JCheckBox probeSummaryCheckBox;
+    private javax.swing.JCheckBox singlePrecisionCheckBox;
     private javax.swing.JTextField webAppFileTextField;
     // End of variables declaration//GEN-END:variables
 
@@ -17,27 +17,38 @@
 
 package org.jax.pubarray.commandline;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
+import org.jax.pubarray.builder.DecompressingInputStream;
+import org.jax.pubarray.builder.FlatFileDescription;
+import org.jax.pubarray.builder.ImportEstimator;
 import org.jax.pubarray.builder.PubArrayWizardController;
+import org.jax.pubarray.builder.WarPackager;
+import org.jax.pubarray.db.BuildCheckpoint;
 import org.jax.pubarray.db.CandidateDatabaseManager;
-import org.jax.pubarray.db.ConnectionManager;
+import org.jax.pubarray.db.CandidateTable;
 import org.jax.pubarray.db.ExperimentMetadata;
 import org.jax.pubarray.db.HSQLDBConnectionManager;
+import org.jax.pubarray.db.ImportCache;
+import org.jax.pubarray.db.ImportProfiler;
 import org.jax.pubarray.db.PersistenceManager;
+import org.jax.pubarray.db.SpillManager;
 import org.jax.util.io.CommonFlatFileFormat;
 import org.jax.util.io.FileUtilities;
 import org.jax.util.io.FlatFileReader;
@@ -50,6 +61,8 @@ public class ImportDataMain
 {
     private final CandidateDatabaseManager candidateDatabaseManager;
     private final PersistenceManager persistenceManager;
+    private final ImportProfiler importProfiler;
+    private volatile ImportCache importCache = null;
     
     private final File designFile;
     private final File dataFile;
@@ -59,21 +72,67 @@ public class ImportDataMain
     // this is the name that we should use for the database that we construct
     private static final String DATABASE_NAME = "pub-array-db";
     
+    // the WAR entries for the database files start with this
+    private static final String DATABASE_ENTRY_PREFIX =
+        "WEB-INF/classes/" + DATABASE_NAME + ".";
+    
+    // the WAR is written to a file with this suffix and then moved into
+    // place so that an existing WAR is never left half written
+    private static final String PARTIAL_WAR_SUFFIX = ".partial";
+    
     // this is the WAR resource that contains everything but the database.
     // When this resource is combined with the database that we create then
     // we have a real web application
     private static final String WAR_TEMPLATE_RESOURCE = "/pub-array-gwt-server-1.0.war";
     
+    // the command line argument for doing a dry run
+    private static final String DRY_RUN_ARGUMENT = "--dry-run";
+    
+    // the command line argument for storing intensities as 32 bit floats
+    private static final String SINGLE_PRECISION_ARGUMENT = "--single-precision";
+    
+    // the command line argument for also storing log2 intensities
+    private static final String LOG2_DATA_ARGUMENT = "--log2-data";
+    
+    // the command line argument for also storing packed probe vectors
+    private static final String PACKED_VECTORS_ARGUMENT = "--packed-vectors";
+    
+    // the command line argument for building the probe summary table
+    private static final String PROBE_SUMMARY_ARGUMENT = "--probe-summary";
+    
+    // the command line argument for dictionary encoding annotation columns
+    private static final String DICTIONARY_ENCODING_ARGUMENT = "--dictionary-encoding";
+    
+    // the command line argument for using the import cache
+    private static final String IMPORT_CACHE_ARGUMENT = "--import-cache";
+    
+    // the command line argument (followed by the existing WAR) for adding
+    // annotations to an existing WAR
+    private static final String APPEND_ARGUMENT = "--append";
+    
+    // the format of all of the flat files that we import
+    private static final CommonFlatFileFormat FLAT_FILE_FORMAT =
+        CommonFlatFileFormat.TAB_DELIMITED_UNIX;
+    
+    // the build checkpoint steps (see BuildCheckpoint)
+    private static final String DESIGN_STEP = "design";
+    private static final String DATA_STEP = "data";
+    private static final String ANNOTATION_STEP_PREFIX = "annotation:";
+    private static final String DATABASE_STEP = "database";
+    
     /**
      * Constructor
      * @param experimentMetadata
-     *          the experiment metadata
+     *          the experiment metadata (null if we're only appending
+     *          annotations)
      * @param warFile
      *          the WAR file that we should create
      * @param designFile
-     *          the design file to import
+     *          the design file to import (null if we're only appending
+     *          annotations)
      * @param dataFile
-     *          the data file to import
+     *          the data file to import (null if we're only appending
+     *          annotations)
      * @param annotationDirs
      *          the annotation dirs to import
      * @throws SQLException
@@ -94,10 +153,159 @@ public class ImportDataMain
         this.candidateDatabaseManager = new CandidateDatabaseManager();
         this.candidateDatabaseManager.setExperimentMetadata(experimentMetadata);
         this.persistenceManager = new PersistenceManager();
+        
+        // one profiler covers the whole import
+        this.importProfiler = new ImportProfiler();
+        this.candidateDatabaseManager.setImportProfiler(this.importProfiler);
+        this.persistenceManager.setImportProfiler(this.importProfiler);
+    }
+    
+    /**
+     * Determine if unchanged input files are loaded from the import cache
+     * instead of being parsed again. This is false by default since the
+     * cache keeps a copy of every input file's spill under the user's home
+     * directory
+     * @see ImportCache
+     * @return true if we use the import cache
+     */
+    public boolean isImportCacheEnabled()
+    {
+        return this.importCache != null;
+    }
+    
+    /**
+     * Setter for using the import cache
+     * @see #isImportCacheEnabled()
+     * @param importCacheEnabled
+     *          true to use the import cache
+     */
+    public void setImportCacheEnabled(boolean importCacheEnabled)
+    {
+        if(importCacheEnabled != this.isImportCacheEnabled())
+        {
+            this.importCache = importCacheEnabled ?
+                    new ImportCache(ImportCache.getDefaultDirectory()) :
+                    null;
+            this.candidateDatabaseManager.setImportCache(this.importCache);
+        }
+    }
+    
+    /**
+     * Determine if intensities are stored as 32 bit floats
+     * @see PersistenceManager#isSinglePrecisionDataEnabled()
+     * @return true for single precision
+     */
+    public boolean isSinglePrecisionDataEnabled()
+    {
+        return this.persistenceManager.isSinglePrecisionDataEnabled();
+    }
+    
+    /**
+     * Setter for storing intensities as 32 bit floats
+     * @see PersistenceManager#isSinglePrecisionDataEnabled()
+     * @param singlePrecisionDataEnabled
+     *          true for single precision
+     */
+    public void setSinglePrecisionDataEnabled(boolean singlePrecisionDataEnabled)
+    {
+        this.persistenceManager.setSinglePrecisionDataEnabled(
+                singlePrecisionDataEnabled);
+    }
+    
+    /**
+     * Determine if log2 intensities are also stored
+     * @see PersistenceManager#isLog2DataEnabled()
+     * @return true for log2 intensities
+     */
+    public boolean isLog2DataEnabled()
+    {
+        return this.persistenceManager.isLog2DataEnabled();
+    }
+    
+    /**
+     * Setter for also storing log2 intensities
+     * @see PersistenceManager#isLog2DataEnabled()
+     * @param log2DataEnabled
+     *          true for log2 intensities
+     */
+    public void setLog2DataEnabled(boolean log2DataEnabled)
+    {
+        this.persistenceManager.setLog2DataEnabled(log2DataEnabled);
+    }
+    
+    /**
+     * Determine if intensities are also stored as packed probe vectors
+     * @see PersistenceManager#isPackedProbeVectorsEnabled()
+     * @return true for packed probe vectors
+     */
+    public boolean isPackedProbeVectorsEnabled()
+    {
+        return this.persistenceManager.isPackedProbeVectorsEnabled();
+    }
+    
+    /**
+     * Setter for also storing packed probe vectors
+     * @see PersistenceManager#isPackedProbeVectorsEnabled()
+     * @param packedProbeVectorsEnabled
+     *          true for packed probe vectors
+     */
+    public void setPackedProbeVectorsEnabled(boolean packedProbeVectorsEnabled)
+    {
+        this.persistenceManager.setPackedProbeVectorsEnabled(
+                packedProbeVectorsEnabled);
+    }
+    
+    /**
+     * Determine if the probe summary table is built
+     * @see PersistenceManager#isProbeSummaryTableEnabled()
+     * @return true for the summary table
+     */
+    public boolean isProbeSummaryTableEnabled()
+    {
+        return this.persistenceManager.isProbeSummaryTableEnabled();
+    }
+    
+    /**
+     * Setter for building the probe summary table
+     * @see PersistenceManager#isProbeSummaryTableEnabled()
+     * @param probeSummaryTableEnabled
+     *          true for the summary table
+     */
+    public void setProbeSummaryTableEnabled(boolean probeSummaryTableEnabled)
+    {
+        this.persistenceManager.setProbeSummaryTableEnabled(
+                probeSummaryTableEnabled);
+    }
+    
+    /**
+     * Determine if low cardinality annotation columns are dictionary encoded
+     * @see PersistenceManager#isDictionaryEncodingEnabled()
+     * @return true for dictionary encoding
+     */
+    public boolean isDictionaryEncodingEnabled()
+    {
+        return this.persistenceManager.isDictionaryEncodingEnabled();
+    }
+    
+    /**
+     * Setter for dictionary encoding annotation columns
+     * @see PersistenceManager#isDictionaryEncodingEnabled()
+     * @param dictionaryEncodingEnabled
+     *          true for dictionary encoding
+     */
+    public void setDictionaryEncodingEnabled(boolean dictionaryEncodingEnabled)
+    {
+        this.persistenceManager.setDictionaryEncodingEnabled(
+                dictionaryEncodingEnabled);
+        this.candidateDatabaseManager.setDictionaryEncodingEnabled(
+                dictionaryEncodingEnabled);
     }
 
     /**
-     * Do the import
+     * Do the import. The build is checkpointed in a directory next to the
+     * WAR file (see {@link BuildCheckpoint#getCheckpointDirectory(File)}) so
+     * if the import fails, rerunning it with the same inputs picks up from
+     * the last table that was completed
      * @throws SQLException if JDBC doesn't like what we're doing
      * @throws IOException  if we're thrown one
      * @throws IllegalFormatException
@@ -105,88 +313,816 @@ public class ImportDataMain
      */
     public void importData() throws SQLException, IOException, IllegalFormatException
     {
-        File tempDir = FileUtilities.createTempDir();
+        BuildCheckpoint checkpoint = new BuildCheckpoint(
+                BuildCheckpoint.getCheckpointDirectory(this.warFile),
+                this.describeInputs());
+        this.candidateDatabaseManager.setSpillManager(new SpillManager(
+                checkpoint.getSpillDirectory(),
+                SpillManager.UNLIMITED_BUDGET,
+                true));
+        this.persistenceManager.setBuildCheckpoint(checkpoint);
+        File databaseDir = checkpoint.getDatabaseDirectory();
+        File partialWarFile = this.getPartialWarFile();
+        boolean warFinished = false;
         try
         {
-            System.out.println("Importing design: " + this.toPrettyName(this.designFile));
-            this.candidateDatabaseManager.uploadDesignFile(
-                    this.toPrettyName(this.designFile),
-                    this.fileToReader(this.designFile));
+            if(checkpoint.isStepComplete(DATABASE_STEP))
+            {
+                System.out.println(
+                        "Using database from build checkpoint: " +
+                        databaseDir.getPath());
+            }
+            else
+            {
+                this.importDesignFile(checkpoint);
+                this.importDataFile(checkpoint);
+                for(AnnotationDirectory annotationDir: this.annotationDirs)
+                {
+                    this.importAnnotationDir(checkpoint, annotationDir);
+                }
+                
+                this.buildDatabase(checkpoint);
+            }
             
-            System.out.println("Importing data: " + this.toPrettyName(this.dataFile));
-            this.candidateDatabaseManager.uploadDataFile(
-                    this.toPrettyName(this.dataFile),
-                    this.fileToReader(this.dataFile));
+            ZipInputStream inWARTemplate = new ZipInputStream(
+                    PubArrayWizardController.class.getResourceAsStream(
+                            WAR_TEMPLATE_RESOURCE));
+            try
+            {
+                this.packageWar(
+                        inWARTemplate,
+                        "WAR template",
+                        null,
+                        databaseDir,
+                        partialWarFile);
+            }
+            finally
+            {
+                inWARTemplate.close();
+            }
             
+            this.movePartialWarFile(partialWarFile);
+            warFinished = true;
+        }
+        finally
+        {
+            if(warFinished)
+            {
+                checkpoint.delete();
+            }
+            else
+            {
+                partialWarFile.delete();
+                System.err.println(
+                        "Import failed. Rerun it with the same inputs to " +
+                        "resume from the checkpoint in: " +
+                        checkpoint.getDirectory().getPath());
+            }
+            
+            this.writeProfileReport();
+        }
+    }
+    
+    /**
+     * Add the annotation directories to the experiment in an existing WAR.
+     * The existing database is opened and only the new annotation tables are
+     * loaded. An annotation file with the same name as one of the existing
+     * annotation tables replaces that table. The existing experiment data
+     * and design are left alone
+     * @param existingWarFile
+     *          the WAR to add the annotations to. This can be the same file
+     *          as the WAR that we're writing
+     * @throws SQLException if JDBC doesn't like what we're doing
+     * @throws IOException  if we're thrown one
+     * @throws IllegalFormatException
+     *                      if the given files aren't properly formatted
+     */
+    public void appendAnnotations(File existingWarFile) throws SQLException, IOException, IllegalFormatException
+    {
+        File tempDir = FileUtilities.createTempDir();
+        File databaseDir = new File(tempDir, "db");
+        File partialWarFile = this.getPartialWarFile();
+        boolean warFinished = false;
+        try
+        {
             for(AnnotationDirectory annotationDir: this.annotationDirs)
             {
-                this.importAnnotationDir(annotationDir);
+                this.importAnnotationDir(null, annotationDir);
             }
             
-            String dbPath = tempDir.getPath() + "/" + DATABASE_NAME;
-            System.out.println("Writing to database path: " + dbPath);
-            final ConnectionManager connectionManager = new HSQLDBConnectionManager(
+            System.out.println("Extracting database from: " + existingWarFile.getPath());
+            this.extractDatabase(existingWarFile, databaseDir);
+            
+            String dbPath = databaseDir.getPath() + "/" + DATABASE_NAME;
+            HSQLDBConnectionManager connectionManager = new HSQLDBConnectionManager(
                     dbPath,
-                    false);
-            final Connection connection = connectionManager.createConnection();
+                    false,
+                    true);
+            
+            // compacting would rewrite the whole database which is exactly
+            // what we're trying to avoid
+            connectionManager.setCompactingOnShutdown(false);
+            Connection connection = connectionManager.createConnection();
+            boolean tablesWritten = false;
+            try
+            {
+                this.persistenceManager.appendAnnotationTables(
+                        connectionManager,
+                        connection,
+                        this.candidateDatabaseManager);
+                tablesWritten = true;
+            }
+            finally
+            {
+                if(!tablesWritten)
+                {
+                    connectionManager.suspendDatabase(connection);
+                }
+            }
+            
+            ImportProfiler.Phase shutdownPhase = this.importProfiler.startPhase(
+                    ImportProfiler.DATABASE_SHUTDOWN_CATEGORY,
+                    DATABASE_NAME);
+            try
+            {
+                connection.commit();
+                connectionManager.shutdownDatabase(connection);
+            }
+            finally
+            {
+                shutdownPhase.finish();
+            }
+            this.candidateDatabaseManager.deleteSpillFiles();
+            
+            ZipInputStream inExistingWAR = new ZipInputStream(
+                    new BufferedInputStream(new FileInputStream(existingWarFile)));
+            try
+            {
+                this.packageWar(
+                        inExistingWAR,
+                        "existing WAR",
+                        DATABASE_ENTRY_PREFIX,
+                        databaseDir,
+                        partialWarFile);
+            }
+            finally
+            {
+                inExistingWAR.close();
+            }
+            
+            this.movePartialWarFile(partialWarFile);
+            warFinished = true;
+        }
+        finally
+        {
+            if(!warFinished)
+            {
+                partialWarFile.delete();
+            }
+            this.candidateDatabaseManager.deleteSpillFiles();
+            FileUtilities.recursiveDelete(tempDir);
+            this.writeProfileReport();
+        }
+    }
+    
+    /**
+     * Do a dry run of the import: sample the input files and print out
+     * estimates of the row counts, column types, database size and build
+     * time without building anything
+     * @throws SQLException
+     *          if the scratch database used to measure insert speed fails
+     * @throws IOException
+     *          if we fail to read the input files
+     * @throws IllegalFormatException
+     *          if the start of an input file can't be parsed
+     */
+    public void estimateImport() throws SQLException, IOException, IllegalFormatException
+    {
+        List<FlatFileDescription> annotationFiles = new ArrayList<FlatFileDescription>();
+        for(AnnotationDirectory annotationDir: this.annotationDirs)
+        {
+            if(annotationDir.getDirectory().isDirectory())
+            {
+                for(File annoFile: annotationDir.getDirectory().listFiles())
+                {
+                    annotationFiles.add(new FlatFileDescription(
+                            annoFile,
+                            this.toPrettyName(annoFile),
+                            FLAT_FILE_FORMAT));
+                }
+            }
+            else
+            {
+                ZipFile annoZip = new ZipFile(annotationDir.getDirectory());
+                try
+                {
+                    Enumeration<? extends ZipEntry> zipEntries = annoZip.entries();
+                    while(zipEntries.hasMoreElements())
+                    {
+                        ZipEntry annoEntry = zipEntries.nextElement();
+                        if(!annoEntry.isDirectory())
+                        {
+                            annotationFiles.add(new FlatFileDescription(
+                                    annotationDir.getDirectory(),
+                                    annoEntry.getName(),
+                                    this.toPrettyName(new File(annoEntry.getName())),
+                                    FLAT_FILE_FORMAT));
+                        }
+                    }
+                }
+                finally
+                {
+                    annoZip.close();
+                }
+            }
+        }
+        
+        ImportEstimator estimator = new ImportEstimator();
+        estimator.setMaxTableBuildThreads(
+                this.persistenceManager.getMaxTableBuildThreads());
+        estimator.setSinglePrecisionDataEnabled(
+                this.persistenceManager.isSinglePrecisionDataEnabled());
+        estimator.setLog2DataEnabled(
+                this.persistenceManager.isLog2DataEnabled());
+        estimator.setPackedProbeVectorsEnabled(
+                this.persistenceManager.isPackedProbeVectorsEnabled());
+        estimator.setProbeSummaryTableEnabled(
+                this.persistenceManager.isProbeSummaryTableEnabled());
+        estimator.estimate(
+                this.designFile == null ? null : new FlatFileDescription(
+                        this.designFile,
+                        this.toPrettyName(this.designFile),
+                        FLAT_FILE_FORMAT),
+                this.dataFile == null ? null : new FlatFileDescription(
+                        this.dataFile,
+                        this.toPrettyName(this.dataFile),
+                        FLAT_FILE_FORMAT),
+                annotationFiles);
+        System.out.print(estimator.toReport());
+    }
+    
+    /**
+     * Extract the database files from the given WAR
+     * @param existingWarFile
+     *          the WAR
+     * @param databaseDir
+     *          the directory to extract the database files to
+     * @throws IOException
+     *          if the WAR can't be read or doesn't contain a database
+     */
+    private void extractDatabase(File existingWarFile, File databaseDir) throws IOException
+    {
+        if(!databaseDir.mkdirs())
+        {
+            throw new IOException(
+                    "failed to create database directory: " +
+                    databaseDir.getPath());
+        }
+        
+        int fileCount = 0;
+        ZipInputStream inExistingWAR = new ZipInputStream(
+                new BufferedInputStream(new FileInputStream(existingWarFile)));
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            ZipEntry currEntry;
+            while((currEntry = inExistingWAR.getNextEntry()) != null)
+            {
+                String entryName = currEntry.getName();
+                if(!currEntry.isDirectory() && entryName.startsWith(DATABASE_ENTRY_PREFIX))
+                {
+                    File databaseFile = new File(
+                            databaseDir,
+                            entryName.substring(entryName.lastIndexOf('/') + 1));
+                    OutputStream out = new BufferedOutputStream(
+                            new FileOutputStream(databaseFile));
+                    try
+                    {
+                        int readCount;
+                        while((readCount = inExistingWAR.read(buffer)) > 0)
+                        {
+                            out.write(buffer, 0, readCount);
+                        }
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                    fileCount++;
+                }
+            }
+        }
+        finally
+        {
+            inExistingWAR.close();
+        }
+        
+        if(fileCount == 0)
+        {
+            throw new IOException(
+                    existingWarFile.getPath() + " does not contain a " +
+                    "PubArray database");
+        }
+    }
+    
+    /**
+     * Get the file that the WAR is written to before it is moved into place
+     * @return
+     *          the partial WAR file (next to the WAR file)
+     */
+    private File getPartialWarFile()
+    {
+        return new File(
+                this.warFile.getAbsoluteFile().getParentFile(),
+                this.warFile.getName() + PARTIAL_WAR_SUFFIX);
+    }
+    
+    /**
+     * Replace the WAR file (if there is one) with the finished partial WAR
+     * @param partialWarFile
+     *          the finished partial WAR
+     * @throws IOException
+     *          if the WAR can't be replaced
+     */
+    private void movePartialWarFile(File partialWarFile) throws IOException
+    {
+        if(this.warFile.exists() && !this.warFile.delete())
+        {
+            throw new IOException(
+                    "failed to replace WAR file: " + this.warFile.getPath());
+        }
+        if(!partialWarFile.renameTo(this.warFile))
+        {
+            throw new IOException(
+                    "failed to move " + partialWarFile.getPath() +
+                    " to " + this.warFile.getPath());
+        }
+    }
+    
+    /**
+     * Write the WAR file
+     * @param inWAR
+     *          the WAR (or WAR template) to copy everything but the database
+     *          from. This isn't closed
+     * @param inWARDescription
+     *          describes the WAR that we're copying from for the profile
+     * @param excludedEntryPrefix
+     *          entries in the WAR with this prefix aren't copied. Can be null
+     * @param databaseDir
+     *          the directory holding the database files
+     * @param outWarFile
+     *          the WAR file to write
+     * @throws IOException
+     *          if we fail to read or write any of the files
+     */
+    private void packageWar(
+            ZipInputStream inWAR,
+            String inWARDescription,
+            String excludedEntryPrefix,
+            File databaseDir,
+            File outWarFile) throws IOException
+    {
+        long packagingStartMillis = System.currentTimeMillis();
+        WarPackager warPackager = new WarPackager();
+        warPackager.start(outWarFile);
+        try
+        {
+            ImportProfiler.Phase templatePhase = this.importProfiler.startPhase(
+                    ImportProfiler.PACKAGING_CATEGORY,
+                    inWARDescription);
+            try
+            {
+                warPackager.addZipContents(inWAR, excludedEntryPrefix);
+            }
+            finally
+            {
+                templatePhase.addBytesRead(warPackager.getUncompressedByteCount());
+                templatePhase.finish();
+            }
             
+            ImportProfiler.Phase databasePhase = this.importProfiler.startPhase(
+                    ImportProfiler.PACKAGING_CATEGORY,
+                    "database");
+            long startByteCount = warPackager.getUncompressedByteCount();
+            try
+            {
+                warPackager.addDirectory(databaseDir, "WEB-INF/classes/");
+                warPackager.finish();
+                databasePhase.addBytesWritten(warPackager.getArchiveByteCount());
+            }
+            finally
+            {
+                databasePhase.addBytesRead(
+                        warPackager.getUncompressedByteCount() - startByteCount);
+                databasePhase.finish();
+            }
+        }
+        finally
+        {
+            warPackager.abort();
+        }
+        long packagingMillis = Math.max(
+                System.currentTimeMillis() - packagingStartMillis,
+                1L);
+        System.out.println(
+                "Packaged " + warPackager.getUncompressedByteCount() +
+                " bytes into a " + warPackager.getArchiveByteCount() +
+                " byte WAR file in " + packagingMillis + " ms (" +
+                (warPackager.getUncompressedByteCount() * 1000L / packagingMillis) +
+                " bytes/second)");
+    }
+    
+    /**
+     * Write the import profile next to the WAR. Failures are reported but
+     * not thrown since the profile is only informational
+     */
+    private void writeProfileReport()
+    {
+        File reportFile = ImportProfiler.getReportFile(this.warFile);
+        try
+        {
+            this.importProfiler.writeReport(reportFile);
+            System.out.println("Wrote import profile to: " + reportFile.getPath());
+        }
+        catch(IOException ex)
+        {
+            System.err.println(
+                    "Failed to write import profile to " +
+                    reportFile.getPath() + ": " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Describe everything that the WAR depends on so that a checkpoint is
+     * only resumed if the inputs haven't changed
+     * @return
+     *          the input descriptions
+     */
+    private List<String> describeInputs()
+    {
+        ExperimentMetadata experimentMetadata =
+            this.candidateDatabaseManager.getExperimentMetadata();
+        List<String> inputDescriptions = new ArrayList<String>();
+        inputDescriptions.add(experimentMetadata.getExperimentName());
+        inputDescriptions.add(experimentMetadata.getExperimentDescription());
+        inputDescriptions.add(BuildCheckpoint.describeFile(this.designFile));
+        inputDescriptions.add(BuildCheckpoint.describeFile(this.dataFile));
+        BuildCheckpoint.describeBuildOptions(
+                this.persistenceManager,
+                inputDescriptions);
+        for(AnnotationDirectory annotationDir: this.annotationDirs)
+        {
+            inputDescriptions.add(annotationDir.getCategoryName());
+            if(annotationDir.getDirectory().isDirectory())
+            {
+                for(File annoFile: annotationDir.getDirectory().listFiles())
+                {
+                    inputDescriptions.add(BuildCheckpoint.describeFile(annoFile));
+                }
+            }
+            else
+            {
+                inputDescriptions.add(BuildCheckpoint.describeFile(
+                        annotationDir.getDirectory()));
+            }
+        }
+        return inputDescriptions;
+    }
+    
+    private void importDesignFile(BuildCheckpoint checkpoint) throws IllegalFormatException, IOException
+    {
+        CandidateTable designTable = checkpoint.loadCandidateTable(
+                DESIGN_STEP,
+                this.candidateDatabaseManager.getSpillManager());
+        if(designTable != null)
+        {
+            System.out.println("Restored design from checkpoint: " + this.toPrettyName(this.designFile));
+            this.candidateDatabaseManager.setDesignTable(designTable);
+        }
+        else
+        {
+            System.out.println("Importing design: " + this.toPrettyName(this.designFile));
+            FlatFileReader designReader = this.fileToReader(this.designFile);
+            this.candidateDatabaseManager.uploadDesignFile(
+                    this.toPrettyName(this.designFile),
+                    designReader,
+                    this.getContentKey(this.designFile));
+            designReader.close();
+            this.addInferenceBytesRead(
+                    this.toPrettyName(this.designFile),
+                    this.designFile.length());
+            checkpoint.saveCandidateTable(
+                    DESIGN_STEP,
+                    this.candidateDatabaseManager.getDesignTable());
+        }
+    }
+    
+    private void importDataFile(BuildCheckpoint checkpoint) throws IllegalFormatException, IOException
+    {
+        CandidateTable dataTable = checkpoint.loadCandidateTable(
+                DATA_STEP,
+                this.candidateDatabaseManager.getSpillManager());
+        if(dataTable != null)
+        {
+            System.out.println("Restored data from checkpoint: " + this.toPrettyName(this.dataFile));
+            this.candidateDatabaseManager.setDataTable(dataTable);
+        }
+        else
+        {
+            System.out.println("Importing data: " + this.toPrettyName(this.dataFile));
+            FlatFileReader dataReader = this.fileToReader(this.dataFile);
+            this.candidateDatabaseManager.uploadDataFile(
+                    this.toPrettyName(this.dataFile),
+                    dataReader,
+                    this.getContentKey(this.dataFile));
+            dataReader.close();
+            this.addInferenceBytesRead(
+                    this.toPrettyName(this.dataFile),
+                    this.dataFile.length());
+            checkpoint.saveCandidateTable(
+                    DATA_STEP,
+                    this.candidateDatabaseManager.getDataTable());
+        }
+    }
+    
+    /**
+     * Write the candidate tables to the database in the checkpoint
+     * directory. If this fails the database is shut down without
+     * compacting so that a rerun can pick up from the tables that were
+     * completed
+     * @param checkpoint
+     *          the build checkpoint
+     * @throws SQLException if JDBC doesn't like what we're doing
+     * @throws IOException  if we're thrown one
+     * @throws IllegalFormatException
+     *                      if the candidate tables can't be parsed
+     */
+    private void buildDatabase(BuildCheckpoint checkpoint) throws SQLException, IOException, IllegalFormatException
+    {
+        String dbPath = checkpoint.getDatabaseDirectory().getPath() + "/" + DATABASE_NAME;
+        System.out.println("Writing to database path: " + dbPath);
+        HSQLDBConnectionManager connectionManager = new HSQLDBConnectionManager(
+                dbPath,
+                false,
+                true);
+        Connection connection = connectionManager.createConnection();
+        
+        boolean tablesWritten = false;
+        try
+        {
             this.persistenceManager.writeCandidatesToDatabase(
+                    connectionManager,
                     connection,
                     this.candidateDatabaseManager);
-            
+            tablesWritten = true;
+        }
+        finally
+        {
+            if(!tablesWritten)
+            {
+                connectionManager.suspendDatabase(connection);
+            }
+        }
+        
+        ImportProfiler.Phase shutdownPhase = this.importProfiler.startPhase(
+                ImportProfiler.DATABASE_SHUTDOWN_CATEGORY,
+                DATABASE_NAME);
+        try
+        {
             connection.commit();
             connectionManager.shutdownDatabase(connection);
-            
-            ZipInputStream inWARTemplate = new ZipInputStream(
-                    PubArrayWizardController.class.getResourceAsStream(
-                            WAR_TEMPLATE_RESOURCE));
-            ZipOutputStream warOut = new ZipOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(this.warFile)));
-            FileUtilities.unzipToZip(
-                    inWARTemplate,
-                    warOut);
-            FileUtilities.zipRecursive(
-                    tempDir,
-                    warOut,
-                    "WEB-INF/classes/");
-            warOut.flush();
-            warOut.close();
         }
         finally
         {
-            FileUtilities.recursiveDelete(tempDir);
+            shutdownPhase.finish();
+        }
+        checkpoint.markStepComplete(DATABASE_STEP);
+        
+        // free up the spill space before we start writing the WAR
+        this.candidateDatabaseManager.deleteSpillFiles();
+        FileUtilities.recursiveDelete(checkpoint.getSpillDirectory());
+    }
+    
+    /**
+     * Record the size of the given file as the bytes read by its column
+     * type inference phase
+     * @param prettyName
+     *          the table name of the file that was just uploaded
+     * @param byteCount
+     *          the size of the file
+     */
+    private void addInferenceBytesRead(String prettyName, long byteCount)
+    {
+        ImportProfiler.Phase inferencePhase = this.importProfiler.findPhase(
+                ImportProfiler.INFERENCE_CATEGORY,
+                prettyName);
+        if(inferencePhase != null)
+        {
+            inferencePhase.addBytesRead(byteCount);
         }
     }
     
-    private void importAnnotationDir(AnnotationDirectory annotationDir) throws IllegalFormatException, IOException
+    /**
+     * Import every annotation file in the given directory. The directory
+     * can also be a zip archive in which case every file in the archive is
+     * imported (decompressing as we go)
+     * @param checkpoint
+     *          the build checkpoint or null if we aren't checkpointing
+     * @param annotationDir
+     *          the annotation directory
+     * @throws IllegalFormatException
+     *          if an annotation file is badly formatted
+     * @throws IOException
+     *          if we fail to read an annotation file
+     */
+    private void importAnnotationDir(BuildCheckpoint checkpoint, AnnotationDirectory annotationDir) throws IllegalFormatException, IOException
     {
-        int fileNumber = 1;
-        for(File annoFile: annotationDir.getDirectory().listFiles())
+        if(annotationDir.getDirectory().isDirectory())
+        {
+            int fileNumber = 1;
+            for(final File annoFile: annotationDir.getDirectory().listFiles())
+            {
+                this.importAnnotationFile(
+                        checkpoint,
+                        annotationDir,
+                        fileNumber,
+                        ANNOTATION_STEP_PREFIX + annoFile.getAbsolutePath(),
+                        this.toPrettyName(annoFile),
+                        new AnnotationSource()
+                        {
+                            public FlatFileReader openReader() throws IOException
+                            {
+                                return ImportDataMain.this.fileToReader(annoFile);
+                            }
+                            
+                            public String getContentKey() throws IOException
+                            {
+                                return ImportDataMain.this.getContentKey(annoFile);
+                            }
+                            
+                            public long getByteCount()
+                            {
+                                return annoFile.length();
+                            }
+                        });
+                fileNumber++;
+            }
+        }
+        else
+        {
+            final ZipFile annoZip = new ZipFile(annotationDir.getDirectory());
+            try
+            {
+                int fileNumber = 1;
+                Enumeration<? extends ZipEntry> zipEntries = annoZip.entries();
+                while(zipEntries.hasMoreElements())
+                {
+                    final ZipEntry annoEntry = zipEntries.nextElement();
+                    if(!annoEntry.isDirectory())
+                    {
+                        this.importAnnotationFile(
+                                checkpoint,
+                                annotationDir,
+                                fileNumber,
+                                ANNOTATION_STEP_PREFIX +
+                                annotationDir.getDirectory().getAbsolutePath() +
+                                "!" + annoEntry.getName(),
+                                this.toPrettyName(new File(annoEntry.getName())),
+                                new AnnotationSource()
+                                {
+                                    public FlatFileReader openReader() throws IOException
+                                    {
+                                        return new FlatFileReader(
+                                                new BufferedReader(new InputStreamReader(
+                                                        new DecompressingInputStream(
+                                                                annoZip.getInputStream(annoEntry),
+                                                                annoEntry.getName()))),
+                                                FLAT_FILE_FORMAT);
+                                    }
+                                    
+                                    public String getContentKey() throws IOException
+                                    {
+                                        ImportCache importCache =
+                                            ImportDataMain.this.importCache;
+                                        if(importCache == null)
+                                        {
+                                            return null;
+                                        }
+                                        else
+                                        {
+                                            return importCache.getContentKey(
+                                                    annoZip.getInputStream(annoEntry),
+                                                    FLAT_FILE_FORMAT);
+                                        }
+                                    }
+                                    
+                                    public long getByteCount()
+                                    {
+                                        // the size is -1 if the archive
+                                        // doesn't record it
+                                        long size = annoEntry.getSize();
+                                        return size >= 0L ?
+                                                size :
+                                                annoEntry.getCompressedSize();
+                                    }
+                                });
+                        fileNumber++;
+                    }
+                }
+            }
+            finally
+            {
+                annoZip.close();
+            }
+        }
+    }
+    
+    private void importAnnotationFile(
+            BuildCheckpoint checkpoint,
+            AnnotationDirectory annotationDir,
+            int fileNumber,
+            String step,
+            String prettyName,
+            AnnotationSource annoSource) throws IllegalFormatException, IOException
+    {
+        CandidateTable annotationTable = checkpoint == null ? null : checkpoint.loadCandidateTable(
+                step,
+                this.candidateDatabaseManager.getSpillManager());
+        if(annotationTable != null)
+        {
+            System.out.println(
+                    annotationDir.getDirectory() + " (Category:" +
+                    annotationDir.getCategoryName() + 
+                    ") restored annotation file number " + fileNumber +
+                    " from checkpoint: " + prettyName);
+            this.candidateDatabaseManager.addAnnotationTable(annotationTable);
+        }
+        else
         {
             System.out.println(
                     annotationDir.getDirectory() + " (Category:" +
                     annotationDir.getCategoryName() + 
                     ") uploading annotation file number " + fileNumber +
-                    ": " + this.toPrettyName(annoFile));
-            this.candidateDatabaseManager.uploadAnnotationFile(
-                    annotationDir.getCategoryName(),
-                    this.toPrettyName(annoFile),
-                    this.fileToReader(annoFile));
-            fileNumber++;
+                    ": " + prettyName);
+            String contentKey = annoSource.getContentKey();
+            FlatFileReader annoReader = annoSource.openReader();
+            try
+            {
+                this.candidateDatabaseManager.uploadAnnotationFile(
+                        annotationDir.getCategoryName(),
+                        prettyName,
+                        annoReader,
+                        contentKey);
+            }
+            finally
+            {
+                annoReader.close();
+            }
+            this.addInferenceBytesRead(prettyName, annoSource.getByteCount());
+            if(checkpoint != null)
+            {
+                checkpoint.saveCandidateTable(
+                        step,
+                        this.candidateDatabaseManager.getAnnotationTables().get(
+                                prettyName));
+            }
         }
     }
 
-    private FlatFileReader fileToReader(File file) throws FileNotFoundException
+    private FlatFileReader fileToReader(File file) throws IOException
     {
         return new FlatFileReader(
-                new BufferedReader(new FileReader(file)),
-                CommonFlatFileFormat.TAB_DELIMITED_UNIX);
+                DecompressingInputStream.openReader(file),
+                FLAT_FILE_FORMAT);
+    }
+    
+    private String getContentKey(File file) throws IOException
+    {
+        // the content key only matters to the import cache and hashing the
+        // whole file isn't free
+        ImportCache importCache = this.importCache;
+        if(importCache == null)
+        {
+            return null;
+        }
+        else
+        {
+            return importCache.getContentKey(file, FLAT_FILE_FORMAT);
+        }
     }
     
     private String toPrettyName(File file)
     {
         String prettyName = file.getName();
         
+        // remove any compression extension (like "genes.txt.gz") so that
+        // we're left with the format extension
+        String lowerName = prettyName.toLowerCase();
+        if(lowerName.endsWith(".gz") || lowerName.endsWith(".zip"))
+        {
+            prettyName = prettyName.substring(0, prettyName.lastIndexOf('.'));
+        }
+        
         // remove extension
         int lastDotIndex = prettyName.lastIndexOf('.');
         if(lastDotIndex >= 1)
@@ -198,6 +1134,37 @@ public class ImportDataMain
         return prettyName.replace('.', ' ').replace('_', ' ');
     }
     
+    /**
+     * Where the contents of a single annotation file come from
+     */
+    private interface AnnotationSource
+    {
+        /**
+         * Open a reader for the annotation file
+         * @return
+         *          the reader
+         * @throws IOException
+         *          if we fail to open the file
+         */
+        FlatFileReader openReader() throws IOException;
+        
+        /**
+         * Get the import cache content key for the annotation file
+         * @return
+         *          the key
+         * @throws IOException
+         *          if we fail to read the file
+         */
+        String getContentKey() throws IOException;
+        
+        /**
+         * Get the number of bytes that we read from disk for the file
+         * @return
+         *          the byte count
+         */
+        long getByteCount();
+    }
+    
     private static class AnnotationDirectory
     {
         private final File directory;
@@ -235,21 +1202,159 @@ public class ImportDataMain
         }
     }
     
+    /**
+     * Prompt for annotation directories until an empty line is read
+     * @param bufferedIn
+     *          the reader for the user's responses
+     * @return
+     *          the annotation directories
+     * @throws IOException
+     *          if we fail to read from the user
+     */
+    private static List<AnnotationDirectory> readAnnotationDirectories(
+            BufferedReader bufferedIn) throws IOException
+    {
+        List<AnnotationDirectory> annotationDirs = new ArrayList<AnnotationDirectory>();
+        String currAnnotationDirString = null;
+        String currAnnotationCategoryString = null;
+        do
+        {
+            System.out.println("Enter an Annotation Directory or Zip File (Empty When Complete)");
+            currAnnotationDirString = bufferedIn.readLine();
+            
+            if(currAnnotationDirString != null && currAnnotationDirString.trim().length() > 0)
+            {
+                File currAnnotationDir = new File(currAnnotationDirString);
+                
+                System.out.println("Enter an Annotation Category Name (Empty For Default)");
+                currAnnotationCategoryString = bufferedIn.readLine().trim();
+                currAnnotationCategoryString = currAnnotationCategoryString.trim();
+                if(currAnnotationCategoryString.length() == 0)
+                {
+                    currAnnotationCategoryString = null;
+                }
+                
+                annotationDirs.add(new AnnotationDirectory(
+                        currAnnotationDir,
+                        currAnnotationCategoryString));
+            }
+        } while(currAnnotationDirString != null && currAnnotationDirString.length() > 0);
+        
+        return annotationDirs;
+    }
+    
     /**
      * Importer application entry point
-     * @param args don't care
+     * @param args
+     *          pass in "--dry-run" to only estimate the import (see
+     *          {@link #estimateImport()}), "--single-precision" to store
+     *          intensities as 32 bit floats (see
+     *          {@link #setSinglePrecisionDataEnabled(boolean)}) and
+     *          "--log2-data" to also store log2 intensities (see
+     *          {@link #setLog2DataEnabled(boolean)}), "--packed-vectors"
+     *          to also store packed probe vectors (see
+     *          {@link #setPackedProbeVectorsEnabled(boolean)}),
+     *          "--probe-summary" to build the probe summary table (see
+     *          {@link #setProbeSummaryTableEnabled(boolean)}),
+     *          "--dictionary-encoding" to dictionary encode annotation
+     *          columns (see {@link #setDictionaryEncodingEnabled(boolean)}),
+     *          "--import-cache"
+     *          to use the import cache (see
+     *          {@link #setImportCacheEnabled(boolean)}) and
+     *          "--append existing.war" to add annotations to an existing WAR
+     *          instead of building a new experiment (see
+     *          {@link #appendAnnotations(File)}). Everything else is
+     *          prompted for
      * @throws IOException if we have a problem reading or writing data
      * @throws SQLException if we have a problem with JDBC
      * @throws IllegalFormatException if we find formatting problems in the data
      */
     public static void main(String[] args) throws IOException, SQLException, IllegalFormatException
     {
+        boolean dryRun = false;
+        boolean singlePrecision = false;
+        boolean log2Data = false;
+        boolean packedVectors = false;
+        boolean probeSummary = false;
+        boolean dictionaryEncoding = false;
+        boolean importCache = false;
+        File existingWarFile = null;
+        for(int argIndex = 0; argIndex < args.length; argIndex++)
+        {
+            String arg = args[argIndex];
+            if(arg.equals(DRY_RUN_ARGUMENT))
+            {
+                dryRun = true;
+            }
+            else if(arg.equals(SINGLE_PRECISION_ARGUMENT))
+            {
+                singlePrecision = true;
+            }
+            else if(arg.equals(LOG2_DATA_ARGUMENT))
+            {
+                log2Data = true;
+            }
+            else if(arg.equals(PACKED_VECTORS_ARGUMENT))
+            {
+                packedVectors = true;
+            }
+            else if(arg.equals(PROBE_SUMMARY_ARGUMENT))
+            {
+                probeSummary = true;
+            }
+            else if(arg.equals(DICTIONARY_ENCODING_ARGUMENT))
+            {
+                dictionaryEncoding = true;
+            }
+            else if(arg.equals(IMPORT_CACHE_ARGUMENT))
+            {
+                importCache = true;
+            }
+            else if(arg.equals(APPEND_ARGUMENT))
+            {
+                argIndex++;
+                if(argIndex >= args.length)
+                {
+                    System.err.println(
+                            APPEND_ARGUMENT + " must be followed by the " +
+                            "WAR file to add annotations to");
+                    return;
+                }
+                existingWarFile = new File(args[argIndex]);
+            }
+            else
+            {
+                System.err.println("Ignoring unknown argument: " + arg);
+            }
+        }
+        
         BufferedReader bufferedIn = new BufferedReader(
                 new InputStreamReader(System.in));
         
         System.out.println("Enter WAR File Name: ");
         String warFile = bufferedIn.readLine();
         
+        if(existingWarFile != null)
+        {
+            ImportDataMain importer = new ImportDataMain(
+                    null,
+                    new File(warFile),
+                    null,
+                    null,
+                    readAnnotationDirectories(bufferedIn));
+            importer.setDictionaryEncodingEnabled(dictionaryEncoding);
+            importer.setImportCacheEnabled(importCache);
+            if(dryRun)
+            {
+                importer.estimateImport();
+            }
+            else
+            {
+                importer.appendAnnotations(existingWarFile);
+            }
+            return;
+        }
+        
         System.out.println("Name Your Experiment: ");
         String experimentName = bufferedIn.readLine();
         
@@ -280,31 +1385,7 @@ public class ImportDataMain
         System.out.println("Enter Data File Location: ");
         File dataFile = new File(bufferedIn.readLine());
         
-        List<AnnotationDirectory> annotationDirs = new ArrayList<AnnotationDirectory>();
-        String currAnnotationDirString = null;
-        String currAnnotationCategoryString = null;
-        do
-        {
-            System.out.println("Enter an Annotation Directory (Empty When Complete)");
-            currAnnotationDirString = bufferedIn.readLine();
-            
-            if(currAnnotationDirString != null && currAnnotationDirString.trim().length() > 0)
-            {
-                File currAnnotationDir = new File(currAnnotationDirString);
-                
-                System.out.println("Enter an Annotation Category Name (Empty For Default)");
-                currAnnotationCategoryString = bufferedIn.readLine().trim();
-                currAnnotationCategoryString = currAnnotationCategoryString.trim();
-                if(currAnnotationCategoryString.length() == 0)
-                {
-                    currAnnotationCategoryString = null;
-                }
-                
-                annotationDirs.add(new AnnotationDirectory(
-                        currAnnotationDir,
-                        currAnnotationCategoryString));
-            }
-        } while(currAnnotationDirString != null && currAnnotationDirString.length() > 0);
+        List<AnnotationDirectory> annotationDirs = readAnnotationDirectories(bufferedIn);
         
         ImportDataMain importer = new ImportDataMain(
                 new ExperimentMetadata(
@@ -314,6 +1395,19 @@ public class ImportDataMain
                 designFile,
                 dataFile,
                 annotationDirs);
-        importer.importData();
+        importer.setSinglePrecisionDataEnabled(singlePrecision);
+        importer.setLog2DataEnabled(log2Data);
+        importer.setPackedProbeVectorsEnabled(packedVectors);
+        importer.setProbeSummaryTableEnabled(probeSummary);
+        importer.setDictionaryEncodingEnabled(dictionaryEncoding);
+        importer.setImportCacheEnabled(importCache);
+        if(dryRun)
+        {
+            importer.estimateImport();
+        }
+        else
+        {
+            importer.importData();
+        }
     }
 }
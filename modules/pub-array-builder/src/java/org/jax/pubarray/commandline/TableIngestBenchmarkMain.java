@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.commandline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.jax.pubarray.builder.DecompressingInputStream;
+import org.jax.pubarray.db.CandidateDatabaseManager;
+import org.jax.pubarray.db.CandidateDatabaseManager.SpillFormat;
+import org.jax.pubarray.db.ConnectionManager;
+import org.jax.pubarray.db.DerbyConnectionManager;
+import org.jax.pubarray.db.ExperimentMetadata;
+import org.jax.pubarray.db.HSQLDBConnectionManager;
+import org.jax.pubarray.db.PerGeneImageDirectoryDescription;
+import org.jax.pubarray.db.PersistenceManager;
+import org.jax.util.io.CommonFlatFileFormat;
+import org.jax.util.io.FileUtilities;
+import org.jax.util.io.FlatFileReader;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * A benchmark that compares writing a data table using prepared inserts
+ * against writing it with the database's native bulk load. For HSQLDB that
+ * is a text table (see
+ * {@link PersistenceManager#setTextTableIngestEnabled(boolean)}) and for
+ * derby it is the import procedure (see
+ * {@link PersistenceManager#setDerbyImportEnabled(boolean)}). A random
+ * data table is generated, loaded into a candidate database once (spilled as
+ * CSV since the bulk loaders stream from text) and then written to a fresh
+ * database using each of the two paths
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class TableIngestBenchmarkMain
+{
+    private static final int DEFAULT_ROW_COUNT = 50000;
+    
+    private static final int DEFAULT_COLUMN_COUNT = 500;
+    
+    private static final String DATABASE_NAME = "pub-array-db";
+    
+    private final int rowCount;
+    
+    private final int columnCount;
+    
+    private final boolean useDerby;
+    
+    /**
+     * Constructor
+     * @param rowCount
+     *          the number of data rows to generate
+     * @param columnCount
+     *          the number of data columns to generate (including the
+     *          probeset ID column)
+     * @param useDerby
+     *          if true benchmark derby, otherwise benchmark HSQLDB
+     */
+    public TableIngestBenchmarkMain(
+            int rowCount,
+            int columnCount,
+            boolean useDerby)
+    {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.useDerby = useDerby;
+    }
+    
+    /**
+     * Run the benchmark printing results to standard out
+     * @throws IOException
+     *          if we have a problem reading or writing data
+     * @throws SQLException
+     *          if we have a problem with JDBC
+     * @throws IllegalFormatException
+     *          if the generated data can't be parsed
+     */
+    public void runBenchmark()
+    throws IOException, SQLException, IllegalFormatException
+    {
+        File tempDir = FileUtilities.createTempDir();
+        CandidateDatabaseManager candidateDatabaseManager =
+            new CandidateDatabaseManager();
+        try
+        {
+            File designFile = new File(tempDir, "design.csv");
+            File dataFile = new File(tempDir, "data.csv");
+            this.writeDesignFile(designFile);
+            this.writeDataFile(dataFile);
+            
+            candidateDatabaseManager.setSpillFormat(SpillFormat.CSV);
+            candidateDatabaseManager.setExperimentMetadata(
+                    new ExperimentMetadata("Benchmark", "Ingest benchmark"));
+            candidateDatabaseManager.setPerGeneImageDirectories(
+                    new ArrayList<PerGeneImageDirectoryDescription>());
+            FlatFileReader designReader = new FlatFileReader(
+                    DecompressingInputStream.openReader(designFile),
+                    CommonFlatFileFormat.CSV_UNIX);
+            candidateDatabaseManager.uploadDesignFile("Design", designReader);
+            designReader.close();
+            
+            long startTime = System.currentTimeMillis();
+            FlatFileReader dataReader = new FlatFileReader(
+                    DecompressingInputStream.openReader(dataFile),
+                    CommonFlatFileFormat.CSV_UNIX);
+            candidateDatabaseManager.uploadDataFile("Data", dataReader);
+            dataReader.close();
+            System.out.println(
+                    "Loaded candidate data table in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+            
+            this.timeDatabaseWrite(
+                    "prepared inserts",
+                    false,
+                    new File(tempDir, "prepared"),
+                    candidateDatabaseManager);
+            this.timeDatabaseWrite(
+                    this.useDerby ? "derby import" : "HSQLDB text table",
+                    true,
+                    new File(tempDir, "bulk-load"),
+                    candidateDatabaseManager);
+        }
+        finally
+        {
+            candidateDatabaseManager.deleteSpillFiles();
+            FileUtilities.recursiveDelete(tempDir);
+        }
+    }
+    
+    private void timeDatabaseWrite(
+            String pathName,
+            boolean nativeBulkLoad,
+            File dbDirectory,
+            CandidateDatabaseManager candidateDatabaseManager)
+    throws IOException, SQLException, IllegalFormatException
+    {
+        if(!dbDirectory.mkdirs())
+        {
+            throw new IOException(
+                    "failed to create " + dbDirectory.getAbsolutePath());
+        }
+        
+        String dbPath = new File(dbDirectory, DATABASE_NAME).getPath();
+        ConnectionManager connectionManager;
+        PersistenceManager persistenceManager = new PersistenceManager();
+        if(this.useDerby)
+        {
+            connectionManager = new DerbyConnectionManager(dbPath);
+            persistenceManager.setDerbyImportEnabled(nativeBulkLoad);
+        }
+        else
+        {
+            connectionManager = new HSQLDBConnectionManager(
+                    dbPath,
+                    false,
+                    true);
+            persistenceManager.setTextTableIngestEnabled(nativeBulkLoad);
+        }
+        Connection connection = connectionManager.createConnection();
+        
+        long startTime = System.currentTimeMillis();
+        persistenceManager.writeCandidatesToDatabase(
+                connectionManager,
+                connection,
+                candidateDatabaseManager);
+        connection.commit();
+        long writeMillis = System.currentTimeMillis() - startTime;
+        
+        startTime = System.currentTimeMillis();
+        connectionManager.shutdownDatabase(connection);
+        long shutdownMillis = System.currentTimeMillis() - startTime;
+        
+        long cellCount = (long)this.rowCount * this.columnCount;
+        System.out.println(
+                pathName + ": wrote " + this.rowCount + " rows x " +
+                this.columnCount + " columns in " + writeMillis + " ms (" +
+                (cellCount * 1000L / Math.max(writeMillis, 1L)) +
+                " cells/second), shutdown took " + shutdownMillis + " ms");
+    }
+    
+    private void writeDesignFile(File designFile) throws IOException
+    {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(designFile));
+        try
+        {
+            writer.write("Array,Group\n");
+            for(int i = 1; i < this.columnCount; i++)
+            {
+                writer.write("array_" + i + ",group_" + (i % 4) + "\n");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+    
+    private void writeDataFile(File dataFile) throws IOException
+    {
+        Random random = new Random(0L);
+        BufferedWriter writer = new BufferedWriter(
+                new FileWriter(dataFile),
+                64 * 1024);
+        try
+        {
+            writer.write("probeset_id");
+            for(int i = 1; i < this.columnCount; i++)
+            {
+                writer.write(",array_" + i);
+            }
+            writer.write('\n');
+            
+            for(int row = 0; row < this.rowCount; row++)
+            {
+                writer.write("probeset_" + row);
+                for(int i = 1; i < this.columnCount; i++)
+                {
+                    writer.write(',');
+                    writer.write(Float.toString(8.0F + 2.0F * (float)random.nextGaussian()));
+                }
+                writer.write('\n');
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Benchmark entry point
+     * @param args
+     *          optional row count and column count (the defaults are
+     *          50000 and 500) followed by an optional "derby" to benchmark
+     *          derby instead of HSQLDB
+     * @throws IOException if we have a problem reading or writing data
+     * @throws SQLException if we have a problem with JDBC
+     * @throws IllegalFormatException if we find formatting problems in the data
+     */
+    public static void main(String[] args)
+    throws IOException, SQLException, IllegalFormatException
+    {
+        int rowCount = DEFAULT_ROW_COUNT;
+        int columnCount = DEFAULT_COLUMN_COUNT;
+        if(args.length >= 1)
+        {
+            rowCount = Integer.parseInt(args[0]);
+        }
+        if(args.length >= 2)
+        {
+            columnCount = Integer.parseInt(args[1]);
+        }
+        
+        boolean useDerby = args.length >= 3 && args[2].equals("derby");
+        
+        new TableIngestBenchmarkMain(
+                rowCount,
+                columnCount,
+                useDerby).runBenchmark();
+    }
+}
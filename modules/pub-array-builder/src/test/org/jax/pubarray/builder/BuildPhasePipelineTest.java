@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jax.util.concurrent.SimpleLongRunningTask;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BuildPhasePipeline}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BuildPhasePipelineTest
+{
+    /**
+     * A failed phase is only thrown from run once the other running
+     * phases have stopped, even if they ignore the interrupt
+     * @throws Exception
+     *          if the test fails
+     */
+    @Test
+    public void testFailureWaitsForRunningPhases() throws Exception
+    {
+        final AtomicBoolean slowPhaseDone = new AtomicBoolean(false);
+        BuildPhasePipeline pipeline = new BuildPhasePipeline(
+                new SimpleLongRunningTask());
+        pipeline.addPhase("slow", 1, new Callable<Void>()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public Void call()
+            {
+                long endMillis = System.currentTimeMillis() + 1000L;
+                while(System.currentTimeMillis() < endMillis)
+                {
+                    try
+                    {
+                        Thread.sleep(20L);
+                    }
+                    catch(InterruptedException ex)
+                    {
+                        // keep going like a phase stuck in JDBC would
+                    }
+                }
+                slowPhaseDone.set(true);
+                return null;
+            }
+        });
+        pipeline.addPhase("failing", 1, new Callable<Void>()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public Void call() throws Exception
+            {
+                Thread.sleep(50L);
+                throw new IOException("phase failed");
+            }
+        });
+        
+        try
+        {
+            pipeline.run(2);
+            fail("the failing phase should have been thrown");
+        }
+        catch(IOException ex)
+        {
+            assertEquals("phase failed", ex.getMessage());
+        }
+        assertTrue(slowPhaseDone.get());
+    }
+}
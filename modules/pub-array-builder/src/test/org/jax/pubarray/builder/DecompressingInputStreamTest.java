@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jax.pubarray.builder.DecompressingInputStream.Compression;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DecompressingInputStream}. The test data is bigger than
+ * the decompressing thread's queue of blocks so that the reader and the
+ * decompressing thread really have to take turns
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class DecompressingInputStreamTest
+{
+    private static final String TEXT = createText(4 * 1024 * 1024);
+    
+    private static String createText(int minLength)
+    {
+        StringBuilder text = new StringBuilder(minLength + 100);
+        for(int row = 0; text.length() < minLength; row++)
+        {
+            text.append("probe_").append(row).append('\t');
+            text.append(row % 97).append('.').append(row % 13).append('\t');
+            text.append("gene").append(row % 1009).append('\n');
+        }
+        return text.toString();
+    }
+    
+    private static File createTempFile(String suffix) throws IOException
+    {
+        File file = File.createTempFile("decompressing", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+    
+    private static File createPlainFile() throws IOException
+    {
+        File file = createTempFile(".txt");
+        OutputStream out = new FileOutputStream(file);
+        out.write(TEXT.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+    
+    private static File createGzipFile() throws IOException
+    {
+        File file = createTempFile(".gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        out.write(TEXT.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+    
+    private static File createZipFile() throws IOException
+    {
+        File file = createTempFile(".zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        out.putNextEntry(new ZipEntry("data/"));
+        out.closeEntry();
+        out.putNextEntry(new ZipEntry("data/first.txt"));
+        out.write(TEXT.getBytes("UTF-8"));
+        out.closeEntry();
+        out.putNextEntry(new ZipEntry("data/second.txt"));
+        out.write("second\tentry\n".getBytes("UTF-8"));
+        out.closeEntry();
+        out.close();
+        return file;
+    }
+    
+    private static String readFully(Reader reader) throws IOException
+    {
+        try
+        {
+            StringWriter text = new StringWriter();
+            char[] buffer = new char[10000];
+            int readCount;
+            while((readCount = reader.read(buffer)) != -1)
+            {
+                text.write(buffer, 0, readCount);
+            }
+            return text.toString();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Compression is detected from the magic bytes
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testDetectCompression() throws IOException
+    {
+        assertEquals(
+                Compression.NONE,
+                DecompressingInputStream.detectCompression(createPlainFile()));
+        assertEquals(
+                Compression.GZIP,
+                DecompressingInputStream.detectCompression(createGzipFile()));
+        assertEquals(
+                Compression.ZIP,
+                DecompressingInputStream.detectCompression(createZipFile()));
+        assertEquals(
+                Compression.NONE,
+                DecompressingInputStream.detectCompression(createTempFile(".gz")));
+    }
+    
+    /**
+     * Plain, gzip and zip files all read back as the original text. Zip
+     * files give the first file entry (skipping directories)
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testOpenReader() throws IOException
+    {
+        assertEquals(TEXT, readFully(DecompressingInputStream.openReader(createPlainFile())));
+        assertEquals(TEXT, readFully(DecompressingInputStream.openReader(createGzipFile())));
+        assertEquals(TEXT, readFully(DecompressingInputStream.openReader(createZipFile())));
+    }
+    
+    /**
+     * A named zip entry can be read and a missing one is a
+     * {@link FileNotFoundException}
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testOpenZipEntry() throws IOException
+    {
+        File zipFile = createZipFile();
+        assertEquals(
+                "second\tentry\n",
+                readFully(DecompressingInputStream.openReader(zipFile, "data/second.txt")));
+        assertEquals(
+                TEXT,
+                readFully(DecompressingInputStream.openReader(zipFile, "data/first.txt")));
+        
+        try
+        {
+            DecompressingInputStream.openReader(zipFile, "data/third.txt");
+            fail("a missing entry should fail");
+        }
+        catch(FileNotFoundException ex)
+        {
+            // expected
+        }
+    }
+    
+    /**
+     * Single byte reads and array reads at odd offsets see the same bytes
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testReadMethods() throws IOException
+    {
+        byte[] expected = TEXT.getBytes("UTF-8");
+        InputStream in = new DecompressingInputStream(
+                new ByteArrayInputStream(expected),
+                "test");
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1001];
+        assertEquals(0, in.read(buffer, 0, 0));
+        while(true)
+        {
+            int b = in.read();
+            if(b == -1)
+            {
+                break;
+            }
+            actual.write(b);
+            
+            int readCount = in.read(buffer, 3, buffer.length - 3);
+            if(readCount == -1)
+            {
+                break;
+            }
+            actual.write(buffer, 3, readCount);
+        }
+        assertEquals(-1, in.read());
+        in.close();
+        
+        assertArrayEquals(expected, actual.toByteArray());
+    }
+    
+    /**
+     * A truncated gzip file has to fail the read instead of hanging or
+     * looking like a short file
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testTruncatedGzip() throws IOException
+    {
+        File gzipFile = createGzipFile();
+        byte[] gzipBytes = new byte[(int)gzipFile.length() / 2];
+        InputStream gzipIn = new FileInputStream(gzipFile);
+        try
+        {
+            int length = 0;
+            while(length < gzipBytes.length)
+            {
+                length += gzipIn.read(gzipBytes, length, gzipBytes.length - length);
+            }
+        }
+        finally
+        {
+            gzipIn.close();
+        }
+        File truncatedFile = createTempFile(".gz");
+        OutputStream out = new FileOutputStream(truncatedFile);
+        out.write(gzipBytes);
+        out.close();
+        
+        try
+        {
+            readFully(DecompressingInputStream.openReader(truncatedFile));
+            fail("reading a truncated file should fail");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+    }
+    
+    /**
+     * Closing part way through stops the decompressing thread and later
+     * reads fail
+     * @throws Exception
+     *          if the test fails
+     */
+    @Test
+    public void testCloseEarly() throws Exception
+    {
+        InputStream in = DecompressingInputStream.open(
+                createGzipFile(),
+                Compression.GZIP);
+        byte[] buffer = new byte[100];
+        assertEquals(100, in.read(buffer));
+        in.close();
+        in.close();
+        
+        try
+        {
+            in.read();
+            fail("reading a closed stream should fail");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+    }
+}
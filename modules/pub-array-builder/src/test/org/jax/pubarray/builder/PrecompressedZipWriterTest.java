@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.builder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.GregorianCalendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PrecompressedZipWriter}. Archives are checked by reading
+ * them back with both {@link ZipFile} (which uses the central directory)
+ * and {@link ZipInputStream} (which uses the local headers)
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PrecompressedZipWriterTest
+{
+    /**
+     * a time that DOS dates can hold exactly (an even number of seconds)
+     */
+    private static final long ENTRY_TIME =
+        new GregorianCalendar(2010, 5, 14, 9, 30, 12).getTimeInMillis();
+    
+    private static byte[] createData(int length)
+    {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++)
+        {
+            data[i] = (byte)("ACGT\t0123456789\n".charAt((i * 7 + i / 13) % 16));
+        }
+        return data;
+    }
+    
+    private static long crc(byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+    
+    private static byte[] deflate(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        DeflaterOutputStream deflaterOut = new DeflaterOutputStream(deflated, deflater);
+        deflaterOut.write(data);
+        deflaterOut.close();
+        deflater.end();
+        return deflated.toByteArray();
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int readCount;
+        while((readCount = in.read(buffer)) > 0)
+        {
+            bytes.write(buffer, 0, readCount);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Build raw deflate data for a run of zeros without running a deflater
+     * over all of it. The data is a single fixed Huffman block holding a
+     * literal zero and then 258 byte matches at distance 1, so every
+     * 13 bits of output expand to 258 zeros
+     * @param matchCount
+     *          the number of matches. The run is 1 + 258 * matchCount long
+     * @return
+     *          the deflate data
+     */
+    private static byte[] deflateZeroRun(long matchCount)
+    {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+                (int)(matchCount * 13L / 8L + 16L));
+        long bitBuffer = 0L;
+        int bitCount = 0;
+        
+        // BFINAL = 1 and BTYPE = 01 (fixed Huffman codes) are packed LSB
+        // first. The Huffman codes are packed MSB first so they're reversed:
+        // literal 0 is the 8 bit code 00110000, length 258 is the 8 bit
+        // code 11000101 with no extra bits and distance 1 is the 5 bit
+        // code 00000
+        bitBuffer |= 0x3L;
+        bitCount += 3;
+        bitBuffer |= (long)(Integer.reverse(0x30) >>> 24) << bitCount;
+        bitCount += 8;
+        long matchBits = (long)(Integer.reverse(0xC5) >>> 24);
+        for(long i = 0; i < matchCount; i++)
+        {
+            bitBuffer |= matchBits << bitCount;
+            bitCount += 13;
+            while(bitCount >= 8)
+            {
+                deflated.write((int)(bitBuffer & 0xFF));
+                bitBuffer >>>= 8;
+                bitCount -= 8;
+            }
+        }
+        
+        // the end of block code is the 7 bit code 0000000
+        bitCount += 7;
+        while(bitCount > 0)
+        {
+            deflated.write((int)(bitBuffer & 0xFF));
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+        return deflated.toByteArray();
+    }
+    
+    private static File createTempZip() throws IOException
+    {
+        File zipFile = File.createTempFile("precompressed", ".zip");
+        zipFile.deleteOnExit();
+        return zipFile;
+    }
+    
+    /**
+     * Write a stored entry, a deflated entry and an entry with a non-ASCII
+     * name and make sure they all read back with the right data,
+     * sizes and times
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testStoredAndDeflatedEntries() throws IOException
+    {
+        byte[] storedData = createData(1000);
+        byte[] deflatedData = createData(300000);
+        byte[] compressedData = deflate(deflatedData);
+        byte[] emptyData = new byte[0];
+        String unicodeName = "WEB-INF/images/g\u00e8ne.txt";
+        
+        File zipFile = createTempZip();
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(zipFile));
+        PrecompressedZipWriter zipWriter = new PrecompressedZipWriter(fileOut);
+        zipWriter.writeEntry(
+                "stored.txt",
+                ENTRY_TIME,
+                ZipEntry.STORED,
+                crc(storedData),
+                storedData.length,
+                storedData.length,
+                new ByteArrayInputStream(storedData));
+        zipWriter.writeEntry(
+                "WEB-INF/deflated.txt",
+                ENTRY_TIME,
+                ZipEntry.DEFLATED,
+                crc(deflatedData),
+                deflatedData.length,
+                compressedData.length,
+                new ByteArrayInputStream(compressedData));
+        zipWriter.writeEntry(
+                unicodeName,
+                ENTRY_TIME,
+                ZipEntry.STORED,
+                crc(emptyData),
+                0L,
+                0L,
+                new ByteArrayInputStream(emptyData));
+        zipWriter.finish();
+        fileOut.close();
+        assertEquals(zipFile.length(), zipWriter.getPosition());
+        
+        ZipFile zip = new ZipFile(zipFile);
+        try
+        {
+            assertEquals(3, zip.size());
+            
+            ZipEntry storedEntry = zip.getEntry("stored.txt");
+            assertEquals(ZipEntry.STORED, storedEntry.getMethod());
+            assertEquals(storedData.length, storedEntry.getSize());
+            assertEquals(ENTRY_TIME, storedEntry.getTime());
+            assertArrayEquals(storedData, readFully(zip.getInputStream(storedEntry)));
+            
+            ZipEntry deflatedEntry = zip.getEntry("WEB-INF/deflated.txt");
+            assertEquals(ZipEntry.DEFLATED, deflatedEntry.getMethod());
+            assertEquals(deflatedData.length, deflatedEntry.getSize());
+            assertEquals(compressedData.length, deflatedEntry.getCompressedSize());
+            assertEquals(crc(deflatedData), deflatedEntry.getCrc());
+            assertArrayEquals(deflatedData, readFully(zip.getInputStream(deflatedEntry)));
+            
+            ZipEntry unicodeEntry = zip.getEntry(unicodeName);
+            assertNotNull(unicodeEntry);
+            assertEquals(0, readFully(zip.getInputStream(unicodeEntry)).length);
+        }
+        finally
+        {
+            zip.close();
+        }
+        
+        // the local headers have to agree with the central directory
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFile));
+        try
+        {
+            assertEquals("stored.txt", zipIn.getNextEntry().getName());
+            assertArrayEquals(storedData, readFully(zipIn));
+            assertEquals("WEB-INF/deflated.txt", zipIn.getNextEntry().getName());
+            assertArrayEquals(deflatedData, readFully(zipIn));
+            assertEquals(unicodeName, zipIn.getNextEntry().getName());
+            assertEquals(0, readFully(zipIn).length);
+            assertNull(zipIn.getNextEntry());
+        }
+        finally
+        {
+            zipIn.close();
+        }
+    }
+    
+    /**
+     * More than 65535 entries needs the ZIP64 end records
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testManyEntries() throws IOException
+    {
+        int entryCount = 70000;
+        byte[] data = createData(3);
+        
+        File zipFile = createTempZip();
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(zipFile));
+        PrecompressedZipWriter zipWriter = new PrecompressedZipWriter(fileOut);
+        for(int i = 0; i < entryCount; i++)
+        {
+            zipWriter.writeEntry(
+                    "entry" + i,
+                    ENTRY_TIME,
+                    ZipEntry.STORED,
+                    crc(data),
+                    data.length,
+                    data.length,
+                    new ByteArrayInputStream(data));
+        }
+        zipWriter.finish();
+        fileOut.close();
+        
+        ZipFile zip = new ZipFile(zipFile);
+        try
+        {
+            assertEquals(entryCount, zip.size());
+            ZipEntry lastEntry = zip.getEntry("entry" + (entryCount - 1));
+            assertArrayEquals(data, readFully(zip.getInputStream(lastEntry)));
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+    
+    /**
+     * An entry of 4GB or more needs ZIP64 extra fields in its local header
+     * and central directory record. The entry is a run of zeros so it
+     * deflates to a few MB
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testLargeEntry() throws IOException
+    {
+        long matchCount = 16650000L;
+        long size = 1L + 258L * matchCount;
+        assertTrue(size > 0xFFFFFFFFL);
+        byte[] compressedData = deflateZeroRun(matchCount);
+        
+        CRC32 crc = new CRC32();
+        byte[] zeros = new byte[1024 * 1024];
+        for(long remaining = size; remaining > 0L; remaining -= zeros.length)
+        {
+            crc.update(zeros, 0, (int)Math.min(zeros.length, remaining));
+        }
+        byte[] smallData = createData(1000);
+        
+        File zipFile = createTempZip();
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(zipFile));
+        PrecompressedZipWriter zipWriter = new PrecompressedZipWriter(fileOut);
+        zipWriter.writeEntry(
+                "zeros.bin",
+                ENTRY_TIME,
+                ZipEntry.DEFLATED,
+                crc.getValue(),
+                size,
+                compressedData.length,
+                new ByteArrayInputStream(compressedData));
+        zipWriter.writeEntry(
+                "small.txt",
+                ENTRY_TIME,
+                ZipEntry.STORED,
+                crc(smallData),
+                smallData.length,
+                smallData.length,
+                new ByteArrayInputStream(smallData));
+        zipWriter.finish();
+        fileOut.close();
+        
+        ZipFile zip = new ZipFile(zipFile);
+        try
+        {
+            ZipEntry largeEntry = zip.getEntry("zeros.bin");
+            assertEquals(size, largeEntry.getSize());
+            assertEquals(compressedData.length, largeEntry.getCompressedSize());
+            assertEquals(crc.getValue(), largeEntry.getCrc());
+            assertArrayEquals(
+                    smallData,
+                    readFully(zip.getInputStream(zip.getEntry("small.txt"))));
+        }
+        finally
+        {
+            zip.close();
+        }
+        
+        // reading through the local headers inflates the whole entry and
+        // checks its size and CRC
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFile));
+        try
+        {
+            ZipEntry largeEntry = zipIn.getNextEntry();
+            assertEquals("zeros.bin", largeEntry.getName());
+            assertEquals(size, largeEntry.getSize());
+            long readCount = 0L;
+            int currReadCount;
+            while((currReadCount = zipIn.read(zeros)) > 0)
+            {
+                readCount += currReadCount;
+            }
+            assertEquals(size, readCount);
+            assertEquals("small.txt", zipIn.getNextEntry().getName());
+            assertArrayEquals(smallData, readFully(zipIn));
+            assertNull(zipIn.getNextEntry());
+        }
+        finally
+        {
+            zipIn.close();
+        }
+    }
+    
+    /**
+     * Duplicate entries and entries whose data runs out are errors
+     * @throws IOException
+     *          if the test fails
+     */
+    @Test
+    public void testBadEntries() throws IOException
+    {
+        byte[] data = createData(10);
+        PrecompressedZipWriter zipWriter = new PrecompressedZipWriter(
+                new ByteArrayOutputStream());
+        zipWriter.writeEntry(
+                "a.txt",
+                ENTRY_TIME,
+                ZipEntry.STORED,
+                crc(data),
+                data.length,
+                data.length,
+                new ByteArrayInputStream(data));
+        
+        try
+        {
+            zipWriter.writeEntry(
+                    "a.txt",
+                    ENTRY_TIME,
+                    ZipEntry.STORED,
+                    crc(data),
+                    data.length,
+                    data.length,
+                    new ByteArrayInputStream(data));
+            fail("a duplicate entry should fail");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+        
+        try
+        {
+            zipWriter.writeEntry(
+                    "b.txt",
+                    ENTRY_TIME,
+                    ZipEntry.STORED,
+                    crc(data),
+                    data.length + 1,
+                    data.length + 1,
+                    new ByteArrayInputStream(data));
+            fail("running out of entry data should fail");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.util.datastructure.SequenceUtilities;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Builds a candidate database's annotation tables for
+ * {@link PersistenceManager}, either one at a time or concurrently (see
+ * {@link PersistenceManager#getMaxTableBuildThreads()}), and adds or
+ * replaces annotation tables in a database that was already written
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class AnnotationTableBuilder
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            AnnotationTableBuilder.class.getName());
+    
+    private final PersistenceManager persistenceManager;
+    
+    private final TableCheckpointer tableCheckpointer;
+    
+    private final ColumnDictionaryEncoder dictionaryEncoder;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that builds each table
+     * @param tableCheckpointer
+     *          the checkpointer that records the finished tables
+     * @param dictionaryEncoder
+     *          the encoder that owns the tables' dictionaries
+     */
+    AnnotationTableBuilder(
+            PersistenceManager persistenceManager,
+            TableCheckpointer tableCheckpointer,
+            ColumnDictionaryEncoder dictionaryEncoder)
+    {
+        this.persistenceManager = persistenceManager;
+        this.tableCheckpointer = tableCheckpointer;
+        this.dictionaryEncoder = dictionaryEncoder;
+    }
+    
+    /**
+     * Add the candidate database's annotation tables to a database that was
+     * already written by
+     * {@link PersistenceManager#writeCandidatesToDatabase(ConnectionManager, Connection, CandidateDatabaseManager)}.
+     * An annotation whose name matches an existing annotation table replaces
+     * that table (keeping its place in the table ordering). A replaced
+     * table is dropped along with everything that was built from it (its
+     * column metadata, its dictionary and its meta table row) before the
+     * new table is built. Any other annotation is added after the existing
+     * tables. Nothing else in the database is touched (the probe summary
+     * and packed vector tables only depend on the data table) so the cost
+     * only depends on the size of the annotations being added
+     * @param connectionManager
+     *          the connection manager used to create a connection for each
+     *          worker. If null all tables are built using the given
+     *          connection
+     * @param connection
+     *          the connection to use
+     * @param candidateDatabase
+     *          the candidates holding the annotations to add. Only its
+     *          annotation tables are used
+     * @throws SQLException
+     *          if we get an exception from JDBC
+     * @throws IOException
+     *          if we we have trouble reading one of our cached table files
+     * @throws IllegalFormatException
+     *          if we find formatting problems in any of the annotation
+     *          tables
+     */
+    void appendAnnotationTables(
+            ConnectionManager connectionManager,
+            Connection connection,
+            CandidateDatabaseManager candidateDatabase)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        // find the annotation tables that are already in the database
+        Map<String, String> existingSqlTableNames = new HashMap<String, String>();
+        int nextAnnotationIndex = 0;
+        Statement metaStatement = connection.createStatement();
+        try
+        {
+            ResultSet metaResults = metaStatement.executeQuery(
+                    "SELECT " + PersistenceManager.SQL_TABLE_NAME_COL + ", " +
+                    PersistenceManager.LOGICAL_TABLE_NAME_COL + " FROM " +
+                    PersistenceManager.TABLE_META_TABLE);
+            while(metaResults.next())
+            {
+                String sqlTableName = metaResults.getString(1);
+                if(sqlTableName.startsWith(
+                        PersistenceManager.ANNOTATION_TABLE_NAME_PREFIX))
+                {
+                    existingSqlTableNames.put(
+                            metaResults.getString(2),
+                            sqlTableName);
+                    int annotationIndex = Integer.parseInt(sqlTableName.substring(
+                            PersistenceManager.ANNOTATION_TABLE_NAME_PREFIX.length()));
+                    nextAnnotationIndex = Math.max(
+                            nextAnnotationIndex,
+                            annotationIndex + 1);
+                }
+            }
+            metaResults.close();
+        }
+        finally
+        {
+            metaStatement.close();
+        }
+        
+        List<String> annotationTblKeys =
+            candidateDatabase.getOrderedAnnotationTableKeys();
+        List<CandidateTable> annotationTables =
+            getOrderedAnnotationTables(candidateDatabase);
+        List<String> annotationSqlTableNames =
+            new ArrayList<String>(annotationTables.size());
+        for(String annotationTblKey: annotationTblKeys)
+        {
+            String sqlTableName = existingSqlTableNames.get(annotationTblKey);
+            if(sqlTableName == null)
+            {
+                sqlTableName =
+                    PersistenceManager.ANNOTATION_TABLE_NAME_PREFIX +
+                    nextAnnotationIndex;
+                nextAnnotationIndex++;
+                LOG.info(
+                        "adding annotation table " + annotationTblKey +
+                        " as " + sqlTableName);
+            }
+            else
+            {
+                LOG.info(
+                        "replacing annotation table " + annotationTblKey +
+                        " (" + sqlTableName + ")");
+            }
+            annotationSqlTableNames.add(sqlTableName);
+        }
+        
+        for(String sqlTableName: annotationSqlTableNames)
+        {
+            if(existingSqlTableNames.containsValue(sqlTableName))
+            {
+                this.dropAnnotationTable(connection, sqlTableName);
+            }
+        }
+        if(!connection.getAutoCommit())
+        {
+            connection.commit();
+        }
+        
+        this.buildAnnotationTables(
+                connectionManager,
+                connection,
+                annotationSqlTableNames,
+                annotationTables);
+        
+        for(int i = 0; i < annotationTables.size(); i++)
+        {
+            this.persistenceManager.insertTableMetadata(
+                    connection,
+                    annotationSqlTableNames.get(i),
+                    annotationTblKeys.get(i),
+                    annotationTables.get(i).getCategoryName());
+        }
+    }
+    
+    /**
+     * Drop an annotation table along with its column metadata table, its
+     * dictionary table, any text table left over from loading it and its
+     * row in the table meta table
+     * @param connection
+     *          the connection to use
+     * @param sqlTableName
+     *          the SQL name of the annotation table
+     * @throws SQLException
+     *          if we get an exception from JDBC
+     */
+    private void dropAnnotationTable(Connection connection, String sqlTableName)
+    throws SQLException
+    {
+        this.persistenceManager.dropTableNamed(connection, sqlTableName);
+        this.persistenceManager.dropTableNamed(
+                connection,
+                sqlTableName + PersistenceManager.COL_METADATA_TABLE_SUFFIX);
+        this.dictionaryEncoder.dropDictionaryTable(connection, sqlTableName);
+        this.persistenceManager.dropTableNamed(
+                connection,
+                sqlTableName + BulkTableLoader.TEXT_SOURCE_TABLE_SUFFIX);
+        
+        PreparedStatement deleteMetaStatement = connection.prepareStatement(
+                "DELETE FROM " + PersistenceManager.TABLE_META_TABLE +
+                " WHERE " + PersistenceManager.SQL_TABLE_NAME_COL + " = ?");
+        try
+        {
+            deleteMetaStatement.setString(1, sqlTableName);
+            deleteMetaStatement.executeUpdate();
+        }
+        finally
+        {
+            deleteMetaStatement.close();
+        }
+    }
+    
+    /**
+     * Get the candidate annotation tables in the same order as their keys
+     * @param candidateDatabase
+     *          the candidate database
+     * @return
+     *          the annotation tables
+     */
+    static List<CandidateTable> getOrderedAnnotationTables(
+            CandidateDatabaseManager candidateDatabase)
+    {
+        Map<String, CandidateTable> annotationTblMap =
+            candidateDatabase.getAnnotationTables();
+        List<String> annotationTblKeys =
+            candidateDatabase.getOrderedAnnotationTableKeys();
+        List<CandidateTable> annotationTables =
+            new ArrayList<CandidateTable>(annotationTblKeys.size());
+        for(String annotationTblKey: annotationTblKeys)
+        {
+            CandidateTable annotationTable = annotationTblMap.get(annotationTblKey);
+            if(annotationTable == null)
+            {
+                throw new NullPointerException(
+                        "Candidate annotation table key " + annotationTblKey +
+                        " is null. Valid key strings are: " +
+                        SequenceUtilities.toString(annotationTblMap.keySet()));
+            }
+            annotationTables.add(annotationTable);
+        }
+        return annotationTables;
+    }
+    
+    /**
+     * Build the given annotation tables. If a connection manager is given
+     * and we're allowed more than one thread the tables are built
+     * concurrently, otherwise they're built one at a time using the given
+     * connection. Tables that are already checkpointed are skipped
+     * @param connectionManager
+     *          the connection manager to get worker connections from or null
+     * @param connection
+     *          the connection to use
+     * @param sqlTableNames
+     *          the SQL name to give each table
+     * @param annotationTables
+     *          the tables to build
+     * @throws SQLException
+     *          if we get an exception from JDBC
+     * @throws IOException
+     *          if we we have trouble reading one of our cached table files
+     * @throws IllegalFormatException
+     *          if we find formatting problems in any of the tables
+     */
+    void buildAnnotationTables(
+            ConnectionManager connectionManager,
+            Connection connection,
+            List<String> sqlTableNames,
+            List<CandidateTable> annotationTables)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        if(connectionManager == null ||
+           this.persistenceManager.getMaxTableBuildThreads() <= 1 ||
+           annotationTables.size() <= 1)
+        {
+            for(int i = 0; i < annotationTables.size(); i++)
+            {
+                String tableName = sqlTableNames.get(i);
+                if(!this.tableCheckpointer.isTableCheckpointed(tableName))
+                {
+                    this.persistenceManager.buildTable(
+                            connection,
+                            tableName,
+                            annotationTables.get(i));
+                    this.tableCheckpointer.checkpointTables(
+                            connection,
+                            tableName);
+                }
+            }
+        }
+        else
+        {
+            this.buildAnnotationTablesConcurrently(
+                    connectionManager,
+                    connection,
+                    sqlTableNames,
+                    annotationTables);
+        }
+    }
+    
+    /**
+     * Build the given annotation tables using a bounded pool of workers where
+     * each worker gets its own connection. Tables that are already
+     * checkpointed are skipped. If any table fails we still wait for the
+     * others so that the ones that succeeded can be checkpointed before the
+     * first failure is thrown
+     * @param connectionManager
+     *          the connection manager to get worker connections from
+     * @param connection
+     *          the connection used to checkpoint the finished tables
+     * @param sqlTableNames
+     *          the SQL name to give each table
+     * @param annotationTables
+     *          the tables to build
+     * @throws SQLException
+     *          if we get an exception from JDBC
+     * @throws IOException
+     *          if we we have trouble reading one of our cached table files
+     * @throws IllegalFormatException
+     *          if we find formatting problems in any of the tables
+     */
+    private void buildAnnotationTablesConcurrently(
+            final ConnectionManager connectionManager,
+            Connection connection,
+            List<String> sqlTableNames,
+            List<CandidateTable> annotationTables)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        int threadCount = Math.min(
+                this.persistenceManager.getMaxTableBuildThreads(),
+                annotationTables.size());
+        LOG.info(
+                "building " + annotationTables.size() + " annotation tables " +
+                "using " + threadCount + " threads");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            List<String> tableNames = new ArrayList<String>();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for(int i = 0; i < annotationTables.size(); i++)
+            {
+                final String tableName = sqlTableNames.get(i);
+                final CandidateTable annotationTable = annotationTables.get(i);
+                if(this.tableCheckpointer.isTableCheckpointed(tableName))
+                {
+                    continue;
+                }
+                
+                tableNames.add(tableName);
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public Void call() throws Exception
+                    {
+                        Connection workerConnection =
+                            connectionManager.createConnection();
+                        try
+                        {
+                            AnnotationTableBuilder.this.persistenceManager.buildTable(
+                                    workerConnection,
+                                    tableName,
+                                    annotationTable);
+                            if(!workerConnection.getAutoCommit())
+                            {
+                                workerConnection.commit();
+                            }
+                        }
+                        finally
+                        {
+                            workerConnection.close();
+                        }
+                        
+                        return null;
+                    }
+                }));
+            }
+            
+            // wait on all of the tables in order. the first failure wins
+            List<String> builtTableNames = new ArrayList<String>();
+            Throwable firstFailure = null;
+            for(int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    futures.get(i).get();
+                    builtTableNames.add(tableNames.get(i));
+                }
+                catch(InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(
+                            "interrupted while building annotation tables");
+                }
+                catch(ExecutionException ex)
+                {
+                    if(firstFailure == null)
+                    {
+                        firstFailure = ex.getCause();
+                    }
+                }
+            }
+            
+            this.tableCheckpointer.checkpointTables(
+                    connection,
+                    builtTableNames.toArray(new String[builtTableNames.size()]));
+            
+            if(firstFailure != null)
+            {
+                Throwable cause = firstFailure;
+                if(cause instanceof SQLException)
+                {
+                    throw (SQLException)cause;
+                }
+                else if(cause instanceof IOException)
+                {
+                    throw (IOException)cause;
+                }
+                else if(cause instanceof IllegalFormatException)
+                {
+                    throw (IllegalFormatException)cause;
+                }
+                else if(cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException)cause;
+                }
+                else
+                {
+                    LOG.log(Level.SEVERE,
+                            "unexpected failure building annotation table",
+                            cause);
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * Wraps up an insert statement so that rows are sent to the database
+ * in batches (using {@link PreparedStatement#addBatch()}) and so that
+ * the connection is committed periodically rather than holding the whole
+ * table in a single huge transaction
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class BatchInserter
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            BatchInserter.class.getName());
+    
+    private final Connection connection;
+    private final String tableName;
+    private final PreparedStatement insertStatement;
+    private final int batchSize;
+    private final int commitInterval;
+    private final long startTimeMillis;
+    
+    private int rowsInBatch = 0;
+    private int rowsSinceCommit = 0;
+    private long totalRowCount = 0L;
+    
+    /**
+     * Constructor
+     * @param connection
+     *          the connection that the statement belongs to
+     * @param tableName
+     *          the table we're inserting into (only used for logging)
+     * @param insertStatement
+     *          the insert statement
+     * @param batchSize
+     *          the number of rows per batch. Values of 1 or less mean
+     *          that every row is executed immediately
+     * @param commitInterval
+     *          the number of rows between commits. Values of 0 or less
+     *          mean that we never commit
+     */
+    public BatchInserter(
+            Connection connection,
+            String tableName,
+            PreparedStatement insertStatement,
+            int batchSize,
+            int commitInterval)
+    {
+        this.connection = connection;
+        this.tableName = tableName;
+        this.insertStatement = insertStatement;
+        this.batchSize = batchSize;
+        this.commitInterval = commitInterval;
+        this.startTimeMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * Getter for the statement. The parameters should be set on this
+     * statement before calling {@link #addRow()}
+     * @return the insert statement
+     */
+    public PreparedStatement getStatement()
+    {
+        return this.insertStatement;
+    }
+    
+    /**
+     * Add the row currently held in the statement's parameters
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    public void addRow() throws SQLException
+    {
+        if(this.batchSize <= 1)
+        {
+            this.insertStatement.executeUpdate();
+        }
+        else
+        {
+            this.insertStatement.addBatch();
+            this.rowsInBatch++;
+            if(this.rowsInBatch >= this.batchSize)
+            {
+                this.executeBatch();
+            }
+        }
+        
+        this.totalRowCount++;
+        this.rowsSinceCommit++;
+        if(this.commitInterval >= 1 && this.rowsSinceCommit >= this.commitInterval)
+        {
+            this.executeBatch();
+            this.commit();
+        }
+    }
+    
+    private void executeBatch() throws SQLException
+    {
+        if(this.rowsInBatch >= 1)
+        {
+            this.insertStatement.executeBatch();
+            this.insertStatement.clearBatch();
+            this.rowsInBatch = 0;
+        }
+    }
+    
+    private void commit() throws SQLException
+    {
+        if(!this.connection.getAutoCommit())
+        {
+            this.connection.commit();
+        }
+        this.rowsSinceCommit = 0;
+    }
+    
+    /**
+     * Flush any pending rows, commit them and close the statement
+     * @return
+     *          the total number of rows inserted
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    public long finish() throws SQLException
+    {
+        this.executeBatch();
+        if(this.commitInterval >= 1)
+        {
+            this.commit();
+        }
+        this.insertStatement.close();
+        
+        long elapsedMillis = System.currentTimeMillis() - this.startTimeMillis;
+        double rowsPerSecond = elapsedMillis == 0L ?
+                this.totalRowCount * 1000.0 :
+                (this.totalRowCount * 1000.0) / elapsedMillis;
+        LOG.info(
+                "inserted " + this.totalRowCount + " rows into " +
+                this.tableName + " in " + elapsedMillis + " ms (" +
+                Math.round(rowsPerSecond) + " rows/second)");
+        
+        return this.totalRowCount;
+    }
+}
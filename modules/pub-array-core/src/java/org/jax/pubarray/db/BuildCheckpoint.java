@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.pubarray.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.util.io.FileUtilities;
+
+/**
+ * Keeps track of which steps of a database build have completed so that a
+ * build which fails part way through can be rerun without redoing the work
+ * that already succeeded. Everything lives under a single directory: a
+ * manifest listing the completed steps, the candidate tables (their
+ * inferred column metadata and spill files) and the database itself. The
+ * manifest holds a fingerprint of the build inputs and if a rerun's inputs
+ * don't match that fingerprint the old checkpoint is thrown away and the
+ * build starts from scratch
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BuildCheckpoint
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            BuildCheckpoint.class.getName());
+    
+    /**
+     * the suffix used by {@link #getCheckpointDirectory(File)}
+     */
+    public static final String CHECKPOINT_DIRECTORY_SUFFIX = "-build-checkpoint";
+    
+    /**
+     * bump this whenever the layout of a checkpoint changes so that old
+     * checkpoints aren't resumed from
+     */
+    private static final int CHECKPOINT_FORMAT_VERSION = 2;
+    
+    private static final String MANIFEST_FILE_NAME = "checkpoint.properties";
+    
+    private static final String FINGERPRINT_PROPERTY = "fingerprint";
+    
+    private static final String STEP_PROPERTY_PREFIX = "step.";
+    
+    private static final String COMPLETE_STEP_VALUE = "complete";
+    
+    private static final String TABLE_FILE_PREFIX = "candidate-table-";
+    
+    private static final String TABLE_FILE_SUFFIX = ".ser";
+    
+    private static final String SPILL_DIRECTORY_NAME = "spill";
+    
+    private static final String DATABASE_DIRECTORY_NAME = "db";
+    
+    // added to the input descriptions for single precision builds so that
+    // they never resume from a double precision build
+    private static final String SINGLE_PRECISION_INPUT_DESCRIPTION = "single-precision";
+    
+    // added to the input descriptions for builds with log2 data so that
+    // they never resume from a build without it
+    private static final String LOG2_DATA_INPUT_DESCRIPTION = "log2-data";
+    
+    // added to the input descriptions for builds with packed probe vectors
+    // so that they never resume from a build without them
+    private static final String PACKED_VECTORS_INPUT_DESCRIPTION = "packed-vectors";
+    
+    // added to the input descriptions for builds with the probe summary
+    // table so that they never resume from a build without it
+    private static final String PROBE_SUMMARY_INPUT_DESCRIPTION = "probe-summary";
+    
+    // added to the input descriptions for builds with dictionary encoding
+    // so that they never resume from a build without it
+    private static final String DICTIONARY_ENCODING_INPUT_DESCRIPTION = "dictionary-encoding";
+    
+    private final File directory;
+    
+    private final Properties manifest = new Properties();
+    
+    /**
+     * Constructor. If the directory already holds a checkpoint for the same
+     * inputs it is resumed, otherwise the directory is cleared out and a new
+     * checkpoint is started
+     * @param directory
+     *          the checkpoint directory
+     * @param inputDescriptions
+     *          describes everything that the build output depends on (see
+     *          {@link #describeFile(File)}). The checkpoint is only resumed
+     *          if these match the descriptions it was created with
+     * @throws IOException
+     *          if we can't read or initialize the checkpoint
+     */
+    public BuildCheckpoint(File directory, List<String> inputDescriptions)
+    throws IOException
+    {
+        this.directory = directory;
+        String fingerprint = fingerprint(inputDescriptions);
+        
+        File manifestFile = new File(directory, MANIFEST_FILE_NAME);
+        if(manifestFile.isFile())
+        {
+            InputStream manifestIn = new BufferedInputStream(
+                    new FileInputStream(manifestFile));
+            try
+            {
+                this.manifest.load(manifestIn);
+            }
+            finally
+            {
+                manifestIn.close();
+            }
+            
+            if(fingerprint.equals(this.manifest.getProperty(FINGERPRINT_PROPERTY)))
+            {
+                LOG.info(
+                        "resuming build from checkpoint: " +
+                        directory.getAbsolutePath());
+            }
+            else
+            {
+                LOG.info(
+                        "build inputs changed. discarding old checkpoint: " +
+                        directory.getAbsolutePath());
+                this.manifest.clear();
+            }
+        }
+        
+        if(this.manifest.isEmpty())
+        {
+            FileUtilities.recursiveDelete(directory);
+            if(!directory.mkdirs())
+            {
+                throw new IOException(
+                        "failed to create checkpoint directory: " +
+                        directory.getAbsolutePath());
+            }
+            
+            this.manifest.setProperty(FINGERPRINT_PROPERTY, fingerprint);
+            this.writeManifest();
+        }
+    }
+    
+    /**
+     * Get the checkpoint directory that should be used when building the
+     * given archive. This is a directory next to the archive
+     * @param archiveFile
+     *          the archive (WAR) file
+     * @return
+     *          the checkpoint directory
+     */
+    public static File getCheckpointDirectory(File archiveFile)
+    {
+        String baseName = archiveFile.getName();
+        int lastDotIndex = baseName.lastIndexOf('.');
+        if(lastDotIndex > 0)
+        {
+            baseName = baseName.substring(0, lastDotIndex);
+        }
+        
+        return new File(
+                archiveFile.getAbsoluteFile().getParentFile(),
+                baseName + CHECKPOINT_DIRECTORY_SUFFIX);
+    }
+    
+    /**
+     * Describe an input file for the checkpoint fingerprint. The description
+     * changes if the file is replaced or modified
+     * @param file
+     *          the file
+     * @return
+     *          the description
+     */
+    public static String describeFile(File file)
+    {
+        return "file:" + file.getAbsolutePath() +
+               ":" + file.length() +
+               ":" + file.lastModified();
+    }
+    
+    /**
+     * Describe the options that the database is built with for the
+     * checkpoint fingerprint so that a build never resumes from a checkpoint
+     * that was built with different options
+     * @param persistenceManager
+     *          the persistence manager that will build the database
+     * @param inputDescriptions
+     *          the input descriptions to add the option descriptions to
+     */
+    public static void describeBuildOptions(
+            PersistenceManager persistenceManager,
+            List<String> inputDescriptions)
+    {
+        if(persistenceManager.isSinglePrecisionDataEnabled())
+        {
+            inputDescriptions.add(SINGLE_PRECISION_INPUT_DESCRIPTION);
+        }
+        if(persistenceManager.isLog2DataEnabled())
+        {
+            inputDescriptions.add(LOG2_DATA_INPUT_DESCRIPTION);
+        }
+        if(persistenceManager.isPackedProbeVectorsEnabled())
+        {
+            inputDescriptions.add(PACKED_VECTORS_INPUT_DESCRIPTION);
+        }
+        if(persistenceManager.isProbeSummaryTableEnabled())
+        {
+            inputDescriptions.add(PROBE_SUMMARY_INPUT_DESCRIPTION);
+        }
+        if(persistenceManager.isDictionaryEncodingEnabled())
+        {
+            inputDescriptions.add(DICTIONARY_ENCODING_INPUT_DESCRIPTION);
+        }
+    }
+    
+    /**
+     * Getter for the checkpoint directory
+     * @return the directory
+     */
+    public File getDirectory()
+    {
+        return this.directory;
+    }
+    
+    /**
+     * Getter for the directory that candidate table spill files should be
+     * written to so that they survive a failed build
+     * @return the spill directory
+     */
+    public File getSpillDirectory()
+    {
+        return new File(this.directory, SPILL_DIRECTORY_NAME);
+    }
+    
+    /**
+     * Getter for the directory that the database should be built in. Only
+     * the database files should be written here
+     * @return the database directory
+     */
+    public File getDatabaseDirectory()
+    {
+        return new File(this.directory, DATABASE_DIRECTORY_NAME);
+    }
+    
+    /**
+     * Determine if the given step was completed by this or an earlier build
+     * @param step
+     *          the step name
+     * @return
+     *          true if the step is complete
+     */
+    public synchronized boolean isStepComplete(String step)
+    {
+        return this.manifest.getProperty(STEP_PROPERTY_PREFIX + step) != null;
+    }
+    
+    /**
+     * Record that the given step is complete. The manifest is rewritten
+     * before this returns
+     * @param step
+     *          the step name
+     * @throws IOException
+     *          if we fail to write the manifest
+     */
+    public synchronized void markStepComplete(String step) throws IOException
+    {
+        this.manifest.setProperty(STEP_PROPERTY_PREFIX + step, COMPLETE_STEP_VALUE);
+        this.writeManifest();
+    }
+    
+    /**
+     * Save the given candidate table and mark the step that created it as
+     * complete. The table's spill files have to outlive a failed build so
+     * they should be under {@link #getSpillDirectory()} (or in an
+     * {@link ImportCache})
+     * @param step
+     *          the step that created the table
+     * @param candidateTable
+     *          the table to save
+     * @throws IOException
+     *          if the table can't be written
+     */
+    public synchronized void saveCandidateTable(
+            String step,
+            CandidateTable candidateTable) throws IOException
+    {
+        File tableFile = File.createTempFile(
+                TABLE_FILE_PREFIX,
+                TABLE_FILE_SUFFIX,
+                this.directory);
+        ObjectOutputStream tableOut = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tableFile)));
+        try
+        {
+            tableOut.writeObject(candidateTable.getTableName());
+            tableOut.writeObject(candidateTable.getCategoryName());
+            tableOut.writeObject(toPath(candidateTable.getServerSideFile()));
+            tableOut.writeObject(toPath(candidateTable.getTypedSpillFile()));
+            tableOut.writeObject(candidateTable.getMetadata());
+            tableOut.writeObject(candidateTable.getColumnDistinctValues());
+        }
+        finally
+        {
+            tableOut.close();
+        }
+        
+        this.manifest.setProperty(STEP_PROPERTY_PREFIX + step, tableFile.getName());
+        this.writeManifest();
+    }
+    
+    /**
+     * Load the candidate table saved by the given step
+     * @param step
+     *          the step that created the table
+     * @param spillManager
+     *          the spill manager that the loaded table should read its
+     *          spill files through
+     * @return
+     *          the table or null if the step hasn't been completed or the
+     *          table can't be restored (in which case the step should be
+     *          redone)
+     */
+    public synchronized CandidateTable loadCandidateTable(
+            String step,
+            SpillManager spillManager)
+    {
+        String tableFileName = this.manifest.getProperty(
+                STEP_PROPERTY_PREFIX + step);
+        if(tableFileName == null || tableFileName.equals(COMPLETE_STEP_VALUE))
+        {
+            return null;
+        }
+        
+        try
+        {
+            ObjectInputStream tableIn = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(
+                            new File(this.directory, tableFileName))));
+            try
+            {
+                CandidateTable candidateTable = new CandidateTable();
+                candidateTable.setTableName((String)tableIn.readObject());
+                candidateTable.setCategoryName((String)tableIn.readObject());
+                candidateTable.setServerSideFile(toFile((String)tableIn.readObject()));
+                candidateTable.setTypedSpillFile(toFile((String)tableIn.readObject()));
+                candidateTable.setMetadata((TableColumnMetadata[])tableIn.readObject());
+                candidateTable.setColumnDistinctValues((String[][])tableIn.readObject());
+                candidateTable.setSpillManager(spillManager);
+                
+                if(!isMissing(candidateTable.getServerSideFile()) &&
+                   !isMissing(candidateTable.getTypedSpillFile()))
+                {
+                    return candidateTable;
+                }
+            }
+            finally
+            {
+                tableIn.close();
+            }
+        }
+        catch(Exception ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to restore checkpointed table for step: " + step,
+                    ex);
+        }
+        
+        LOG.warning("checkpointed table for step " + step + " will be rebuilt");
+        this.manifest.remove(STEP_PROPERTY_PREFIX + step);
+        return null;
+    }
+    
+    /**
+     * Delete the checkpoint. This should be called once the build has
+     * succeeded
+     */
+    public synchronized void delete()
+    {
+        this.manifest.clear();
+        if(!FileUtilities.recursiveDelete(this.directory))
+        {
+            LOG.warning(
+                    "failed to delete checkpoint directory: " +
+                    this.directory.getAbsolutePath());
+        }
+    }
+    
+    private static String toPath(File file)
+    {
+        return file == null ? null : file.getAbsolutePath();
+    }
+    
+    private static File toFile(String path)
+    {
+        return path == null ? null : new File(path);
+    }
+    
+    private static boolean isMissing(File file)
+    {
+        return file != null && !file.isFile();
+    }
+    
+    /**
+     * Write the manifest to a temporary file and move it into place so that
+     * a crash never leaves a half written manifest behind
+     * @throws IOException
+     *          if the write fails
+     */
+    private void writeManifest() throws IOException
+    {
+        File manifestFile = new File(this.directory, MANIFEST_FILE_NAME);
+        File tempManifestFile = new File(this.directory, MANIFEST_FILE_NAME + ".tmp");
+        OutputStream manifestOut = new BufferedOutputStream(
+                new FileOutputStream(tempManifestFile));
+        try
+        {
+            this.manifest.store(manifestOut, "PubArray build checkpoint");
+        }
+        finally
+        {
+            manifestOut.close();
+        }
+        
+        if(!tempManifestFile.renameTo(manifestFile))
+        {
+            // some platforms won't rename over an existing file
+            manifestFile.delete();
+            if(!tempManifestFile.renameTo(manifestFile))
+            {
+                throw new IOException(
+                        "failed to write checkpoint manifest: " +
+                        manifestFile.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Boil the input descriptions down to a single hex digest
+     * @param inputDescriptions
+     *          the descriptions
+     * @return
+     *          the fingerprint
+     */
+    private static String fingerprint(List<String> inputDescriptions)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(Integer.toString(CHECKPOINT_FORMAT_VERSION).getBytes("UTF-8"));
+            for(String currDescription: inputDescriptions)
+            {
+                digest.update((byte)0);
+                digest.update(String.valueOf(currDescription).getBytes("UTF-8"));
+            }
+            
+            StringBuilder hex = new StringBuilder();
+            for(byte currByte: digest.digest())
+            {
+                hex.append(Character.forDigit((currByte >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(currByte & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            // every JVM is required to support MD5
+            throw new IllegalStateException(ex);
+        }
+        catch(UnsupportedEncodingException ex)
+        {
+            // every JVM is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+}
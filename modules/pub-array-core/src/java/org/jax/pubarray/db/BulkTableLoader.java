@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.util.io.FlatFileReader;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Bulk loads the rows of a candidate table into an empty database table
+ * without going through JDBC parameter binding: as an HSQLDB text table
+ * (see {@link PersistenceManager#isTextTableIngestEnabled()}) or with
+ * derby's import procedure (see
+ * {@link PersistenceManager#isDerbyImportEnabled()}). Both read a CSV file
+ * that is streamed from the candidate table's CSV spill
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class BulkTableLoader
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            BulkTableLoader.class.getName());
+    
+    /**
+     * the URL prefix that tells us we're connected to an HSQLDB file
+     * database which can attach CSV files as text tables
+     */
+    private static final String HSQLDB_FILE_URL_PREFIX = "jdbc:hsqldb:file:";
+    
+    /**
+     * the URL prefix for derby connections which can bulk load CSV files with
+     * the SYSCS_UTIL.SYSCS_IMPORT_TABLE procedure
+     */
+    private static final String DERBY_URL_PREFIX = "jdbc:derby:";
+    
+    static final String TEXT_SOURCE_TABLE_SUFFIX = "_TEXT_SOURCE";
+    
+    private static final String TEXT_SOURCE_FILE_SUFFIX = "-text-source.csv";
+    
+    private static final String TEXT_SOURCE_PROPERTIES =
+        ";fs=,;quoted=true;encoding=UTF-8";
+    
+    private final PersistenceManager persistenceManager;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that owns the tables being loaded
+     */
+    BulkTableLoader(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+    }
+    
+    /**
+     * Get the directory holding the database files if the given connection
+     * is to an HSQLDB file database
+     * @param connection
+     *          the connection
+     * @return
+     *          the directory or null if this isn't an HSQLDB file database
+     * @throws SQLException
+     *          if we fail to get the connection's metadata
+     */
+    static File getHSQLDBFileDirectory(Connection connection)
+    throws SQLException
+    {
+        String url = connection.getMetaData().getURL();
+        if(url == null || !url.startsWith(HSQLDB_FILE_URL_PREFIX))
+        {
+            return null;
+        }
+        else
+        {
+            String databasePath = url.substring(HSQLDB_FILE_URL_PREFIX.length());
+            int propertiesIndex = databasePath.indexOf(';');
+            if(propertiesIndex >= 0)
+            {
+                databasePath = databasePath.substring(0, propertiesIndex);
+            }
+            
+            return new File(databasePath).getAbsoluteFile().getParentFile();
+        }
+    }
+    
+    /**
+     * Determine if the given connection is to a derby database
+     * @param connection
+     *          the connection
+     * @return
+     *          true for derby
+     * @throws SQLException
+     *          if we fail to get the connection's metadata
+     */
+    static boolean isDerbyConnection(Connection connection)
+    throws SQLException
+    {
+        String url = connection.getMetaData().getURL();
+        return url != null && url.startsWith(DERBY_URL_PREFIX);
+    }
+    
+    /**
+     * Fill in the (empty) table by writing the candidate rows to a CSV file
+     * in the database directory, attaching that file as an HSQLDB text table
+     * and copying the rows over with <code>INSERT INTO ... SELECT</code>
+     * @param connection
+     *          the database connection
+     * @param databaseDirectory
+     *          the directory holding the HSQLDB database files. Text table
+     *          sources are resolved relative to this directory
+     * @param tableName
+     *          the name of the table
+     * @param candidateTable
+     *          the candidate table
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the number of rows inserted. -1 means that the text table
+     *          couldn't be used and that the caller should fall back on
+     *          prepared inserts (nothing has been inserted in this case)
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if we find bad formatting in the table contents
+     * @throws IOException
+     *          if we have trouble reading or writing the data
+     */
+    long fillTableUsingTextTable(
+            Connection connection,
+            File databaseDirectory,
+            String tableName,
+            CandidateTable candidateTable,
+            String[][] columnDictionaries)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        long startTimeMillis = System.currentTimeMillis();
+        TableColumnMetadata[] columnMetadata = ColumnDictionaryEncoder.toStoredColumnMetadata(
+                candidateTable.getMetadata(),
+                columnDictionaries);
+        String textTableName = tableName + TEXT_SOURCE_TABLE_SUFFIX;
+        File sourceFile = new File(
+                databaseDirectory,
+                tableName.toLowerCase() + TEXT_SOURCE_FILE_SUFFIX);
+        
+        try
+        {
+            long rowCount = this.writeBulkLoadSource(
+                    candidateTable,
+                    sourceFile,
+                    columnDictionaries);
+            if(rowCount < 0L)
+            {
+                LOG.info(
+                        tableName + " has values that can't be read from an " +
+                        "HSQLDB text table. Falling back on prepared inserts");
+                return -1L;
+            }
+            
+            Statement statement = connection.createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            try
+            {
+                this.persistenceManager.dropTableNamed(connection, textTableName);
+                try
+                {
+                    StringBuilder createBuilder = new StringBuilder("CREATE TEXT TABLE ");
+                    createBuilder.append(textTableName);
+                    createBuilder.append(" (");
+                    this.persistenceManager.appendColumnDefinitions(
+                            createBuilder,
+                            columnMetadata,
+                            this.persistenceManager.isSinglePrecisionTable(tableName));
+                    createBuilder.append(')');
+                    statement.executeUpdate(createBuilder.toString());
+                    statement.executeUpdate(
+                            "SET TABLE " + textTableName + " SOURCE '" +
+                            sourceFile.getName() + TEXT_SOURCE_PROPERTIES + "'");
+                }
+                catch(SQLException ex)
+                {
+                    LOG.log(Level.WARNING,
+                            "failed to attach " + sourceFile.getName() +
+                            " as a text table. Falling back on prepared inserts",
+                            ex);
+                    this.persistenceManager.dropTableNamed(connection, textTableName);
+                    return -1L;
+                }
+                
+                try
+                {
+                    int insertCount = statement.executeUpdate(
+                            "INSERT INTO " + tableName +
+                            " SELECT * FROM " + textTableName);
+                    if(insertCount != rowCount)
+                    {
+                        throw new SQLException(
+                                "expected to copy " + rowCount + " rows from " +
+                                textTableName + " into " + tableName +
+                                " but copied " + insertCount);
+                    }
+                    
+                    if(!connection.getAutoCommit())
+                    {
+                        connection.commit();
+                    }
+                }
+                finally
+                {
+                    this.persistenceManager.dropTableNamed(connection, textTableName);
+                }
+            }
+            finally
+            {
+                statement.close();
+            }
+            
+            long elapsedMillis = System.currentTimeMillis() - startTimeMillis;
+            LOG.info(
+                    "inserted " + rowCount + " rows into " + tableName +
+                    " through a text table in " + elapsedMillis + " ms (" +
+                    (rowCount * 1000L / Math.max(elapsedMillis, 1L)) +
+                    " rows/second)");
+            
+            return rowCount;
+        }
+        finally
+        {
+            if(sourceFile.exists() && !sourceFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete text table source: " +
+                        sourceFile.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Fill in the (empty) table by writing the candidate rows to a CSV file
+     * and loading that file with SYSCS_UTIL.SYSCS_IMPORT_TABLE
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param candidateTable
+     *          the candidate table
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the number of rows imported. -1 means that the import
+     *          couldn't be used and that the caller should fall back on
+     *          prepared inserts (nothing has been inserted in this case)
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if we find bad formatting in the table contents
+     * @throws IOException
+     *          if we have trouble reading or writing the data
+     */
+    long fillTableUsingDerbyImport(
+            Connection connection,
+            String tableName,
+            CandidateTable candidateTable,
+            String[][] columnDictionaries)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        long startTimeMillis = System.currentTimeMillis();
+        File sourceFile = File.createTempFile(
+                tableName.toLowerCase(),
+                TEXT_SOURCE_FILE_SUFFIX);
+        
+        try
+        {
+            long rowCount = this.writeBulkLoadSource(
+                    candidateTable,
+                    sourceFile,
+                    columnDictionaries);
+            if(rowCount < 0L)
+            {
+                LOG.info(
+                        tableName + " has values that can't be imported " +
+                        "into derby. Falling back on prepared inserts");
+                return -1L;
+            }
+            
+            // replace mode (the last argument) on an empty table lets derby
+            // do an unlogged bulk insert
+            CallableStatement importCall = connection.prepareCall(
+                    "CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE(?, ?, ?, ?, ?, ?, ?)");
+            try
+            {
+                importCall.setString(1, null);
+                importCall.setString(2, tableName);
+                importCall.setString(3, sourceFile.getAbsolutePath());
+                importCall.setString(4, ",");
+                importCall.setString(5, "\"");
+                importCall.setString(6, "UTF-8");
+                importCall.setShort(7, (short)1);
+                importCall.execute();
+            }
+            finally
+            {
+                importCall.close();
+            }
+            
+            if(!connection.getAutoCommit())
+            {
+                connection.commit();
+            }
+            
+            long elapsedMillis = System.currentTimeMillis() - startTimeMillis;
+            LOG.info(
+                    "imported " + rowCount + " rows into " + tableName +
+                    " in " + elapsedMillis + " ms (" +
+                    (rowCount * 1000L / Math.max(elapsedMillis, 1L)) +
+                    " rows/second)");
+            
+            return rowCount;
+        }
+        finally
+        {
+            if(sourceFile.exists() && !sourceFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete import source: " +
+                        sourceFile.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Write the rows of the given candidate table in the CSV form that an
+     * HSQLDB text table or the derby import procedure expects. The rows are
+     * streamed from the table's CSV spill and numeric cells are passed
+     * through as the text they were uploaded with (trimmed) instead of being
+     * parsed and formatted again. Text cells are always quoted so that empty
+     * strings don't turn into nulls and blank numeric cells are left empty
+     * so that they do turn into nulls, which is the same as what
+     * {@link PersistenceManager#insertRow(BatchInserter, TableColumnMetadata[], String[])} does.
+     * Dictionary encoded cells are written as their codes
+     * @param candidateTable
+     *          the table to write
+     * @param sourceFile
+     *          the file to write to
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the number of rows written or -1 if the table was spilled in
+     *          the typed format (there is no text to stream) or has a
+     *          numeric value (like NaN or infinity) that isn't a plain
+     *          decimal number
+     * @throws IOException
+     *          if we have trouble reading or writing the data
+     * @throws IllegalFormatException
+     *          if we find bad formatting in the table contents
+     */
+    private long writeBulkLoadSource(
+            CandidateTable candidateTable,
+            File sourceFile,
+            String[][] columnDictionaries)
+    throws IOException, IllegalFormatException
+    {
+        if(candidateTable.getServerSideFile() == null)
+        {
+            LOG.info(
+                    candidateTable.getTableName() + " was spilled as " +
+                    CandidateDatabaseManager.SpillFormat.TYPED_BINARY +
+                    " so it has no text to bulk load from");
+            return -1L;
+        }
+        
+        TableColumnMetadata[] columnMetadata = candidateTable.getMetadata();
+        List<Map<String, Integer>> dictionaryCodes =
+            ColumnDictionaryEncoder.toDictionaryCodes(columnDictionaries);
+        Writer sourceWriter = new BufferedWriter(
+                new OutputStreamWriter(
+                        new FileOutputStream(sourceFile),
+                        "UTF-8"),
+                64 * 1024);
+        long rowCount = 0L;
+        try
+        {
+            FlatFileReader csvReader = candidateTable.readFile();
+            try
+            {
+                String[] currRow;
+                while((currRow = csvReader.readRow()) != null)
+                {
+                    for(int colIndex = 0; colIndex < columnMetadata.length; colIndex++)
+                    {
+                        if(colIndex >= 1)
+                        {
+                            sourceWriter.write(',');
+                        }
+                        
+                        if(columnMetadata[colIndex].getDataType() == DataType.TEXT)
+                        {
+                            this.writeTextCell(
+                                    sourceWriter,
+                                    currRow[colIndex],
+                                    dictionaryCodes == null ?
+                                            null :
+                                            dictionaryCodes.get(colIndex));
+                        }
+                        else
+                        {
+                            String trimmedVal = currRow[colIndex].trim();
+                            if(!isPlainDecimal(trimmedVal))
+                            {
+                                return -1L;
+                            }
+                            sourceWriter.write(trimmedVal);
+                        }
+                    }
+                    sourceWriter.write('\n');
+                    rowCount++;
+                }
+            }
+            finally
+            {
+                csvReader.close();
+            }
+        }
+        finally
+        {
+            sourceWriter.close();
+        }
+        
+        return rowCount;
+    }
+    
+    /**
+     * Determine if the given (trimmed) numeric cell is empty or a plain
+     * decimal number that any SQL engine will read the same way that java
+     * does. Java also accepts things like "NaN", "Infinity" and "1.5f" which
+     * the bulk loaders don't
+     * @param numericText
+     *          the trimmed text of a numeric cell
+     * @return
+     *          true if the text is empty or only has digits, signs, decimal
+     *          points and exponents
+     */
+    private static boolean isPlainDecimal(String numericText)
+    {
+        for(int i = 0; i < numericText.length(); i++)
+        {
+            char currChar = numericText.charAt(i);
+            if((currChar < '0' || currChar > '9') &&
+               currChar != '-' && currChar != '+' && currChar != '.' &&
+               currChar != 'e' && currChar != 'E')
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Write the given text as a CSV cell. Text is double quoted unless the
+     * column is dictionary encoded in which case the (unquoted) code is
+     * written instead
+     * @param writer
+     *          the writer to write to
+     * @param text
+     *          the text to write
+     * @param dictionaryCodes
+     *          the codes if the column is dictionary encoded or null
+     * @throws IOException
+     *          if the write fails
+     */
+    private void writeTextCell(
+            Writer writer,
+            String text,
+            Map<String, Integer> dictionaryCodes)
+    throws IOException
+    {
+        if(dictionaryCodes == null)
+        {
+            this.writeQuotedTextCell(writer, text);
+        }
+        else if(text != null)
+        {
+            writer.write(Integer.toString(ColumnDictionaryEncoder.toDictionaryCode(dictionaryCodes, text)));
+        }
+    }
+    
+    /**
+     * Write the given text as a double quoted CSV cell
+     * @param writer
+     *          the writer to write to
+     * @param text
+     *          the text to write
+     * @throws IOException
+     *          if the write fails
+     */
+    private void writeQuotedTextCell(Writer writer, String text)
+    throws IOException
+    {
+        writer.write('"');
+        if(text != null)
+        {
+            writer.write(text.replace("\"", "\"\""));
+        }
+        writer.write('"');
+    }
+}
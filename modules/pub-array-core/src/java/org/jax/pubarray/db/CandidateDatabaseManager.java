@@ -18,13 +18,19 @@
 package org.jax.pubarray.db;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
@@ -54,6 +60,41 @@ public class CandidateDatabaseManager
     /*package-protected*/ static final FlatFileFormat STORAGE_FORMAT =
         CommonFlatFileFormat.CSV_RFC_4180;
     
+    /*package-protected*/ static final String STORAGE_CHARSET = "UTF-8";
+    
+    /**
+     * The format used to spill the data and annotation tables to disk
+     */
+    public enum SpillFormat
+    {
+        /**
+         * tables are kept as {@link CommonFlatFileFormat#CSV_RFC_4180} text
+         * which is re-parsed when the database is written. This is the
+         * format that the bulk loaders in {@link PersistenceManager} stream
+         * from
+         */
+        CSV,
+        
+        /**
+         * tables are written in the binary format of {@link TypedSpillWriter}
+         * during type inference so that numbers don't need to be parsed
+         * again when the database is written
+         */
+        TYPED_BINARY
+    }
+    
+    private volatile SpillFormat spillFormat = SpillFormat.TYPED_BINARY;
+    
+    /**
+     * the number of rows that we hand to an inference worker at a time
+     */
+    private static final int INFERENCE_BLOCK_ROW_COUNT = 2048;
+    
+    private volatile int inferenceThreadCount =
+        Runtime.getRuntime().availableProcessors();
+    
+    private volatile boolean dictionaryEncodingEnabled = false;
+    
     private ExperimentMetadata experimentMetadata = new ExperimentMetadata("", "");
     private CandidateTable designTable = new CandidateTable();
     private CandidateTable dataTable = new CandidateTable();
@@ -62,6 +103,9 @@ public class CandidateDatabaseManager
     private List<String> orderedAnnotationTableKeys =
         Collections.synchronizedList(new ArrayList<String>());
     private String matchDesignAndDataOnFactor = null;
+    private SpillManager spillManager = new SpillManager();
+    private ImportProfiler importProfiler = new ImportProfiler();
+    private ImportCache importCache = null;
 
     private List<PerGeneImageDirectoryDescription> perGeneImageDirectoryDescriptions;
     
@@ -94,6 +138,257 @@ public class CandidateDatabaseManager
         this.matchDesignAndDataOnFactor = matchDesignAndDataOnFactor;
     }
     
+    /**
+     * Getter for the format that data and annotation tables are spilled to
+     * disk in
+     * @return the spill format
+     */
+    public SpillFormat getSpillFormat()
+    {
+        return this.spillFormat;
+    }
+    
+    /**
+     * Setter for the spill format. This only affects tables that are uploaded
+     * after the format is set
+     * @param spillFormat the spill format
+     */
+    public void setSpillFormat(SpillFormat spillFormat)
+    {
+        this.spillFormat = spillFormat;
+    }
+    
+    /**
+     * Getter for the spill manager that holds the temporary files for all
+     * of the candidate tables
+     * @return the spill manager
+     */
+    public SpillManager getSpillManager()
+    {
+        return this.spillManager;
+    }
+    
+    /**
+     * Setter for the spill manager. Use this to put the spill files in a
+     * specific directory, to give them a disk budget or to turn off
+     * compression. This only affects tables that are uploaded after the
+     * manager is set
+     * @param spillManager the spill manager
+     */
+    public void setSpillManager(SpillManager spillManager)
+    {
+        this.spillManager = spillManager;
+    }
+    
+    /**
+     * Getter for the profiler that the column type inference phases are
+     * recorded to
+     * @return the profiler
+     */
+    public ImportProfiler getImportProfiler()
+    {
+        return this.importProfiler;
+    }
+    
+    /**
+     * Setter for the profiler. Set this to the same profiler as the
+     * {@link PersistenceManager} to get a report covering the whole import
+     * @param importProfiler the profiler
+     */
+    public void setImportProfiler(ImportProfiler importProfiler)
+    {
+        this.importProfiler = importProfiler;
+    }
+    
+    /**
+     * Getter for the import cache. If this is non-null then uploads that are
+     * given a content key are looked up in the cache before anything is
+     * parsed and are added to the cache once they're loaded. This is null
+     * by default
+     * @return the cache or null
+     */
+    public ImportCache getImportCache()
+    {
+        return this.importCache;
+    }
+    
+    /**
+     * Setter for the import cache
+     * @see #getImportCache()
+     * @param importCache the cache or null
+     */
+    public void setImportCache(ImportCache importCache)
+    {
+        this.importCache = importCache;
+    }
+    
+    /**
+     * Look up the given upload in the import cache
+     * @param contentKey
+     *          the content key for the flat file (see
+     *          {@link ImportCache#getContentKey(File, FlatFileFormat)}) or
+     *          null if the upload shouldn't be cached
+     * @param tableKind
+     *          the kind of table (design, data or annotation) since each is
+     *          spilled differently
+     * @return
+     *          the cached table or null
+     */
+    private CandidateTable getCachedTable(String contentKey, String tableKind)
+    {
+        String cacheKey = this.toCacheKey(contentKey, tableKind);
+        if(cacheKey == null)
+        {
+            return null;
+        }
+        else
+        {
+            return this.importCache.get(cacheKey, this.spillManager);
+        }
+    }
+    
+    /**
+     * Add the given upload to the import cache (if there is one)
+     * @param contentKey
+     *          the content key or null
+     * @param tableKind
+     *          the kind of table
+     * @param table
+     *          the table that was uploaded
+     * @throws IOException
+     *          if the cache entry can't be written
+     */
+    private void putCachedTable(
+            String contentKey,
+            String tableKind,
+            CandidateTable table) throws IOException
+    {
+        String cacheKey = this.toCacheKey(contentKey, tableKind);
+        if(cacheKey != null)
+        {
+            this.importCache.put(cacheKey, table);
+        }
+    }
+    
+    private String toCacheKey(String contentKey, String tableKind)
+    {
+        if(contentKey == null || this.importCache == null)
+        {
+            return null;
+        }
+        else
+        {
+            return contentKey + ":" + tableKind + ":" + this.spillFormat +
+                   ":" + this.spillManager.isCompressing() +
+                   ":" + this.isTrackingDistinctValues(tableKind);
+        }
+    }
+    
+    /**
+     * Determine if the distinct column values should be collected for the
+     * given kind of table. Only annotation tables are dictionary encoded
+     * @param tableKind
+     *          the kind of table (design, data or annotation)
+     * @return
+     *          true if distinct values should be tracked
+     */
+    private boolean isTrackingDistinctValues(String tableKind)
+    {
+        return this.dictionaryEncodingEnabled && tableKind.equals("annotation");
+    }
+    
+    /**
+     * Delete all of the temporary files that back the candidate tables.
+     * Call this once the tables have been written to the database (or once
+     * the build is abandoned)
+     */
+    public void deleteSpillFiles()
+    {
+        this.spillManager.deleteAll();
+    }
+    
+    /**
+     * Create a new CSV spill file
+     * @param table
+     *          the table that will own the file. It is given this manager's
+     *          spill manager
+     * @param prefix
+     *          the file name prefix
+     * @return
+     *          the new file
+     * @throws IOException
+     *          if we can't create the file
+     */
+    private File createCSVSpillFile(CandidateTable table, String prefix)
+    throws IOException
+    {
+        table.setSpillManager(this.spillManager);
+        return this.spillManager.createSpillFile(prefix, ".csv");
+    }
+    
+    /**
+     * Open a writer for a file created by
+     * {@link #createCSVSpillFile(CandidateTable, String)}
+     * @param spillFile
+     *          the spill file
+     * @return
+     *          the writer
+     * @throws IOException
+     *          if we can't open the file
+     */
+    private FlatFileWriter openCSVSpillWriter(File spillFile) throws IOException
+    {
+        return new FlatFileWriter(
+                new OutputStreamWriter(
+                        this.spillManager.openOutput(spillFile),
+                        STORAGE_CHARSET),
+                STORAGE_FORMAT);
+    }
+    
+    /**
+     * Getter for the number of threads used for column type inference
+     * @return the thread count
+     */
+    public int getInferenceThreadCount()
+    {
+        return this.inferenceThreadCount;
+    }
+    
+    /**
+     * Setter for the number of threads used for column type inference
+     * @param inferenceThreadCount
+     *          the thread count. A value of 1 or less means that inference
+     *          is done on the same thread that reads the file
+     */
+    public void setInferenceThreadCount(int inferenceThreadCount)
+    {
+        this.inferenceThreadCount = inferenceThreadCount;
+    }
+    
+    /**
+     * Determine if the annotation tables will be dictionary encoded when
+     * they're written to the database. If they will, the distinct values of
+     * each annotation column are collected during type inference
+     * @see PersistenceManager#isDictionaryEncodingEnabled()
+     * @return true for dictionary encoding
+     */
+    public boolean isDictionaryEncodingEnabled()
+    {
+        return this.dictionaryEncodingEnabled;
+    }
+    
+    /**
+     * Setter for dictionary encoding. This only affects annotation tables
+     * that are uploaded after it is set and it should match
+     * {@link PersistenceManager#setDictionaryEncodingEnabled(boolean)}
+     * @param dictionaryEncodingEnabled
+     *          true for dictionary encoding
+     */
+    public void setDictionaryEncodingEnabled(boolean dictionaryEncodingEnabled)
+    {
+        this.dictionaryEncodingEnabled = dictionaryEncodingEnabled;
+    }
+    
     /**
      * Getter for the experiment's metadata
      * @return the experiment's metadata
@@ -114,16 +409,27 @@ public class CandidateDatabaseManager
     }
     
     /**
-     * Write the given source flat file to the sink flat file (with the
-     * exception of the header row) and at the same time infer column
-     * metadata
+     * Spill the given source flat file (with the exception of the header
+     * row) to a temporary file and at the same time infer column metadata.
+     * The spill file is given to the table as its server side file or, if
+     * typedSpill is true, as its typed spill file
      * @param minPermissibleColumnCount
      *          the minimum number of columns that the input is required
      *          to have
      * @param source
      *          the source to read from
-     * @param sink
-     *          the sink to write to
+     * @param table
+     *          the table that will own the spill file
+     * @param spillPrefix
+     *          the spill file name prefix
+     * @param typedSpill
+     *          if true the rows are spilled in the format written by
+     *          {@link TypedSpillWriter}, otherwise they're spilled as CSV
+     * @param trackDistinctValues
+     *          if true the distinct values of each column are collected
+     *          for dictionary encoding
+     * @param profilerPhase
+     *          the profiler phase that the rows are counted in
      * @return
      *          the inferred metadata
      * @throws IllegalFormatException
@@ -131,10 +437,14 @@ public class CandidateDatabaseManager
      * @throws IOException
      *          if we have trouble reading or writing data
      */
-    private TableColumnMetadata[] inferMetadataAndWriteSourceToSink(
+    private TableColumnMetadata[] inferMetadataAndSpill(
             int minPermissibleColumnCount,
             FlatFileReader source,
-            FlatFileWriter sink)
+            CandidateTable table,
+            String spillPrefix,
+            boolean typedSpill,
+            boolean trackDistinctValues,
+            ImportProfiler.Phase profilerPhase)
     throws IllegalFormatException, IOException
     {
         // use the 1st row to initialize the column metadata
@@ -164,104 +474,327 @@ public class CandidateDatabaseManager
             colMetadata[colIndex] = new TableColumnMetadata(currRow[colIndex]);
         }
         
+        FlatFileWriter csvSink = null;
+        TypedSpillWriter typedSink = null;
+        File spillFile;
+        if(typedSpill)
+        {
+            table.setSpillManager(this.spillManager);
+            spillFile = this.spillManager.createSpillFile(spillPrefix, ".bin");
+            typedSink = new TypedSpillWriter(
+                    this.spillManager.openOutput(spillFile),
+                    colMetadata.length);
+            table.setTypedSpillFile(spillFile);
+        }
+        else
+        {
+            spillFile = this.createCSVSpillFile(table, spillPrefix);
+            csvSink = this.openCSVSpillWriter(spillFile);
+            table.setServerSideFile(spillFile);
+        }
+        
         // okey dokey, now we're getting into the contents of
         // the table. note that rowNum only matters for informing the
-        // user about what we found in the file and where we found it
-        for(int rowNum = 1;
-            (currRow = source.readRow()) != null;
-            rowNum++)
+        // user about what we found in the file and where we found it.
+        // Rows are tokenized in order on this thread while type inference
+        // (and typed encoding) for each block of rows is handed off to the
+        // inference pool (or done inline if we're single threaded)
+        int threadCount = this.inferenceThreadCount;
+        ExecutorService executor = threadCount <= 1 ?
+                null :
+                Executors.newFixedThreadPool(threadCount);
+        LinkedList<Future<InferredBlock>> pendingBlocks =
+            new LinkedList<Future<InferredBlock>>();
+        try
         {
-            if(currRow.length != colMetadata.length)
+            String[][] currBlock = new String[INFERENCE_BLOCK_ROW_COUNT][];
+            int rowsInBlock = 0;
+            int firstRowNumOfBlock = 1;
+            for(int rowNum = 1;
+                (currRow = source.readRow()) != null;
+                rowNum++)
             {
-                throw new IllegalFormatException(
-                        "The column count of " + currRow.length +
-                        " found at row number " + rowNum + " does not " +
-                        "match the column count of " + colMetadata.length +
-                        " found in all of the previous rows.");
-            }
-            
-            // do best effort type inference on the given row
-            for(int colIndex = 0; colIndex < currRow.length; colIndex++)
-            {
-                TableColumnMetadata currColMeta = colMetadata[colIndex];
-                String currCellContents = currRow[colIndex];
+                if(currRow.length != colMetadata.length)
+                {
+                    throw new IllegalFormatException(
+                            "The column count of " + currRow.length +
+                            " found at row number " + rowNum + " does not " +
+                            "match the column count of " + colMetadata.length +
+                            " found in all of the previous rows.");
+                }
                 
-                // make sure we keep track of the max string length
-                if(currCellContents.length() > currColMeta.getLongestStringLength())
+                // write the row to temporary storage (we don't want to hold
+                // all of this in memory after all!)
+                if(csvSink != null)
                 {
-                    currColMeta.setLongestStringLength(currCellContents.length());
+                    csvSink.writeRow(currRow);
                 }
                 
-                // loop through the type inference logic
-                // TODO be smarter about empty strings
-                boolean doneInferringType = false;
-                while(!doneInferringType)
+                currBlock[rowsInBlock] = currRow;
+                rowsInBlock++;
+                if(rowsInBlock == currBlock.length)
                 {
-                    DataType currInferredType = currColMeta.getDataType();
-                    
-                    if(currInferredType == null)
-                    {
-                        // start off with the most restrictive formatting
-                        // possible (an integer)
-                        currColMeta.setDataType(DataType.INTEGER);
-                        currColMeta.setTypeInferenceEvidence(
-                                new TypeEvidence(
-                                        currCellContents,
-                                        rowNum));
-                    }
-                    else if(currInferredType == DataType.INTEGER)
-                    {
-                        // see if this conforms to the integer format
-                        if(currCellContents.trim().length() == 0 ||
-                           TableColumnMetadata.isParsableAsInteger(currCellContents))
-                        {
-                            doneInferringType = true;
-                        }
-                        else
-                        {
-                            // jump to the next less restrictive data type
-                            currColMeta.setDataType(DataType.REAL);
-                            currColMeta.setTypeInferenceEvidence(
-                                    new TypeEvidence(
-                                            currCellContents,
-                                            rowNum));
-                        }
-                    }
-                    else if(currInferredType == DataType.REAL)
-                    {
-                        // see if this conforms to the real format
-                        if(currCellContents.trim().length() >= 1 &&
-                           !TableColumnMetadata.isParsableAsReal(currCellContents))
-                        {
-                            // parse as text which allows any format
-                            currColMeta.setDataType(DataType.TEXT);
-                            currColMeta.setTypeInferenceEvidence(
-                                    new TypeEvidence(
-                                            currCellContents,
-                                            rowNum));
-                        }
-                        
-                        // either way we're done
-                        doneInferringType = true;
-                    }
-                    else
-                    {
-                        assert currInferredType == DataType.TEXT;
-                        doneInferringType = true;
-                    }
+                    this.inferBlock(
+                            executor,
+                            pendingBlocks,
+                            colMetadata,
+                            typedSink,
+                            currBlock,
+                            rowsInBlock,
+                            firstRowNumOfBlock,
+                            trackDistinctValues);
+                    profilerPhase.addRows(rowsInBlock);
+                    currBlock = new String[INFERENCE_BLOCK_ROW_COUNT][];
+                    rowsInBlock = 0;
+                    firstRowNumOfBlock = rowNum + 1;
                 }
             }
             
-            // write the row to temporary storage (we don't want to hold
-            // all of this in memory after all!)
-            sink.writeRow(currRow);
+            if(rowsInBlock >= 1)
+            {
+                this.inferBlock(
+                        executor,
+                        pendingBlocks,
+                        colMetadata,
+                        typedSink,
+                        currBlock,
+                        rowsInBlock,
+                        firstRowNumOfBlock,
+                        trackDistinctValues);
+                profilerPhase.addRows(rowsInBlock);
+            }
+            
+            while(!pendingBlocks.isEmpty())
+            {
+                this.mergeBlock(
+                        colMetadata,
+                        typedSink,
+                        this.getInferredBlock(pendingBlocks.removeFirst()));
+            }
+        }
+        finally
+        {
+            if(executor != null)
+            {
+                executor.shutdownNow();
+            }
+            
+            if(csvSink != null)
+            {
+                csvSink.close();
+            }
+            if(typedSink != null)
+            {
+                typedSink.close();
+            }
         }
+        profilerPhase.addBytesWritten(spillFile.length());
         
-        sink.flush();
+        if(typedSink != null)
+        {
+            LOG.fine(
+                    "wrote " + typedSink.getRowCount() + " rows to typed " +
+                    "spill file " + spillFile.getAbsolutePath());
+        }
         
         return colMetadata;
     }
     
+    /**
+     * Infer types for the given block of rows (encoding them for the typed
+     * spill if there is one) and merge the result into the column metadata.
+     * If there is an executor the work is queued up and we only block once
+     * there are too many blocks waiting on the pool
+     * @param executor
+     *          the executor to use or null to infer inline
+     * @param pendingBlocks
+     *          the blocks that have been queued but not yet merged
+     * @param colMetadata
+     *          the metadata to merge results into
+     * @param typedSink
+     *          the typed spill to write the block to or null
+     * @param block
+     *          the block of rows
+     * @param rowCount
+     *          the number of rows in the block
+     * @param firstRowNum
+     *          the file row number of the block's first row
+     * @param trackDistinctValues
+     *          if true the distinct values of each column are collected
+     * @throws IOException
+     *          if we're interrupted waiting on a block or fail to write
+     *          the typed spill
+     */
+    private void inferBlock(
+            ExecutorService executor,
+            LinkedList<Future<InferredBlock>> pendingBlocks,
+            TableColumnMetadata[] colMetadata,
+            TypedSpillWriter typedSink,
+            final String[][] block,
+            final int rowCount,
+            final int firstRowNum,
+            final boolean trackDistinctValues)
+    throws IOException
+    {
+        final int columnCount = colMetadata.length;
+        final boolean encode = typedSink != null;
+        if(executor == null)
+        {
+            this.mergeBlock(
+                    colMetadata,
+                    typedSink,
+                    InferredBlock.infer(
+                            block,
+                            rowCount,
+                            firstRowNum,
+                            columnCount,
+                            trackDistinctValues,
+                            encode));
+        }
+        else
+        {
+            pendingBlocks.addLast(executor.submit(new Callable<InferredBlock>()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public InferredBlock call()
+                {
+                    return InferredBlock.infer(
+                            block,
+                            rowCount,
+                            firstRowNum,
+                            columnCount,
+                            trackDistinctValues,
+                            encode);
+                }
+            }));
+            
+            // bound the number of rows held in memory
+            int maxPendingBlocks = 2 * this.inferenceThreadCount;
+            while(pendingBlocks.size() > maxPendingBlocks)
+            {
+                this.mergeBlock(
+                        colMetadata,
+                        typedSink,
+                        this.getInferredBlock(pendingBlocks.removeFirst()));
+            }
+        }
+    }
+    
+    /**
+     * Merge an inferred block into the column metadata and write its
+     * encoded rows. Blocks have to be merged in file order
+     * @param colMetadata
+     *          the metadata to merge into
+     * @param typedSink
+     *          the typed spill or null
+     * @param inferredBlock
+     *          the block
+     * @throws IOException
+     *          if we fail to write to the typed spill
+     */
+    private void mergeBlock(
+            TableColumnMetadata[] colMetadata,
+            TypedSpillWriter typedSink,
+            InferredBlock inferredBlock)
+    throws IOException
+    {
+        ColumnTypeInferrer.merge(colMetadata, inferredBlock.metadata);
+        if(typedSink != null)
+        {
+            typedSink.writeEncodedBlock(
+                    inferredBlock.encodedRows,
+                    inferredBlock.rowCount);
+        }
+    }
+    
+    private InferredBlock getInferredBlock(Future<InferredBlock> blockFuture)
+    throws IOException
+    {
+        try
+        {
+            return blockFuture.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while inferring column types");
+        }
+        catch(ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+    
+    /**
+     * The result of inferring (and optionally encoding) a block of rows
+     */
+    private static class InferredBlock
+    {
+        private final TableColumnMetadata[] metadata;
+        
+        private final byte[] encodedRows;
+        
+        private final int rowCount;
+        
+        private InferredBlock(
+                TableColumnMetadata[] metadata,
+                byte[] encodedRows,
+                int rowCount)
+        {
+            this.metadata = metadata;
+            this.encodedRows = encodedRows;
+            this.rowCount = rowCount;
+        }
+        
+        /**
+         * Infer the given block
+         * @param block
+         *          the block of rows
+         * @param rowCount
+         *          the number of rows in the block
+         * @param firstRowNum
+         *          the file row number of the block's first row
+         * @param columnCount
+         *          the column count
+         * @param trackDistinctValues
+         *          if true the distinct values of each column are collected
+         * @param encode
+         *          if true the rows are also encoded for a typed spill
+         * @return
+         *          the inferred block
+         */
+        private static InferredBlock infer(
+                String[][] block,
+                int rowCount,
+                int firstRowNum,
+                int columnCount,
+                boolean trackDistinctValues,
+                boolean encode)
+        {
+            TableColumnMetadata[] blockMetadata = ColumnTypeInferrer.inferBlock(
+                    block,
+                    rowCount,
+                    firstRowNum,
+                    columnCount,
+                    trackDistinctValues);
+            byte[] encodedRows = encode ?
+                    TypedSpillWriter.encodeBlock(block, rowCount, blockMetadata) :
+                    null;
+            
+            return new InferredBlock(blockMetadata, encodedRows, rowCount);
+        }
+    }
+    
     /**
      * Load the design data from the reader into temporary storage
      * @param tableName
@@ -276,18 +809,62 @@ public class CandidateDatabaseManager
             FlatFileReader flatFileReader)
     throws IllegalFormatException, IOException
     {
-        File designFile = File.createTempFile("design", null);
-        FlatFileWriter flatFileWriter = new FlatFileWriter(
-                new FileWriter(designFile),
-                STORAGE_FORMAT);
-        TableColumnMetadata[] colMetadata = this.inferMetadataAndWriteSourceToSink(
-                2,
-                flatFileReader,
-                flatFileWriter);
-        this.designTable = new CandidateTable(
-                colMetadata,
-                tableName,
-                designFile);
+        this.uploadDesignFile(tableName, flatFileReader, null);
+    }
+    
+    /**
+     * Load the design data from the reader into temporary storage. If there
+     * is an import cache that already holds the design for the given content
+     * key the reader isn't touched
+     * @param tableName
+     *          the table name to use
+     * @param flatFileReader
+     *          the flat file reader to load
+     * @param contentKey
+     *          the content key of the flat file (see
+     *          {@link ImportCache#getContentKey(File, FlatFileFormat)}) or
+     *          null if the upload shouldn't be cached
+     * @throws IOException if there is a problem with IO
+     * @throws IllegalFormatException if there is a problem with data formatting
+     */
+    public void uploadDesignFile(
+            String tableName,
+            FlatFileReader flatFileReader,
+            String contentKey)
+    throws IllegalFormatException, IOException
+    {
+        ImportProfiler.Phase profilerPhase = this.importProfiler.startPhase(
+                ImportProfiler.INFERENCE_CATEGORY,
+                tableName);
+        try
+        {
+            CandidateTable cachedTable = this.getCachedTable(contentKey, "design");
+            if(cachedTable != null)
+            {
+                cachedTable.setTableName(tableName);
+                this.designTable = cachedTable;
+                return;
+            }
+            
+            CandidateTable newDesignTable = new CandidateTable();
+            TableColumnMetadata[] colMetadata = this.inferMetadataAndSpill(
+                    2,
+                    flatFileReader,
+                    newDesignTable,
+                    "design",
+                    false,
+                    false,
+                    profilerPhase);
+            
+            newDesignTable.setMetadata(colMetadata);
+            newDesignTable.setTableName(tableName);
+            this.putCachedTable(contentKey, "design", newDesignTable);
+            this.designTable = newDesignTable;
+        }
+        finally
+        {
+            profilerPhase.finish();
+        }
     }
     
     /**
@@ -299,6 +876,16 @@ public class CandidateDatabaseManager
         return this.designTable;
     }
     
+    /**
+     * Setter for the design table. This is used to restore a design table
+     * that was uploaded by an earlier build (see {@link BuildCheckpoint})
+     * @param designTable the design table
+     */
+    public void setDesignTable(CandidateTable designTable)
+    {
+        this.designTable = designTable;
+    }
+    
     /**
      * Load the data from the reader into temporary storage
      * @param tableName
@@ -314,43 +901,83 @@ public class CandidateDatabaseManager
             String tableName,
             FlatFileReader flatFileReader) throws IllegalFormatException, IOException
     {
-        File dataFile = null;
-        TableColumnMetadata[] colMetadata = null;
-        
-        dataFile = File.createTempFile("data", "csv");
-        FlatFileWriter flatFileWriter = new FlatFileWriter(
-                new FileWriter(dataFile),
-                STORAGE_FORMAT);
-        
-        // infer column data types at the same time that we write the
-        // table to a temporary location on disk
-        colMetadata = this.inferMetadataAndWriteSourceToSink(
-                2,
-                flatFileReader,
-                flatFileWriter);
-        
-        // we require that everything after the ID column is a number of
-        // some kind
-        for(int colIndex = 1; colIndex < colMetadata.length; colIndex++)
+        this.uploadDataFile(tableName, flatFileReader, null);
+    }
+    
+    /**
+     * Load the data from the reader into temporary storage. If there is an
+     * import cache that already holds the data for the given content key
+     * the reader isn't touched
+     * @param tableName
+     *          the table name to use
+     * @param flatFileReader
+     *          the flat file reader to load
+     * @param contentKey
+     *          the content key of the flat file (see
+     *          {@link ImportCache#getContentKey(File, FlatFileFormat)}) or
+     *          null if the upload shouldn't be cached
+     * @throws IOException
+     *          if there is a problem reading or writing data
+     * @throws IllegalFormatException
+     *          if there is a problem with the way the data is formatted
+     */
+    public void uploadDataFile(
+            String tableName,
+            FlatFileReader flatFileReader,
+            String contentKey) throws IllegalFormatException, IOException
+    {
+        ImportProfiler.Phase profilerPhase = this.importProfiler.startPhase(
+                ImportProfiler.INFERENCE_CATEGORY,
+                tableName);
+        try
         {
-            if(colMetadata[colIndex].getDataType() == DataType.TEXT)
+            CandidateTable cachedTable = this.getCachedTable(contentKey, "data");
+            if(cachedTable != null)
+            {
+                cachedTable.setTableName(tableName);
+                this.dataTable = cachedTable;
+                return;
+            }
+            
+            // infer column data types at the same time that we write the
+            // table to a temporary location on disk
+            CandidateTable newDataTable = new CandidateTable();
+            TableColumnMetadata[] colMetadata = this.inferMetadataAndSpill(
+                    2,
+                    flatFileReader,
+                    newDataTable,
+                    "data",
+                    this.spillFormat == SpillFormat.TYPED_BINARY,
+                    false,
+                    profilerPhase);
+            
+            // we require that everything after the ID column is a number of
+            // some kind
+            for(int colIndex = 1; colIndex < colMetadata.length; colIndex++)
             {
-                TypeEvidence evidence =
-                    colMetadata[colIndex].getTypeInferenceEvidence();
-                throw new IllegalFormatException(
-                        "Error parsing data file. Expected all data " +
-                        "input to be numeric, but found the following " +
-                        "non-numeric value at row=" +
-                        evidence.getRowNumber() +
-                        ", column=" + (colIndex + 1) + ": \"" +
-                        evidence.getCellContents() + "\"");
+                if(colMetadata[colIndex].getDataType() == DataType.TEXT)
+                {
+                    TypeEvidence evidence =
+                        colMetadata[colIndex].getTypeInferenceEvidence();
+                    throw new IllegalFormatException(
+                            "Error parsing data file. Expected all data " +
+                            "input to be numeric, but found the following " +
+                            "non-numeric value at row=" +
+                            evidence.getRowNumber() +
+                            ", column=" + (colIndex + 1) + ": \"" +
+                            evidence.getCellContents() + "\"");
+                }
             }
+            
+            newDataTable.setMetadata(colMetadata);
+            newDataTable.setTableName(tableName);
+            this.putCachedTable(contentKey, "data", newDataTable);
+            this.dataTable = newDataTable;
+        }
+        finally
+        {
+            profilerPhase.finish();
         }
-        
-        this.dataTable = new CandidateTable(
-                colMetadata,
-                tableName,
-                dataFile);
     }
     
     /**
@@ -362,6 +989,16 @@ public class CandidateDatabaseManager
         return this.dataTable;
     }
     
+    /**
+     * Setter for the data table. This is used to restore a data table
+     * that was uploaded by an earlier build (see {@link BuildCheckpoint})
+     * @param dataTable the data table
+     */
+    public void setDataTable(CandidateTable dataTable)
+    {
+        this.dataTable = dataTable;
+    }
+    
     /**
      * Load the annotations from the reader into temporary storage
      * @param categoryName
@@ -380,31 +1017,91 @@ public class CandidateDatabaseManager
             String tableName,
             FlatFileReader flatFileReader)
     throws IllegalFormatException, IOException
+    {
+        this.uploadAnnotationFile(categoryName, tableName, flatFileReader, null);
+    }
+    
+    /**
+     * Load the annotations from the reader into temporary storage. If there
+     * is an import cache that already holds the annotations for the given
+     * content key the reader isn't touched
+     * @param categoryName
+     *          an optional category grouping for the annotation
+     * @param tableName
+     *          the client side file name for the upload
+     * @param flatFileReader
+     *          the flat file reader to load
+     * @param contentKey
+     *          the content key of the flat file (see
+     *          {@link ImportCache#getContentKey(File, FlatFileFormat)}) or
+     *          null if the upload shouldn't be cached
+     * @throws IOException
+     *          if we have problems reading or writing data
+     * @throws IllegalFormatException
+     *          if we find a problem with how the data is formatted
+     */
+    public void uploadAnnotationFile(
+            String categoryName,
+            String tableName,
+            FlatFileReader flatFileReader,
+            String contentKey)
+    throws IllegalFormatException, IOException
     {
         if(categoryName == null)
         {
             categoryName = "Annotation Data";
         }
         
-        File annotationFile = null;
-        TableColumnMetadata[] colMetadata = null;
-        
-        annotationFile = File.createTempFile("annotation", "csv");
-        FlatFileWriter flatFileWriter = new FlatFileWriter(
-                new FileWriter(annotationFile),
-                STORAGE_FORMAT);
-        colMetadata = this.inferMetadataAndWriteSourceToSink(
-                2,
-                flatFileReader,
-                flatFileWriter);
-        
-        CandidateTable annotationTable = new CandidateTable(
-                colMetadata,
-                categoryName,
-                tableName,
-                annotationFile);
-        this.annotationTables.put(tableName, annotationTable);
-        this.orderedAnnotationTableKeys.add(tableName);
+        ImportProfiler.Phase profilerPhase = this.importProfiler.startPhase(
+                ImportProfiler.INFERENCE_CATEGORY,
+                tableName);
+        try
+        {
+            CandidateTable cachedTable = this.getCachedTable(contentKey, "annotation");
+            if(cachedTable != null)
+            {
+                cachedTable.setCategoryName(categoryName);
+                cachedTable.setTableName(tableName);
+                this.addAnnotationTable(cachedTable);
+                return;
+            }
+            
+            CandidateTable annotationTable = new CandidateTable();
+            TableColumnMetadata[] colMetadata = this.inferMetadataAndSpill(
+                    2,
+                    flatFileReader,
+                    annotationTable,
+                    "annotation",
+                    this.spillFormat == SpillFormat.TYPED_BINARY,
+                    this.isTrackingDistinctValues("annotation"),
+                    profilerPhase);
+            
+            annotationTable.setMetadata(colMetadata);
+            annotationTable.setCategoryName(categoryName);
+            annotationTable.setTableName(tableName);
+            this.putCachedTable(contentKey, "annotation", annotationTable);
+            this.annotationTables.put(tableName, annotationTable);
+            this.orderedAnnotationTableKeys.add(tableName);
+        }
+        finally
+        {
+            profilerPhase.finish();
+        }
+    }
+    
+    /**
+     * Add an annotation table that was uploaded by an earlier build (see
+     * {@link BuildCheckpoint}). The table goes after any annotations that
+     * are already here and is keyed on its table name
+     * @param annotationTable
+     *          the annotation table
+     */
+    public void addAnnotationTable(CandidateTable annotationTable)
+    {
+        this.annotationTables.put(
+                annotationTable.getTableName(),
+                annotationTable);
+        this.orderedAnnotationTableKeys.add(annotationTable.getTableName());
     }
     
     /**
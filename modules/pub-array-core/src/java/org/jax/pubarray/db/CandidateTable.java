@@ -18,11 +18,13 @@
 package org.jax.pubarray.db;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
 import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
 import org.jax.util.io.FlatFileReader;
+import org.jax.util.io.IllegalFormatException;
 
 /**
  * A class for holding on to temporary candidate table
@@ -32,6 +34,8 @@ public class CandidateTable
 {
     private TableColumnMetadata[] metadata = null;
     private File serverSideFile = null;
+    private File typedSpillFile = null;
+    private SpillManager spillManager = null;
     private String tableName = null;
     private String categoryName = null;
     
@@ -103,6 +107,51 @@ public class CandidateTable
         this.metadata = metadata;
     }
     
+    /**
+     * Get the distinct values of each column (see
+     * {@link TableColumnMetadata#getDistinctValues()}). The distinct values
+     * aren't serialized along with the metadata so anything that saves
+     * this table's metadata has to save these too
+     * @return
+     *          the distinct values indexed by column (null for columns
+     *          that don't have them tracked) or null if there is no
+     *          metadata
+     */
+    public String[][] getColumnDistinctValues()
+    {
+        if(this.metadata == null)
+        {
+            return null;
+        }
+        else
+        {
+            String[][] columnDistinctValues = new String[this.metadata.length][];
+            for(int i = 0; i < this.metadata.length; i++)
+            {
+                columnDistinctValues[i] = this.metadata[i].getDistinctValues();
+            }
+            return columnDistinctValues;
+        }
+    }
+    
+    /**
+     * Restore the distinct values of each column into the metadata. Call
+     * this after {@link #setMetadata(TableColumnMetadata[])}
+     * @see #getColumnDistinctValues()
+     * @param columnDistinctValues
+     *          the distinct values from {@link #getColumnDistinctValues()}
+     */
+    public void setColumnDistinctValues(String[][] columnDistinctValues)
+    {
+        if(this.metadata != null && columnDistinctValues != null)
+        {
+            for(int i = 0; i < this.metadata.length && i < columnDistinctValues.length; i++)
+            {
+                this.metadata[i].setDistinctValues(columnDistinctValues[i]);
+            }
+        }
+    }
+    
     /**
      * Getter for the file
      * @return the file
@@ -121,6 +170,26 @@ public class CandidateTable
         this.serverSideFile = serverSideFile;
     }
     
+    /**
+     * Getter for the typed spill file. If this is non-null it holds the
+     * table's rows in the binary format written by {@link TypedSpillWriter}
+     * instead of {@link #getServerSideFile()}
+     * @return the typed spill file or null
+     */
+    public File getTypedSpillFile()
+    {
+        return this.typedSpillFile;
+    }
+    
+    /**
+     * Setter for the typed spill file
+     * @param typedSpillFile the typed spill file to set
+     */
+    public void setTypedSpillFile(File typedSpillFile)
+    {
+        this.typedSpillFile = typedSpillFile;
+    }
+    
     /**
      * Getter for the table name
      * @return the table name
@@ -157,15 +226,34 @@ public class CandidateTable
         this.categoryName = categoryName;
     }
     
+    /**
+     * Getter for the spill manager that owns this table's files
+     * @return the spill manager or null if the files are plain
+     *          uncompressed files that are not managed
+     */
+    public SpillManager getSpillManager()
+    {
+        return this.spillManager;
+    }
+    
+    /**
+     * Setter for the spill manager that owns this table's files
+     * @param spillManager the spill manager to set
+     */
+    public void setSpillManager(SpillManager spillManager)
+    {
+        this.spillManager = spillManager;
+    }
+    
     /**
      * A convenience function for reading {@link #getServerSideFile()} as a flat file.
      * Returns null if the file is null
      * @return
      *          the flat file reader or null
-     * @throws FileNotFoundException
+     * @throws IOException
      *          if we get an exception trying to open the file
      */
-    public FlatFileReader readFile() throws FileNotFoundException
+    public FlatFileReader readFile() throws IOException
     {
         File file = this.getServerSideFile();
         if(file == null)
@@ -175,10 +263,41 @@ public class CandidateTable
         else
         {
             FlatFileReader designFileReader = new FlatFileReader(
-                    new FileReader(file),
+                    this.spillManager == null ?
+                            new FileReader(file) :
+                            new InputStreamReader(
+                                    this.spillManager.openInput(file),
+                                    CandidateDatabaseManager.STORAGE_CHARSET),
                     CandidateDatabaseManager.STORAGE_FORMAT);
             
             return designFileReader;
         }
     }
+    
+    /**
+     * A convenience function for reading {@link #getTypedSpillFile()}.
+     * Returns null if the file is null
+     * @return
+     *          the typed reader or null
+     * @throws IOException
+     *          if we get an exception trying to open the file
+     * @throws IllegalFormatException
+     *          if the file is not a valid typed spill file
+     */
+    public TypedSpillReader readTypedFile() throws IOException, IllegalFormatException
+    {
+        File file = this.getTypedSpillFile();
+        if(file == null)
+        {
+            return null;
+        }
+        else
+        {
+            return this.spillManager == null ?
+                    new TypedSpillReader(file, this.metadata) :
+                    new TypedSpillReader(
+                            this.spillManager.openInput(file),
+                            this.metadata);
+        }
+    }
 }
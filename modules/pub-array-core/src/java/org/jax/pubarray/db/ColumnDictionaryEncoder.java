@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.QualifiedColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+
+/**
+ * Dictionary encodes the low cardinality text columns of annotation tables
+ * (see {@link PersistenceManager#isDictionaryEncodingEnabled()}). Each
+ * encoded table gets a dictionary table holding the values of its encoded
+ * columns and the columns themselves hold integer codes. The read side
+ * looks dictionaries up so that queries can translate filters and results
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class ColumnDictionaryEncoder
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            ColumnDictionaryEncoder.class.getName());
+    
+    // the dictionaries for annotation columns that are stored as codes
+    static final String DICTIONARY_TABLE_SUFFIX = "_DICTIONARY";
+    static final String DICTIONARY_CODE_COL = "DICTIONARY_CODE";
+    static final String DICTIONARY_VALUE_COL = "DICTIONARY_VALUE";
+    
+    /**
+     * the column dictionaries of each table that we've looked at, indexed
+     * by column number (see {@link #getColumnDictionaries(Connection, String)})
+     */
+    private final Map<String, String[][]> columnDictionaryCache =
+        new ConcurrentHashMap<String, String[][]>();
+    
+    private final PersistenceManager persistenceManager;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that owns the encoded tables
+     */
+    ColumnDictionaryEncoder(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+    }
+    
+    /**
+     * Build the dictionary table for the given table if any of its columns
+     * should be dictionary encoded (see
+     * {@link PersistenceManager#isDictionaryEncodingEnabled()}).
+     * Only the text columns of annotation tables are encoded and never the
+     * ID column. Codes are handed out in the order that the database sorts
+     * the values in so that ordering on a column's codes is the same as
+     * ordering on its values. Any old dictionary table is dropped
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table whose columns are encoded
+     * @param columnMetadata
+     *          metadata about the table columns
+     * @return
+     *          the dictionaries indexed by column number where a value's
+     *          code is its index in the dictionary. Columns that aren't
+     *          encoded have null dictionaries and the return value is null
+     *          if no columns are encoded
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    String[][] buildDictionaryTable(
+            Connection connection,
+            String tableName,
+            TableColumnMetadata[] columnMetadata)
+    throws SQLException
+    {
+        String dictionaryTableName = tableName + DICTIONARY_TABLE_SUFFIX;
+        this.dropDictionaryTable(connection, tableName);
+        if(!this.persistenceManager.isDictionaryEncodingEnabled() ||
+           !tableName.startsWith(PersistenceManager.ANNOTATION_TABLE_NAME_PREFIX))
+        {
+            return null;
+        }
+        
+        String[][] columnDictionaries = null;
+        int encodedColumnCount = 0;
+        int longestValueLength = 1;
+        for(int colIndex = 1; colIndex < columnMetadata.length; colIndex++)
+        {
+            TableColumnMetadata currColMeta = columnMetadata[colIndex];
+            if(currColMeta.getDataType() == DataType.TEXT &&
+               currColMeta.getDistinctValues() != null)
+            {
+                if(columnDictionaries == null)
+                {
+                    columnDictionaries = new String[columnMetadata.length][];
+                }
+                columnDictionaries[colIndex] = currColMeta.getDistinctValues();
+                encodedColumnCount++;
+                longestValueLength = Math.max(
+                        longestValueLength,
+                        currColMeta.getLongestStringLength());
+            }
+        }
+        
+        if(columnDictionaries == null)
+        {
+            return null;
+        }
+        
+        Statement dictionaryStatement = connection.createStatement();
+        try
+        {
+            dictionaryStatement.executeUpdate(
+                    "CREATE TABLE " + dictionaryTableName + " (" +
+                    PersistenceManager.COL_NUM_META_COL + " INTEGER NOT NULL, " +
+                    DICTIONARY_CODE_COL + " INTEGER NOT NULL, " +
+                    DICTIONARY_VALUE_COL + " VARCHAR(" + longestValueLength + ") NOT NULL, " +
+                    "PRIMARY KEY (" + PersistenceManager.COL_NUM_META_COL + ", " + DICTIONARY_CODE_COL + "))");
+            
+            // the values go in with negative placeholder codes first so that
+            // the database can tell us what order it sorts them in
+            PreparedStatement insertStatement = connection.prepareStatement(
+                    "INSERT INTO " + dictionaryTableName + " VALUES (?, ?, ?)");
+            PreparedStatement orderStatement = connection.prepareStatement(
+                    "SELECT " + DICTIONARY_VALUE_COL + " FROM " +
+                    dictionaryTableName + " WHERE " + PersistenceManager.COL_NUM_META_COL +
+                    " = ? ORDER BY " + DICTIONARY_VALUE_COL + ", " +
+                    DICTIONARY_CODE_COL + " DESC");
+            try
+            {
+                for(int colIndex = 1; colIndex < columnDictionaries.length; colIndex++)
+                {
+                    String[] distinctValues = columnDictionaries[colIndex];
+                    if(distinctValues != null)
+                    {
+                        for(int i = 0; i < distinctValues.length; i++)
+                        {
+                            insertStatement.setInt(1, colIndex);
+                            insertStatement.setInt(2, -1 - i);
+                            insertStatement.setString(3, distinctValues[i]);
+                            insertStatement.addBatch();
+                        }
+                        insertStatement.executeBatch();
+                        
+                        String[] dictionary = new String[distinctValues.length];
+                        orderStatement.setInt(1, colIndex);
+                        ResultSet orderedValues = orderStatement.executeQuery();
+                        for(int code = 0; orderedValues.next(); code++)
+                        {
+                            dictionary[code] = orderedValues.getString(1);
+                        }
+                        orderedValues.close();
+                        
+                        for(int code = 0; code < dictionary.length; code++)
+                        {
+                            insertStatement.setInt(1, colIndex);
+                            insertStatement.setInt(2, code);
+                            insertStatement.setString(3, dictionary[code]);
+                            insertStatement.addBatch();
+                        }
+                        insertStatement.executeBatch();
+                        columnDictionaries[colIndex] = dictionary;
+                    }
+                }
+            }
+            finally
+            {
+                insertStatement.close();
+                orderStatement.close();
+            }
+            
+            dictionaryStatement.executeUpdate(
+                    "DELETE FROM " + dictionaryTableName + " WHERE " +
+                    DICTIONARY_CODE_COL + " < 0");
+        }
+        finally
+        {
+            dictionaryStatement.close();
+        }
+        
+        if(!connection.getAutoCommit())
+        {
+            connection.commit();
+        }
+        
+        LOG.info(
+                "dictionary encoding " + encodedColumnCount + " of the " +
+                columnMetadata.length + " columns in " + tableName);
+        return columnDictionaries;
+    }
+    
+    /**
+     * Drop the given table's dictionary table (if it has one) and forget
+     * any dictionaries that we've read for it
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table whose columns were encoded
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    void dropDictionaryTable(Connection connection, String tableName)
+    throws SQLException
+    {
+        this.columnDictionaryCache.remove(tableName);
+        this.persistenceManager.dropTableNamed(
+                connection,
+                tableName + DICTIONARY_TABLE_SUFFIX);
+    }
+    
+    /**
+     * Get the metadata for the columns as they are stored, which is the
+     * given metadata except that dictionary encoded columns are integers
+     * @param columnMetadata
+     *          the column metadata
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the stored column metadata
+     */
+    static TableColumnMetadata[] toStoredColumnMetadata(
+            TableColumnMetadata[] columnMetadata,
+            String[][] columnDictionaries)
+    {
+        if(columnDictionaries == null)
+        {
+            return columnMetadata;
+        }
+        else
+        {
+            TableColumnMetadata[] storedMetadata =
+                new TableColumnMetadata[columnMetadata.length];
+            for(int colIndex = 0; colIndex < columnMetadata.length; colIndex++)
+            {
+                if(columnDictionaries[colIndex] == null)
+                {
+                    storedMetadata[colIndex] = columnMetadata[colIndex];
+                }
+                else
+                {
+                    storedMetadata[colIndex] = new TableColumnMetadata(
+                            columnMetadata[colIndex].getName(),
+                            DataType.INTEGER,
+                            columnMetadata[colIndex].getDescription());
+                }
+            }
+            return storedMetadata;
+        }
+    }
+    
+    /**
+     * Turn the given dictionaries into maps from value to code
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the code maps indexed by column number (null for columns
+     *          that aren't encoded) or null if there are no dictionaries
+     */
+    static List<Map<String, Integer>> toDictionaryCodes(
+            String[][] columnDictionaries)
+    {
+        if(columnDictionaries == null)
+        {
+            return null;
+        }
+        else
+        {
+            List<Map<String, Integer>> dictionaryCodes =
+                new ArrayList<Map<String, Integer>>(columnDictionaries.length);
+            for(String[] dictionary: columnDictionaries)
+            {
+                if(dictionary == null)
+                {
+                    dictionaryCodes.add(null);
+                }
+                else
+                {
+                    Map<String, Integer> codes = new HashMap<String, Integer>(
+                            dictionary.length * 2);
+                    for(int code = 0; code < dictionary.length; code++)
+                    {
+                        codes.put(dictionary[code], code);
+                    }
+                    dictionaryCodes.add(codes);
+                }
+            }
+            return dictionaryCodes;
+        }
+    }
+    
+    /**
+     * Look up the dictionary code for the given value
+     * @param dictionaryCodes
+     *          the column's codes
+     * @param value
+     *          the value
+     * @return
+     *          the code
+     * @throws IllegalArgumentException
+     *          if the value isn't in the dictionary. This means that the
+     *          rows don't match the metadata that was inferred from them
+     */
+    static int toDictionaryCode(
+            Map<String, Integer> dictionaryCodes,
+            String value)
+    throws IllegalArgumentException
+    {
+        Integer code = dictionaryCodes.get(value);
+        if(code == null)
+        {
+            throw new IllegalArgumentException(
+                    "the value \"" + value + "\" is missing from the " +
+                    "column's dictionary");
+        }
+        return code.intValue();
+    }
+    
+    /**
+     * Get the dictionary for the given normalized column
+     * @param connection
+     *          the connection
+     * @param column
+     *          the column (with SQL table and column names)
+     * @return
+     *          the dictionary or null if the column isn't dictionary
+     *          encoded
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    String[] getColumnDictionary(
+            Connection connection,
+            QualifiedColumnMetadata column)
+    throws SQLException
+    {
+        String[][] columnDictionaries = this.getColumnDictionaries(
+                connection,
+                column.getTableName());
+        int columnNumber = toColumnNumber(column);
+        return columnNumber < columnDictionaries.length ?
+                columnDictionaries[columnNumber] :
+                null;
+    }
+    
+    /**
+     * Get the column number from a normalized column's name
+     * @param column
+     *          the column
+     * @return
+     *          the number
+     */
+    static int toColumnNumber(QualifiedColumnMetadata column)
+    {
+        return Integer.parseInt(
+                column.getName().substring(PersistenceManager.COL_NAME_PREFIX.length()));
+    }
+    
+    /**
+     * Get the dictionaries of the given table's dictionary encoded columns
+     * (see
+     * {@link PersistenceManager#isDictionaryEncodingEnabled()}). The answer is
+     * remembered after the first time we look
+     * @param connection
+     *          the connection
+     * @param tableName
+     *          the SQL table name
+     * @return
+     *          the dictionaries indexed by column number. Columns that
+     *          aren't encoded have null dictionaries and if none of them
+     *          are the array is empty
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    private String[][] getColumnDictionaries(
+            Connection connection,
+            String tableName)
+    throws SQLException
+    {
+        String[][] columnDictionaries = this.columnDictionaryCache.get(tableName);
+        if(columnDictionaries == null)
+        {
+            String dictionaryTableName = tableName + DICTIONARY_TABLE_SUFFIX;
+            Map<Integer, List<String>> dictionaryMap =
+                new HashMap<Integer, List<String>>();
+            int columnCount = 0;
+            if(this.persistenceManager.tableExists(connection, dictionaryTableName))
+            {
+                Statement dictionaryStatement = connection.createStatement();
+                try
+                {
+                    ResultSet dictionaryResults = dictionaryStatement.executeQuery(
+                            "SELECT " + PersistenceManager.COL_NUM_META_COL + ", " +
+                            DICTIONARY_VALUE_COL + " FROM " +
+                            dictionaryTableName + " ORDER BY " +
+                            PersistenceManager.COL_NUM_META_COL + ", " + DICTIONARY_CODE_COL);
+                    while(dictionaryResults.next())
+                    {
+                        Integer columnNumber = dictionaryResults.getInt(1);
+                        List<String> dictionary = dictionaryMap.get(columnNumber);
+                        if(dictionary == null)
+                        {
+                            dictionary = new ArrayList<String>();
+                            dictionaryMap.put(columnNumber, dictionary);
+                            columnCount = Math.max(
+                                    columnCount,
+                                    columnNumber.intValue() + 1);
+                        }
+                        dictionary.add(dictionaryResults.getString(2));
+                    }
+                    dictionaryResults.close();
+                }
+                finally
+                {
+                    dictionaryStatement.close();
+                }
+            }
+            
+            columnDictionaries = new String[columnCount][];
+            for(Map.Entry<Integer, List<String>> entry: dictionaryMap.entrySet())
+            {
+                List<String> dictionary = entry.getValue();
+                columnDictionaries[entry.getKey().intValue()] =
+                    dictionary.toArray(new String[dictionary.size()]);
+            }
+            this.columnDictionaryCache.put(tableName, columnDictionaries);
+        }
+        
+        return columnDictionaries;
+    }
+    
+    /**
+     * Decode a cell from a dictionary encoded column
+     * @param cell
+     *          the cell as it came from the database
+     * @param dictionary
+     *          the column's dictionary or null if it isn't encoded
+     * @return
+     *          the decoded cell
+     */
+    static Object decodeCell(Object cell, String[] dictionary)
+    {
+        if(dictionary == null || cell == null)
+        {
+            return cell;
+        }
+        else
+        {
+            return dictionary[((Number)cell).intValue()];
+        }
+    }
+}
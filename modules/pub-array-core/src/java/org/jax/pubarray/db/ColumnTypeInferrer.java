@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.TypeEvidence;
+
+/**
+ * Does best effort type inference on blocks of table rows. Blocks can be
+ * inferred independently (and in parallel) and then combined with
+ * {@link #merge(TableColumnMetadata[], TableColumnMetadata[])}. Merging the
+ * blocks in any order gives the same result that a single pass over all of
+ * the rows would give. The distinct values of each column are tracked
+ * along the way until there are more than {@link #MAX_DISTINCT_VALUES} of
+ * them (see {@link TableColumnMetadata#getDistinctValues()})
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ColumnTypeInferrer
+{
+    /**
+     * columns with more distinct values than this don't have them tracked
+     */
+    public static final int MAX_DISTINCT_VALUES = 256;
+    
+    /**
+     * Constructor
+     */
+    private ColumnTypeInferrer()
+    {
+        // static functions only
+    }
+    
+    /**
+     * Infer the column metadata for a block of rows. The returned metadata
+     * have no names
+     * @param rows
+     *          the rows (only the 1st rowCount rows are used)
+     * @param rowCount
+     *          the number of rows in the block
+     * @param firstRowNumber
+     *          the row number of rows[0] as it should be reported in the
+     *          {@link TypeEvidence}
+     * @param columnCount
+     *          the column count. Every row must have this many columns
+     * @param trackDistinctValues
+     *          if true the distinct values of each column are collected
+     *          (see {@link TableColumnMetadata#getDistinctValues()}). They
+     *          are only used for dictionary encoding so otherwise we don't
+     *          pay for hashing every cell
+     * @return
+     *          the inferred metadata for this block
+     */
+    public static TableColumnMetadata[] inferBlock(
+            String[][] rows,
+            int rowCount,
+            int firstRowNumber,
+            int columnCount,
+            boolean trackDistinctValues)
+    {
+        TableColumnMetadata[] blockMetadata = new TableColumnMetadata[columnCount];
+        List<Set<String>> distinctValueSets = new ArrayList<Set<String>>(columnCount);
+        for(int colIndex = 0; colIndex < columnCount; colIndex++)
+        {
+            blockMetadata[colIndex] = new TableColumnMetadata();
+            distinctValueSets.add(trackDistinctValues ? new HashSet<String>() : null);
+        }
+        
+        for(int rowIndex = 0; rowIndex < rowCount; rowIndex++)
+        {
+            String[] currRow = rows[rowIndex];
+            int rowNum = firstRowNumber + rowIndex;
+            for(int colIndex = 0; colIndex < columnCount; colIndex++)
+            {
+                inferCell(blockMetadata[colIndex], currRow[colIndex], rowNum);
+                
+                // stop tracking values once there are too many of them
+                Set<String> distinctValues = distinctValueSets.get(colIndex);
+                if(distinctValues != null &&
+                   distinctValues.add(currRow[colIndex]) &&
+                   distinctValues.size() > MAX_DISTINCT_VALUES)
+                {
+                    distinctValueSets.set(colIndex, null);
+                }
+            }
+        }
+        
+        for(int colIndex = 0; colIndex < columnCount; colIndex++)
+        {
+            Set<String> distinctValues = distinctValueSets.get(colIndex);
+            if(distinctValues != null)
+            {
+                String[] sortedValues = distinctValues.toArray(
+                        new String[distinctValues.size()]);
+                Arrays.sort(sortedValues);
+                blockMetadata[colIndex].setDistinctValues(sortedValues);
+            }
+        }
+        
+        return blockMetadata;
+    }
+    
+    /**
+     * Update the given column metadata using the contents of a single cell
+     * @param currColMeta
+     *          the metadata to update
+     * @param currCellContents
+     *          the cell contents
+     * @param rowNum
+     *          the row number for the cell (used as evidence)
+     */
+    public static void inferCell(
+            TableColumnMetadata currColMeta,
+            String currCellContents,
+            int rowNum)
+    {
+        // make sure we keep track of the max string length
+        if(currCellContents.length() > currColMeta.getLongestStringLength())
+        {
+            currColMeta.setLongestStringLength(currCellContents.length());
+        }
+        
+        // loop through the type inference logic
+        // TODO be smarter about empty strings
+        boolean doneInferringType = false;
+        while(!doneInferringType)
+        {
+            DataType currInferredType = currColMeta.getDataType();
+            
+            if(currInferredType == null)
+            {
+                // start off with the most restrictive formatting
+                // possible (an integer)
+                currColMeta.setDataType(DataType.INTEGER);
+                currColMeta.setTypeInferenceEvidence(
+                        new TypeEvidence(
+                                currCellContents,
+                                rowNum));
+            }
+            else if(currInferredType == DataType.INTEGER)
+            {
+                // see if this conforms to the integer format
+                if(currCellContents.trim().length() == 0 ||
+                   TableColumnMetadata.isParsableAsInteger(currCellContents))
+                {
+                    doneInferringType = true;
+                }
+                else
+                {
+                    // jump to the next less restrictive data type
+                    currColMeta.setDataType(DataType.REAL);
+                    currColMeta.setTypeInferenceEvidence(
+                            new TypeEvidence(
+                                    currCellContents,
+                                    rowNum));
+                }
+            }
+            else if(currInferredType == DataType.REAL)
+            {
+                // see if this conforms to the real format
+                if(currCellContents.trim().length() >= 1 &&
+                   !TableColumnMetadata.isParsableAsReal(currCellContents))
+                {
+                    // parse as text which allows any format
+                    currColMeta.setDataType(DataType.TEXT);
+                    currColMeta.setTypeInferenceEvidence(
+                            new TypeEvidence(
+                                    currCellContents,
+                                    rowNum));
+                }
+                
+                // either way we're done
+                doneInferringType = true;
+            }
+            else
+            {
+                assert currInferredType == DataType.TEXT;
+                doneInferringType = true;
+            }
+        }
+    }
+    
+    /**
+     * Merge the block metadata into the accumulated metadata. The least
+     * restrictive type wins and when two blocks agree on the type we keep the
+     * evidence with the earliest row number (this is the evidence that a
+     * single pass would have kept). Distinct values are combined unless
+     * either side stopped tracking them or there are too many of them
+     * together
+     * @param accumulated
+     *          the metadata to merge into (names etc. are left alone)
+     * @param block
+     *          the block metadata to merge
+     */
+    public static void merge(
+            TableColumnMetadata[] accumulated,
+            TableColumnMetadata[] block)
+    {
+        if(accumulated.length != block.length)
+        {
+            throw new IllegalArgumentException(
+                    "can't merge metadata with " + block.length +
+                    " columns into metadata with " + accumulated.length +
+                    " columns");
+        }
+        
+        for(int colIndex = 0; colIndex < accumulated.length; colIndex++)
+        {
+            TableColumnMetadata accCol = accumulated[colIndex];
+            TableColumnMetadata blockCol = block[colIndex];
+            
+            // accumulated metadata without a type hasn't had anything
+            // merged into it yet
+            if(accCol.getDataType() == null)
+            {
+                accCol.setDistinctValues(blockCol.getDistinctValues());
+            }
+            else
+            {
+                accCol.setDistinctValues(mergeDistinctValues(
+                        accCol.getDistinctValues(),
+                        blockCol.getDistinctValues()));
+            }
+            
+            if(blockCol.getLongestStringLength() > accCol.getLongestStringLength())
+            {
+                accCol.setLongestStringLength(blockCol.getLongestStringLength());
+            }
+            
+            int accRank = typeRank(accCol.getDataType());
+            int blockRank = typeRank(blockCol.getDataType());
+            if(blockRank > accRank)
+            {
+                accCol.setDataType(blockCol.getDataType());
+                accCol.setTypeInferenceEvidence(blockCol.getTypeInferenceEvidence());
+            }
+            else if(blockRank == accRank && blockRank >= 1)
+            {
+                TypeEvidence accEvidence = accCol.getTypeInferenceEvidence();
+                TypeEvidence blockEvidence = blockCol.getTypeInferenceEvidence();
+                if(accEvidence == null ||
+                   (blockEvidence != null &&
+                    blockEvidence.getRowNumber() < accEvidence.getRowNumber()))
+                {
+                    accCol.setTypeInferenceEvidence(blockEvidence);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Combine two sorted arrays of distinct values
+     * @param distinctValues1
+     *          the 1st array (or null if untracked)
+     * @param distinctValues2
+     *          the 2nd array (or null if untracked)
+     * @return
+     *          the sorted union or null if either side is null or the
+     *          union has more than {@link #MAX_DISTINCT_VALUES} values
+     */
+    private static String[] mergeDistinctValues(
+            String[] distinctValues1,
+            String[] distinctValues2)
+    {
+        if(distinctValues1 == null || distinctValues2 == null)
+        {
+            return null;
+        }
+        else
+        {
+            Set<String> union = new TreeSet<String>(Arrays.asList(distinctValues1));
+            union.addAll(Arrays.asList(distinctValues2));
+            if(union.size() > MAX_DISTINCT_VALUES)
+            {
+                return null;
+            }
+            else
+            {
+                return union.toArray(new String[union.size()]);
+            }
+        }
+    }
+    
+    /**
+     * Rank the types from most restrictive (null meaning nothing seen yet)
+     * to least restrictive
+     * @param dataType
+     *          the type
+     * @return
+     *          the rank
+     */
+    private static int typeRank(DataType dataType)
+    {
+        if(dataType == null)
+        {
+            return 0;
+        }
+        else
+        {
+            switch(dataType)
+            {
+                case INTEGER:   return 1;
+                case REAL:      return 2;
+                case TEXT:      return 3;
+                
+                default: throw new IllegalArgumentException(
+                        "unexpected data type: " + dataType);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.util.datastructure.SequenceUtilities;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Adds primary keys to tables after their rows are loaded when
+ * {@link PersistenceManager#isIndexCreationDeferred()} is on, turning a key
+ * that can't be added into an error that names the duplicate IDs
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class DeferredKeyCreator
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            DeferredKeyCreator.class.getName());
+    
+    private final PersistenceManager persistenceManager;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that owns the tables
+     */
+    DeferredKeyCreator(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+    }
+    
+    /**
+     * If {@link PersistenceManager#isIndexCreationDeferred()} is true add the primary key to
+     * a table that was built by
+     * {@link PersistenceManager#buildEmptyTable(Connection, String, TableColumnMetadata[])}
+     * and has had all of its rows inserted. If the primary key can't be
+     * added because of duplicate or missing IDs an
+     * {@link IllegalFormatException} describing the problem is thrown
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param logicalTableName
+     *          the name that the user knows the table by (used for error
+     *          messages)
+     * @param columnMetadata
+     *          metadata about the table columns
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if the ID column has duplicate or missing values
+     */
+    void createDeferredIndexes(
+            Connection connection,
+            String tableName,
+            String logicalTableName,
+            TableColumnMetadata[] columnMetadata)
+    throws SQLException, IllegalFormatException
+    {
+        if(this.persistenceManager.isIndexCreationDeferred())
+        {
+            ImportProfiler.Phase indexPhase =
+                this.persistenceManager.getImportProfiler().startPhase(
+                        ImportProfiler.TABLE_CREATION_CATEGORY,
+                        tableName + " primary key");
+            long startTimeMillis = System.currentTimeMillis();
+            String idColumnName = PersistenceManager.COL_NAME_PREFIX + 0;
+            
+            Statement alterStatement = connection.createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            try
+            {
+                alterStatement.executeUpdate(
+                        "ALTER TABLE " + tableName +
+                        " ADD PRIMARY KEY (" + idColumnName + ")");
+            }
+            catch(SQLException ex)
+            {
+                // try to turn this into an error that the user can act on
+                this.checkForDuplicateIDs(
+                        connection,
+                        tableName,
+                        logicalTableName,
+                        columnMetadata[0].getName());
+                throw ex;
+            }
+            finally
+            {
+                alterStatement.close();
+                indexPhase.finish();
+            }
+            
+            if(!connection.getAutoCommit())
+            {
+                connection.commit();
+            }
+            
+            LOG.info(
+                    "created deferred primary key for " + tableName + " in " +
+                    (System.currentTimeMillis() - startTimeMillis) + " ms");
+        }
+    }
+    
+    /**
+     * Throw an exception if the ID column of the given table has any
+     * duplicate values
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param logicalTableName
+     *          the name that the user knows the table by
+     * @param idColumnName
+     *          the name that the user knows the ID column by
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if there are duplicates
+     */
+    private void checkForDuplicateIDs(
+            Connection connection,
+            String tableName,
+            String logicalTableName,
+            String idColumnName)
+    throws SQLException, IllegalFormatException
+    {
+        final int maxReportedDuplicates = 10;
+        String colName = PersistenceManager.COL_NAME_PREFIX + 0;
+        
+        Statement duplicateStatement = connection.createStatement(
+                ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        try
+        {
+            ResultSet duplicateResults = duplicateStatement.executeQuery(
+                    "SELECT " + colName + ", COUNT(*) FROM " + tableName +
+                    " GROUP BY " + colName + " HAVING COUNT(*) > 1");
+            List<String> duplicates = new ArrayList<String>();
+            while(duplicates.size() < maxReportedDuplicates &&
+                  duplicateResults.next())
+            {
+                duplicates.add(
+                        "\"" + duplicateResults.getString(1) + "\" (" +
+                        duplicateResults.getInt(2) + " rows)");
+            }
+            duplicateResults.close();
+            
+            if(!duplicates.isEmpty())
+            {
+                throw new IllegalFormatException(
+                        "The \"" + idColumnName + "\" column of " +
+                        logicalTableName + " must have a unique value in " +
+                        "every row but the following duplicate values were " +
+                        "found: " + SequenceUtilities.toString(duplicates));
+            }
+        }
+        finally
+        {
+            duplicateStatement.close();
+        }
+    }
+}
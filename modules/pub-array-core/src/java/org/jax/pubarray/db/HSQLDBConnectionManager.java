@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,11 +45,75 @@ public class HSQLDBConnectionManager implements ConnectionManager
     private static final String DATABASE_FILE_URL_SUFFIX = ";hsqldb.default_table_type=cached";
     private static final String DATABASE_CLASSPATH_URL_PREFIX = "jdbc:hsqldb:res:";
     
+    /**
+     * the number of rows HSQLDB caches in memory while bulk loading
+     */
+    public static final int BULK_LOAD_CACHE_ROWS = 200000;
+    
+    /**
+     * the size in KB of the row cache used while bulk loading
+     */
+    public static final int BULK_LOAD_CACHE_SIZE_KB = 128 * 1024;
+    
+    /**
+     * the size in MB of the data file that HSQLDB will memory map while bulk
+     * loading
+     */
+    public static final int BULK_LOAD_NIO_MAX_SIZE_MB = 1024;
+    
+    /**
+     * the log size in MB that triggers a checkpoint while bulk loading
+     */
+    public static final int BULK_LOAD_LOG_SIZE_MB = 1024;
+    
+    /**
+     * URL properties for a database that is being built in one shot. We turn
+     * off the redo log (if the build fails we throw the whole database away
+     * anyway), give the row cache and NIO a lot more room and push the
+     * checkpoint interval way out
+     */
+    private static final String BULK_LOAD_URL_SUFFIX =
+        ";hsqldb.log_data=false" +
+        ";hsqldb.cache_rows=" + BULK_LOAD_CACHE_ROWS +
+        ";hsqldb.cache_size=" + BULK_LOAD_CACHE_SIZE_KB +
+        ";hsqldb.nio_data_file=true" +
+        ";hsqldb.nio_max_size=" + BULK_LOAD_NIO_MAX_SIZE_MB +
+        ";hsqldb.log_size=" + BULK_LOAD_LOG_SIZE_MB;
+    
+    /**
+     * statements that apply the bulk load settings to a database that already
+     * exists. HSQLDB only honors most of the {@link #BULK_LOAD_URL_SUFFIX}
+     * properties when it creates a new database, so without these a resumed
+     * or appended build would run with the default (logged, small cache)
+     * settings. HSQLDB 2.0 has no statement for the NIO size so that one
+     * only comes from the URL
+     */
+    private static final String[] BULK_LOAD_SETTINGS_STATEMENTS = new String[] {
+        "SET FILES LOG FALSE",
+        "SET FILES CACHE ROWS " + BULK_LOAD_CACHE_ROWS,
+        "SET FILES CACHE SIZE " + BULK_LOAD_CACHE_SIZE_KB,
+        "SET FILES NIO TRUE",
+        "SET FILES LOG SIZE " + BULK_LOAD_LOG_SIZE_MB};
+    
+    /**
+     * statements used to put the default settings back before a bulk loaded
+     * database is shut down so that the web application which reads the
+     * database doesn't inherit the bulk load cache sizes
+     */
+    private static final String[] RESTORE_DEFAULT_SETTINGS_STATEMENTS = new String[] {
+        "SET FILES CACHE ROWS 50000",
+        "SET FILES CACHE SIZE 10000",
+        "SET FILES LOG SIZE 50",
+        "SET FILES LOG TRUE"};
+    
     private static final String DRIVER = "org.hsqldb.jdbcDriver";
     
     private final String databaseUrl;
     private final boolean useClasspath;
     private final String databasePath;
+    private final boolean bulkLoad;
+    private volatile boolean compactingOnShutdown = true;
+    private boolean bulkLoadSettingsApplied = false;
     
     /**
      * Constructor
@@ -61,8 +126,37 @@ public class HSQLDBConnectionManager implements ConnectionManager
             String databasePath,
             boolean useClasspath)
     {
+        this(databasePath, useClasspath, false);
+    }
+    
+    /**
+     * Constructor
+     * @param databasePath
+     *          the database path
+     * @param useClasspath
+     *          if true use the classpath otherwise use the file system
+     * @param bulkLoad
+     *          if true the database is opened with settings for building
+     *          a new database as fast as possible (no redo log, large
+     *          caches) and {@link #shutdownDatabase(Connection)} will
+     *          compact the database files. This can't be
+     *          used along with the classpath
+     */
+    public HSQLDBConnectionManager(
+            String databasePath,
+            boolean useClasspath,
+            boolean bulkLoad)
+    {
+        if(useClasspath && bulkLoad)
+        {
+            throw new IllegalArgumentException(
+                    "a classpath database is read-only and can't be " +
+                    "bulk loaded");
+        }
+        
         this.useClasspath = useClasspath;
         this.databasePath = databasePath;
+        this.bulkLoad = bulkLoad;
         try
         {
             Class.forName(DRIVER);
@@ -74,8 +168,14 @@ public class HSQLDBConnectionManager implements ConnectionManager
             }
             else
             {
+                String urlSuffix = DATABASE_FILE_URL_SUFFIX;
+                if(bulkLoad)
+                {
+                    urlSuffix += BULK_LOAD_URL_SUFFIX;
+                }
+                
                 this.databaseUrl =
-                    DATABASE_FILE_URL_PREFIX + databasePath + DATABASE_FILE_URL_SUFFIX;
+                    DATABASE_FILE_URL_PREFIX + databasePath + urlSuffix;
             }
         }
         catch(ClassNotFoundException ex)
@@ -86,6 +186,37 @@ public class HSQLDBConnectionManager implements ConnectionManager
         }
     }
     
+    /**
+     * Determine if this manager is using the bulk load profile
+     * @return true if we're bulk loading
+     */
+    public boolean isBulkLoad()
+    {
+        return this.bulkLoad;
+    }
+    
+    /**
+     * Determine if a bulk loaded database is compacted by
+     * {@link #shutdownDatabase(Connection)}. This is true by default. It's
+     * worth turning off when only a small part of an existing database was
+     * changed since compacting rewrites the whole data file
+     * @return true if we compact on shutdown
+     */
+    public boolean isCompactingOnShutdown()
+    {
+        return this.compactingOnShutdown;
+    }
+    
+    /**
+     * Setter for the compacting on shutdown property
+     * @see #isCompactingOnShutdown()
+     * @param compactingOnShutdown true if we should compact on shutdown
+     */
+    public void setCompactingOnShutdown(boolean compactingOnShutdown)
+    {
+        this.compactingOnShutdown = compactingOnShutdown;
+    }
+    
     /**
      * Create a new connection
      * @return
@@ -107,6 +238,10 @@ public class HSQLDBConnectionManager implements ConnectionManager
                 LOG.info("Initializing DB with URL: " + this.databaseUrl);
                 Connection connection = DriverManager.getConnection(
                         this.databaseUrl);
+                if(this.bulkLoad)
+                {
+                    this.applyBulkLoadSettings(connection);
+                }
                 connection.setAutoCommit(false);
                 return connection;
             }
@@ -129,6 +264,35 @@ public class HSQLDBConnectionManager implements ConnectionManager
         }
     }
     
+    /**
+     * Apply the bulk load settings to the database the first time that we
+     * connect to it (see {@link #BULK_LOAD_SETTINGS_STATEMENTS})
+     * @param connection
+     *          the new connection
+     * @throws SQLException
+     *          if HSQLDB rejects a setting
+     */
+    private synchronized void applyBulkLoadSettings(Connection connection)
+    throws SQLException
+    {
+        if(!this.bulkLoadSettingsApplied)
+        {
+            Statement statement = connection.createStatement();
+            try
+            {
+                for(String currSetting: BULK_LOAD_SETTINGS_STATEMENTS)
+                {
+                    statement.execute(currSetting);
+                }
+            }
+            finally
+            {
+                statement.close();
+            }
+            this.bulkLoadSettingsApplied = true;
+        }
+    }
+    
     // TODO this whole function is a hack to get around the glassfish
     //      class-loader behavior. It should not be needed any more when
     //      http://sourceforge.net/projects/hsqldb/forums/forum/73673/topic/3510142
@@ -186,7 +350,32 @@ public class HSQLDBConnectionManager implements ConnectionManager
     }
     
     /**
-     * Shutdown the database driver
+     * Shut the database down without restoring the default settings or
+     * compacting it. This is used when a build fails so that the
+     * database files are left in a consistent state that a later build can
+     * resume from (see {@link BuildCheckpoint})
+     * @param connection
+     *          the connection to use when shutting down
+     */
+    public void suspendDatabase(Connection connection)
+    {
+        try
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("SHUTDOWN");
+        }
+        catch (Exception ex)
+        {
+            LOG.log(Level.WARNING,
+                    "Database connection did not shut down normally",
+                    ex);
+        }
+    }
+    
+    /**
+     * Shutdown the database driver. If we're bulk loading this will restore
+     * the default settings and do a compacting shutdown (unless
+     * {@link #isCompactingOnShutdown()} is false)
      * @param connection
      *          the connection to use when shutting down
      */
@@ -194,7 +383,49 @@ public class HSQLDBConnectionManager implements ConnectionManager
     {
         try
         {
-            connection.createStatement().execute("SHUTDOWN");
+            Statement statement = connection.createStatement();
+            if(this.bulkLoad)
+            {
+                long startTime = System.currentTimeMillis();
+                
+                for(String currSetting: RESTORE_DEFAULT_SETTINGS_STATEMENTS)
+                {
+                    try
+                    {
+                        statement.execute(currSetting);
+                    }
+                    catch(SQLException ex)
+                    {
+                        LOG.log(Level.WARNING,
+                                "failed to restore database setting: " +
+                                currSetting,
+                                ex);
+                    }
+                }
+                
+                if(this.compactingOnShutdown)
+                {
+                    // SHUTDOWN COMPACT already rewrites the data file so a
+                    // CHECKPOINT DEFRAG before it would just do that twice
+                    statement.execute("SHUTDOWN COMPACT");
+                    
+                    LOG.info(
+                            "compacted database in " +
+                            (System.currentTimeMillis() - startTime) + " ms");
+                }
+                else
+                {
+                    statement.execute("SHUTDOWN");
+                    
+                    LOG.info(
+                            "shut down database without compacting in " +
+                            (System.currentTimeMillis() - startTime) + " ms");
+                }
+            }
+            else
+            {
+                statement.execute("SHUTDOWN");
+            }
         }
         catch (Exception ex)
         {
@@ -0,0 +1,593 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.pubarray.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.util.io.FileUtilities;
+import org.jax.util.io.FlatFileFormat;
+
+/**
+ * A local, content addressed cache of uploaded candidate tables. An entry
+ * holds the inferred column metadata and the spill file for a flat file
+ * and is keyed on a hash of the flat file's contents (see
+ * {@link #getContentKey(File, FlatFileFormat)}) so that a rebuild with an
+ * unchanged input file can skip parsing and type inference altogether.
+ * The least recently used entries are evicted once the cache grows past
+ * {@link #getMaxCacheBytes()}. Since every entry is a copy of its input
+ * file's spill, the cache is opt-in for the importers
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ImportCache
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            ImportCache.class.getName());
+    
+    /**
+     * the default value for {@link #getMaxCacheBytes()}
+     */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 2L * 1024L * 1024L * 1024L;
+    
+    /**
+     * bump this whenever the layout of a cache entry (or anything that
+     * changes what gets spilled for a flat file) changes
+     */
+    private static final int CACHE_FORMAT_VERSION = 3;
+    
+    private static final String TABLE_FILE_NAME = "table.ser";
+    
+    private static final String TEMP_ENTRY_SUFFIX = ".tmp";
+    
+    /**
+     * entries still being written (by this or some other process) are only
+     * evicted once they're this old, at which point they've almost
+     * certainly been left behind by a build that died
+     */
+    private static final long TEMP_ENTRY_GRACE_MILLIS = 24L * 60L * 60L * 1000L;
+    
+    /**
+     * eviction holds a lock on this file so that two processes sharing the
+     * cache don't evict at the same time
+     */
+    private static final String LOCK_FILE_NAME = "cache.lock";
+    
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    
+    private final File directory;
+    
+    private final Set<File> pinnedEntries = new HashSet<File>();
+    
+    private volatile long maxCacheBytes = DEFAULT_MAX_CACHE_BYTES;
+    
+    /**
+     * Constructor
+     * @param directory
+     *          the directory that holds the cache entries. This is created
+     *          as needed
+     */
+    public ImportCache(File directory)
+    {
+        this.directory = directory;
+    }
+    
+    /**
+     * Get the default cache directory which is under the user's home
+     * directory
+     * @return
+     *          the default directory
+     */
+    public static File getDefaultDirectory()
+    {
+        return new File(
+                new File(System.getProperty("user.home"), ".pubarray"),
+                "import-cache");
+    }
+    
+    /**
+     * Getter for the cache directory
+     * @return the directory
+     */
+    public File getDirectory()
+    {
+        return this.directory;
+    }
+    
+    /**
+     * Getter for the number of bytes that the cache is allowed to take up
+     * on disk. Entries are evicted least recently used first when a new
+     * entry pushes the cache over this size. Entries used by this cache
+     * object are never evicted by it
+     * @return the max size in bytes
+     */
+    public long getMaxCacheBytes()
+    {
+        return this.maxCacheBytes;
+    }
+    
+    /**
+     * Setter for the max cache size
+     * @see #getMaxCacheBytes()
+     * @param maxCacheBytes the max size in bytes
+     */
+    public void setMaxCacheBytes(long maxCacheBytes)
+    {
+        this.maxCacheBytes = maxCacheBytes;
+    }
+    
+    /**
+     * Compute the content key for the given flat file. This hashes the
+     * entire file so it should be called once per file per build
+     * @param flatFile
+     *          the flat file
+     * @param format
+     *          the format that the file will be parsed with
+     * @return
+     *          the key
+     * @throws IOException
+     *          if we can't read the file
+     */
+    public String getContentKey(File flatFile, FlatFileFormat format)
+    throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        String contentKey = this.getContentKey(
+                new FileInputStream(flatFile),
+                format);
+        LOG.fine(
+                "hashed " + flatFile.getAbsolutePath() + " in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        return contentKey;
+    }
+    
+    /**
+     * Compute the content key for the flat file contents read from the
+     * given stream (for example a single entry of a zip archive)
+     * @param flatFileIn
+     *          the flat file's contents. This is read fully and closed
+     * @param format
+     *          the format that the file will be parsed with
+     * @return
+     *          the key
+     * @throws IOException
+     *          if we can't read the stream
+     */
+    public String getContentKey(InputStream flatFileIn, FlatFileFormat format)
+    throws IOException
+    {
+        MessageDigest digest = createDigest("SHA-1");
+        try
+        {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            int readCount;
+            while((readCount = flatFileIn.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, readCount);
+            }
+        }
+        finally
+        {
+            flatFileIn.close();
+        }
+        
+        return toHex(digest.digest()) + ":" + format;
+    }
+    
+    /**
+     * Look up the cached table for the given key
+     * @param key
+     *          the key. This should start with a content key (see
+     *          {@link #getContentKey(File, FlatFileFormat)}) and also
+     *          include anything else that changes how the table is spilled
+     * @param spillManager
+     *          the spill manager that the table should read its spill
+     *          files through
+     * @return
+     *          the table (without a table or category name) or null if
+     *          there is no usable entry for the key
+     */
+    public CandidateTable get(String key, SpillManager spillManager)
+    {
+        File entryDirectory = this.getEntryDirectory(key);
+        File tableFile = new File(entryDirectory, TABLE_FILE_NAME);
+        if(!tableFile.isFile())
+        {
+            return null;
+        }
+        
+        try
+        {
+            ObjectInputStream tableIn = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(tableFile)));
+            try
+            {
+                CandidateTable candidateTable = new CandidateTable();
+                candidateTable.setServerSideFile(toEntryFile(
+                        entryDirectory,
+                        (String)tableIn.readObject()));
+                candidateTable.setTypedSpillFile(toEntryFile(
+                        entryDirectory,
+                        (String)tableIn.readObject()));
+                candidateTable.setMetadata((TableColumnMetadata[])tableIn.readObject());
+                candidateTable.setColumnDistinctValues((String[][])tableIn.readObject());
+                candidateTable.setSpillManager(spillManager);
+                
+                synchronized(this)
+                {
+                    this.pinnedEntries.add(entryDirectory);
+                }
+                entryDirectory.setLastModified(System.currentTimeMillis());
+                LOG.info("import cache hit: " + entryDirectory.getName());
+                return candidateTable;
+            }
+            finally
+            {
+                tableIn.close();
+            }
+        }
+        catch(Exception ex)
+        {
+            LOG.log(Level.WARNING,
+                    "discarding unreadable import cache entry: " +
+                    entryDirectory.getAbsolutePath(),
+                    ex);
+            FileUtilities.recursiveDelete(entryDirectory);
+            return null;
+        }
+    }
+    
+    /**
+     * Add the given table to the cache. The table's spill files are moved
+     * into the cache entry (so they are no longer the spill manager's to
+     * delete) and the table is updated to point at them
+     * @param key
+     *          the key (see {@link #get(String, SpillManager)})
+     * @param candidateTable
+     *          the table to cache
+     * @throws IOException
+     *          if we fail to write the entry
+     */
+    public void put(String key, CandidateTable candidateTable) throws IOException
+    {
+        File entryDirectory = this.getEntryDirectory(key);
+        if(entryDirectory.exists())
+        {
+            // some other build got here first
+            return;
+        }
+        
+        if(!this.directory.isDirectory() && !this.directory.mkdirs())
+        {
+            throw new IOException(
+                    "failed to create import cache directory: " +
+                    this.directory.getAbsolutePath());
+        }
+        File tempEntryDirectory = File.createTempFile(
+                entryDirectory.getName(),
+                TEMP_ENTRY_SUFFIX,
+                this.directory);
+        if(!tempEntryDirectory.delete() || !tempEntryDirectory.mkdir())
+        {
+            throw new IOException(
+                    "failed to create import cache entry: " +
+                    tempEntryDirectory.getAbsolutePath());
+        }
+        synchronized(this)
+        {
+            this.pinnedEntries.add(tempEntryDirectory);
+            this.pinnedEntries.add(entryDirectory);
+        }
+        
+        File serverSideFile = this.moveIntoEntry(
+                candidateTable,
+                candidateTable.getServerSideFile(),
+                tempEntryDirectory);
+        File typedSpillFile = this.moveIntoEntry(
+                candidateTable,
+                candidateTable.getTypedSpillFile(),
+                tempEntryDirectory);
+        candidateTable.setServerSideFile(serverSideFile);
+        candidateTable.setTypedSpillFile(typedSpillFile);
+        
+        ObjectOutputStream tableOut = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(
+                        new File(tempEntryDirectory, TABLE_FILE_NAME))));
+        try
+        {
+            tableOut.writeObject(serverSideFile == null ? null : serverSideFile.getName());
+            tableOut.writeObject(typedSpillFile == null ? null : typedSpillFile.getName());
+            tableOut.writeObject(candidateTable.getMetadata());
+            tableOut.writeObject(candidateTable.getColumnDistinctValues());
+        }
+        finally
+        {
+            tableOut.close();
+        }
+        
+        if(tempEntryDirectory.renameTo(entryDirectory))
+        {
+            candidateTable.setServerSideFile(toEntryFile(
+                    entryDirectory,
+                    serverSideFile == null ? null : serverSideFile.getName()));
+            candidateTable.setTypedSpillFile(toEntryFile(
+                    entryDirectory,
+                    typedSpillFile == null ? null : typedSpillFile.getName()));
+        }
+        else
+        {
+            // the table keeps using the temporary entry which will get
+            // evicted like any other entry once this cache isn't using it
+            LOG.warning(
+                    "failed to move import cache entry into place: " +
+                    entryDirectory.getAbsolutePath());
+        }
+        
+        this.evict();
+    }
+    
+    /**
+     * Move a table's spill file into the given entry directory
+     * @param candidateTable
+     *          the table that owns the file
+     * @param spillFile
+     *          the spill file (can be null)
+     * @param entryDirectory
+     *          the entry directory
+     * @return
+     *          the moved file or null if the spill file was null
+     * @throws IOException
+     *          if the move fails
+     */
+    private File moveIntoEntry(
+            CandidateTable candidateTable,
+            File spillFile,
+            File entryDirectory) throws IOException
+    {
+        if(spillFile == null)
+        {
+            return null;
+        }
+        
+        File entryFile = new File(entryDirectory, spillFile.getName());
+        if(!spillFile.renameTo(entryFile))
+        {
+            // probably on different file systems so fall back on a copy
+            InputStream in = new FileInputStream(spillFile);
+            OutputStream out = new FileOutputStream(entryFile);
+            try
+            {
+                FileUtilities.writeSourceToSink(in, out);
+            }
+            finally
+            {
+                in.close();
+                out.close();
+            }
+        }
+        
+        // this gives the bytes back to the spill budget
+        SpillManager spillManager = candidateTable.getSpillManager();
+        if(spillManager != null)
+        {
+            spillManager.deleteSpillFile(spillFile);
+        }
+        
+        return entryFile;
+    }
+    
+    /**
+     * Evict least recently used entries until the cache fits in its max
+     * size. Entries that are still being written are left alone until they
+     * are older than {@link #TEMP_ENTRY_GRACE_MILLIS}
+     */
+    private synchronized void evict()
+    {
+        File lockFile = new File(this.directory, LOCK_FILE_NAME);
+        try
+        {
+            RandomAccessFile lockRAF = new RandomAccessFile(lockFile, "rw");
+            try
+            {
+                FileLock lock = lockRAF.getChannel().lock();
+                try
+                {
+                    this.evictLocked(lockFile);
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+            finally
+            {
+                lockRAF.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            // the cache is just over budget which is no reason to fail
+            LOG.log(Level.WARNING,
+                    "failed to lock the import cache for eviction: " +
+                    lockFile.getAbsolutePath(),
+                    ex);
+        }
+    }
+    
+    /**
+     * Do the eviction for {@link #evict()} once we hold the cache lock
+     * @param lockFile
+     *          the lock file which isn't an entry
+     */
+    private void evictLocked(File lockFile)
+    {
+        File[] entries = this.directory.listFiles();
+        if(entries == null)
+        {
+            return;
+        }
+        
+        long totalBytes = 0L;
+        for(File entry: entries)
+        {
+            totalBytes += recursiveLength(entry);
+        }
+        
+        if(totalBytes > this.maxCacheBytes)
+        {
+            Arrays.sort(entries, new Comparator<File>()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public int compare(File entry1, File entry2)
+                {
+                    long modified1 = entry1.lastModified();
+                    long modified2 = entry2.lastModified();
+                    return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+                }
+            });
+            
+            long tempEntryCutoff =
+                System.currentTimeMillis() - TEMP_ENTRY_GRACE_MILLIS;
+            int evictedCount = 0;
+            for(File entry: entries)
+            {
+                if(totalBytes <= this.maxCacheBytes)
+                {
+                    break;
+                }
+                else if(entry.equals(lockFile) ||
+                        this.pinnedEntries.contains(entry))
+                {
+                    continue;
+                }
+                else if(entry.getName().endsWith(TEMP_ENTRY_SUFFIX) &&
+                        entry.lastModified() > tempEntryCutoff)
+                {
+                    // some build is probably still writing this one
+                    continue;
+                }
+                else
+                {
+                    totalBytes -= recursiveLength(entry);
+                    FileUtilities.recursiveDelete(entry);
+                    evictedCount++;
+                }
+            }
+            
+            LOG.info(
+                    "evicted " + evictedCount + " import cache " +
+                    "entries. The cache now holds " + totalBytes + " bytes");
+        }
+    }
+    
+    private static long recursiveLength(File file)
+    {
+        long length = 0L;
+        File[] children = file.listFiles();
+        if(children == null)
+        {
+            length = file.length();
+        }
+        else
+        {
+            for(File child: children)
+            {
+                length += recursiveLength(child);
+            }
+        }
+        return length;
+    }
+    
+    private static File toEntryFile(File entryDirectory, String fileName)
+    {
+        return fileName == null ? null : new File(entryDirectory, fileName);
+    }
+    
+    /**
+     * Get the entry directory for the given key. The key is hashed (along
+     * with the cache format version) so that it is safe to use as a file
+     * name
+     * @param key
+     *          the key
+     * @return
+     *          the entry directory
+     */
+    private File getEntryDirectory(String key)
+    {
+        try
+        {
+            MessageDigest digest = createDigest("MD5");
+            digest.update(Integer.toString(CACHE_FORMAT_VERSION).getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(key.getBytes("UTF-8"));
+            return new File(this.directory, toHex(digest.digest()));
+        }
+        catch(UnsupportedEncodingException ex)
+        {
+            // every JVM is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static MessageDigest createDigest(String algorithm)
+    {
+        try
+        {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            // every JVM is required to support MD5 and SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte currByte: bytes)
+        {
+            hex.append(Character.forDigit((currByte >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(currByte & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
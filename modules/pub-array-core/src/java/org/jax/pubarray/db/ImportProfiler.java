@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Records how long each phase of an import takes along with the rows,
+ * bytes and heap that it used so that the import can be profiled. The
+ * report is written as JSON (see {@link #writeReport(Writer)}). A single
+ * profiler can be shared by everything taking part in an import and is
+ * safe to use from multiple threads
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ImportProfiler
+{
+    /**
+     * category for column type inference (one phase per flat file)
+     */
+    public static final String INFERENCE_CATEGORY = "inference";
+    
+    /**
+     * category for creating empty tables
+     */
+    public static final String TABLE_CREATION_CATEGORY = "table-creation";
+    
+    /**
+     * category for loading rows into a table (one phase per table)
+     */
+    public static final String ROW_LOADING_CATEGORY = "row-loading";
+    
+    /**
+     * category for indexing the per-gene image directories
+     */
+    public static final String IMAGE_INDEXING_CATEGORY = "image-indexing";
+    
+    /**
+     * category for committing, checkpointing and shutting down the database
+     */
+    public static final String DATABASE_SHUTDOWN_CATEGORY = "database-shutdown";
+    
+    /**
+     * category for the WAR packaging steps
+     */
+    public static final String PACKAGING_CATEGORY = "packaging";
+    
+    /**
+     * the suffix used by {@link #getReportFile(File)}
+     */
+    public static final String REPORT_FILE_SUFFIX = "-import-profile.json";
+    
+    /**
+     * how often the heap is sampled while phases are running
+     */
+    private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 100L;
+    
+    private final long startTimeMillis = System.currentTimeMillis();
+    
+    private final List<Phase> phases = new ArrayList<Phase>();
+    
+    private final Set<Phase> runningPhases = new LinkedHashSet<Phase>();
+    
+    private Timer heapSampler = null;
+    
+    /**
+     * The measurements for a single phase. Counts start out unknown and
+     * only show up in the report once something has been added to them
+     */
+    public static final class Phase
+    {
+        private final String category;
+        private final String name;
+        private final long startTimeMillis;
+        private final ImportProfiler profiler;
+        
+        private long endTimeMillis = -1L;
+        private long rowCount = -1L;
+        private long bytesRead = -1L;
+        private long bytesWritten = -1L;
+        private long peakHeapBytes = 0L;
+        
+        /**
+         * Constructor
+         * @param profiler  the profiler that owns this phase
+         * @param category  the phase category
+         * @param name      the phase name
+         */
+        private Phase(ImportProfiler profiler, String category, String name)
+        {
+            this.profiler = profiler;
+            this.category = category;
+            this.name = name;
+            this.startTimeMillis = System.currentTimeMillis();
+            this.sampleHeap();
+        }
+        
+        /**
+         * Getter for the category
+         * @return the category
+         */
+        public String getCategory()
+        {
+            return this.category;
+        }
+        
+        /**
+         * Getter for the name
+         * @return the name
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+        
+        /**
+         * Add to the row count
+         * @param rows  the number of rows to add
+         */
+        public synchronized void addRows(long rows)
+        {
+            this.rowCount = Math.max(this.rowCount, 0L) + rows;
+            this.sampleHeap();
+        }
+        
+        /**
+         * Getter for the row count
+         * @return  the row count or -1 if it isn't known
+         */
+        public synchronized long getRowCount()
+        {
+            return this.rowCount;
+        }
+        
+        /**
+         * Add to the bytes read
+         * @param bytes the number of bytes to add
+         */
+        public synchronized void addBytesRead(long bytes)
+        {
+            this.bytesRead = Math.max(this.bytesRead, 0L) + bytes;
+            this.sampleHeap();
+        }
+        
+        /**
+         * Getter for the bytes read
+         * @return  the byte count or -1 if it isn't known
+         */
+        public synchronized long getBytesRead()
+        {
+            return this.bytesRead;
+        }
+        
+        /**
+         * Add to the bytes written
+         * @param bytes the number of bytes to add
+         */
+        public synchronized void addBytesWritten(long bytes)
+        {
+            this.bytesWritten = Math.max(this.bytesWritten, 0L) + bytes;
+            this.sampleHeap();
+        }
+        
+        /**
+         * Getter for the bytes written
+         * @return  the byte count or -1 if it isn't known
+         */
+        public synchronized long getBytesWritten()
+        {
+            return this.bytesWritten;
+        }
+        
+        /**
+         * Getter for the most heap that we saw in use while this phase was
+         * running. The heap is sampled so this can miss short spikes
+         * @return  the peak heap in bytes
+         */
+        public synchronized long getPeakHeapBytes()
+        {
+            return this.peakHeapBytes;
+        }
+        
+        /**
+         * Getter for how long the phase took
+         * @return  the time in milliseconds. If the phase hasn't finished
+         *          this is how long it has been running so far
+         */
+        public synchronized long getElapsedMillis()
+        {
+            long endMillis = this.endTimeMillis == -1L ?
+                    System.currentTimeMillis() :
+                    this.endTimeMillis;
+            return endMillis - this.startTimeMillis;
+        }
+        
+        /**
+         * Determine if this phase has finished
+         * @return  true if {@link #finish()} has been called
+         */
+        public synchronized boolean isFinished()
+        {
+            return this.endTimeMillis != -1L;
+        }
+        
+        /**
+         * Mark the phase as finished. Calling this more than once has no
+         * effect
+         */
+        public void finish()
+        {
+            synchronized(this)
+            {
+                if(this.endTimeMillis != -1L)
+                {
+                    return;
+                }
+                this.sampleHeap();
+                this.endTimeMillis = System.currentTimeMillis();
+            }
+            this.profiler.phaseFinished(this);
+        }
+        
+        /**
+         * Update the peak heap with the heap currently in use
+         */
+        private synchronized void sampleHeap()
+        {
+            Runtime runtime = Runtime.getRuntime();
+            long heapInUse = runtime.totalMemory() - runtime.freeMemory();
+            if(heapInUse > this.peakHeapBytes)
+            {
+                this.peakHeapBytes = heapInUse;
+            }
+        }
+    }
+    
+    /**
+     * Start a new phase. The caller must call {@link Phase#finish()} when
+     * the phase is done (normally in a finally block)
+     * @param category
+     *          the category (usually one of the <code>*_CATEGORY</code>
+     *          constants)
+     * @param name
+     *          the phase name (usually the file or table being worked on)
+     * @return
+     *          the new phase
+     */
+    public synchronized Phase startPhase(String category, String name)
+    {
+        Phase phase = new Phase(this, category, name);
+        this.phases.add(phase);
+        this.runningPhases.add(phase);
+        
+        if(this.heapSampler == null)
+        {
+            this.heapSampler = new Timer("import-heap-sampler", true);
+            this.heapSampler.schedule(
+                    new TimerTask()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            ImportProfiler.this.sampleRunningPhases();
+                        }
+                    },
+                    HEAP_SAMPLE_INTERVAL_MILLIS,
+                    HEAP_SAMPLE_INTERVAL_MILLIS);
+        }
+        
+        return phase;
+    }
+    
+    /**
+     * Find the most recently started phase with the given category and name
+     * @param category
+     *          the category
+     * @param name
+     *          the name
+     * @return
+     *          the phase or null if there isn't one
+     */
+    public synchronized Phase findPhase(String category, String name)
+    {
+        for(int i = this.phases.size() - 1; i >= 0; i--)
+        {
+            Phase currPhase = this.phases.get(i);
+            if(currPhase.getCategory().equals(category) &&
+               currPhase.getName().equals(name))
+            {
+                return currPhase;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Getter for a snapshot of the phases in the order that they were
+     * started
+     * @return the phases
+     */
+    public synchronized List<Phase> getPhases()
+    {
+        return new ArrayList<Phase>(this.phases);
+    }
+    
+    private synchronized void phaseFinished(Phase phase)
+    {
+        this.runningPhases.remove(phase);
+        if(this.runningPhases.isEmpty() && this.heapSampler != null)
+        {
+            this.heapSampler.cancel();
+            this.heapSampler = null;
+        }
+    }
+    
+    private void sampleRunningPhases()
+    {
+        List<Phase> phasesToSample;
+        synchronized(this)
+        {
+            phasesToSample = new ArrayList<Phase>(this.runningPhases);
+        }
+        
+        for(Phase phase: phasesToSample)
+        {
+            phase.sampleHeap();
+        }
+    }
+    
+    /**
+     * Get the file that the report for the given archive should be written
+     * to. This is a file in the same directory as the archive
+     * @param archiveFile
+     *          the archive (WAR) file
+     * @return
+     *          the report file
+     */
+    public static File getReportFile(File archiveFile)
+    {
+        String baseName = archiveFile.getName();
+        int lastDotIndex = baseName.lastIndexOf('.');
+        if(lastDotIndex > 0)
+        {
+            baseName = baseName.substring(0, lastDotIndex);
+        }
+        
+        return new File(
+                archiveFile.getAbsoluteFile().getParentFile(),
+                baseName + REPORT_FILE_SUFFIX);
+    }
+    
+    /**
+     * Write the report to the given file as UTF-8 JSON
+     * @param reportFile
+     *          the file to write
+     * @throws IOException
+     *          if the write fails
+     */
+    public void writeReport(File reportFile) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(reportFile),
+                "UTF-8"));
+        try
+        {
+            this.writeReport(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Write the report as JSON. The writer is flushed but not closed
+     * @param writer
+     *          the writer to write to
+     * @throws IOException
+     *          if the write fails
+     */
+    public void writeReport(Writer writer) throws IOException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        SimpleDateFormat dateFormat = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        
+        writer.write("{\n");
+        writer.write("  \"startTime\": ");
+        writeJSONString(writer, dateFormat.format(new Date(this.startTimeMillis)));
+        writer.write(",\n  \"elapsedMillis\": ");
+        writer.write(Long.toString(System.currentTimeMillis() - this.startTimeMillis));
+        writer.write(",\n  \"availableProcessors\": ");
+        writer.write(Integer.toString(runtime.availableProcessors()));
+        writer.write(",\n  \"maxHeapBytes\": ");
+        writer.write(Long.toString(runtime.maxMemory()));
+        writer.write(",\n  \"javaVersion\": ");
+        writeJSONString(writer, System.getProperty("java.version"));
+        writer.write(",\n  \"phases\": [");
+        
+        List<Phase> phaseSnapshot = this.getPhases();
+        for(int i = 0; i < phaseSnapshot.size(); i++)
+        {
+            Phase phase = phaseSnapshot.get(i);
+            synchronized(phase)
+            {
+                writer.write(i == 0 ? "\n    {" : ",\n    {");
+                writer.write("\"category\": ");
+                writeJSONString(writer, phase.getCategory());
+                writer.write(", \"name\": ");
+                writeJSONString(writer, phase.getName());
+                writer.write(", \"startOffsetMillis\": ");
+                writer.write(Long.toString(phase.startTimeMillis - this.startTimeMillis));
+                writer.write(", \"elapsedMillis\": ");
+                writer.write(Long.toString(phase.getElapsedMillis()));
+                writer.write(", \"finished\": ");
+                writer.write(Boolean.toString(phase.isFinished()));
+                writeJSONCount(writer, "rows", phase.getRowCount());
+                writeJSONCount(writer, "bytesRead", phase.getBytesRead());
+                writeJSONCount(writer, "bytesWritten", phase.getBytesWritten());
+                writeJSONCount(writer, "peakHeapBytes", phase.getPeakHeapBytes());
+                writer.write("}");
+            }
+        }
+        
+        writer.write("\n  ]\n}\n");
+        writer.flush();
+    }
+    
+    /**
+     * Write a count as a JSON member (preceded by a comma). Unknown (negative)
+     * counts are written as null
+     * @param writer    the writer
+     * @param name      the member name
+     * @param count     the count
+     * @throws IOException  if the write fails
+     */
+    private static void writeJSONCount(Writer writer, String name, long count)
+    throws IOException
+    {
+        writer.write(", ");
+        writeJSONString(writer, name);
+        writer.write(": ");
+        writer.write(count < 0L ? "null" : Long.toString(count));
+    }
+    
+    /**
+     * Write the given string as a quoted and escaped JSON string
+     * @param writer    the writer
+     * @param string    the string (null is written as null)
+     * @throws IOException  if the write fails
+     */
+    private static void writeJSONString(Writer writer, String string)
+    throws IOException
+    {
+        if(string == null)
+        {
+            writer.write("null");
+            return;
+        }
+        
+        writer.write('"');
+        for(int i = 0; i < string.length(); i++)
+        {
+            char currChar = string.charAt(i);
+            switch(currChar)
+            {
+                case '"': writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                default:
+                {
+                    if(currChar < 0x20)
+                    {
+                        String hex = Integer.toHexString(currChar);
+                        writer.write("\\u");
+                        for(int padding = hex.length(); padding < 4; padding++)
+                        {
+                            writer.write('0');
+                        }
+                        writer.write(hex);
+                    }
+                    else
+                    {
+                        writer.write(currChar);
+                    }
+                }
+                break;
+            }
+        }
+        writer.write('"');
+    }
+}
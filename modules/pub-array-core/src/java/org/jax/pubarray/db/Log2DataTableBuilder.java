@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Builds the log2 transformed copy of the data table (see
+ * {@link PersistenceManager#isLog2DataEnabled()})
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class Log2DataTableBuilder
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            Log2DataTableBuilder.class.getName());
+    
+    private static final double LOG2_FACTOR = Math.log(2.0);
+    
+    private final PersistenceManager persistenceManager;
+    
+    private final DeferredKeyCreator deferredKeyCreator;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that owns the data table
+     */
+    Log2DataTableBuilder(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+        this.deferredKeyCreator = new DeferredKeyCreator(persistenceManager);
+    }
+    
+    /**
+     * Build the log2 copy of the (already filled) data table (see
+     * {@link PersistenceManager#isLog2DataEnabled()}). The copy has the same
+     * probe IDs as the data table and a "log2(...)" column for each array.
+     * Nothing is built if any of the array columns isn't numeric
+     * @param connection
+     *          the database connection
+     * @param dataColumnMetadata
+     *          the data table's column metadata
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if the data table's probe IDs aren't unique
+     */
+    void buildLog2DataTable(
+            Connection connection,
+            TableColumnMetadata[] dataColumnMetadata)
+    throws SQLException, IllegalFormatException
+    {
+        this.persistenceManager.dropTableNamed(connection, PersistenceManager.LOG2_DATA_TABLE_NAME);
+        for(int colIndex = 1; colIndex < dataColumnMetadata.length; colIndex++)
+        {
+            if(dataColumnMetadata[colIndex].getDataType() == DataType.TEXT)
+            {
+                LOG.warning(
+                        "not building log2 data table because data column \"" +
+                        dataColumnMetadata[colIndex].getName() +
+                        "\" isn't numeric");
+                return;
+            }
+        }
+        int valueCount = dataColumnMetadata.length - 1;
+        
+        TableColumnMetadata[] log2Metadata =
+            new TableColumnMetadata[dataColumnMetadata.length];
+        log2Metadata[0] = dataColumnMetadata[0];
+        for(int colIndex = 1; colIndex < log2Metadata.length; colIndex++)
+        {
+            String arrayName = dataColumnMetadata[colIndex].getName();
+            log2Metadata[colIndex] = new TableColumnMetadata(
+                    "log2(" + arrayName + ")",
+                    DataType.REAL,
+                    "the log2 of the " + arrayName + " intensity (empty if " +
+                    "the intensity isn't positive)");
+        }
+        
+        ImportProfiler.Phase creationPhase =
+            this.persistenceManager.getImportProfiler().startPhase(
+                    ImportProfiler.TABLE_CREATION_CATEGORY,
+                    PersistenceManager.LOG2_DATA_TABLE_NAME);
+        try
+        {
+            this.persistenceManager.buildEmptyTable(
+                    connection,
+                    PersistenceManager.LOG2_DATA_TABLE_NAME,
+                    log2Metadata);
+        }
+        finally
+        {
+            creationPhase.finish();
+        }
+        
+        ImportProfiler.Phase loadingPhase =
+            this.persistenceManager.getImportProfiler().startPhase(
+                    ImportProfiler.ROW_LOADING_CATEGORY,
+                    PersistenceManager.LOG2_DATA_TABLE_NAME);
+        try
+        {
+            BatchInserter inserter = this.persistenceManager.createBatchInserter(
+                    connection,
+                    PersistenceManager.LOG2_DATA_TABLE_NAME,
+                    this.persistenceManager.prepareInsert(
+                            connection,
+                            PersistenceManager.LOG2_DATA_TABLE_NAME,
+                            log2Metadata));
+            PreparedStatement insertStatement = inserter.getStatement();
+            
+            Statement selectStatement = connection.createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            try
+            {
+                ResultSet dataRows = selectStatement.executeQuery(
+                        "SELECT * FROM " + PersistenceManager.DATA_TABLE_NAME);
+                while(dataRows.next())
+                {
+                    insertStatement.setObject(1, dataRows.getObject(1));
+                    for(int i = 0; i < valueCount; i++)
+                    {
+                        // a null intensity reads as 0.0 which has no log2
+                        double log2Value = Log2DataTableBuilder.log2(dataRows.getDouble(i + 2));
+                        if(Double.isNaN(log2Value))
+                        {
+                            insertStatement.setNull(i + 2, Types.DOUBLE);
+                        }
+                        else
+                        {
+                            insertStatement.setDouble(i + 2, log2Value);
+                        }
+                    }
+                    inserter.addRow();
+                }
+                dataRows.close();
+            }
+            finally
+            {
+                selectStatement.close();
+            }
+            
+            loadingPhase.addRows(inserter.finish());
+        }
+        finally
+        {
+            loadingPhase.finish();
+        }
+        
+        this.deferredKeyCreator.createDeferredIndexes(
+                connection,
+                PersistenceManager.LOG2_DATA_TABLE_NAME,
+                PersistenceManager.LOG2_DATA_TABLE_LOGICAL_NAME,
+                log2Metadata);
+        
+        if(!connection.getAutoCommit())
+        {
+            connection.commit();
+        }
+    }
+    
+    /**
+     * Get the log2 of the given intensity. Intensities that aren't positive
+     * have no log2 value
+     * @param intensity
+     *          the intensity
+     * @return
+     *          the log2 value or NaN if the intensity is zero, negative or
+     *          NaN
+     */
+    static double log2(double intensity)
+    {
+        if(intensity > 0.0)
+        {
+            return Math.log(intensity) / LOG2_FACTOR;
+        }
+        else
+        {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs all of a probe's intensity values into a single byte array so that
+ * the whole row can be stored and read back as one value. A packed vector is
+ * a format byte followed by the values as big-endian 8 byte doubles
+ * ({@link #DOUBLE_FORMAT}) or 4 byte floats ({@link #FLOAT_FORMAT})
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PackedProbeVector
+{
+    /**
+     * the format byte for vectors of 8 byte doubles
+     */
+    public static final byte DOUBLE_FORMAT = 1;
+    
+    /**
+     * the format byte for vectors of 4 byte floats. Values keep about 7
+     * significant digits
+     */
+    public static final byte FLOAT_FORMAT = 2;
+    
+    /**
+     * the number of bytes that come before the values
+     */
+    public static final int HEADER_LENGTH = 1;
+    
+    /**
+     * private constructor. all access is static
+     */
+    private PackedProbeVector()
+    {
+    }
+    
+    /**
+     * Get the length of a packed vector
+     * @param valueCount
+     *          the number of values in the vector
+     * @param format
+     *          {@link #DOUBLE_FORMAT} or {@link #FLOAT_FORMAT}
+     * @return
+     *          the length in bytes
+     */
+    public static int getPackedLength(int valueCount, byte format)
+    {
+        return HEADER_LENGTH + valueCount * getValueLength(format);
+    }
+    
+    private static int getValueLength(byte format)
+    {
+        switch(format)
+        {
+            case DOUBLE_FORMAT: return 8;
+            case FLOAT_FORMAT: return 4;
+            default: throw new IllegalArgumentException(
+                    "unknown packed vector format: " + format);
+        }
+    }
+    
+    /**
+     * Pack the given values
+     * @param values
+     *          the values to pack
+     * @param format
+     *          {@link #DOUBLE_FORMAT} or {@link #FLOAT_FORMAT}
+     * @return
+     *          the packed vector
+     */
+    public static byte[] encode(double[] values, byte format)
+    {
+        ByteBuffer packed = ByteBuffer.allocate(getPackedLength(values.length, format));
+        packed.put(format);
+        if(format == FLOAT_FORMAT)
+        {
+            for(double value: values)
+            {
+                packed.putFloat((float)value);
+            }
+        }
+        else
+        {
+            packed.asDoubleBuffer().put(values);
+        }
+        return packed.array();
+    }
+    
+    /**
+     * Unpack the given vector
+     * @param packed
+     *          a vector created by {@link #encode(double[], byte)}
+     * @return
+     *          the values
+     * @throws IllegalArgumentException
+     *          if the vector isn't in a format that we know about
+     */
+    public static double[] decode(byte[] packed) throws IllegalArgumentException
+    {
+        if(packed.length < HEADER_LENGTH)
+        {
+            throw new IllegalArgumentException("empty packed vector");
+        }
+        
+        byte format = packed[0];
+        ByteBuffer packedBuffer = ByteBuffer.wrap(packed);
+        packedBuffer.position(HEADER_LENGTH);
+        double[] values = new double[
+                (packed.length - HEADER_LENGTH) / getValueLength(format)];
+        if(format == FLOAT_FORMAT)
+        {
+            for(int i = 0; i < values.length; i++)
+            {
+                values[i] = packedBuffer.getFloat();
+            }
+        }
+        else
+        {
+            packedBuffer.asDoubleBuffer().get(values);
+        }
+        return values;
+    }
+}
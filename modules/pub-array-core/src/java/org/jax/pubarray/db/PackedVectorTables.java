@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+
+/**
+ * Builds the side tables that hold each probe's data row (and log2 data
+ * row) as a single {@link PackedProbeVector} (see
+ * {@link PersistenceManager#isPackedProbeVectorsEnabled()}) and reads the
+ * data rows back out, using the side tables when a database has them
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class PackedVectorTables
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            PackedVectorTables.class.getName());
+    
+    // the side table holding each probe's data row as a PackedProbeVector
+    static final String DATA_VECTOR_TABLE_NAME = "EXPERIMENT_DATA_VECTORS";
+    static final String PACKED_VECTOR_COL_NAME = "PACKED_VALUES";
+    
+    // the side table holding each probe's log2 data row. it's kept apart
+    // from the data vectors so that neither read has to page in the other
+    static final String LOG2_DATA_VECTOR_TABLE_NAME = "EXPERIMENT_DATA_LOG2_VECTORS";
+    
+    /**
+     * whether or not the packed vector table exists (null if we haven't
+     * looked yet)
+     */
+    private volatile Boolean packedVectorTableAvailable = null;
+    
+    /**
+     * whether or not the log2 packed vector table exists (null if we
+     * haven't looked yet)
+     */
+    private volatile Boolean log2PackedVectorsAvailable = null;
+    
+    private final PersistenceManager persistenceManager;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that owns the data table
+     */
+    PackedVectorTables(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+    }
+    
+    /**
+     * Write every row of the (already filled) data table to the packed
+     * vector table. The vectors are read back out of the data table so this
+     * works no matter which path was used to load it. If log2 data is
+     * enabled the log2 vectors are written to their own table in the same
+     * pass. Nothing is written if any of the array columns isn't numeric
+     * @param connection
+     *          the database connection
+     * @param dataColumnMetadata
+     *          the data table's column metadata
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    void buildPackedVectorTable(
+            Connection connection,
+            TableColumnMetadata[] dataColumnMetadata)
+    throws SQLException
+    {
+        this.packedVectorTableAvailable = null;
+        this.log2PackedVectorsAvailable = null;
+        this.persistenceManager.dropTableNamed(connection, DATA_VECTOR_TABLE_NAME);
+        this.persistenceManager.dropTableNamed(connection, LOG2_DATA_VECTOR_TABLE_NAME);
+        for(int colIndex = 1; colIndex < dataColumnMetadata.length; colIndex++)
+        {
+            if(dataColumnMetadata[colIndex].getDataType() == DataType.TEXT)
+            {
+                LOG.warning(
+                        "not packing probe vectors because data column \"" +
+                        dataColumnMetadata[colIndex].getName() +
+                        "\" isn't numeric");
+                return;
+            }
+        }
+        
+        ImportProfiler.Phase loadingPhase =
+            this.persistenceManager.getImportProfiler().startPhase(
+                    ImportProfiler.ROW_LOADING_CATEGORY,
+                    DATA_VECTOR_TABLE_NAME);
+        try
+        {
+            int valueCount = dataColumnMetadata.length - 1;
+            byte packedFormat =
+                this.persistenceManager.isSinglePrecisionTable(
+                        PersistenceManager.DATA_TABLE_NAME) ?
+                    PackedProbeVector.FLOAT_FORMAT :
+                    PackedProbeVector.DOUBLE_FORMAT;
+            int packedLength = PackedProbeVector.getPackedLength(
+                    valueCount,
+                    packedFormat);
+            
+            BatchInserter inserter = this.createPackedVectorTable(
+                    connection,
+                    DATA_VECTOR_TABLE_NAME,
+                    dataColumnMetadata[0],
+                    packedLength);
+            BatchInserter log2Inserter = null;
+            if(this.persistenceManager.isLog2DataEnabled())
+            {
+                log2Inserter = this.createPackedVectorTable(
+                        connection,
+                        LOG2_DATA_VECTOR_TABLE_NAME,
+                        dataColumnMetadata[0],
+                        packedLength);
+            }
+            PreparedStatement insertStatement = inserter.getStatement();
+            
+            Statement selectStatement = connection.createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            try
+            {
+                ResultSet dataRows = selectStatement.executeQuery(
+                        "SELECT * FROM " + PersistenceManager.DATA_TABLE_NAME);
+                double[] values = new double[valueCount];
+                double[] log2Values = new double[valueCount];
+                while(dataRows.next())
+                {
+                    // the packed values are exactly what the column by
+                    // column read gives us (so missing intensities are NaN
+                    // rather than 0.0)
+                    for(int i = 0; i < valueCount; i++)
+                    {
+                        values[i] = dataRows.getDouble(i + 2);
+                        if(dataRows.wasNull())
+                        {
+                            values[i] = Double.NaN;
+                        }
+                    }
+                    
+                    Object probeId = dataRows.getObject(1);
+                    insertStatement.setObject(1, probeId);
+                    insertStatement.setBytes(2, PackedProbeVector.encode(
+                            values,
+                            packedFormat));
+                    inserter.addRow();
+                    
+                    if(log2Inserter != null)
+                    {
+                        for(int i = 0; i < valueCount; i++)
+                        {
+                            log2Values[i] = Log2DataTableBuilder.log2(values[i]);
+                        }
+                        PreparedStatement log2InsertStatement =
+                            log2Inserter.getStatement();
+                        log2InsertStatement.setObject(1, probeId);
+                        log2InsertStatement.setBytes(2, PackedProbeVector.encode(
+                                log2Values,
+                                packedFormat));
+                        log2Inserter.addRow();
+                    }
+                }
+                dataRows.close();
+            }
+            finally
+            {
+                selectStatement.close();
+            }
+            
+            loadingPhase.addRows(inserter.finish());
+            if(log2Inserter != null)
+            {
+                loadingPhase.addRows(log2Inserter.finish());
+            }
+        }
+        finally
+        {
+            loadingPhase.finish();
+        }
+    }
+    
+    /**
+     * Create an empty packed vector table keyed on the probe ID
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the SQL table name
+     * @param probeIdColumnMetadata
+     *          the metadata for the probe ID column
+     * @param packedLength
+     *          the length of every packed vector
+     * @return
+     *          the inserter for the new table. it takes the probe ID then
+     *          the packed vector
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    private BatchInserter createPackedVectorTable(
+            Connection connection,
+            String tableName,
+            TableColumnMetadata probeIdColumnMetadata,
+            int packedLength)
+    throws SQLException
+    {
+        StringBuilder createBuilder = new StringBuilder("CREATE TABLE ");
+        createBuilder.append(tableName);
+        createBuilder.append(" (");
+        this.persistenceManager.appendColumnDefinitions(
+                createBuilder,
+                new TableColumnMetadata[] {probeIdColumnMetadata},
+                false);
+        createBuilder.append(", ");
+        createBuilder.append(PACKED_VECTOR_COL_NAME);
+        this.appendBinaryColumnType(connection, createBuilder, packedLength);
+        createBuilder.append(", PRIMARY KEY (");
+        createBuilder.append(PersistenceManager.COL_NAME_PREFIX);
+        createBuilder.append("0))");
+        
+        String createString = createBuilder.toString();
+        LOG.info("creating packed vector table with: " + createString);
+        Statement createStatement = connection.createStatement();
+        try
+        {
+            createStatement.executeUpdate(createString);
+        }
+        finally
+        {
+            createStatement.close();
+        }
+        
+        return this.persistenceManager.createBatchInserter(
+                connection,
+                tableName,
+                connection.prepareStatement(
+                        "INSERT INTO " + tableName + " VALUES (?, ?)",
+                        ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY));
+    }
+    
+    /**
+     * Append the type of a binary column to a create statement
+     * @param connection
+     *          the connection that the table is created with
+     * @param createBuilder
+     *          the create statement being built
+     * @param length
+     *          the maximum length of the column's values in bytes
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    private void appendBinaryColumnType(
+            Connection connection,
+            StringBuilder createBuilder,
+            int length)
+    throws SQLException
+    {
+        if(BulkTableLoader.isDerbyConnection(connection))
+        {
+            createBuilder.append(" VARCHAR(");
+            createBuilder.append(length);
+            createBuilder.append(") FOR BIT DATA NOT NULL");
+        }
+        else
+        {
+            createBuilder.append(" VARBINARY(");
+            createBuilder.append(length);
+            createBuilder.append(") NOT NULL");
+        }
+    }
+    
+    /**
+     * Gets the data rows or the log2 data rows for the given probes. Each
+     * row is read from the packed vector table if the database has one and
+     * column by column from the data table otherwise. The log2 rows are
+     * read from the log2 packed vector table if the database was built with
+     * log2 data (see {@link PersistenceManager#isLog2DataEnabled()}),
+     * otherwise they are transformed from the data rows using
+     * {@link Log2DataTableBuilder#log2(double)}.
+     * Either way intensities that aren't positive come back as NaN
+     * (and missing intensities are NaN whether or not they're log2)
+     * @param connection
+     *          the connection
+     * @param probeIds
+     *          the probe IDs
+     * @param log2
+     *          true to get log2 intensities
+     * @return
+     *          the data rows in the same order as the IDs. The row for any
+     *          probe that can't be found is null
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    double[][] getDataRowsForProbeIDs(
+            Connection connection,
+            String[] probeIds,
+            boolean log2)
+    throws SQLException
+    {
+        boolean usePackedVectors = this.isPackedVectorTableAvailable(connection);
+        boolean useLog2Vectors =
+            log2 && usePackedVectors &&
+            this.isLog2PackedVectorsAvailable(connection);
+        
+        // build the query
+        String probeSelectStatementString;
+        if(usePackedVectors)
+        {
+            probeSelectStatementString =
+                "SELECT " + PACKED_VECTOR_COL_NAME + " FROM " +
+                (useLog2Vectors ?
+                        LOG2_DATA_VECTOR_TABLE_NAME :
+                        DATA_VECTOR_TABLE_NAME) +
+                " WHERE " +
+                PersistenceManager.COL_NAME_PREFIX + 0 + " = ?";
+        }
+        else
+        {
+            probeSelectStatementString =
+                "SELECT * from " + PersistenceManager.DATA_TABLE_NAME +
+                " WHERE " + PersistenceManager.COL_NAME_PREFIX + 0 + " = ?";
+        }
+        PreparedStatement probeSelectStatement =
+            connection.prepareStatement(probeSelectStatementString);
+        try
+        {
+            double[][] dataRows = new double[probeIds.length][];
+            for(int probeIndex = 0; probeIndex < probeIds.length; probeIndex++)
+            {
+                probeSelectStatement.setString(1, probeIds[probeIndex]);
+                
+                // run the query
+                ResultSet results = probeSelectStatement.executeQuery();
+                try
+                {
+                    if(!results.next())
+                    {
+                        // could not find the given probe
+                        dataRows[probeIndex] = null;
+                    }
+                    else if(usePackedVectors)
+                    {
+                        dataRows[probeIndex] = PackedProbeVector.decode(
+                                results.getBytes(1));
+                    }
+                    else
+                    {
+                        int columnCount = results.getMetaData().getColumnCount();
+                        double[] dataRow = new double[columnCount - 1];
+                        
+                        // there are two reasons for the weird indexing
+                        // 1) JDBC uses 1-based indexing
+                        // 2) we're skipping over the primary key
+                        for(int sqlCol = 2; sqlCol <= columnCount; sqlCol++)
+                        {
+                            dataRow[sqlCol - 2] = results.getDouble(sqlCol);
+                            if(results.wasNull())
+                            {
+                                dataRow[sqlCol - 2] = Double.NaN;
+                            }
+                        }
+                        
+                        dataRows[probeIndex] = dataRow;
+                    }
+                }
+                finally
+                {
+                    results.close();
+                }
+                
+                double[] dataRow = dataRows[probeIndex];
+                if(log2 && !useLog2Vectors && dataRow != null)
+                {
+                    for(int i = 0; i < dataRow.length; i++)
+                    {
+                        dataRow[i] = Log2DataTableBuilder.log2(dataRow[i]);
+                    }
+                }
+            }
+            
+            return dataRows;
+        }
+        finally
+        {
+            probeSelectStatement.close();
+        }
+    }
+    
+    /**
+     * Determine if the database has a packed vector table. Databases built
+     * before packed vectors were added (or with them disabled) don't. The
+     * answer is remembered after the first time we look
+     * @param connection
+     *          the connection
+     * @return
+     *          true if the packed vector table can be used
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    boolean isPackedVectorTableAvailable(Connection connection)
+    throws SQLException
+    {
+        Boolean available = this.packedVectorTableAvailable;
+        if(available == null)
+        {
+            available = Boolean.valueOf(this.persistenceManager.tableExists(
+                    connection,
+                    DATA_VECTOR_TABLE_NAME));
+            this.packedVectorTableAvailable = available;
+        }
+        
+        return available.booleanValue();
+    }
+    
+    /**
+     * Determine if the database has a log2 packed vector table. The answer
+     * is remembered after the first time we look
+     * @param connection
+     *          the connection
+     * @return
+     *          true if the log2 vectors can be used
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    boolean isLog2PackedVectorsAvailable(Connection connection)
+    throws SQLException
+    {
+        Boolean available = this.log2PackedVectorsAvailable;
+        if(available == null)
+        {
+            available = Boolean.valueOf(this.persistenceManager.tableExists(
+                    connection,
+                    LOG2_DATA_VECTOR_TABLE_NAME));
+            this.log2PackedVectorsAvailable = available;
+        }
+        
+        return available.booleanValue();
+    }
+}
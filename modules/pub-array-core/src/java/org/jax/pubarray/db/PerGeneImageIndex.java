@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An in-memory index of the images in the per-gene image directories.
+ * Each directory is listed once (directories are scanned in parallel) and
+ * every file name is parsed once into its gene ID and extension
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+/*package-protected*/ class PerGeneImageIndex
+{
+    /**
+     * the (lower case) file extensions that we treat as images
+     */
+    public static final Set<String> IMAGE_EXTENSIONS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(
+                    "png",
+                    "jpg",
+                    "jpe",
+                    "jpeg",
+                    "gif")));
+    
+    /**
+     * A single image
+     */
+    public static final class Entry
+    {
+        private final String geneId;
+        private final String extension;
+        private final int categoryIndex;
+        
+        /**
+         * Constructor
+         * @param geneId        the gene ID (the file name without extension)
+         * @param extension     the file extension
+         * @param categoryIndex the index of the image directory
+         */
+        public Entry(String geneId, String extension, int categoryIndex)
+        {
+            this.geneId = geneId;
+            this.extension = extension;
+            this.categoryIndex = categoryIndex;
+        }
+        
+        /**
+         * Getter for the gene ID
+         * @return the gene ID
+         */
+        public String getGeneId()
+        {
+            return this.geneId;
+        }
+        
+        /**
+         * Getter for the extension
+         * @return the extension
+         */
+        public String getExtension()
+        {
+            return this.extension;
+        }
+        
+        /**
+         * Getter for the index of the image directory that this image is in
+         * @return the category index
+         */
+        public int getCategoryIndex()
+        {
+            return this.categoryIndex;
+        }
+    }
+    
+    private final List<Entry> entries;
+    private final int maxGeneIdLength;
+    
+    /**
+     * Constructor
+     * @param entries           the entries
+     * @param maxGeneIdLength   the length of the longest gene ID
+     */
+    private PerGeneImageIndex(List<Entry> entries, int maxGeneIdLength)
+    {
+        this.entries = entries;
+        this.maxGeneIdLength = maxGeneIdLength;
+    }
+    
+    /**
+     * Getter for all of the images ordered by category and then by file name
+     * @return the entries
+     */
+    public List<Entry> getEntries()
+    {
+        return this.entries;
+    }
+    
+    /**
+     * Getter for the length of the longest gene ID
+     * @return the length (0 if there are no images)
+     */
+    public int getMaxGeneIdLength()
+    {
+        return this.maxGeneIdLength;
+    }
+    
+    /**
+     * Scan the given image directories
+     * @param imageDirectories
+     *          the directories. The category index of each entry is the
+     *          index of its directory in this list
+     * @param threadCount
+     *          the maximum number of directories to scan at once
+     * @return
+     *          the index
+     * @throws IOException
+     *          if one of the directories can't be listed
+     */
+    public static PerGeneImageIndex scan(
+            List<PerGeneImageDirectoryDescription> imageDirectories,
+            int threadCount)
+    throws IOException
+    {
+        int directoryCount = imageDirectories.size();
+        List<List<Entry>> directoryEntries = new ArrayList<List<Entry>>(directoryCount);
+        threadCount = Math.min(threadCount, directoryCount);
+        if(threadCount <= 1)
+        {
+            for(int i = 0; i < directoryCount; i++)
+            {
+                directoryEntries.add(scanDirectory(
+                        imageDirectories.get(i).getDirectory(),
+                        i));
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try
+            {
+                List<Future<List<Entry>>> futures =
+                    new ArrayList<Future<List<Entry>>>(directoryCount);
+                for(int i = 0; i < directoryCount; i++)
+                {
+                    final File directory = imageDirectories.get(i).getDirectory();
+                    final int categoryIndex = i;
+                    futures.add(executor.submit(new Callable<List<Entry>>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public List<Entry> call() throws IOException
+                        {
+                            return scanDirectory(directory, categoryIndex);
+                        }
+                    }));
+                }
+                
+                for(Future<List<Entry>> future: futures)
+                {
+                    directoryEntries.add(getScanResult(future));
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+        
+        int totalEntryCount = 0;
+        for(List<Entry> currEntries: directoryEntries)
+        {
+            totalEntryCount += currEntries.size();
+        }
+        
+        List<Entry> allEntries = new ArrayList<Entry>(totalEntryCount);
+        int maxGeneIdLength = 0;
+        for(List<Entry> currEntries: directoryEntries)
+        {
+            for(Entry entry: currEntries)
+            {
+                if(entry.getGeneId().length() > maxGeneIdLength)
+                {
+                    maxGeneIdLength = entry.getGeneId().length();
+                }
+            }
+            allEntries.addAll(currEntries);
+        }
+        
+        return new PerGeneImageIndex(
+                Collections.unmodifiableList(allEntries),
+                maxGeneIdLength);
+    }
+    
+    /**
+     * List and parse a single image directory
+     * @param directory
+     *          the directory
+     * @param categoryIndex
+     *          the category index to give the entries
+     * @return
+     *          the entries sorted by file name
+     * @throws IOException
+     *          if the directory can't be listed
+     */
+    private static List<Entry> scanDirectory(File directory, int categoryIndex)
+    throws IOException
+    {
+        String[] fileNames = directory.list();
+        if(fileNames == null)
+        {
+            throw new IOException(
+                    "failed to list the contents of image directory: " +
+                    directory.getAbsolutePath());
+        }
+        
+        // sort so that the load order doesn't depend on the file system
+        Arrays.sort(fileNames);
+        List<Entry> entries = new ArrayList<Entry>(fileNames.length);
+        for(String fileName: fileNames)
+        {
+            int lastDotIndex = fileName.lastIndexOf('.');
+            if(lastDotIndex >= 0)
+            {
+                String extension = fileName.substring(lastDotIndex + 1);
+                if(IMAGE_EXTENSIONS.contains(extension))
+                {
+                    // TODO allow URL decoding for names
+                    entries.add(new Entry(
+                            fileName.substring(0, lastDotIndex),
+                            extension,
+                            categoryIndex));
+                }
+            }
+        }
+        
+        return entries;
+    }
+    
+    private static List<Entry> getScanResult(Future<List<Entry>> future)
+    throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while scanning image directories");
+        }
+        catch(ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException)
+            {
+                throw (IOException)cause;
+            }
+            else if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
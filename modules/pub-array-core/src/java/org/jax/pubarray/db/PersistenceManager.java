@@ -17,6 +17,7 @@
 
 package org.jax.pubarray.db;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -61,23 +62,9 @@ public class PersistenceManager
     private static final Logger LOG = Logger.getLogger(
             PersistenceManager.class.getName());
     
-    private static final Set<String> EXTENSION_SET;
-    static
-    {
-        EXTENSION_SET = new HashSet<String>();
-        
-        EXTENSION_SET.add("png");
-        
-        EXTENSION_SET.add("jpg");
-        EXTENSION_SET.add("jpe");
-        EXTENSION_SET.add("jpeg");
-        
-        EXTENSION_SET.add("gif");
-    }
-    
     // the column prefix used for all of the columns in the "normal" tables
     // (ie the non-meta tables)
-    private static final String COL_NAME_PREFIX = "COL_";
+    static final String COL_NAME_PREFIX = "COL_";
     
     private static final String PER_GENE_IMAGE_CATEGORY_TABLE_NAME = "PER_GENE_IMAGE_CATEGORY_TABLE";
     private static final String PER_GENE_IMAGE_TABLE_NAME = "PER_GENE_IMAGE_TABLE";
@@ -92,26 +79,99 @@ public class PersistenceManager
     private static final String EXPERIMENT_DESCRIPTION_COL = "EXPERIMENT_DESCRIPTION";
     
     // metatable stuff
-    private static final String TABLE_META_TABLE = "TABLE_META_TABLE";
-    private static final String SQL_TABLE_NAME_COL = "SQL_TABLE_NAME";
-    private static final String LOGICAL_TABLE_NAME_COL = "LOGICAL_TABLE_NAME";
+    static final String TABLE_META_TABLE = "TABLE_META_TABLE";
+    static final String SQL_TABLE_NAME_COL = "SQL_TABLE_NAME";
+    static final String LOGICAL_TABLE_NAME_COL = "LOGICAL_TABLE_NAME";
     private static final String LOGICAL_TABLE_CATEGORY_COL = "LOGICAL_TABLE_CATEGORY";
     
     // annotation table stuff
-    private static final String ANNOTATION_TABLE_NAME_PREFIX = "ANNOTATIONS_";
+    static final String ANNOTATION_TABLE_NAME_PREFIX = "ANNOTATIONS_";
 
-    private static final String DESIGN_TABLE_NAME = "EXPERIMENT_DESIGN";
+    static final String DESIGN_TABLE_NAME = "EXPERIMENT_DESIGN";
     private static final String DATA_COL_INDEX_LOGICAL_NAME = "DATA_COLUMN_INDEX";
-    private static final String DATA_TABLE_NAME = "EXPERIMENT_DATA";
+    static final String DATA_TABLE_NAME = "EXPERIMENT_DATA";
     private static final String DATA_TABLE_LOGICAL_NAME = "Microarray Experiment Data";
     
+    // the log2 transformed copy of the data table
+    static final String LOG2_DATA_TABLE_NAME = "EXPERIMENT_DATA_LOG2";
+    static final String LOG2_DATA_TABLE_LOGICAL_NAME = "Log2 Microarray Experiment Data";
+    
+    // the per-probe summary statistics table
+    static final String PROBE_SUMMARY_TABLE_NAME = "PROBE_SUMMARY";
+    static final String PROBE_SUMMARY_LOGICAL_NAME = "Probe Summary Statistics";
+    private static final String STATISTICS_TABLE_CATEGORY = "Statistics";
+    
     // metacolumn stuff
-    private static final String COL_METADATA_TABLE_SUFFIX = "_COL_METADATA";
-    private static final String COL_NUM_META_COL = "COL_NUMBER";
+    static final String COL_METADATA_TABLE_SUFFIX = "_COL_METADATA";
+    static final String COL_NUM_META_COL = "COL_NUMBER";
     private static final String COL_NAME_META_COL = "COL_NAME";
     private static final String COL_TYPE_META_COL = "COL_TYPE";
     private static final String COL_DESCRIPTION_META_COL = "COL_DESCRIPTION";
     
+    /**
+     * the default number of rows that we hand to JDBC in a single batch
+     */
+    public static final int DEFAULT_INSERT_BATCH_SIZE = 500;
+    
+    /**
+     * the default number of rows that we insert between commits
+     */
+    public static final int DEFAULT_COMMIT_INTERVAL = 20000;
+    
+    private volatile int insertBatchSize = DEFAULT_INSERT_BATCH_SIZE;
+    
+    private volatile int commitInterval = DEFAULT_COMMIT_INTERVAL;
+    
+    /**
+     * the default upper bound on the number of annotation tables that we
+     * build concurrently
+     */
+    public static final int DEFAULT_MAX_TABLE_BUILD_THREADS = Math.min(
+            4,
+            Runtime.getRuntime().availableProcessors());
+    
+    private volatile int maxTableBuildThreads = DEFAULT_MAX_TABLE_BUILD_THREADS;
+    
+    private volatile boolean textTableIngestEnabled = false;
+    
+    private volatile boolean indexCreationDeferred = false;
+    
+    private volatile boolean derbyImportEnabled = true;
+    
+    private volatile boolean packedProbeVectorsEnabled = false;
+    
+    private volatile boolean singlePrecisionDataEnabled = false;
+    
+    private volatile boolean probeSummaryTableEnabled = false;
+    
+    private volatile boolean log2DataEnabled = false;
+    
+    private volatile boolean dictionaryEncodingEnabled = false;
+    
+    private volatile ImportProfiler importProfiler = new ImportProfiler();
+    
+    private volatile BuildCheckpoint buildCheckpoint = null;
+    
+    private final DeferredKeyCreator deferredKeyCreator = new DeferredKeyCreator(this);
+    
+    private final ColumnDictionaryEncoder dictionaryEncoder = new ColumnDictionaryEncoder(this);
+    
+    private final BulkTableLoader bulkTableLoader = new BulkTableLoader(this);
+    
+    private final TableCheckpointer tableCheckpointer = new TableCheckpointer(this);
+    
+    private final Log2DataTableBuilder log2DataTableBuilder = new Log2DataTableBuilder(this);
+    
+    private final ProbeSummaryTableBuilder probeSummaryTableBuilder = new ProbeSummaryTableBuilder(this);
+    
+    private final PackedVectorTables packedVectorTables = new PackedVectorTables(this);
+    
+    private final AnnotationTableBuilder annotationTableBuilder =
+        new AnnotationTableBuilder(
+                this,
+                this.tableCheckpointer,
+                this.dictionaryEncoder);
+    
     /**
      * This is like {@link Query} except that it uses real table and column
      * names instead of the user friendly names that we present to the
@@ -121,6 +181,8 @@ public class PersistenceManager
     {
         private final Query query;
         private final Set<String> joinTables;
+        private final String[][] termDictionaries;
+        private final boolean[] dictionaryEncodedFilters;
         
         /**
          * Constructor
@@ -130,11 +192,42 @@ public class PersistenceManager
          * @param joinTables
          *          a listing of all of the tables that need to be joined
          *          together
+         * @param termDictionaries
+         *          the dictionary for each term of interest (null for terms
+         *          that aren't dictionary encoded)
+         * @param dictionaryEncodedFilters
+         *          whether or not each filter's column is dictionary encoded
          */
-        public NormalizedQuery(Query query, Set<String> joinTables)
+        public NormalizedQuery(
+                Query query,
+                Set<String> joinTables,
+                String[][] termDictionaries,
+                boolean[] dictionaryEncodedFilters)
         {
             this.query = query;
             this.joinTables = joinTables;
+            this.termDictionaries = termDictionaries;
+            this.dictionaryEncodedFilters = dictionaryEncodedFilters;
+        }
+        
+        /**
+         * Getter for the dictionary of each term of interest. The terms
+         * that are dictionary encoded come back from the database as codes
+         * which have to be looked up in these
+         * @return the term dictionaries
+         */
+        public String[][] getTermDictionaries()
+        {
+            return this.termDictionaries;
+        }
+        
+        /**
+         * Getter for which filters are on dictionary encoded columns
+         * @return the dictionary encoded filter flags
+         */
+        public boolean[] getDictionaryEncodedFilters()
+        {
+            return this.dictionaryEncodedFilters;
         }
         
         /**
@@ -157,7 +250,396 @@ public class PersistenceManager
     }
     
     /**
-     * Write the given candidate database to the real database
+     * Getter for the number of rows that are sent to the database in a
+     * single JDBC batch when building tables
+     * @return the batch size
+     */
+    public int getInsertBatchSize()
+    {
+        return this.insertBatchSize;
+    }
+    
+    /**
+     * Setter for the insert batch size
+     * @see #getInsertBatchSize()
+     * @param insertBatchSize
+     *          the batch size. A value of 1 or less turns batching off so
+     *          that each row is inserted as soon as it is read
+     */
+    public void setInsertBatchSize(int insertBatchSize)
+    {
+        this.insertBatchSize = insertBatchSize;
+    }
+    
+    /**
+     * Getter for the number of rows that are inserted between commits when
+     * building tables
+     * @return the commit interval
+     */
+    public int getCommitInterval()
+    {
+        return this.commitInterval;
+    }
+    
+    /**
+     * Setter for the commit interval
+     * @see #getCommitInterval()
+     * @param commitInterval
+     *          the commit interval. A value of 0 or less means that we leave
+     *          committing up to the caller
+     */
+    public void setCommitInterval(int commitInterval)
+    {
+        this.commitInterval = commitInterval;
+    }
+    
+    /**
+     * Getter for the maximum number of annotation tables that
+     * {@link #writeCandidatesToDatabase(ConnectionManager, Connection, CandidateDatabaseManager)}
+     * will build at the same time
+     * @return the max thread count
+     */
+    public int getMaxTableBuildThreads()
+    {
+        return this.maxTableBuildThreads;
+    }
+    
+    /**
+     * Setter for the max number of annotation tables to build at once
+     * @see #getMaxTableBuildThreads()
+     * @param maxTableBuildThreads
+     *          the max thread count. A value of 1 or less means that the
+     *          annotation tables are built one after another
+     */
+    public void setMaxTableBuildThreads(int maxTableBuildThreads)
+    {
+        this.maxTableBuildThreads = maxTableBuildThreads;
+    }
+    
+    /**
+     * Determine if data and annotation tables are loaded through an HSQLDB
+     * text table when we're connected to an HSQLDB file database. When this
+     * is true the table rows are streamed from the CSV spill to a file next
+     * to the database files, attached as a text table and copied over with a
+     * single <code>INSERT INTO ... SELECT</code> which avoids JDBC parameter
+     * binding completely. Only tables spilled as
+     * {@link CandidateDatabaseManager.SpillFormat#CSV} can be loaded this
+     * way. For other databases (or if attaching the text table fails) we
+     * always fall back on prepared inserts. This is off by default since
+     * batched inserts from the typed spill files are at least as fast (use
+     * TableIngestBenchmarkMain in the builder to compare the two)
+     * @return true if text table ingest is enabled
+     */
+    public boolean isTextTableIngestEnabled()
+    {
+        return this.textTableIngestEnabled;
+    }
+    
+    /**
+     * Setter for text table ingest
+     * @see #isTextTableIngestEnabled()
+     * @param textTableIngestEnabled
+     *          true to enable text table ingest
+     */
+    public void setTextTableIngestEnabled(boolean textTableIngestEnabled)
+    {
+        this.textTableIngestEnabled = textTableIngestEnabled;
+    }
+    
+    /**
+     * Determine if data and annotation tables are loaded with derby's
+     * SYSCS_UTIL.SYSCS_IMPORT_TABLE procedure when we're connected to a
+     * derby database. The import reads a CSV file that is streamed from the
+     * candidate table's CSV spill (see
+     * {@link CandidateDatabaseManager.SpillFormat#CSV}) and, since it goes
+     * into an empty table, derby can skip logging the rows. This is on by
+     * default
+     * @return true if derby import is enabled
+     */
+    public boolean isDerbyImportEnabled()
+    {
+        return this.derbyImportEnabled;
+    }
+    
+    /**
+     * Setter for derby import
+     * @see #isDerbyImportEnabled()
+     * @param derbyImportEnabled
+     *          true to enable derby import
+     */
+    public void setDerbyImportEnabled(boolean derbyImportEnabled)
+    {
+        this.derbyImportEnabled = derbyImportEnabled;
+    }
+    
+    /**
+     * Determine if primary keys (and any other indexes) on the tables built
+     * from candidate tables are created after the rows are loaded rather
+     * than being declared when the table is created. Duplicate IDs are
+     * then reported with an {@link IllegalFormatException} naming the
+     * duplicate values. This is off by default since HSQLDB rebuilds the
+     * whole table to add the key which costs more than maintaining the key
+     * during the load, but it can pay off for databases that build indexes
+     * by sorting
+     * @return true if index creation is deferred
+     */
+    public boolean isIndexCreationDeferred()
+    {
+        return this.indexCreationDeferred;
+    }
+    
+    /**
+     * Setter for deferred index creation
+     * @see #isIndexCreationDeferred()
+     * @param indexCreationDeferred
+     *          true to defer index creation until the rows are loaded
+     */
+    public void setIndexCreationDeferred(boolean indexCreationDeferred)
+    {
+        this.indexCreationDeferred = indexCreationDeferred;
+    }
+    
+    /**
+     * Determine if the data table rows are also written as
+     * {@link PackedProbeVector}s to a side table keyed by probe ID. When the
+     * side table exists {@link #getDataRowForProbeID(Connection, String)}
+     * reads a single packed value rather than one column per array. The
+     * vectors are a second copy of every intensity so this roughly doubles
+     * the size of the data table on disk. This is off by default
+     * @return true if packed probe vectors are written
+     */
+    public boolean isPackedProbeVectorsEnabled()
+    {
+        return this.packedProbeVectorsEnabled;
+    }
+    
+    /**
+     * Setter for writing packed probe vectors
+     * @see #isPackedProbeVectorsEnabled()
+     * @param packedProbeVectorsEnabled
+     *          true to write the packed vector table
+     */
+    public void setPackedProbeVectorsEnabled(boolean packedProbeVectorsEnabled)
+    {
+        this.packedProbeVectorsEnabled = packedProbeVectorsEnabled;
+    }
+    
+    /**
+     * Determine if the data table's intensities are stored as 32 bit floats.
+     * Floats keep about 7 significant digits, which is more than published
+     * intensities usually have, but values with more digits than that are
+     * rounded. When this is on the numeric data columns are declared as
+     * REAL and packed probe vectors use
+     * {@link PackedProbeVector#FLOAT_FORMAT}. HSQLDB has no 32 bit floating
+     * point type (REAL is a synonym for DOUBLE) so with HSQLDB only the
+     * packed vectors shrink and only the values read through
+     * {@link #getDataRowForProbeID(Connection, String)} are rounded. Derby
+     * stores REAL columns in 4 bytes. This is off by default
+     * @return true if intensities are stored in single precision
+     */
+    public boolean isSinglePrecisionDataEnabled()
+    {
+        return this.singlePrecisionDataEnabled;
+    }
+    
+    /**
+     * Setter for single precision intensity storage
+     * @see #isSinglePrecisionDataEnabled()
+     * @param singlePrecisionDataEnabled
+     *          true to store intensities as 32 bit floats
+     */
+    public void setSinglePrecisionDataEnabled(boolean singlePrecisionDataEnabled)
+    {
+        this.singlePrecisionDataEnabled = singlePrecisionDataEnabled;
+    }
+    
+    /**
+     * Determine if a summary statistics table is built alongside the data
+     * table. The table has one row per probe holding the mean, standard
+     * deviation, coefficient of variation, minimum, maximum and median of
+     * the probe's intensities,
+     * the number of missing intensities and the mean for each level of the
+     * design factors that split the arrays into a few groups. It is
+     * registered in the "Statistics" category so that it can be filtered
+     * and sorted on like an annotation table, which means that it shows up
+     * in the web application next to the annotations. This is off by
+     * default
+     * @return true if the summary table is built
+     */
+    public boolean isProbeSummaryTableEnabled()
+    {
+        return this.probeSummaryTableEnabled;
+    }
+    
+    /**
+     * Setter for building the summary statistics table
+     * @see #isProbeSummaryTableEnabled()
+     * @param probeSummaryTableEnabled
+     *          true to build the summary table
+     */
+    public void setProbeSummaryTableEnabled(boolean probeSummaryTableEnabled)
+    {
+        this.probeSummaryTableEnabled = probeSummaryTableEnabled;
+    }
+    
+    /**
+     * Determine if a log2 transformed copy of the intensities is stored.
+     * When this is on the importer builds a copy of the data table holding
+     * {@link #log2(double)} of every intensity, which is registered in the
+     * "Statistics" category so that it can be filtered and sorted on. If
+     * packed probe vectors are enabled (see
+     * {@link #isPackedProbeVectorsEnabled()}) a packed vector table of log2
+     * vectors in the same precision as the intensity vectors is built too,
+     * which {@link #getDataRowsForProbeIDs(Connection, String[], boolean)}
+     * reads instead of transforming the intensities on every request.
+     * Computed log2 values compress poorly so this makes the WAR file much
+     * larger (roughly one more copy of the data table plus one more copy of
+     * the vectors). Intensities
+     * that are zero, negative or missing have no log2 value: they are null
+     * in the copied table and NaN in the vectors. This is off by default
+     * @return true if log2 intensities are stored
+     */
+    public boolean isLog2DataEnabled()
+    {
+        return this.log2DataEnabled;
+    }
+    
+    /**
+     * Setter for storing log2 intensities
+     * @see #isLog2DataEnabled()
+     * @param log2DataEnabled
+     *          true to store log2 intensities
+     */
+    public void setLog2DataEnabled(boolean log2DataEnabled)
+    {
+        this.log2DataEnabled = log2DataEnabled;
+    }
+    
+    /**
+     * Determine if low cardinality text columns in the annotation tables
+     * are dictionary encoded. An encoded column is stored as integer codes
+     * and its values go in a dictionary table next to the annotation
+     * table. Columns like "Species Scientific Name" that repeat a handful of
+     * values for every probe get much smaller this way and filters on them
+     * end up comparing integers. Queries translate filters and results so
+     * encoding is invisible to callers. Only columns that had no more than
+     * {@link ColumnTypeInferrer#MAX_DISTINCT_VALUES} distinct values during
+     * inference are encoded. This is off by default
+     * @return true if columns are dictionary encoded
+     */
+    public boolean isDictionaryEncodingEnabled()
+    {
+        return this.dictionaryEncodingEnabled;
+    }
+    
+    /**
+     * Setter for dictionary encoding
+     * @see #isDictionaryEncodingEnabled()
+     * @param dictionaryEncodingEnabled
+     *          true to dictionary encode columns
+     */
+    public void setDictionaryEncodingEnabled(boolean dictionaryEncodingEnabled)
+    {
+        this.dictionaryEncodingEnabled = dictionaryEncodingEnabled;
+    }
+    
+    /**
+     * Determine if the real valued columns of the given table should be
+     * single precision
+     * @see #isSinglePrecisionDataEnabled()
+     * @param tableName
+     *          the SQL table name
+     * @return
+     *          true for the data table and its log2 copy when single
+     *          precision is enabled
+     */
+    boolean isSinglePrecisionTable(String tableName)
+    {
+        return this.singlePrecisionDataEnabled &&
+               (DATA_TABLE_NAME.equals(tableName) ||
+                LOG2_DATA_TABLE_NAME.equals(tableName));
+    }
+    
+    /**
+     * Getter for the profiler that table creation, row loading and image
+     * indexing phases are recorded to
+     * @return the profiler
+     */
+    public ImportProfiler getImportProfiler()
+    {
+        return this.importProfiler;
+    }
+    
+    /**
+     * Setter for the profiler
+     * @see #getImportProfiler()
+     * @param importProfiler the profiler
+     */
+    public void setImportProfiler(ImportProfiler importProfiler)
+    {
+        this.importProfiler = importProfiler;
+    }
+    
+    /**
+     * Getter for the checkpoint that built tables are recorded to. If this
+     * is non-null the design, data and annotation tables that the
+     * checkpoint says are complete are not rebuilt and every table that is
+     * built gets checkpointed to disk before it is recorded as complete.
+     * This is null by default
+     * @return the checkpoint or null
+     */
+    public BuildCheckpoint getBuildCheckpoint()
+    {
+        return this.buildCheckpoint;
+    }
+    
+    /**
+     * Setter for the build checkpoint
+     * @see #getBuildCheckpoint()
+     * @param buildCheckpoint the checkpoint or null
+     */
+    public void setBuildCheckpoint(BuildCheckpoint buildCheckpoint)
+    {
+        this.buildCheckpoint = buildCheckpoint;
+    }
+    
+    /**
+     * Write the given candidate database to the real database. Everything is
+     * done using the given connection one table at a time
+     * @param connection
+     *          the connection to use
+     * @param candidateDatabase
+     *          the candidates to write to DB
+     * @throws SQLException
+     *          if we get an exception from JDBC
+     * @throws IOException
+     *          if we we have trouble reading one of our cached table files
+     * @throws IllegalFormatException
+     *          if we find formatting problems in any of the candidate
+     *          database's tables
+     */
+    public void writeCandidatesToDatabase(
+            Connection connection,
+            CandidateDatabaseManager candidateDatabase)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        this.writeCandidatesToDatabase(
+                null,
+                connection,
+                candidateDatabase);
+    }
+    
+    /**
+     * Write the given candidate database to the real database. If a
+     * connection manager is given the annotation tables are built
+     * concurrently (up to {@link #getMaxTableBuildThreads()} at a time) with
+     * each worker using its own connection. The {@link #TABLE_META_TABLE}
+     * rows are always inserted in annotation order so table numbering does
+     * not depend on which worker finishes first
+     * @param connectionManager
+     *          the connection manager used to create a connection for each
+     *          worker. If null all tables are built using the given
+     *          connection
      * @param connection
      *          the connection to use
      * @param candidateDatabase
@@ -171,6 +653,7 @@ public class PersistenceManager
      *          database's tables
      */
     public void writeCandidatesToDatabase(
+            ConnectionManager connectionManager,
             Connection connection,
             CandidateDatabaseManager candidateDatabase)
     throws SQLException, IOException, IllegalFormatException
@@ -182,54 +665,167 @@ public class PersistenceManager
                 connection,
                 candidateDatabase.getExperimentMetadata());
         
-        this.buildDesignTable(connection, candidateDatabase);
+        if(!this.tableCheckpointer.isTableCheckpointed(DESIGN_TABLE_NAME))
+        {
+            this.buildDesignTable(connection, candidateDatabase);
+            this.tableCheckpointer.checkpointTables(connection, DESIGN_TABLE_NAME);
+        }
+        
+        if(!this.tableCheckpointer.isTableCheckpointed(DATA_TABLE_NAME))
+        {
+            this.buildTable(
+                    connection,
+                    DATA_TABLE_NAME,
+                    candidateDatabase.getDataTable());
+            if(this.packedProbeVectorsEnabled)
+            {
+                this.packedVectorTables.buildPackedVectorTable(
+                        connection,
+                        candidateDatabase.getDataTable().getMetadata());
+            }
+            this.tableCheckpointer.checkpointTables(connection, DATA_TABLE_NAME);
+        }
+        
+        if(this.probeSummaryTableEnabled &&
+           !this.tableCheckpointer.isTableCheckpointed(PROBE_SUMMARY_TABLE_NAME))
+        {
+            this.probeSummaryTableBuilder.buildProbeSummaryTable(
+                    connection,
+                    candidateDatabase.getDataTable().getMetadata());
+            this.tableCheckpointer.checkpointTables(
+                    connection,
+                    PROBE_SUMMARY_TABLE_NAME);
+        }
         
-        CandidateTable dataTable = candidateDatabase.getDataTable();
-        this.buildTable(
-                connection,
-                DATA_TABLE_NAME,
-                dataTable.getMetadata(),
-                dataTable.readFile());
+        if(this.log2DataEnabled &&
+           !this.tableCheckpointer.isTableCheckpointed(LOG2_DATA_TABLE_NAME))
+        {
+            this.log2DataTableBuilder.buildLog2DataTable(
+                    connection,
+                    candidateDatabase.getDataTable().getMetadata());
+            this.tableCheckpointer.checkpointTables(
+                    connection,
+                    LOG2_DATA_TABLE_NAME);
+        }
         
-        Map<String, CandidateTable> annotationTblMap =
-            candidateDatabase.getAnnotationTables();
         List<String> annotationTblKeys =
             candidateDatabase.getOrderedAnnotationTableKeys();
-        int annotationTableIndex = 0;
-        for(String annotationTblKey: annotationTblKeys)
+        List<CandidateTable> annotationTables =
+            AnnotationTableBuilder.getOrderedAnnotationTables(candidateDatabase);
+        List<String> annotationSqlTableNames =
+            new ArrayList<String>(annotationTables.size());
+        for(int i = 0; i < annotationTables.size(); i++)
         {
-            CandidateTable annotationTable = annotationTblMap.get(annotationTblKey);
-            if(annotationTable == null)
-            {
-                throw new NullPointerException(
-                        "Candidate annotation table key " + annotationTblKey +
-                        " is null. Valid key strings are: " +
-                        SequenceUtilities.toString(annotationTblMap.keySet()));
-            }
-            
-            String tableName =
-                ANNOTATION_TABLE_NAME_PREFIX + annotationTableIndex;
-            this.buildTable(
+            annotationSqlTableNames.add(ANNOTATION_TABLE_NAME_PREFIX + i);
+        }
+        
+        this.annotationTableBuilder.buildAnnotationTables(
+                connectionManager,
+                connection,
+                annotationSqlTableNames,
+                annotationTables);
+        
+        // the meta rows are inserted in the same order as the annotation keys
+        // regardless of the order that the tables were built in
+        for(int i = 0; i < annotationTables.size(); i++)
+        {
+            this.insertTableMetadata(
                     connection,
-                    tableName,
-                    annotationTable.getMetadata(),
-                    annotationTable.readFile());
-            
+                    annotationSqlTableNames.get(i),
+                    annotationTblKeys.get(i),
+                    annotationTables.get(i).getCategoryName());
+        }
+        
+        if(this.probeSummaryTableEnabled &&
+           this.tableExists(connection, PROBE_SUMMARY_TABLE_NAME))
+        {
             this.insertTableMetadata(
                     connection,
-                    tableName,
-                    annotationTblKey,
-                    annotationTable.getCategoryName());
-            
-            annotationTableIndex++;
+                    PROBE_SUMMARY_TABLE_NAME,
+                    PROBE_SUMMARY_LOGICAL_NAME,
+                    STATISTICS_TABLE_CATEGORY);
         }
         
-        this.buildPerProbeImageTables(
-                connection,
-                candidateDatabase.getPerGeneImageDirectoryDescriptions());
+        if(this.log2DataEnabled &&
+           this.tableExists(connection, LOG2_DATA_TABLE_NAME))
+        {
+            this.insertTableMetadata(
+                    connection,
+                    LOG2_DATA_TABLE_NAME,
+                    LOG2_DATA_TABLE_LOGICAL_NAME,
+                    STATISTICS_TABLE_CATEGORY);
+        }
+        
+        ImportProfiler.Phase imagePhase = this.importProfiler.startPhase(
+                ImportProfiler.IMAGE_INDEXING_CATEGORY,
+                PER_GENE_IMAGE_TABLE_NAME);
+        try
+        {
+            imagePhase.addRows(this.buildPerProbeImageTables(
+                    connection,
+                    candidateDatabase.getPerGeneImageDirectoryDescriptions()));
+        }
+        finally
+        {
+            imagePhase.finish();
+        }
     }
 
-    private void buildPerProbeImageTables(
+    /**
+     * Add the candidate database's annotation tables to a database that was
+     * already written by
+     * {@link #writeCandidatesToDatabase(ConnectionManager, Connection, CandidateDatabaseManager)}.
+     * An annotation whose name matches an existing annotation table replaces
+     * that table (keeping its place in the table ordering). A replaced
+     * table is dropped along with everything that was built from it (its
+     * column metadata, its dictionary and its meta table row) before the
+     * new table is built. Any other annotation is added after the existing
+     * tables. Nothing else in the database is touched (the probe summary
+     * and packed vector tables only depend on the data table) so the cost
+     * only depends on the size of the annotations being added
+     * @param connectionManager
+     *          the connection manager used to create a connection for each
+     *          worker. If null all tables are built using the given
+     *          connection
+     * @param connection
+     *          the connection to use
+     * @param candidateDatabase
+     *          the candidates holding the annotations to add. Only its
+     *          annotation tables are used
+     * @throws SQLException
+     *          if we get an exception from JDBC
+     * @throws IOException
+     *          if we we have trouble reading one of our cached table files
+     * @throws IllegalFormatException
+     *          if we find formatting problems in any of the annotation
+     *          tables
+     */
+    public void appendAnnotationTables(
+            ConnectionManager connectionManager,
+            Connection connection,
+            CandidateDatabaseManager candidateDatabase)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        this.annotationTableBuilder.appendAnnotationTables(
+                connectionManager,
+                connection,
+                candidateDatabase);
+    }
+    
+    /**
+     * Build the tables that index the per-gene image directories
+     * @param connection
+     *          the connection to use
+     * @param perProbeImageDescs
+     *          the image directories
+     * @return
+     *          the number of images indexed
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IOException
+     *          if we have trouble reading the directories
+     */
+    private long buildPerProbeImageTables(
             Connection connection,
             List<PerGeneImageDirectoryDescription> perProbeImageDescs)
     throws SQLException, IOException
@@ -237,31 +833,23 @@ public class PersistenceManager
         this.dropTableNamed(connection, PER_GENE_IMAGE_CATEGORY_TABLE_NAME);
         this.dropTableNamed(connection, PER_GENE_IMAGE_TABLE_NAME);
         
-        int maxCategoryNameLength = 1;
-        int maxGeneIdLength = 1;
+        // every directory is listed exactly once here
+        PerGeneImageIndex imageIndex = PerGeneImageIndex.scan(
+                perProbeImageDescs,
+                this.maxTableBuildThreads);
         
+        int maxCategoryNameLength = 1;
         for(PerGeneImageDirectoryDescription currDesc: perProbeImageDescs)
         {
             if(maxCategoryNameLength < currDesc.getName().length())
             {
                 maxCategoryNameLength = currDesc.getName().length();
             }
-            
-            for(String maybeImgFilename : currDesc.getDirectory().list())
-            {
-                if(this.getImageExtension(maybeImgFilename) != null)
-                {
-                    String geneId = this.getImageGeneId(maybeImgFilename);
-                    if(maxGeneIdLength < geneId.length())
-                    {
-                        maxGeneIdLength = geneId.length();
-                    }
-                }
-            }
         }
+        int maxGeneIdLength = Math.max(1, imageIndex.getMaxGeneIdLength());
         
         int maxImageExtensionLength = 1;
-        for(String currExt: EXTENSION_SET)
+        for(String currExt: PerGeneImageIndex.IMAGE_EXTENSIONS)
         {
             if(maxImageExtensionLength < currExt.length())
             {
@@ -312,16 +900,24 @@ public class PersistenceManager
         createImgTblStmt.close();
         
         // fill the tables
-        PreparedStatement insertMetaTblStmt = connection.prepareStatement(
-                "INSERT INTO " + PER_GENE_IMAGE_CATEGORY_TABLE_NAME +
-                " VALUES(?, ?)",
-                ResultSet.TYPE_FORWARD_ONLY,
-                ResultSet.CONCUR_READ_ONLY);
-        PreparedStatement insertImgTblStmt = connection.prepareStatement(
-                "INSERT INTO " + PER_GENE_IMAGE_TABLE_NAME +
-                " VALUES(?, ?, ?)",
-                ResultSet.TYPE_FORWARD_ONLY,
-                ResultSet.CONCUR_READ_ONLY);
+        BatchInserter insertMetaTblInserter = this.createBatchInserter(
+                connection,
+                PER_GENE_IMAGE_CATEGORY_TABLE_NAME,
+                connection.prepareStatement(
+                        "INSERT INTO " + PER_GENE_IMAGE_CATEGORY_TABLE_NAME +
+                        " VALUES(?, ?)",
+                        ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY));
+        BatchInserter insertImgTblInserter = this.createBatchInserter(
+                connection,
+                PER_GENE_IMAGE_TABLE_NAME,
+                connection.prepareStatement(
+                        "INSERT INTO " + PER_GENE_IMAGE_TABLE_NAME +
+                        " VALUES(?, ?, ?)",
+                        ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY));
+        PreparedStatement insertMetaTblStmt = insertMetaTblInserter.getStatement();
+        PreparedStatement insertImgTblStmt = insertImgTblInserter.getStatement();
         int descCount = perProbeImageDescs.size();
         for(int descIndex = 0; descIndex < descCount; descIndex++)
         {
@@ -338,80 +934,34 @@ public class PersistenceManager
                     currDesc.getName());
             colIndex++;
             
-            insertMetaTblStmt.executeUpdate();
-            
-            for(String maybeImgFilename : currDesc.getDirectory().list())
-            {
-                String extension = this.getImageExtension(maybeImgFilename);
-                if(extension != null)
-                {
-                    // TODO allow URL decoding for names
-                    int imgColIndex = 1;
-                    
-                    insertImgTblStmt.setString(
-                            imgColIndex,
-                            this.getImageGeneId(maybeImgFilename));
-                    imgColIndex++;
-                    
-                    insertImgTblStmt.setString(
-                            imgColIndex,
-                            extension);
-                    imgColIndex++;
-                    
-                    insertImgTblStmt.setInt(
-                            imgColIndex,
-                            descIndex);
-                    imgColIndex++;
-                    
-                    insertImgTblStmt.executeUpdate();
-                }
-            }
-        }
-        insertMetaTblStmt.close();
-        insertImgTblStmt.close();
-    }
-    
-    /**
-     * Get the extension for the given file
-     * @param fileName  the file name
-     * @return          the extension or null
-     */
-    private String getImageExtension(String fileName)
-    {
-        String[] dotSplit = fileName.split("\\.");
-        if(dotSplit.length >= 2)
-        {
-            String extension = dotSplit[dotSplit.length - 1];
-            if(EXTENSION_SET.contains(extension))
-            {
-                return extension;
-            }
-            else
-            {
-                return null;
-            }
-                
+            insertMetaTblInserter.addRow();
         }
-        else
+        
+        for(PerGeneImageIndex.Entry imageEntry: imageIndex.getEntries())
         {
-            return null;
+            int imgColIndex = 1;
+            
+            insertImgTblStmt.setString(
+                    imgColIndex,
+                    imageEntry.getGeneId());
+            imgColIndex++;
+            
+            insertImgTblStmt.setString(
+                    imgColIndex,
+                    imageEntry.getExtension());
+            imgColIndex++;
+            
+            insertImgTblStmt.setInt(
+                    imgColIndex,
+                    imageEntry.getCategoryIndex());
+            imgColIndex++;
+            
+            insertImgTblInserter.addRow();
         }
+        insertMetaTblInserter.finish();
+        return insertImgTblInserter.finish();
     }
     
-    private String getImageGeneId(String fileName)
-    {
-        String[] dotSplit = fileName.split("\\.");
-        if(dotSplit.length >= 2)
-        {
-            String extension = dotSplit[dotSplit.length - 1];
-            return fileName.substring(0, fileName.length() - (extension.length() + 1));
-        }
-        else
-        {
-            return null;
-        }
-    }
-
     /**
      * Create the candidate design table
      * @param connection
@@ -449,115 +999,147 @@ public class PersistenceManager
             newDesignMetadata[i + 1] = originalDesignMetadata[i];
         }
         
-        this.buildEmptyTable(
-                connection,
-                DESIGN_TABLE_NAME,
-                newDesignMetadata);
-        
-        // prepare a statement using the given metadata
-        PreparedStatement insertStatement = this.prepareInsert(
-                connection,
-                DESIGN_TABLE_NAME,
-                newDesignMetadata);
-        
-        final FlatFileReader designTableContents = candidateDesignTable.readFile();
-        TableColumnMetadata[] dataTableHeader =
-            candidateDatabase.getDataTable().getMetadata();
-        String[] currRow = null;
-        
-        int indexOfDesignFactorToMatch = -1;
-        if(designFactorToMatch != null)
+        ImportProfiler.Phase creationPhase = this.importProfiler.startPhase(
+                ImportProfiler.TABLE_CREATION_CATEGORY,
+                DESIGN_TABLE_NAME);
+        try
         {
-            TableColumnMetadata[] designTableHeader =
-                candidateDatabase.getDesignTable().getMetadata();
-            for(int i = 0; i < designTableHeader.length; i++)
-            {
-                if(designTableHeader[i].getName().equals(designFactorToMatch))
-                {
-                    indexOfDesignFactorToMatch = i;
-                    break;
-                }
-            }
-            
-            if(indexOfDesignFactorToMatch == -1)
-            {
-                throw new IllegalFormatException(
-                        "Attempting to match design rows to data columns but " +
-                        "failed to find design column named: " +
-                        designFactorToMatch);
-            }
+            this.buildEmptyTable(
+                    connection,
+                    DESIGN_TABLE_NAME,
+                    newDesignMetadata);
+        }
+        finally
+        {
+            creationPhase.finish();
         }
         
-        Set<Integer> uniqueDataColumnMatches = new HashSet<Integer>();
-        int designRowIndex;
-        for(designRowIndex = 0;
-            (currRow = designTableContents.readRow()) != null;
-            designRowIndex++)
+        ImportProfiler.Phase loadingPhase = this.importProfiler.startPhase(
+                ImportProfiler.ROW_LOADING_CATEGORY,
+                DESIGN_TABLE_NAME);
+        try
         {
-            final String[] rowWithIndex = new String[currRow.length + 1];
-            if(designFactorToMatch == null)
-            {
-                // since the design to match is null we'll use the row
-                // ordering instead
-                rowWithIndex[0] = Integer.toString(designRowIndex);
-            }
-            else
+            loadingPhase.addBytesRead(getSpillFileLength(candidateDesignTable));
+            
+            // prepare a statement using the given metadata
+            BatchInserter inserter = this.createBatchInserter(
+                    connection,
+                    DESIGN_TABLE_NAME,
+                    this.prepareInsert(
+                            connection,
+                            DESIGN_TABLE_NAME,
+                            newDesignMetadata));
+            
+            final FlatFileReader designTableContents = candidateDesignTable.readFile();
+            TableColumnMetadata[] dataTableHeader =
+                candidateDatabase.getDataTable().getMetadata();
+            String[] currRow = null;
+            
+            int indexOfDesignFactorToMatch = -1;
+            if(designFactorToMatch != null)
             {
-                String designValueToMatch = currRow[indexOfDesignFactorToMatch];
-                
-                // we should skip the 1st column because it is the probeset ID
-                int matchingDataColIndex = -1;
-                for(int dataColIndex = 1; dataColIndex < dataTableHeader.length; dataColIndex++)
+                TableColumnMetadata[] designTableHeader =
+                    candidateDatabase.getDesignTable().getMetadata();
+                for(int i = 0; i < designTableHeader.length; i++)
                 {
-                    if(dataTableHeader[dataColIndex].getName().equals(designValueToMatch))
+                    if(designTableHeader[i].getName().equals(designFactorToMatch))
                     {
-                        matchingDataColIndex = dataColIndex;
+                        indexOfDesignFactorToMatch = i;
                         break;
                     }
                 }
-                
-                if(matchingDataColIndex == -1)
+            
+                if(indexOfDesignFactorToMatch == -1)
                 {
                     throw new IllegalFormatException(
-                            "Failed to find a data table header name matching " +
-                            "the design table value of: \"" +
-                            designValueToMatch + "\"");
+                            "Attempting to match design rows to data columns but " +
+                            "failed to find design column named: " +
+                            designFactorToMatch);
+                }
+            }
+            
+            Set<Integer> uniqueDataColumnMatches = new HashSet<Integer>();
+            int designRowIndex;
+            for(designRowIndex = 0;
+                (currRow = designTableContents.readRow()) != null;
+                designRowIndex++)
+            {
+                final String[] rowWithIndex = new String[currRow.length + 1];
+                if(designFactorToMatch == null)
+                {
+                    // since the design to match is null we'll use the row
+                    // ordering instead
+                    rowWithIndex[0] = Integer.toString(designRowIndex);
                 }
                 else
                 {
-                    if(!uniqueDataColumnMatches.add(matchingDataColIndex))
+                    String designValueToMatch = currRow[indexOfDesignFactorToMatch];
+                
+                    // we should skip the 1st column because it is the probeset ID
+                    int matchingDataColIndex = -1;
+                    for(int dataColIndex = 1; dataColIndex < dataTableHeader.length; dataColIndex++)
+                    {
+                        if(dataTableHeader[dataColIndex].getName().equals(designValueToMatch))
+                        {
+                            matchingDataColIndex = dataColIndex;
+                            break;
+                        }
+                    }
+                
+                    if(matchingDataColIndex == -1)
                     {
                         throw new IllegalFormatException(
-                                "Found duplicate value of " + designValueToMatch +
-                                " in the design file. The design factor that we " +
-                                "match data columns on must not contain any " +
-                                "duplicate values.");
+                                "Failed to find a data table header name matching " +
+                                "the design table value of: \"" +
+                                designValueToMatch + "\"");
+                    }
+                    else
+                    {
+                        if(!uniqueDataColumnMatches.add(matchingDataColIndex))
+                        {
+                            throw new IllegalFormatException(
+                                    "Found duplicate value of " + designValueToMatch +
+                                    " in the design file. The design factor that we " +
+                                    "match data columns on must not contain any " +
+                                    "duplicate values.");
+                        }
+                        rowWithIndex[0] = Integer.toString(matchingDataColIndex);
                     }
-                    rowWithIndex[0] = Integer.toString(matchingDataColIndex);
                 }
+            
+                for(int designColIndex = 0; designColIndex < currRow.length; designColIndex++)
+                {
+                    rowWithIndex[designColIndex + 1] = currRow[designColIndex];
+                }
+            
+                this.insertRow(
+                        inserter,
+                        newDesignMetadata,
+                        rowWithIndex);
             }
             
-            for(int designColIndex = 0; designColIndex < currRow.length; designColIndex++)
+            // the number of rows in the design file should match the columns in
+            // the data file - 1 (because of the probeset column)
+            designTableContents.close();
+            if(designRowIndex != dataTableHeader.length - 1)
             {
-                rowWithIndex[designColIndex + 1] = currRow[designColIndex];
+                throw new IllegalFormatException(
+                        "The number of arrays described in the design file does " +
+                        "not match the number of arrays described by the data file.");
             }
             
-            this.insertRow(
-                    insertStatement,
-                    newDesignMetadata,
-                    rowWithIndex);
+            loadingPhase.addRows(inserter.finish());
         }
-        
-        // the number of rows in the design file should match the columns in
-        // the data file - 1 (because of the probeset column)
-        if(designRowIndex != dataTableHeader.length - 1)
+        finally
         {
-            throw new IllegalFormatException(
-                    "The number of arrays described in the design file does " +
-                    "not match the number of arrays described by the data file.");
+            loadingPhase.finish();
         }
         
-        insertStatement.close();
+        this.deferredKeyCreator.createDeferredIndexes(
+                connection,
+                DESIGN_TABLE_NAME,
+                candidateDesignTable.getTableName(),
+                newDesignMetadata);
     }
 
     /**
@@ -580,13 +1162,32 @@ public class PersistenceManager
         createBuilder.append(EXPERIMENT_METADATA_TABLE_NAME);
         createBuilder.append(" (");
         
-        // TODO I have to use LONGVARCHAR for now because HSQLDB doesn't have
-        // a proper CLOB type
-        createBuilder.append(EXPERIMENT_NAME_COL);
-        createBuilder.append(" LONGVARCHAR NOT NULL, ");
-        
-        createBuilder.append(EXPERIMENT_DESCRIPTION_COL);
-        createBuilder.append(" LONGVARCHAR NOT NULL, ");
+        if(BulkTableLoader.isDerbyConnection(connection))
+        {
+            // derby's LONG VARCHAR can't be used as a key
+            String experimentName = experimentMetadata == null ?
+                    null :
+                    experimentMetadata.getExperimentName();
+            int nameLength = experimentName == null ? 1 : experimentName.length();
+            
+            createBuilder.append(EXPERIMENT_NAME_COL);
+            createBuilder.append(" VARCHAR(");
+            createBuilder.append(Math.max(nameLength, 1));
+            createBuilder.append(") NOT NULL, ");
+            
+            createBuilder.append(EXPERIMENT_DESCRIPTION_COL);
+            createBuilder.append(" CLOB NOT NULL, ");
+        }
+        else
+        {
+            // TODO I have to use LONGVARCHAR for now because HSQLDB doesn't have
+            // a proper CLOB type
+            createBuilder.append(EXPERIMENT_NAME_COL);
+            createBuilder.append(" LONGVARCHAR NOT NULL, ");
+            
+            createBuilder.append(EXPERIMENT_DESCRIPTION_COL);
+            createBuilder.append(" LONGVARCHAR NOT NULL, ");
+        }
         
         createBuilder.append("PRIMARY KEY(");
         createBuilder.append(EXPERIMENT_NAME_COL);
@@ -708,7 +1309,7 @@ public class PersistenceManager
      * @throws SQLException
      *          if JDBC doesn't like what we're doing
      */
-    private void insertTableMetadata(
+    void insertTableMetadata(
             Connection connection,
             String sqlTableName,
             String logicalTableName,
@@ -740,6 +1341,209 @@ public class PersistenceManager
         fillMetaStatement.close();
     }
 
+    /**
+     * Build the named database table from the given candidate table. If
+     * text table ingest is enabled and we're connected to an HSQLDB file
+     * database the rows are loaded through a text table (see
+     * {@link #isTextTableIngestEnabled()}). If derby import is enabled and
+     * we're connected to derby the rows are loaded with derby's import
+     * procedure (see {@link #isDerbyImportEnabled()}). Otherwise they are
+     * loaded using prepared inserts. Low cardinality columns are dictionary
+     * encoded (see {@link #isDictionaryEncodingEnabled()}) whichever way
+     * the rows are loaded
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param candidateTable
+     *          the candidate table
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if we find bad formatting in the table contents
+     * @throws IOException
+     *          if we have trouble reading the data
+     */
+    void buildTable(
+            Connection connection,
+            String tableName,
+            CandidateTable candidateTable)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        String[][] columnDictionaries;
+        ImportProfiler.Phase creationPhase = this.importProfiler.startPhase(
+                ImportProfiler.TABLE_CREATION_CATEGORY,
+                tableName);
+        try
+        {
+            columnDictionaries = this.dictionaryEncoder.buildDictionaryTable(
+                    connection,
+                    tableName,
+                    candidateTable.getMetadata());
+            this.buildEmptyTable(
+                    connection,
+                    tableName,
+                    candidateTable.getMetadata(),
+                    columnDictionaries);
+        }
+        finally
+        {
+            creationPhase.finish();
+        }
+        
+        ImportProfiler.Phase loadingPhase = this.importProfiler.startPhase(
+                ImportProfiler.ROW_LOADING_CATEGORY,
+                tableName);
+        try
+        {
+            loadingPhase.addBytesRead(getSpillFileLength(candidateTable));
+            
+            long rowCount = -1L;
+            if(this.textTableIngestEnabled)
+            {
+                File hsqldbDirectory = BulkTableLoader.getHSQLDBFileDirectory(connection);
+                if(hsqldbDirectory != null)
+                {
+                    rowCount = this.bulkTableLoader.fillTableUsingTextTable(
+                            connection,
+                            hsqldbDirectory,
+                            tableName,
+                            candidateTable,
+                            columnDictionaries);
+                }
+            }
+            
+            if(rowCount < 0L &&
+               this.derbyImportEnabled &&
+               BulkTableLoader.isDerbyConnection(connection))
+            {
+                rowCount = this.bulkTableLoader.fillTableUsingDerbyImport(
+                        connection,
+                        tableName,
+                        candidateTable,
+                        columnDictionaries);
+            }
+            
+            if(rowCount < 0L)
+            {
+                rowCount = this.fillTable(
+                        connection,
+                        tableName,
+                        candidateTable,
+                        columnDictionaries);
+            }
+            loadingPhase.addRows(rowCount);
+        }
+        finally
+        {
+            loadingPhase.finish();
+        }
+        
+        this.deferredKeyCreator.createDeferredIndexes(
+                connection,
+                tableName,
+                candidateTable.getTableName(),
+                candidateTable.getMetadata());
+    }
+    
+    /**
+     * Get the log2 of the given intensity. Intensities that aren't positive
+     * have no log2 value
+     * @param intensity
+     *          the intensity
+     * @return
+     *          the log2 value or NaN if the intensity is zero, negative or
+     *          NaN
+     */
+    public static double log2(double intensity)
+    {
+        return Log2DataTableBuilder.log2(intensity);
+    }
+    
+    /**
+     * Get the length of the file backing the given candidate table
+     * @param candidateTable
+     *          the candidate table
+     * @return
+     *          the length of the typed spill file if there is one, otherwise
+     *          the length of the CSV spill file
+     */
+    private static long getSpillFileLength(CandidateTable candidateTable)
+    {
+        File spillFile = candidateTable.getTypedSpillFile();
+        if(spillFile == null)
+        {
+            spillFile = candidateTable.getServerSideFile();
+        }
+        
+        return spillFile == null ? 0L : spillFile.length();
+    }
+    
+    /**
+     * Fill in the table from the given candidate table using prepared
+     * inserts. The typed spill file is used if there is one, otherwise we
+     * fall back on parsing the CSV spill file
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param candidateTable
+     *          the candidate table
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null (see
+     *          {@link ColumnDictionaryEncoder#buildDictionaryTable(Connection, String, TableColumnMetadata[])})
+     * @return
+     *          the number of rows inserted
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if we find bad formatting in the table contents
+     * @throws IOException
+     *          if we have trouble reading the data
+     */
+    private long fillTable(
+            Connection connection,
+            String tableName,
+            CandidateTable candidateTable,
+            String[][] columnDictionaries)
+    throws SQLException, IOException, IllegalFormatException
+    {
+        TypedSpillReader typedReader = candidateTable.readTypedFile();
+        if(typedReader == null)
+        {
+            FlatFileReader csvReader = candidateTable.readFile();
+            try
+            {
+                return this.fillTable(
+                        connection,
+                        tableName,
+                        candidateTable.getMetadata(),
+                        csvReader,
+                        columnDictionaries);
+            }
+            finally
+            {
+                csvReader.close();
+            }
+        }
+        else
+        {
+            try
+            {
+                return this.fillTable(
+                        connection,
+                        tableName,
+                        candidateTable.getMetadata(),
+                        typedReader,
+                        columnDictionaries);
+            }
+            finally
+            {
+                typedReader.close();
+            }
+        }
+    }
+    
     /**
      * Build the named database table using the given column metadata and
      * flat file data
@@ -773,7 +1577,13 @@ public class PersistenceManager
                 connection,
                 tableName,
                 columnMetadata,
-                tableContents);
+                tableContents,
+                null);
+        this.deferredKeyCreator.createDeferredIndexes(
+                connection,
+                tableName,
+                tableName,
+                columnMetadata);
     }
     
     /**
@@ -789,11 +1599,37 @@ public class PersistenceManager
      * @throws SQLException
      *          if JDBC doesn't like what we're doing
      */
-    private void buildEmptyTable(
+    void buildEmptyTable(
             Connection connection,
             String tableName,
             TableColumnMetadata[] columnMetadata)
     throws SQLException
+    {
+        this.buildEmptyTable(connection, tableName, columnMetadata, null);
+    }
+    
+    /**
+     * Just like {@link #buildEmptyTable(Connection, String, TableColumnMetadata[])}
+     * except that dictionary encoded columns are created as integer codes.
+     * The column metadata table still describes them as text
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param columnMetadata
+     *          metadata about the table columns
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null (see
+     *          {@link ColumnDictionaryEncoder#buildDictionaryTable(Connection, String, TableColumnMetadata[])})
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    void buildEmptyTable(
+            Connection connection,
+            String tableName,
+            TableColumnMetadata[] columnMetadata,
+            String[][] columnDictionaries)
+    throws SQLException
     {
         // build the metadata table
         String metaTableName = tableName + COL_METADATA_TABLE_SUFFIX;
@@ -812,7 +1648,7 @@ public class PersistenceManager
         this.createTable(
                 connection,
                 tableName,
-                columnMetadata);
+                ColumnDictionaryEncoder.toStoredColumnMetadata(columnMetadata, columnDictionaries));
     }
     
     /**
@@ -921,10 +1757,14 @@ public class PersistenceManager
             TableColumnMetadata[] columnMetadata)
     throws SQLException
     {
-        PreparedStatement fillMetaStatement = connection.prepareStatement(
-                "INSERT INTO " + metaTableName + " VALUES (?, ?, ?, ?)",
-                ResultSet.TYPE_FORWARD_ONLY,
-                ResultSet.CONCUR_READ_ONLY);
+        BatchInserter inserter = this.createBatchInserter(
+                connection,
+                metaTableName,
+                connection.prepareStatement(
+                        "INSERT INTO " + metaTableName + " VALUES (?, ?, ?, ?)",
+                        ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY));
+        PreparedStatement fillMetaStatement = inserter.getStatement();
         
         for(int colIndex = 0; colIndex < columnMetadata.length; colIndex++)
         {
@@ -951,10 +1791,10 @@ public class PersistenceManager
                     currColMetadata.getDescription());
             metaColIndex++;
             
-            fillMetaStatement.executeUpdate();
+            inserter.addRow();
         }
         
-        fillMetaStatement.close();
+        inserter.finish();
     }
 
     /**
@@ -969,7 +1809,7 @@ public class PersistenceManager
      * @throws SQLException
      *          if we get an exception from JDBC
      */
-    private boolean dropTableNamed(Connection connection, String tableName)
+    boolean dropTableNamed(Connection connection, String tableName)
     throws SQLException
     {
         LOG.info("dropping " + tableName);
@@ -1020,7 +1860,7 @@ public class PersistenceManager
      * @throws SQLException
      *          if JDBC doesn't like what we're doing
      */
-    private void createTable(
+    void createTable(
             Connection connection,
             String tableName,
             TableColumnMetadata[] columnMetadata)
@@ -1041,8 +1881,83 @@ public class PersistenceManager
         StringBuilder createBuilder = new StringBuilder("CREATE TABLE ");
         createBuilder.append(tableName);
         createBuilder.append(" (");
+        this.appendColumnDefinitions(
+                createBuilder,
+                columnMetadata,
+                this.isSinglePrecisionTable(tableName));
+        if(!this.indexCreationDeferred)
+        {
+            createBuilder.append(", PRIMARY KEY (");
+            createBuilder.append(COL_NAME_PREFIX);
+            createBuilder.append(0);
+            createBuilder.append(')');
+        }
+        createBuilder.append(')');
+        
+        String createString = createBuilder.toString();
+        
+        LOG.info("creating table with: " + createString);
+        
+        createTblStmt.executeUpdate(createString);
+        createTblStmt.close();
+        
+        LOG.info("successfully created table named: " + tableName);
+    }
+    
+    /**
+     * Measure how fast rows with the given metadata can be inserted by
+     * inserting them into a scratch table (which is dropped afterwards).
+     * The rows go through the same batched inserts that a normal build
+     * uses. Rows whose ID has already been seen are skipped
+     * @param connection
+     *          the connection to use
+     * @param columnMetadata
+     *          the column metadata. Every row must conform to it
+     * @param rows
+     *          the rows to insert
+     * @return
+     *          the insert rate in rows per second or -1 if there were no
+     *          rows to insert
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    public double measureInsertRate(
+            Connection connection,
+            TableColumnMetadata[] columnMetadata,
+            List<String[]> rows)
+    throws SQLException
+    {
+        return StorageEstimator.measureInsertRate(
+                this,
+                connection,
+                columnMetadata,
+                rows);
+    }
+    
+    /**
+     * Append the comma separated column definitions (names and SQL types)
+     * for the given metadata. The ID column is always NOT NULL so that a
+     * primary key can be added to it later
+     * @param createBuilder
+     *          the builder for the create statement
+     * @param columnMetadata
+     *          the metadata that describes the column types
+     * @param singlePrecisionReals
+     *          if true real columns are declared as REAL rather than
+     *          DOUBLE PRECISION
+     */
+    void appendColumnDefinitions(
+            StringBuilder createBuilder,
+            TableColumnMetadata[] columnMetadata,
+            boolean singlePrecisionReals)
+    {
         for(int colIndex = 0; colIndex < columnMetadata.length; colIndex++)
         {
+            if(colIndex >= 1)
+            {
+                createBuilder.append(", ");
+            }
+            
             // the column name
             createBuilder.append(COL_NAME_PREFIX);
             createBuilder.append(colIndex);
@@ -1064,7 +1979,8 @@ public class PersistenceManager
                 
                 case REAL:
                 {
-                    createBuilder.append("DOUBLE PRECISION");
+                    createBuilder.append(
+                            singlePrecisionReals ? "REAL" : "DOUBLE PRECISION");
                 }
                 break;
                 
@@ -1075,21 +1991,11 @@ public class PersistenceManager
                 break;
             }
             
-            createBuilder.append(", ");
+            if(colIndex == 0)
+            {
+                createBuilder.append(" NOT NULL");
+            }
         }
-        createBuilder.append(" PRIMARY KEY (");
-        createBuilder.append(COL_NAME_PREFIX);
-        createBuilder.append(0);
-        createBuilder.append("))");
-        
-        String createString = createBuilder.toString();
-        
-        LOG.info("creating table with: " + createString);
-        
-        createTblStmt.executeUpdate(createString);
-        createTblStmt.close();
-        
-        LOG.info("successfully created table named: " + tableName);
     }
     
     /**
@@ -1102,6 +2008,10 @@ public class PersistenceManager
      *          metadata about the table columns
      * @param tableContents
      *          the flat file to get the table contents from
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the number of rows inserted
      * @throws SQLException
      *          if JDBC doesn't like what we're doing
      * @throws IllegalFormatException
@@ -1109,35 +2019,152 @@ public class PersistenceManager
      *          table
      * @throws IOException 
      */
-    private void fillTable(
+    private long fillTable(
             Connection connection,
             String tableName,
             TableColumnMetadata[] columnMetadata,
-            FlatFileReader tableContents)
+            FlatFileReader tableContents,
+            String[][] columnDictionaries)
     throws SQLException, IOException, IllegalFormatException
     {
+        List<Map<String, Integer>> dictionaryCodes =
+            ColumnDictionaryEncoder.toDictionaryCodes(columnDictionaries);
+        
         // prepare a statement using the given metadata
-        PreparedStatement insertStatement = this.prepareInsert(
+        BatchInserter inserter = this.createBatchInserter(
                 connection,
                 tableName,
-                columnMetadata);
+                this.prepareInsert(
+                        connection,
+                        tableName,
+                        columnMetadata));
         
         String[] currRow = null;
         while((currRow = tableContents.readRow()) != null)
         {
             this.insertRow(
-                    insertStatement,
+                    inserter,
                     columnMetadata,
-                    currRow);
+                    currRow,
+                    dictionaryCodes);
         }
         
-        insertStatement.close();
+        return inserter.finish();
     }
 
     /**
-     * Insert a row into the table using the given prepared statement
-     * @param insertStatement
-     *          the prepared statement that came from
+     * Fill in the table using the given typed spill reader. Unlike
+     * {@link #fillTable(Connection, String, TableColumnMetadata[], FlatFileReader, String[][])}
+     * no parsing is done here since the values are already typed
+     * @param connection
+     *          the database connection
+     * @param tableName
+     *          the name of the table
+     * @param columnMetadata
+     *          metadata about the table columns
+     * @param tableContents
+     *          the typed spill to get the table contents from
+     * @param columnDictionaries
+     *          the dictionaries of the encoded columns or null
+     * @return
+     *          the number of rows inserted
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IOException
+     *          if we have trouble reading the spill file
+     */
+    private long fillTable(
+            Connection connection,
+            String tableName,
+            TableColumnMetadata[] columnMetadata,
+            TypedSpillReader tableContents,
+            String[][] columnDictionaries)
+    throws SQLException, IOException
+    {
+        List<Map<String, Integer>> dictionaryCodes =
+            ColumnDictionaryEncoder.toDictionaryCodes(columnDictionaries);
+        DataType[] spillTypes = tableContents.getColumnTypes();
+        if(spillTypes.length != columnMetadata.length)
+        {
+            throw new IllegalArgumentException(
+                    "the typed spill file for " + tableName + " has " +
+                    spillTypes.length + " columns but the metadata has " +
+                    columnMetadata.length);
+        }
+        
+        BatchInserter inserter = this.createBatchInserter(
+                connection,
+                tableName,
+                this.prepareInsert(
+                        connection,
+                        tableName,
+                        columnMetadata));
+        PreparedStatement insertStatement = inserter.getStatement();
+        
+        while(tableContents.nextRow())
+        {
+            for(int colIndex = 0; colIndex < spillTypes.length; colIndex++)
+            {
+                switch(spillTypes[colIndex])
+                {
+                    case TEXT:
+                    {
+                        setTextParameter(
+                                insertStatement,
+                                colIndex + 1,
+                                tableContents.getString(colIndex),
+                                dictionaryCodes == null ?
+                                        null :
+                                        dictionaryCodes.get(colIndex));
+                    }
+                    break;
+                    
+                    case INTEGER:
+                    {
+                        if(tableContents.isNull(colIndex))
+                        {
+                            insertStatement.setNull(
+                                    colIndex + 1,
+                                    Types.INTEGER);
+                        }
+                        else
+                        {
+                            insertStatement.setInt(
+                                    colIndex + 1,
+                                    tableContents.getInt(colIndex));
+                        }
+                    }
+                    break;
+                    
+                    case REAL:
+                    {
+                        if(tableContents.isNull(colIndex))
+                        {
+                            insertStatement.setNull(
+                                    colIndex + 1,
+                                    Types.DOUBLE);
+                        }
+                        else
+                        {
+                            insertStatement.setDouble(
+                                    colIndex + 1,
+                                    tableContents.getDouble(colIndex));
+                        }
+                    }
+                    break;
+                }
+            }
+            
+            inserter.addRow();
+        }
+        
+        return inserter.finish();
+    }
+
+    /**
+     * Insert a row into the table using the given inserter
+     * @param inserter
+     *          the inserter wrapping a prepared statement that came from
      *          {@link #prepareInsert(Connection, String, TableColumnMetadata[])}
      * @param columnMetadata
      *          the metadata for this row. this will tell us which data
@@ -1148,12 +2175,41 @@ public class PersistenceManager
      * @throws SQLException
      *          if JDBC doesn't like what we're doing
      */
-    private void insertRow(
-            PreparedStatement insertStatement,
+    void insertRow(
+            BatchInserter inserter,
             TableColumnMetadata[] columnMetadata,
             String[] rowToInsert)
     throws SQLException
     {
+        this.insertRow(inserter, columnMetadata, rowToInsert, null);
+    }
+    
+    /**
+     * Insert a row into the table using the given inserter
+     * @param inserter
+     *          the inserter wrapping a prepared statement that came from
+     *          {@link #prepareInsert(Connection, String, TableColumnMetadata[])}
+     * @param columnMetadata
+     *          the metadata for this row. this will tell us which data
+     *          types to use
+     * @param rowToInsert
+     *          the string values for the current row. we'll turn these into
+     *          whatever data type is required by the column metadata
+     * @param dictionaryCodes
+     *          the codes for each dictionary encoded column (see
+     *          {@link ColumnDictionaryEncoder#toDictionaryCodes(String[][])}) or null
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    private void insertRow(
+            BatchInserter inserter,
+            TableColumnMetadata[] columnMetadata,
+            String[] rowToInsert,
+            List<Map<String, Integer>> dictionaryCodes)
+    throws SQLException
+    {
+        PreparedStatement insertStatement = inserter.getStatement();
+        
         if(columnMetadata.length != rowToInsert.length)
         {
             throw new IllegalArgumentException(
@@ -1172,9 +2228,13 @@ public class PersistenceManager
             {
                 case TEXT:
                 {
-                    insertStatement.setString(
+                    setTextParameter(
+                            insertStatement,
                             colIndex + 1,
-                            rowToInsert[colIndex]);
+                            rowToInsert[colIndex],
+                            dictionaryCodes == null ?
+                                    null :
+                                    dictionaryCodes.get(colIndex));
                 }
                 break;
                 
@@ -1218,9 +2278,70 @@ public class PersistenceManager
             }
         }
         
-        insertStatement.executeUpdate();
+        inserter.addRow();
     }
 
+    /**
+     * Set a text parameter (or its code if the column is dictionary encoded)
+     * @param statement
+     *          the statement
+     * @param parameterIndex
+     *          the 1-based parameter index
+     * @param text
+     *          the text (null text is stored as null)
+     * @param dictionaryCodes
+     *          the codes if the column is dictionary encoded or null
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    private static void setTextParameter(
+            PreparedStatement statement,
+            int parameterIndex,
+            String text,
+            Map<String, Integer> dictionaryCodes)
+    throws SQLException
+    {
+        if(dictionaryCodes == null)
+        {
+            statement.setString(parameterIndex, text);
+        }
+        else if(text == null)
+        {
+            statement.setNull(parameterIndex, Types.INTEGER);
+        }
+        else
+        {
+            statement.setInt(
+                    parameterIndex,
+                    ColumnDictionaryEncoder.toDictionaryCode(dictionaryCodes, text));
+        }
+    }
+    
+    /**
+     * Create a batch inserter for the given statement using the batch size and
+     * commit interval that are configured for this persistence manager
+     * @param connection
+     *          the connection that the statement came from
+     * @param tableName
+     *          the table that we're inserting into
+     * @param insertStatement
+     *          the insert statement
+     * @return
+     *          the inserter
+     */
+    BatchInserter createBatchInserter(
+            Connection connection,
+            String tableName,
+            PreparedStatement insertStatement)
+    {
+        return new BatchInserter(
+                connection,
+                tableName,
+                insertStatement,
+                this.insertBatchSize,
+                this.commitInterval);
+    }
+    
     /**
      * Prepare an insert statement
      * @param connection
@@ -1234,7 +2355,7 @@ public class PersistenceManager
      * @throws SQLException
      *          if JDBC doesn't like our prepared statement
      */
-    private PreparedStatement prepareInsert(
+    PreparedStatement prepareInsert(
             Connection connection,
             String tableName,
             TableColumnMetadata[] columnMetadata)
@@ -1410,6 +2531,7 @@ public class PersistenceManager
                 connection,
                 normalizedQuery);
         ResultSet queryResults = queryStmt.executeQuery();
+        String[][] termDictionaries = normalizedQuery.getTermDictionaries();
         
         int columnCount = queryResults.getMetaData().getColumnCount();
         while(queryResults.next())
@@ -1418,7 +2540,9 @@ public class PersistenceManager
             for(int column = 0; column < columnCount; column++)
             {
                 // JDBC uses 1-based indices... weird
-                Object currCell = queryResults.getObject(column + 1);
+                Object currCell = ColumnDictionaryEncoder.decodeCell(
+                        queryResults.getObject(column + 1),
+                        termDictionaries[column]);
                 if(currCell == null)
                 {
                     currRowStrings[column] = "";
@@ -1485,6 +2609,23 @@ public class PersistenceManager
                 query,
                 allTblMeta);
         
+        // encoded terms need decoding and encoded filters are matched
+        // against the dictionary
+        String[][] termDictionaries = new String[newTerms.length][];
+        for(int i = 0; i < newTerms.length; i++)
+        {
+            termDictionaries[i] = this.dictionaryEncoder.getColumnDictionary(
+                    connection,
+                    newTerms[i]);
+        }
+        boolean[] dictionaryEncodedFilters = new boolean[newFilters.length];
+        for(int i = 0; i < newFilters.length; i++)
+        {
+            dictionaryEncodedFilters[i] =
+                newFilters[i] != null &&
+                this.dictionaryEncoder.getColumnDictionary(connection, newFilters[i].getColumn()) != null;
+        }
+        
         Query normQuery = new Query();
         normQuery.setFilters(newFilters);
         normQuery.setOrderByColumn(newOrderBy);
@@ -1493,7 +2634,9 @@ public class PersistenceManager
         
         return new NormalizedQuery(
                 normQuery,
-                joinTables);
+                joinTables,
+                termDictionaries,
+                dictionaryEncodedFilters);
     }
     
     private Filter normalizeFilter(
@@ -1619,7 +2762,8 @@ public class PersistenceManager
                 queryResults,
                 0,
                 rowOffset,
-                rowCount);
+                rowCount,
+                normalizedQuery.getTermDictionaries());
         queryResults.last();
         int totalRowCount = queryResults.getRow();
         
@@ -1633,7 +2777,8 @@ public class PersistenceManager
             ResultSet queryResults,
             int columnOffset,
             int rowOffset,
-            int maxRowCount)
+            int maxRowCount,
+            String[][] columnDictionaries)
     throws SQLException
     {
         if(rowOffset > 0)
@@ -1649,7 +2794,12 @@ public class PersistenceManager
             for(int col = columnOffset; col < colCount; col++)
             {
                 // we have to use wacky 1-based JDBC column indices
-                currRowData[col - columnOffset] = queryResults.getObject(col + 1);
+                Object currCell = queryResults.getObject(col + 1);
+                if(columnDictionaries != null)
+                {
+                    currCell = ColumnDictionaryEncoder.decodeCell(currCell, columnDictionaries[col]);
+                }
+                currRowData[col - columnOffset] = currCell;
             }
             
             data.add(currRowData);
@@ -1841,6 +2991,8 @@ public class PersistenceManager
             
             // filtering using the JDBC '?' notation for variable statement
             // parameters
+            boolean[] dictionaryEncodedFilters =
+                normalizedQuery.getDictionaryEncodedFilters();
             for(int i = 0; i < filters.length; i++)
             {
                 if(i >= 1)
@@ -1850,6 +3002,24 @@ public class PersistenceManager
                 queryStmtString.append('(');
                 
                 String columnVal = filters[i].getColumn().getQualifiedName();
+                if(dictionaryEncodedFilters[i])
+                {
+                    // the condition is applied to the column's dictionary
+                    // values and we keep the rows with any matching code
+                    QualifiedColumnMetadata filterColumn = filters[i].getColumn();
+                    queryStmtString.append(columnVal);
+                    queryStmtString.append(" IN (SELECT ");
+                    queryStmtString.append(ColumnDictionaryEncoder.DICTIONARY_CODE_COL);
+                    queryStmtString.append(" FROM ");
+                    queryStmtString.append(filterColumn.getTableName());
+                    queryStmtString.append(ColumnDictionaryEncoder.DICTIONARY_TABLE_SUFFIX);
+                    queryStmtString.append(" WHERE ");
+                    queryStmtString.append(COL_NUM_META_COL);
+                    queryStmtString.append(" = ");
+                    queryStmtString.append(ColumnDictionaryEncoder.toColumnNumber(filterColumn));
+                    queryStmtString.append(" AND (");
+                    columnVal = ColumnDictionaryEncoder.DICTIONARY_VALUE_COL;
+                }
                 
                 // if it's text we always use upper so that we're case
                 // insensitive
@@ -1883,6 +3053,10 @@ public class PersistenceManager
                     queryStmtString.append('?');
                 }
                 
+                if(dictionaryEncodedFilters[i])
+                {
+                    queryStmtString.append("))");
+                }
                 queryStmtString.append(')');
             }
         }
@@ -1991,7 +3165,8 @@ public class PersistenceManager
                 results,
                 1,
                 0,
-                Integer.MAX_VALUE);
+                Integer.MAX_VALUE,
+                null);
         
         results.close();
         statement.close();
@@ -2189,43 +3364,87 @@ public class PersistenceManager
             String probeId)
     throws SQLException
     {
-        // build the query
-        String probeSelectStatementString =
-            "SELECT * from " + DATA_TABLE_NAME + " WHERE " +
-            COL_NAME_PREFIX + 0 + " = ?";
-        PreparedStatement probeSelectStatement =
-            connection.prepareStatement(probeSelectStatementString);
-        probeSelectStatement.setString(1, probeId);
-        
-        // run the query
-        ResultSet results = probeSelectStatement.executeQuery();
+        return this.getDataRowsForProbeIDs(
+                connection,
+                new String[] {probeId})[0];
+    }
+    
+    /**
+     * Gets the data rows for the given probes. If the database has a packed
+     * vector table (see {@link #isPackedProbeVectorsEnabled()}) each row is
+     * a single packed value, otherwise each row is read column by column
+     * from the data table. Missing intensities come back as NaN
+     * @param connection
+     *          the connection
+     * @param probeIds
+     *          the probe IDs
+     * @return
+     *          the data rows in the same order as the IDs. The row for any
+     *          probe that can't be found is null
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    public double[][] getDataRowsForProbeIDs(
+            Connection connection,
+            String[] probeIds)
+    throws SQLException
+    {
+        return this.getDataRowsForProbeIDs(connection, probeIds, false);
+    }
+    
+    /**
+     * Gets the data rows or the log2 data rows for the given probes. The
+     * log2 rows are read from the log2 packed vector table if the database was
+     * built with log2 data (see {@link #isLog2DataEnabled()}), otherwise
+     * they are transformed from the data rows using {@link #log2(double)}.
+     * Either way intensities that aren't positive come back as NaN
+     * (and missing intensities are NaN whether or not they're log2)
+     * @param connection
+     *          the connection
+     * @param probeIds
+     *          the probe IDs
+     * @param log2
+     *          true to get log2 intensities
+     * @return
+     *          the data rows in the same order as the IDs. The row for any
+     *          probe that can't be found is null
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    public double[][] getDataRowsForProbeIDs(
+            Connection connection,
+            String[] probeIds,
+            boolean log2)
+    throws SQLException
+    {
+        return this.packedVectorTables.getDataRowsForProbeIDs(
+                connection,
+                probeIds,
+                log2);
+    }
+    
+    /**
+     * Determine if the database has a table with the given name
+     * @param connection
+     *          the connection
+     * @param tableName
+     *          the SQL table name
+     * @return
+     *          true if the table exists
+     * @throws SQLException
+     *          if JDBC doesn't like what we're trying to do
+     */
+    boolean tableExists(Connection connection, String tableName)
+    throws SQLException
+    {
+        ResultSet tableResults = this.getTableNamed(connection, tableName);
         try
         {
-            if(results.next())
-            {
-                int columnCount = results.getMetaData().getColumnCount();
-                double[] dataRow = new double[columnCount - 1];
-                
-                // there are two reasons for the weird indexing
-                // 1) JDBC uses 1-based indexing
-                // 2) we're skipping over the primary key
-                for(int sqlCol = 2; sqlCol <= columnCount; sqlCol++)
-                {
-                    dataRow[sqlCol - 2] = results.getDouble(sqlCol);
-                }
-                
-                return dataRow;
-            }
-            else
-            {
-                // could not find the given probe
-                return null;
-            }
+            return tableResults.next();
         }
         finally
         {
-            probeSelectStatement.close();
-            results.close();
+            tableResults.close();
         }
     }
 
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.util.Arrays;
+
+/**
+ * Calculates the summary statistics for a single probe's data row: the
+ * mean, standard deviation, coefficient of variation, minimum, maximum and
+ * median of the values that aren't missing, the number of missing values and the mean of each group
+ * of arrays. One calculator is reused for every row of a table
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ProbeSummaryCalculator
+{
+    /**
+     * the index of the mean in {@link #getStatistic(int)}
+     */
+    public static final int MEAN = 0;
+    
+    /**
+     * the index of the (sample) standard deviation in
+     * {@link #getStatistic(int)}
+     */
+    public static final int STANDARD_DEVIATION = 1;
+    
+    /**
+     * the index of the coefficient of variation (standard deviation over
+     * mean) in {@link #getStatistic(int)}
+     */
+    public static final int COEFFICIENT_OF_VARIATION = 2;
+    
+    /**
+     * the index of the minimum in {@link #getStatistic(int)}
+     */
+    public static final int MINIMUM = 3;
+    
+    /**
+     * the index of the maximum in {@link #getStatistic(int)}
+     */
+    public static final int MAXIMUM = 4;
+    
+    /**
+     * the index of the median in {@link #getStatistic(int)}
+     */
+    public static final int MEDIAN = 5;
+    
+    /**
+     * the number of statistics that come before the group means in
+     * {@link #getStatistic(int)}
+     */
+    public static final int STATISTIC_COUNT = 6;
+    
+    private final int[][] groupValueIndices;
+    
+    private final double[] presentValues;
+    
+    private final double[] statistics;
+    
+    private int missingCount;
+    
+    /**
+     * Constructor
+     * @param valueCount
+     *          the number of values in each row
+     * @param groupValueIndices
+     *          the value indices of the arrays in each group. The group
+     *          means follow the other statistics in the same order
+     */
+    public ProbeSummaryCalculator(int valueCount, int[][] groupValueIndices)
+    {
+        this.groupValueIndices = groupValueIndices;
+        this.presentValues = new double[valueCount];
+        this.statistics = new double[STATISTIC_COUNT + groupValueIndices.length];
+    }
+    
+    /**
+     * Calculate the statistics for the given row. NaN values are treated
+     * as missing
+     * @param values
+     *          the row's values
+     * @param missing
+     *          flags for the values that are missing (null in the database)
+     */
+    public void summarize(double[] values, boolean[] missing)
+    {
+        int presentCount = 0;
+        double sum = 0.0;
+        for(int i = 0; i < values.length; i++)
+        {
+            if(!missing[i] && !Double.isNaN(values[i]))
+            {
+                this.presentValues[presentCount] = values[i];
+                presentCount++;
+                sum += values[i];
+            }
+        }
+        this.missingCount = values.length - presentCount;
+        
+        if(presentCount == 0)
+        {
+            Arrays.fill(this.statistics, 0, STATISTIC_COUNT, Double.NaN);
+        }
+        else
+        {
+            double mean = sum / presentCount;
+            double sumOfSquares = 0.0;
+            for(int i = 0; i < presentCount; i++)
+            {
+                double deviation = this.presentValues[i] - mean;
+                sumOfSquares += deviation * deviation;
+            }
+            
+            Arrays.sort(this.presentValues, 0, presentCount);
+            int middle = presentCount / 2;
+            
+            double standardDeviation = presentCount >= 2 ?
+                    Math.sqrt(sumOfSquares / (presentCount - 1)) :
+                    Double.NaN;
+            
+            this.statistics[MEAN] = mean;
+            this.statistics[STANDARD_DEVIATION] = standardDeviation;
+            this.statistics[COEFFICIENT_OF_VARIATION] = mean == 0.0 ?
+                    Double.NaN :
+                    standardDeviation / mean;
+            this.statistics[MINIMUM] = this.presentValues[0];
+            this.statistics[MAXIMUM] = this.presentValues[presentCount - 1];
+            this.statistics[MEDIAN] = presentCount % 2 == 1 ?
+                    this.presentValues[middle] :
+                    (this.presentValues[middle - 1] + this.presentValues[middle]) / 2.0;
+        }
+        
+        for(int group = 0; group < this.groupValueIndices.length; group++)
+        {
+            int groupCount = 0;
+            double groupSum = 0.0;
+            for(int valueIndex: this.groupValueIndices[group])
+            {
+                if(!missing[valueIndex] && !Double.isNaN(values[valueIndex]))
+                {
+                    groupCount++;
+                    groupSum += values[valueIndex];
+                }
+            }
+            this.statistics[STATISTIC_COUNT + group] = groupCount == 0 ?
+                    Double.NaN :
+                    groupSum / groupCount;
+        }
+    }
+    
+    /**
+     * Get one of the statistics calculated by the last call to
+     * {@link #summarize(double[], boolean[])}
+     * @param statisticIndex
+     *          {@link #MEAN}, {@link #STANDARD_DEVIATION},
+     *          {@link #COEFFICIENT_OF_VARIATION}, {@link #MINIMUM},
+     *          {@link #MAXIMUM}, {@link #MEDIAN} or {@link #STATISTIC_COUNT}
+     *          plus a group index for a group mean
+     * @return
+     *          the statistic or NaN if it's undefined (no values, only
+     *          one value for the standard deviation or a mean of zero for
+     *          the coefficient of variation)
+     */
+    public double getStatistic(int statisticIndex)
+    {
+        return this.statistics[statisticIndex];
+    }
+    
+    /**
+     * Get the number of missing values in the row given to the last call
+     * to {@link #summarize(double[], boolean[])}
+     * @return the missing value count
+     */
+    public int getMissingCount()
+    {
+        return this.missingCount;
+    }
+}
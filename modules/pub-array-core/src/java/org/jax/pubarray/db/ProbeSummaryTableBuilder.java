@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Builds the per-probe summary statistics table (see
+ * {@link PersistenceManager#isProbeSummaryTableEnabled()}) using a
+ * {@link ProbeSummaryCalculator} for each row of the data table
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class ProbeSummaryTableBuilder
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            ProbeSummaryTableBuilder.class.getName());
+    
+    /**
+     * design columns with more levels than this don't get per-level means
+     * in the summary table
+     */
+    private static final int MAX_SUMMARY_FACTOR_LEVELS = 20;
+    
+    private final PersistenceManager persistenceManager;
+    
+    private final DeferredKeyCreator deferredKeyCreator;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that owns the data table
+     */
+    ProbeSummaryTableBuilder(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+        this.deferredKeyCreator = new DeferredKeyCreator(persistenceManager);
+    }
+    
+    /**
+     * Build the summary statistics table from the (already filled) data and
+     * design tables. See
+     * {@link PersistenceManager#isProbeSummaryTableEnabled()} for what the
+     * table holds. A design column gets per-level mean columns if it has
+     * between 2 and {@link #MAX_SUMMARY_FACTOR_LEVELS} levels and fewer
+     * levels than there are arrays (so the column used to match design rows
+     * to data columns is skipped). Null intensities count as missing and
+     * statistics that can't be calculated are stored as null. Nothing is
+     * built if any of the array columns isn't numeric
+     * @param connection
+     *          the database connection
+     * @param dataColumnMetadata
+     *          the data table's column metadata
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     * @throws IllegalFormatException
+     *          if the data table's probe IDs aren't unique
+     */
+    void buildProbeSummaryTable(
+            Connection connection,
+            TableColumnMetadata[] dataColumnMetadata)
+    throws SQLException, IllegalFormatException
+    {
+        this.persistenceManager.dropTableNamed(connection, PersistenceManager.PROBE_SUMMARY_TABLE_NAME);
+        for(int colIndex = 1; colIndex < dataColumnMetadata.length; colIndex++)
+        {
+            if(dataColumnMetadata[colIndex].getDataType() == DataType.TEXT)
+            {
+                LOG.warning(
+                        "not building probe summary table because data " +
+                        "column \"" + dataColumnMetadata[colIndex].getName() +
+                        "\" isn't numeric");
+                return;
+            }
+        }
+        int valueCount = dataColumnMetadata.length - 1;
+        
+        // group the arrays by design factor level. the design rows are in
+        // data column order when sorted by their data column index
+        TableColumnMetadata[] designColumnMetadata =
+            this.persistenceManager.getDesignTableColumnMetadata(connection);
+        List<Map<String, List<Integer>>> factorLevels =
+            new ArrayList<Map<String, List<Integer>>>(designColumnMetadata.length);
+        for(int i = 0; i < designColumnMetadata.length; i++)
+        {
+            factorLevels.add(new LinkedHashMap<String, List<Integer>>());
+        }
+        
+        Statement designStatement = connection.createStatement(
+                ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        try
+        {
+            ResultSet designRows = designStatement.executeQuery(
+                    "SELECT * FROM " + PersistenceManager.DESIGN_TABLE_NAME +
+                    " ORDER BY " + PersistenceManager.COL_NAME_PREFIX + 0);
+            for(int valueIndex = 0; designRows.next(); valueIndex++)
+            {
+                for(int i = 0; i < designColumnMetadata.length; i++)
+                {
+                    String level = designRows.getString(i + 2);
+                    if(level != null)
+                    {
+                        List<Integer> levelIndices = factorLevels.get(i).get(level);
+                        if(levelIndices == null)
+                        {
+                            levelIndices = new ArrayList<Integer>();
+                            factorLevels.get(i).put(level, levelIndices);
+                        }
+                        levelIndices.add(valueIndex);
+                    }
+                }
+            }
+            designRows.close();
+        }
+        finally
+        {
+            designStatement.close();
+        }
+        
+        List<TableColumnMetadata> summaryMetadataList =
+            new ArrayList<TableColumnMetadata>();
+        summaryMetadataList.add(dataColumnMetadata[0]);
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Mean",
+                DataType.REAL,
+                "the mean of the probe's intensities"));
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Standard Deviation",
+                DataType.REAL,
+                "the sample standard deviation of the probe's intensities"));
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Coefficient of Variation",
+                DataType.REAL,
+                "the standard deviation of the probe's intensities divided " +
+                "by their mean"));
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Minimum",
+                DataType.REAL,
+                "the smallest of the probe's intensities"));
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Maximum",
+                DataType.REAL,
+                "the largest of the probe's intensities"));
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Median",
+                DataType.REAL,
+                "the median of the probe's intensities"));
+        summaryMetadataList.add(new TableColumnMetadata(
+                "Missing Values",
+                DataType.INTEGER,
+                "the number of arrays that have no intensity for the probe"));
+        
+        List<int[]> groupValueIndices = new ArrayList<int[]>();
+        for(int i = 0; i < designColumnMetadata.length; i++)
+        {
+            Map<String, List<Integer>> levels = factorLevels.get(i);
+            if(levels.size() >= 2 &&
+               levels.size() <= MAX_SUMMARY_FACTOR_LEVELS &&
+               levels.size() < valueCount)
+            {
+                String factorName = designColumnMetadata[i].getName();
+                for(Map.Entry<String, List<Integer>> level: levels.entrySet())
+                {
+                    List<Integer> levelIndexList = level.getValue();
+                    int[] levelIndices = new int[levelIndexList.size()];
+                    for(int j = 0; j < levelIndices.length; j++)
+                    {
+                        levelIndices[j] = levelIndexList.get(j);
+                    }
+                    groupValueIndices.add(levelIndices);
+                    
+                    summaryMetadataList.add(new TableColumnMetadata(
+                            "Mean (" + factorName + ": " + level.getKey() + ")",
+                            DataType.REAL,
+                            "the mean of the probe's intensities on the arrays " +
+                            "where " + factorName + " is " + level.getKey()));
+                }
+            }
+        }
+        TableColumnMetadata[] summaryMetadata = summaryMetadataList.toArray(
+                new TableColumnMetadata[summaryMetadataList.size()]);
+        
+        ImportProfiler.Phase creationPhase =
+            this.persistenceManager.getImportProfiler().startPhase(
+                    ImportProfiler.TABLE_CREATION_CATEGORY,
+                    PersistenceManager.PROBE_SUMMARY_TABLE_NAME);
+        try
+        {
+            this.persistenceManager.buildEmptyTable(
+                    connection,
+                    PersistenceManager.PROBE_SUMMARY_TABLE_NAME,
+                    summaryMetadata);
+        }
+        finally
+        {
+            creationPhase.finish();
+        }
+        
+        ImportProfiler.Phase loadingPhase =
+            this.persistenceManager.getImportProfiler().startPhase(
+                    ImportProfiler.ROW_LOADING_CATEGORY,
+                    PersistenceManager.PROBE_SUMMARY_TABLE_NAME);
+        try
+        {
+            ProbeSummaryCalculator calculator = new ProbeSummaryCalculator(
+                    valueCount,
+                    groupValueIndices.toArray(new int[groupValueIndices.size()][]));
+            int statisticCount =
+                ProbeSummaryCalculator.STATISTIC_COUNT + groupValueIndices.size();
+            
+            BatchInserter inserter = this.persistenceManager.createBatchInserter(
+                    connection,
+                    PersistenceManager.PROBE_SUMMARY_TABLE_NAME,
+                    this.persistenceManager.prepareInsert(
+                            connection,
+                            PersistenceManager.PROBE_SUMMARY_TABLE_NAME,
+                            summaryMetadata));
+            PreparedStatement insertStatement = inserter.getStatement();
+            
+            Statement selectStatement = connection.createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            try
+            {
+                ResultSet dataRows = selectStatement.executeQuery(
+                        "SELECT * FROM " + PersistenceManager.DATA_TABLE_NAME);
+                double[] values = new double[valueCount];
+                boolean[] missing = new boolean[valueCount];
+                while(dataRows.next())
+                {
+                    for(int i = 0; i < valueCount; i++)
+                    {
+                        values[i] = dataRows.getDouble(i + 2);
+                        missing[i] = dataRows.wasNull();
+                    }
+                    calculator.summarize(values, missing);
+                    
+                    // the columns are the ID, the overall statistics, the
+                    // missing value count and then the group means
+                    insertStatement.setObject(1, dataRows.getObject(1));
+                    for(int i = 0; i < statisticCount; i++)
+                    {
+                        int paramIndex = i < ProbeSummaryCalculator.STATISTIC_COUNT ?
+                                i + 2 :
+                                i + 3;
+                        double statistic = calculator.getStatistic(i);
+                        if(Double.isNaN(statistic))
+                        {
+                            insertStatement.setNull(paramIndex, Types.DOUBLE);
+                        }
+                        else
+                        {
+                            insertStatement.setDouble(paramIndex, statistic);
+                        }
+                    }
+                    insertStatement.setInt(
+                            ProbeSummaryCalculator.STATISTIC_COUNT + 2,
+                            calculator.getMissingCount());
+                    inserter.addRow();
+                }
+                dataRows.close();
+            }
+            finally
+            {
+                selectStatement.close();
+            }
+            
+            loadingPhase.addRows(inserter.finish());
+        }
+        finally
+        {
+            loadingPhase.finish();
+        }
+        
+        this.deferredKeyCreator.createDeferredIndexes(
+                connection,
+                PersistenceManager.PROBE_SUMMARY_TABLE_NAME,
+                PersistenceManager.PROBE_SUMMARY_LOGICAL_NAME,
+                summaryMetadata);
+        
+        if(!connection.getAutoCommit())
+        {
+            connection.commit();
+        }
+    }
+}
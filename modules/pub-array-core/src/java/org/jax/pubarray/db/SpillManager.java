@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.jax.util.io.FileUtilities;
+
+/**
+ * Manages the temporary files that candidate tables are spilled to. All
+ * spill files live under a single directory, the total number of bytes
+ * written to disk is held to a budget and everything is deleted when
+ * {@link #deleteAll()} is called. Spill files can optionally be compressed
+ * using the fastest deflate level, which cuts disk IO a lot for the highly
+ * repetitive text we see in microarray data
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class SpillManager
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            SpillManager.class.getName());
+    
+    /**
+     * use this as the disk budget if there should be no limit
+     */
+    public static final long UNLIMITED_BUDGET = -1L;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final File requestedDirectory;
+    
+    private final long diskBudgetBytes;
+    
+    private final boolean compressing;
+    
+    private final Map<File, Long> spillFileSizes = new HashMap<File, Long>();
+    
+    private File spillDirectory = null;
+    
+    private boolean ownsSpillDirectory = false;
+    
+    private long bytesInUse = 0L;
+    
+    /**
+     * Writes through to the underlying stream while charging every byte
+     * against the disk budget
+     */
+    private class BudgetedOutputStream extends FilterOutputStream
+    {
+        private final File file;
+        
+        /**
+         * Constructor
+         * @param file
+         *          the file being written
+         * @param out
+         *          the stream for the file
+         */
+        public BudgetedOutputStream(File file, OutputStream out)
+        {
+            super(out);
+            this.file = file;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException
+        {
+            SpillManager.this.charge(this.file, 1);
+            this.out.write(b);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            SpillManager.this.charge(this.file, len);
+            this.out.write(b, off, len);
+        }
+    }
+    
+    /**
+     * A deflater stream that owns its deflater. The deflater's native memory
+     * is released when the stream is closed rather than whenever the
+     * deflater happens to be garbage collected
+     */
+    private static class OwnedDeflaterOutputStream extends DeflaterOutputStream
+    {
+        /**
+         * Constructor
+         * @param out
+         *          the stream to write compressed bytes to
+         * @param deflater
+         *          the deflater which is ended when this stream is closed
+         * @param size
+         *          the buffer size
+         */
+        public OwnedDeflaterOutputStream(
+                OutputStream out,
+                Deflater deflater,
+                int size)
+        {
+            super(out, deflater, size);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                this.def.end();
+            }
+        }
+    }
+    
+    /**
+     * An inflater stream that owns its inflater. The inflater's native memory
+     * is released when the stream is closed rather than whenever the
+     * inflater happens to be garbage collected
+     */
+    private static class OwnedInflaterInputStream extends InflaterInputStream
+    {
+        /**
+         * Constructor
+         * @param in
+         *          the stream to read compressed bytes from
+         * @param inflater
+         *          the inflater which is ended when this stream is closed
+         * @param size
+         *          the buffer size
+         */
+        public OwnedInflaterInputStream(
+                InputStream in,
+                Inflater inflater,
+                int size)
+        {
+            super(in, inflater, size);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                this.inf.end();
+            }
+        }
+    }
+    
+    /**
+     * Constructor for a manager that uses a new directory under the system's
+     * temporary directory, has no disk budget and compresses its files
+     */
+    public SpillManager()
+    {
+        this(null, UNLIMITED_BUDGET, true);
+    }
+    
+    /**
+     * Constructor
+     * @param spillDirectory
+     *          the directory to put spill files under. If this is null a new
+     *          temporary directory is created (and later deleted by
+     *          {@link #deleteAll()})
+     * @param diskBudgetBytes
+     *          the max number of bytes that the spill files can take up
+     *          on disk or {@link #UNLIMITED_BUDGET}
+     * @param compressing
+     *          if true the spill files are compressed
+     */
+    public SpillManager(
+            File spillDirectory,
+            long diskBudgetBytes,
+            boolean compressing)
+    {
+        this.requestedDirectory = spillDirectory;
+        this.diskBudgetBytes = diskBudgetBytes;
+        this.compressing = compressing;
+    }
+    
+    /**
+     * Determine if this manager compresses the spill files
+     * @return true if the files are compressed
+     */
+    public boolean isCompressing()
+    {
+        return this.compressing;
+    }
+    
+    /**
+     * Getter for the disk budget
+     * @return the budget in bytes or {@link #UNLIMITED_BUDGET}
+     */
+    public long getDiskBudgetBytes()
+    {
+        return this.diskBudgetBytes;
+    }
+    
+    /**
+     * Getter for the number of bytes that the current spill files take up
+     * @return the byte count
+     */
+    public synchronized long getBytesInUse()
+    {
+        return this.bytesInUse;
+    }
+    
+    /**
+     * Create a new (empty) spill file
+     * @param prefix
+     *          the file name prefix
+     * @param suffix
+     *          the file name suffix
+     * @return
+     *          the new file
+     * @throws IOException
+     *          if we can't create the file
+     */
+    public synchronized File createSpillFile(String prefix, String suffix)
+    throws IOException
+    {
+        if(this.spillDirectory == null)
+        {
+            if(this.requestedDirectory == null)
+            {
+                this.spillDirectory = FileUtilities.createTempDir();
+                this.ownsSpillDirectory = true;
+            }
+            else
+            {
+                if(!this.requestedDirectory.isDirectory() &&
+                   !this.requestedDirectory.mkdirs())
+                {
+                    throw new IOException(
+                            "failed to create spill directory: " +
+                            this.requestedDirectory.getAbsolutePath());
+                }
+                this.spillDirectory = this.requestedDirectory;
+                this.ownsSpillDirectory = false;
+            }
+            
+            LOG.info(
+                    "spilling candidate tables to: " +
+                    this.spillDirectory.getAbsolutePath());
+        }
+        
+        File spillFile = File.createTempFile(prefix, suffix, this.spillDirectory);
+        this.spillFileSizes.put(spillFile, 0L);
+        return spillFile;
+    }
+    
+    /**
+     * Open an output stream for a spill file created by
+     * {@link #createSpillFile(String, String)}. The stream is buffered and
+     * compressed if {@link #isCompressing()} is true
+     * @param spillFile
+     *          the spill file
+     * @return
+     *          the stream
+     * @throws IOException
+     *          if we fail to open the file
+     */
+    public OutputStream openOutput(File spillFile) throws IOException
+    {
+        synchronized(this)
+        {
+            if(!this.spillFileSizes.containsKey(spillFile))
+            {
+                throw new IllegalArgumentException(
+                        "not a spill file from this manager: " +
+                        spillFile.getAbsolutePath());
+            }
+        }
+        
+        OutputStream out = new BudgetedOutputStream(
+                spillFile,
+                new FileOutputStream(spillFile));
+        if(this.compressing)
+        {
+            return new OwnedDeflaterOutputStream(
+                    out,
+                    new Deflater(Deflater.BEST_SPEED),
+                    BUFFER_SIZE);
+        }
+        else
+        {
+            return new BufferedOutputStream(out, BUFFER_SIZE);
+        }
+    }
+    
+    /**
+     * Open an input stream for a spill file that was written with
+     * {@link #openOutput(File)}
+     * @param spillFile
+     *          the spill file
+     * @return
+     *          the (buffered) stream
+     * @throws IOException
+     *          if we fail to open the file
+     */
+    public InputStream openInput(File spillFile) throws IOException
+    {
+        InputStream in = new FileInputStream(spillFile);
+        if(this.compressing)
+        {
+            return new OwnedInflaterInputStream(
+                    in,
+                    new Inflater(),
+                    BUFFER_SIZE);
+        }
+        else
+        {
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        }
+    }
+    
+    /**
+     * Charge the given number of bytes against the budget
+     * @param spillFile
+     *          the file the bytes are written to
+     * @param byteCount
+     *          the number of bytes
+     * @throws IOException
+     *          if the write would go over budget
+     */
+    private synchronized void charge(File spillFile, long byteCount)
+    throws IOException
+    {
+        long newBytesInUse = this.bytesInUse + byteCount;
+        if(this.diskBudgetBytes != UNLIMITED_BUDGET &&
+           newBytesInUse > this.diskBudgetBytes)
+        {
+            throw new IOException(
+                    "Writing " + spillFile.getName() + " would exceed the " +
+                    "spill directory disk budget of " + this.diskBudgetBytes +
+                    " bytes (" + this.bytesInUse + " bytes are in use)");
+        }
+        
+        this.bytesInUse = newBytesInUse;
+        Long currSize = this.spillFileSizes.get(spillFile);
+        if(currSize != null)
+        {
+            this.spillFileSizes.put(spillFile, currSize + byteCount);
+        }
+    }
+    
+    /**
+     * Delete the given spill file and give its bytes back to the budget
+     * @param spillFile
+     *          the file to delete
+     */
+    public synchronized void deleteSpillFile(File spillFile)
+    {
+        Long size = this.spillFileSizes.remove(spillFile);
+        if(size != null)
+        {
+            this.bytesInUse -= size;
+        }
+        
+        if(spillFile.exists() && !spillFile.delete())
+        {
+            LOG.warning(
+                    "failed to delete spill file: " +
+                    spillFile.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Delete all of the spill files (and the spill directory if this manager
+     * created it)
+     */
+    public synchronized void deleteAll()
+    {
+        List<File> spillFiles = new ArrayList<File>(this.spillFileSizes.keySet());
+        for(File spillFile: spillFiles)
+        {
+            this.deleteSpillFile(spillFile);
+        }
+        
+        if(this.ownsSpillDirectory && this.spillDirectory != null)
+        {
+            FileUtilities.recursiveDelete(this.spillDirectory);
+        }
+        this.spillDirectory = null;
+        this.ownsSpillDirectory = false;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+
+/**
+ * Rough estimates of how much room the tables that
+ * {@link PersistenceManager} builds take up on disk and how fast their rows
+ * can be inserted. These are only meant for sizing a build before it is run
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class StorageEstimator
+{
+    // scratch table used by measureInsertRate(...)
+    private static final String INSERT_RATE_TABLE_NAME = "INSERT_RATE_SAMPLE";
+    
+    // rough on-disk row layout used by estimateStoredRowLength(...). These
+    // approximate HSQLDB's cached table rows: a row header and the primary
+    // key index node, a null flag per column and a length prefix per string,
+    // with rows padded to the data file scale
+    private static final int STORED_ROW_OVERHEAD_BYTES = 24;
+    private static final int STORED_COLUMN_OVERHEAD_BYTES = 1;
+    private static final int STORED_STRING_OVERHEAD_BYTES = 4;
+    private static final int STORED_ROW_ALIGNMENT_BYTES = 8;
+    
+    /**
+     * Constructor
+     */
+    private StorageEstimator()
+    {
+        // static functions only
+    }
+    
+    /**
+     * Estimate the number of bytes that a row of a table created from the
+     * given metadata takes up on disk. This follows the column layout that
+     * {@link PersistenceManager} uses when it creates tables (VARCHAR for
+     * text, DOUBLE PRECISION for reals and INTEGER for integers) and is only
+     * a rough estimate meant for sizing a build
+     * @param columnMetadata
+     *          the column metadata
+     * @param averageStringLengths
+     *          the average length of the values in each column (only the
+     *          text columns are used)
+     * @return
+     *          the estimated row length in bytes
+     */
+    public static long estimateStoredRowLength(
+            TableColumnMetadata[] columnMetadata,
+            double[] averageStringLengths)
+    {
+        double rowLength = STORED_ROW_OVERHEAD_BYTES;
+        for(int colIndex = 0; colIndex < columnMetadata.length; colIndex++)
+        {
+            rowLength += STORED_COLUMN_OVERHEAD_BYTES;
+            DataType dataType = columnMetadata[colIndex].getDataType();
+            if(dataType == null)
+            {
+                // no values were seen so this will end up as text
+                dataType = DataType.TEXT;
+            }
+            
+            switch(dataType)
+            {
+                case TEXT:
+                {
+                    rowLength +=
+                        STORED_STRING_OVERHEAD_BYTES +
+                        averageStringLengths[colIndex];
+                }
+                break;
+                
+                case REAL:
+                {
+                    rowLength += 8;
+                }
+                break;
+                
+                case INTEGER:
+                {
+                    rowLength += 4;
+                }
+                break;
+            }
+        }
+        
+        long alignedLength = (long)Math.ceil(rowLength);
+        long remainder = alignedLength % STORED_ROW_ALIGNMENT_BYTES;
+        if(remainder != 0L)
+        {
+            alignedLength += STORED_ROW_ALIGNMENT_BYTES - remainder;
+        }
+        return alignedLength;
+    }
+    
+    /**
+     * Estimate the number of bytes that a row of the packed vector table
+     * (see {@link PersistenceManager#isPackedProbeVectorsEnabled()}) takes up on disk
+     * @param dataColumnMetadata
+     *          the data table's column metadata
+     * @param averageIdLength
+     *          the average length of the probe IDs
+     * @param singlePrecision
+     *          true if the vectors are single precision (see
+     *          {@link PersistenceManager#isSinglePrecisionDataEnabled()})
+     * @param log2Vectors
+     *          true to include the probe's row in the log2 packed vector
+     *          table (see {@link PersistenceManager#isLog2DataEnabled()})
+     * @return
+     *          the estimated row length in bytes or 0 if no packed vectors
+     *          would be written for this data table
+     */
+    public static long estimatePackedVectorRowLength(
+            TableColumnMetadata[] dataColumnMetadata,
+            double averageIdLength,
+            boolean singlePrecision,
+            boolean log2Vectors)
+    {
+        for(int colIndex = 1; colIndex < dataColumnMetadata.length; colIndex++)
+        {
+            if(dataColumnMetadata[colIndex].getDataType() == DataType.TEXT)
+            {
+                return 0L;
+            }
+        }
+        
+        // a binary column is stored like a string of the same length
+        TableColumnMetadata packedColumn = new TableColumnMetadata(
+                PackedVectorTables.PACKED_VECTOR_COL_NAME,
+                DataType.TEXT,
+                null);
+        int packedLength = PackedProbeVector.getPackedLength(
+                dataColumnMetadata.length - 1,
+                singlePrecision ?
+                        PackedProbeVector.FLOAT_FORMAT :
+                        PackedProbeVector.DOUBLE_FORMAT);
+        long rowLength = estimateStoredRowLength(
+                new TableColumnMetadata[] {dataColumnMetadata[0], packedColumn},
+                new double[] {averageIdLength, packedLength});
+        if(log2Vectors)
+        {
+            // the log2 vectors get their own row in their own table
+            rowLength += estimateStoredRowLength(
+                    new TableColumnMetadata[] {dataColumnMetadata[0], packedColumn},
+                    new double[] {averageIdLength, packedLength});
+        }
+        return rowLength;
+    }
+    
+    /**
+     * Estimate the number of bytes that a row of the probe summary table
+     * takes up on disk (see
+     * {@link PersistenceManager#isProbeSummaryTableEnabled()}). The
+     * per-level mean columns aren't counted since they depend on the design
+     * @param dataColumnMetadata
+     *          the data table's column metadata
+     * @param averageIdLength
+     *          the average length of the probe IDs
+     * @return
+     *          the estimated row length in bytes or 0 if no summary table
+     *          would be built
+     */
+    public static long estimateProbeSummaryRowLength(
+            TableColumnMetadata[] dataColumnMetadata,
+            double averageIdLength)
+    {
+        for(int colIndex = 1; colIndex < dataColumnMetadata.length; colIndex++)
+        {
+            if(dataColumnMetadata[colIndex].getDataType() == DataType.TEXT)
+            {
+                return 0L;
+            }
+        }
+        
+        TableColumnMetadata[] summaryMetadata =
+            new TableColumnMetadata[ProbeSummaryCalculator.STATISTIC_COUNT + 2];
+        summaryMetadata[0] = dataColumnMetadata[0];
+        for(int i = 1; i < summaryMetadata.length - 1; i++)
+        {
+            summaryMetadata[i] = new TableColumnMetadata(
+                    PersistenceManager.COL_NAME_PREFIX + i,
+                    DataType.REAL,
+                    null);
+        }
+        summaryMetadata[summaryMetadata.length - 1] = new TableColumnMetadata(
+                PersistenceManager.COL_NAME_PREFIX + (summaryMetadata.length - 1),
+                DataType.INTEGER,
+                null);
+        
+        double[] averageStringLengths = new double[summaryMetadata.length];
+        averageStringLengths[0] = averageIdLength;
+        return estimateStoredRowLength(summaryMetadata, averageStringLengths);
+    }
+    
+    /**
+     * Measure how fast rows with the given metadata can be inserted by
+     * inserting them into a scratch table (which is dropped afterwards).
+     * The rows go through the same batched inserts that a normal build
+     * uses. Rows whose ID has already been seen are skipped
+     * @param persistenceManager
+     *          the persistence manager whose insert settings are measured
+     * @param connection
+     *          the connection to use
+     * @param columnMetadata
+     *          the column metadata. Every row must conform to it
+     * @param rows
+     *          the rows to insert
+     * @return
+     *          the insert rate in rows per second or -1 if there were no
+     *          rows to insert
+     * @throws SQLException
+     *          if JDBC doesn't like what we're doing
+     */
+    static double measureInsertRate(
+            PersistenceManager persistenceManager,
+            Connection connection,
+            TableColumnMetadata[] columnMetadata,
+            List<String[]> rows)
+    throws SQLException
+    {
+        persistenceManager.dropTableNamed(connection, INSERT_RATE_TABLE_NAME);
+        persistenceManager.createTable(
+                connection,
+                INSERT_RATE_TABLE_NAME,
+                columnMetadata);
+        try
+        {
+            long startTime = System.nanoTime();
+            BatchInserter inserter = persistenceManager.createBatchInserter(
+                    connection,
+                    INSERT_RATE_TABLE_NAME,
+                    persistenceManager.prepareInsert(
+                            connection,
+                            INSERT_RATE_TABLE_NAME,
+                            columnMetadata));
+            Set<String> insertedIds = new HashSet<String>();
+            for(String[] row: rows)
+            {
+                if(insertedIds.add(row[0]))
+                {
+                    persistenceManager.insertRow(inserter, columnMetadata, row);
+                }
+            }
+            long rowCount = inserter.finish();
+            long elapsedNanos = System.nanoTime() - startTime;
+            
+            if(rowCount == 0L)
+            {
+                return -1.0;
+            }
+            else
+            {
+                return rowCount / (Math.max(elapsedNanos, 1L) / 1000000000.0);
+            }
+        }
+        finally
+        {
+            persistenceManager.dropTableNamed(connection, INSERT_RATE_TABLE_NAME);
+            connection.commit();
+        }
+    }
+}
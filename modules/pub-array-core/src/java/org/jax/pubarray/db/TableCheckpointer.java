@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Records the tables that {@link PersistenceManager} builds in its
+ * {@link BuildCheckpoint} (see
+ * {@link PersistenceManager#getBuildCheckpoint()}) so that a failed build
+ * can pick up where it left off
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class TableCheckpointer
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            TableCheckpointer.class.getName());
+    
+    /**
+     * the {@link BuildCheckpoint} step name for a table is this prefix
+     * followed by the table's SQL name
+     */
+    private static final String TABLE_STEP_PREFIX = "table:";
+    
+    private final PersistenceManager persistenceManager;
+    
+    /**
+     * Constructor
+     * @param persistenceManager
+     *          the persistence manager that holds the build checkpoint and
+     *          profiler
+     */
+    TableCheckpointer(PersistenceManager persistenceManager)
+    {
+        this.persistenceManager = persistenceManager;
+    }
+    
+    /**
+     * Determine if the build checkpoint says that the given table was built
+     * by an earlier run
+     * @param tableName
+     *          the SQL table name
+     * @return
+     *          true if the table is checkpointed and doesn't need building
+     */
+    boolean isTableCheckpointed(String tableName)
+    {
+        BuildCheckpoint checkpoint = this.persistenceManager.getBuildCheckpoint();
+        if(checkpoint != null && checkpoint.isStepComplete(TABLE_STEP_PREFIX + tableName))
+        {
+            LOG.info("table " + tableName + " was restored from the build checkpoint");
+            return true;
+        }
+        else
+        {
+            return false;
+        }
+    }
+    
+    /**
+     * Make sure that the given (fully built) tables are on disk and then
+     * record them as complete in the build checkpoint. Bulk loads don't log
+     * their rows so for HSQLDB file databases we have to do a CHECKPOINT or
+     * the rows would be lost if the build dies before shutdown
+     * @param connection
+     *          the connection to commit and checkpoint with
+     * @param tableNames
+     *          the SQL table names
+     * @throws SQLException
+     *          if the commit or CHECKPOINT fails
+     * @throws IOException
+     *          if the build checkpoint can't be written
+     */
+    void checkpointTables(Connection connection, String... tableNames)
+    throws SQLException, IOException
+    {
+        BuildCheckpoint checkpoint = this.persistenceManager.getBuildCheckpoint();
+        if(checkpoint != null && tableNames.length > 0)
+        {
+            ImportProfiler.Phase checkpointPhase =
+                this.persistenceManager.getImportProfiler().startPhase(
+                        ImportProfiler.DATABASE_SHUTDOWN_CATEGORY,
+                        "checkpoint " + tableNames[tableNames.length - 1]);
+            try
+            {
+                if(!connection.getAutoCommit())
+                {
+                    connection.commit();
+                }
+                
+                if(BulkTableLoader.getHSQLDBFileDirectory(connection) != null)
+                {
+                    Statement checkpointStatement = connection.createStatement();
+                    try
+                    {
+                        checkpointStatement.execute("CHECKPOINT");
+                    }
+                    finally
+                    {
+                        checkpointStatement.close();
+                    }
+                }
+            }
+            finally
+            {
+                checkpointPhase.finish();
+            }
+            
+            for(String tableName: tableNames)
+            {
+                checkpoint.markStepComplete(TABLE_STEP_PREFIX + tableName);
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Reads back the files written by {@link TypedSpillWriter}. Each cell is
+ * handed back as the final (inferred) type of its column. Numbers are read
+ * directly in their binary form so the only text parsing left is for
+ * padded numeric cells that were stored as text
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class TypedSpillReader
+{
+    private final DataInputStream in;
+    
+    private final DataType[] columnTypes;
+    
+    private final boolean[] nullCells;
+    
+    private final int[] intValues;
+    
+    private final double[] doubleValues;
+    
+    private final String[] stringValues;
+    
+    private byte[] stringBuffer = new byte[256];
+    
+    /**
+     * Constructor
+     * @param file
+     *          the file to read
+     * @param columnMetadata
+     *          the final column metadata for the table
+     * @throws IOException
+     *          if we fail to read the file
+     * @throws IllegalFormatException
+     *          if the file isn't a typed spill file for this many columns
+     */
+    public TypedSpillReader(File file, TableColumnMetadata[] columnMetadata)
+    throws IOException, IllegalFormatException
+    {
+        this(new FileInputStream(file), columnMetadata);
+    }
+    
+    /**
+     * Constructor
+     * @param in
+     *          the stream to read
+     * @param columnMetadata
+     *          the final column metadata for the table
+     * @throws IOException
+     *          if we fail to read the stream
+     * @throws IllegalFormatException
+     *          if the stream doesn't contain a typed spill file for this
+     *          many columns
+     */
+    public TypedSpillReader(InputStream in, TableColumnMetadata[] columnMetadata)
+    throws IOException, IllegalFormatException
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if(this.in.readInt() != TypedSpillWriter.MAGIC_NUMBER)
+        {
+            this.in.close();
+            throw new IllegalFormatException(
+                    "The given input is not a typed spill file");
+        }
+        
+        int columnCount = this.in.readInt();
+        if(columnCount != columnMetadata.length)
+        {
+            this.in.close();
+            throw new IllegalFormatException(
+                    "expected a typed spill file with " +
+                    columnMetadata.length + " columns but found " +
+                    columnCount);
+        }
+        
+        this.columnTypes = new DataType[columnCount];
+        for(int i = 0; i < columnCount; i++)
+        {
+            this.columnTypes[i] = columnMetadata[i].getDataType();
+            if(this.columnTypes[i] == null)
+            {
+                // this happens for tables with a header but no rows
+                this.columnTypes[i] = DataType.TEXT;
+            }
+        }
+        
+        this.nullCells = new boolean[columnCount];
+        this.intValues = new int[columnCount];
+        this.doubleValues = new double[columnCount];
+        this.stringValues = new String[columnCount];
+    }
+    
+    /**
+     * Getter for the column types that cells are read as
+     * @return the column types
+     */
+    public DataType[] getColumnTypes()
+    {
+        return this.columnTypes;
+    }
+    
+    /**
+     * Advance to the next row
+     * @return
+     *          true if there is a row to read or false if we're at the end
+     * @throws IOException
+     *          if we have trouble reading
+     * @throws NumberFormatException
+     *          if a cell in a numeric column can't be parsed
+     */
+    public boolean nextRow() throws IOException, NumberFormatException
+    {
+        byte marker = this.in.readByte();
+        if(marker == TypedSpillWriter.END_MARKER)
+        {
+            return false;
+        }
+        
+        for(int colIndex = 0; colIndex < this.columnTypes.length; colIndex++)
+        {
+            DataType columnType = this.columnTypes[colIndex];
+            this.nullCells[colIndex] = false;
+            this.stringValues[colIndex] = null;
+            
+            byte tag = this.in.readByte();
+            switch(tag)
+            {
+                case TypedSpillWriter.EMPTY_CELL:
+                {
+                    if(columnType == DataType.TEXT)
+                    {
+                        this.stringValues[colIndex] = "";
+                    }
+                    else
+                    {
+                        this.nullCells[colIndex] = true;
+                    }
+                }
+                break;
+                
+                case TypedSpillWriter.INTEGER_CELL:
+                {
+                    int value = this.in.readInt();
+                    this.intValues[colIndex] = value;
+                    this.doubleValues[colIndex] = value;
+                    if(columnType == DataType.TEXT)
+                    {
+                        this.stringValues[colIndex] = Integer.toString(value);
+                    }
+                }
+                break;
+                
+                case TypedSpillWriter.REAL_CELL:
+                {
+                    double value = this.in.readDouble();
+                    this.intValues[colIndex] = (int)value;
+                    this.doubleValues[colIndex] = value;
+                    if(columnType == DataType.TEXT)
+                    {
+                        this.stringValues[colIndex] = Double.toString(value);
+                    }
+                }
+                break;
+                
+                case TypedSpillWriter.NUMBER_CELL:
+                {
+                    double value = this.in.readDouble();
+                    this.intValues[colIndex] = (int)value;
+                    this.doubleValues[colIndex] = value;
+                    if(columnType == DataType.TEXT)
+                    {
+                        this.stringValues[colIndex] = this.readText();
+                    }
+                    else
+                    {
+                        this.in.skipBytes(this.in.readInt());
+                    }
+                }
+                break;
+                
+                case TypedSpillWriter.TEXT_CELL:
+                {
+                    String text = this.readText();
+                    if(columnType == DataType.TEXT)
+                    {
+                        this.stringValues[colIndex] = text;
+                    }
+                    else
+                    {
+                        // only blank cells of numeric columns are stored
+                        // as text unless the reader and writer disagree
+                        // about the types
+                        String trimmedText = text.trim();
+                        if(trimmedText.length() == 0)
+                        {
+                            this.nullCells[colIndex] = true;
+                        }
+                        else if(columnType == DataType.INTEGER)
+                        {
+                            this.intValues[colIndex] = Integer.parseInt(trimmedText);
+                        }
+                        else
+                        {
+                            this.doubleValues[colIndex] = Double.parseDouble(trimmedText);
+                        }
+                    }
+                }
+                break;
+                
+                default:
+                {
+                    throw new IOException("unknown typed spill cell tag: " + tag);
+                }
+            }
+        }
+        
+        return true;
+    }
+    
+    private String readText() throws IOException
+    {
+        int byteCount = this.in.readInt();
+        if(byteCount > this.stringBuffer.length)
+        {
+            this.stringBuffer = new byte[byteCount];
+        }
+        this.in.readFully(this.stringBuffer, 0, byteCount);
+        
+        return new String(this.stringBuffer, 0, byteCount, "UTF-8");
+    }
+    
+    /**
+     * Determine if the given cell in the current row is null. Only blank
+     * cells in numeric columns are null
+     * @param colIndex
+     *          the column index
+     * @return
+     *          true iff the cell is null
+     */
+    public boolean isNull(int colIndex)
+    {
+        return this.nullCells[colIndex];
+    }
+    
+    /**
+     * Get the int value for the given cell in the current row
+     * @param colIndex
+     *          the column index
+     * @return
+     *          the value
+     */
+    public int getInt(int colIndex)
+    {
+        return this.intValues[colIndex];
+    }
+    
+    /**
+     * Get the double value for the given cell in the current row
+     * @param colIndex
+     *          the column index
+     * @return
+     *          the value
+     */
+    public double getDouble(int colIndex)
+    {
+        return this.doubleValues[colIndex];
+    }
+    
+    /**
+     * Get the string value for the given cell in the current row. This is
+     * only set for {@link DataType#TEXT} columns
+     * @param colIndex
+     *          the column index
+     * @return
+     *          the value
+     */
+    public String getString(int colIndex)
+    {
+        return this.stringValues[colIndex];
+    }
+    
+    /**
+     * Close the underlying stream
+     * @throws IOException
+     *          if close fails
+     */
+    public void close() throws IOException
+    {
+        this.in.close();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+
+/**
+ * Writes table rows to a compact binary spill file while column types are
+ * still being inferred. Since a column's final type isn't known until the
+ * last row has been seen every cell is tagged with how it was stored: empty,
+ * as a 4 byte int, as a raw 8 byte double, as a double along with its
+ * original text or as length-prefixed UTF-8 text. Numbers are only stored
+ * without their text when the text can be rebuilt exactly from the value,
+ * so {@link TypedSpillReader} can hand back any cell as whatever type its
+ * column ends up with without any text parsing
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class TypedSpillWriter
+{
+    /**
+     * the magic number at the start of every typed spill file
+     */
+    /*package-protected*/ static final int MAGIC_NUMBER = 0x50415332;
+    
+    /**
+     * the marker that comes before every row
+     */
+    /*package-protected*/ static final byte ROW_MARKER = 1;
+    
+    /**
+     * the marker that comes after the last row
+     */
+    /*package-protected*/ static final byte END_MARKER = 0;
+    
+    /**
+     * the tag for an empty string
+     */
+    /*package-protected*/ static final byte EMPTY_CELL = 0;
+    
+    /**
+     * the tag for an int whose text is {@link Integer#toString(int)}
+     */
+    /*package-protected*/ static final byte INTEGER_CELL = 1;
+    
+    /**
+     * the tag for a double whose text is {@link Double#toString(double)}
+     */
+    /*package-protected*/ static final byte REAL_CELL = 2;
+    
+    /**
+     * the tag for a double followed by the text that it was parsed from
+     */
+    /*package-protected*/ static final byte NUMBER_CELL = 3;
+    
+    /**
+     * the tag for text
+     */
+    /*package-protected*/ static final byte TEXT_CELL = 4;
+    
+    private final DataOutputStream out;
+    
+    private final int columnCount;
+    
+    private long rowCount = 0L;
+    
+    /**
+     * Constructor
+     * @param file
+     *          the file to write to
+     * @param columnCount
+     *          the number of columns in every row
+     * @throws IOException
+     *          if we fail to open or write to the file
+     */
+    public TypedSpillWriter(File file, int columnCount) throws IOException
+    {
+        this(new FileOutputStream(file), columnCount);
+    }
+    
+    /**
+     * Constructor
+     * @param out
+     *          the stream to write to
+     * @param columnCount
+     *          the number of columns in every row
+     * @throws IOException
+     *          if we fail to write to the stream
+     */
+    public TypedSpillWriter(OutputStream out, int columnCount) throws IOException
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.columnCount = columnCount;
+        
+        this.out.writeInt(MAGIC_NUMBER);
+        this.out.writeInt(columnCount);
+    }
+    
+    /**
+     * Encode a block of rows. The block's own inferred metadata decides which
+     * cells get parsed: cells in a {@link DataType#TEXT} column are stored as
+     * text without trying to parse them since the column can't end up
+     * numeric. This is thread safe so blocks can be encoded on the same
+     * worker threads that infer them
+     * @param rows
+     *          the rows (only the 1st rowCount rows are used)
+     * @param rowCount
+     *          the number of rows in the block
+     * @param blockMetadata
+     *          the metadata inferred for this block (see
+     *          {@link ColumnTypeInferrer#inferBlock(String[][], int, int, int, boolean)})
+     * @return
+     *          the encoded rows which can be passed to
+     *          {@link #writeEncodedBlock(byte[], int)}
+     * @throws NumberFormatException
+     *          if a cell in a numeric column can't be parsed
+     */
+    public static byte[] encodeBlock(
+            String[][] rows,
+            int rowCount,
+            TableColumnMetadata[] blockMetadata)
+    throws NumberFormatException
+    {
+        DataType[] blockTypes = new DataType[blockMetadata.length];
+        for(int colIndex = 0; colIndex < blockTypes.length; colIndex++)
+        {
+            blockTypes[colIndex] = blockMetadata[colIndex].getDataType();
+        }
+        
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    Math.max(rowCount * blockTypes.length * 8, 32));
+            DataOutputStream blockOut = new DataOutputStream(bytes);
+            for(int rowIndex = 0; rowIndex < rowCount; rowIndex++)
+            {
+                encodeRow(blockOut, rows[rowIndex], blockTypes);
+            }
+            blockOut.flush();
+            
+            return bytes.toByteArray();
+        }
+        catch(IOException ex)
+        {
+            // byte array streams don't throw
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Write rows encoded by
+     * {@link #encodeBlock(String[][], int, TableColumnMetadata[])}
+     * @param encodedRows
+     *          the encoded rows
+     * @param rowCount
+     *          the number of rows that were encoded
+     * @throws IOException
+     *          if we have trouble writing
+     */
+    public void writeEncodedBlock(byte[] encodedRows, int rowCount)
+    throws IOException
+    {
+        this.out.write(encodedRows);
+        this.rowCount += rowCount;
+    }
+    
+    /**
+     * Write a single row. Every cell that looks like a number is parsed, so
+     * prefer {@link #encodeBlock(String[][], int, TableColumnMetadata[])}
+     * for anything but small tables
+     * @param row
+     *          the row to write
+     * @throws IOException
+     *          if we have trouble writing
+     */
+    public void writeRow(String[] row) throws IOException
+    {
+        if(row.length != this.columnCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected a row with " + this.columnCount +
+                    " columns but got " + row.length);
+        }
+        
+        DataType[] cellTypes = new DataType[row.length];
+        for(int colIndex = 0; colIndex < row.length; colIndex++)
+        {
+            if(TableColumnMetadata.isParsableAsInteger(row[colIndex]))
+            {
+                cellTypes[colIndex] = DataType.INTEGER;
+            }
+            else if(TableColumnMetadata.isParsableAsReal(row[colIndex]))
+            {
+                cellTypes[colIndex] = DataType.REAL;
+            }
+            else
+            {
+                cellTypes[colIndex] = DataType.TEXT;
+            }
+        }
+        
+        encodeRow(this.out, row, cellTypes);
+        this.rowCount++;
+    }
+    
+    /**
+     * Encode a row
+     * @param rowOut
+     *          the stream to encode to
+     * @param row
+     *          the row
+     * @param cellTypes
+     *          the types to try for each cell. Every non-blank cell of an
+     *          {@link DataType#INTEGER} or {@link DataType#REAL} type has
+     *          to parse as one
+     * @throws IOException
+     *          if we have trouble writing
+     */
+    private static void encodeRow(
+            DataOutputStream rowOut,
+            String[] row,
+            DataType[] cellTypes)
+    throws IOException
+    {
+        rowOut.writeByte(ROW_MARKER);
+        for(int colIndex = 0; colIndex < row.length; colIndex++)
+        {
+            String cell = row[colIndex];
+            if(cell.length() == 0)
+            {
+                rowOut.writeByte(EMPTY_CELL);
+                continue;
+            }
+            
+            DataType cellType = cellTypes[colIndex];
+            if(cellType == DataType.INTEGER || cellType == DataType.REAL)
+            {
+                String trimmedCell = cell.trim();
+                if(trimmedCell.length() >= 1)
+                {
+                    if(cellType == DataType.INTEGER)
+                    {
+                        int intValue = Integer.parseInt(trimmedCell);
+                        if(cell.equals(Integer.toString(intValue)))
+                        {
+                            rowOut.writeByte(INTEGER_CELL);
+                            rowOut.writeInt(intValue);
+                        }
+                        else
+                        {
+                            writeNumberCell(rowOut, intValue, cell);
+                        }
+                    }
+                    else
+                    {
+                        double realValue = Double.parseDouble(trimmedCell);
+                        if(cell.equals(Double.toString(realValue)))
+                        {
+                            rowOut.writeByte(REAL_CELL);
+                            rowOut.writeDouble(realValue);
+                        }
+                        else
+                        {
+                            writeNumberCell(rowOut, realValue, cell);
+                        }
+                    }
+                    continue;
+                }
+            }
+            
+            rowOut.writeByte(TEXT_CELL);
+            writeText(rowOut, cell);
+        }
+    }
+    
+    private static void writeNumberCell(
+            DataOutputStream rowOut,
+            double value,
+            String text)
+    throws IOException
+    {
+        rowOut.writeByte(NUMBER_CELL);
+        rowOut.writeDouble(value);
+        writeText(rowOut, text);
+    }
+    
+    private static void writeText(DataOutputStream rowOut, String text)
+    throws IOException
+    {
+        byte[] utf8Bytes = text.getBytes("UTF-8");
+        rowOut.writeInt(utf8Bytes.length);
+        rowOut.write(utf8Bytes);
+    }
+    
+    /**
+     * Getter for the number of rows written so far
+     * @return the row count
+     */
+    public long getRowCount()
+    {
+        return this.rowCount;
+    }
+    
+    /**
+     * Write the end marker and close the file
+     * @throws IOException
+     *          if we have trouble writing
+     */
+    public void close() throws IOException
+    {
+        this.out.writeByte(END_MARKER);
+        this.out.flush();
+        this.out.close();
+    }
+}
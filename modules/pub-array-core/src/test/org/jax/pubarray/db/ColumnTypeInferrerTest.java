@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ColumnTypeInferrer}. The important property is that
+ * inferring blocks of rows and merging them gives exactly what the
+ * single threaded (cell by cell) inference gives
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ColumnTypeInferrerTest
+{
+    private static final int ROW_COUNT = 1000;
+    
+    private static final int BLOCK_ROW_COUNT = 100;
+    
+    private static final int COLUMN_COUNT = 6;
+    
+    /**
+     * Make up a table whose columns change type (and go past the distinct
+     * value limit) in different blocks. Column 0 is always an integer,
+     * column 1 turns real in the 3rd block, column 2 turns real in the 2nd
+     * block and text in the 7th, column 3 is text from the start,
+     * column 4 has a few distinct values and column 5 has fewer than
+     * {@link ColumnTypeInferrer#MAX_DISTINCT_VALUES} distinct values in any
+     * one block but more than that overall
+     * @return
+     *          the rows
+     */
+    private static String[][] createRows()
+    {
+        String[][] rows = new String[ROW_COUNT][];
+        for(int rowIndex = 0; rowIndex < ROW_COUNT; rowIndex++)
+        {
+            String[] row = new String[COLUMN_COUNT];
+            row[0] = Integer.toString(rowIndex * 7);
+            row[1] = rowIndex >= 250 && rowIndex % 10 == 3 ?
+                    rowIndex + ".25" :
+                    Integer.toString(rowIndex);
+            if(rowIndex == 640 || rowIndex == 655)
+            {
+                row[2] = "n/a " + rowIndex;
+            }
+            else if(rowIndex >= 120 && rowIndex % 17 == 0)
+            {
+                row[2] = "1e" + (rowIndex % 5);
+            }
+            else
+            {
+                row[2] = rowIndex % 9 == 0 ? "" : "-" + rowIndex;
+            }
+            row[3] = "probe_" + rowIndex;
+            row[4] = rowIndex % 3 == 0 ? "" : "group" + (rowIndex % 4);
+            row[5] = Integer.toString(rowIndex / 3);
+            rows[rowIndex] = row;
+        }
+        return rows;
+    }
+    
+    /**
+     * Infer the rows one cell at a time like the single threaded code does
+     * @param rows
+     *          the rows
+     * @return
+     *          the metadata
+     */
+    private static TableColumnMetadata[] inferSinglePass(String[][] rows)
+    {
+        TableColumnMetadata[] metadata = createEmptyMetadata();
+        for(int rowIndex = 0; rowIndex < rows.length; rowIndex++)
+        {
+            for(int colIndex = 0; colIndex < COLUMN_COUNT; colIndex++)
+            {
+                ColumnTypeInferrer.inferCell(
+                        metadata[colIndex],
+                        rows[rowIndex][colIndex],
+                        rowIndex + 1);
+            }
+        }
+        return metadata;
+    }
+    
+    /**
+     * Infer the rows in blocks (numbering rows from 1 the way the
+     * candidate database manager does) and merge the blocks in the
+     * given order
+     * @param rows
+     *          the rows
+     * @param blockOrder
+     *          the order to merge the blocks in
+     * @param trackDistinctValues
+     *          if true the distinct values are collected
+     * @return
+     *          the metadata
+     */
+    private static TableColumnMetadata[] inferBlocks(
+            String[][] rows,
+            List<Integer> blockOrder,
+            boolean trackDistinctValues)
+    {
+        TableColumnMetadata[] metadata = createEmptyMetadata();
+        for(int blockIndex: blockOrder)
+        {
+            int firstRowIndex = blockIndex * BLOCK_ROW_COUNT;
+            String[][] block = new String[BLOCK_ROW_COUNT][];
+            System.arraycopy(rows, firstRowIndex, block, 0, BLOCK_ROW_COUNT);
+            ColumnTypeInferrer.merge(
+                    metadata,
+                    ColumnTypeInferrer.inferBlock(
+                            block,
+                            BLOCK_ROW_COUNT,
+                            firstRowIndex + 1,
+                            COLUMN_COUNT,
+                            trackDistinctValues));
+        }
+        return metadata;
+    }
+    
+    private static TableColumnMetadata[] createEmptyMetadata()
+    {
+        TableColumnMetadata[] metadata = new TableColumnMetadata[COLUMN_COUNT];
+        for(int colIndex = 0; colIndex < COLUMN_COUNT; colIndex++)
+        {
+            metadata[colIndex] = new TableColumnMetadata();
+        }
+        return metadata;
+    }
+    
+    private static void assertSameInference(
+            TableColumnMetadata[] expected,
+            TableColumnMetadata[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for(int colIndex = 0; colIndex < expected.length; colIndex++)
+        {
+            String column = "column " + colIndex;
+            assertEquals(
+                    column,
+                    expected[colIndex].getDataType(),
+                    actual[colIndex].getDataType());
+            assertEquals(
+                    column,
+                    expected[colIndex].getLongestStringLength(),
+                    actual[colIndex].getLongestStringLength());
+            assertEquals(
+                    column,
+                    expected[colIndex].getTypeInferenceEvidence().getCellContents(),
+                    actual[colIndex].getTypeInferenceEvidence().getCellContents());
+            assertEquals(
+                    column,
+                    expected[colIndex].getTypeInferenceEvidence().getRowNumber(),
+                    actual[colIndex].getTypeInferenceEvidence().getRowNumber());
+        }
+    }
+    
+    /**
+     * Merging the blocks in file order, in reverse and shuffled must all
+     * give the single pass types and evidence (including the global row
+     * numbers of the evidence)
+     */
+    @Test
+    public void testMergeMatchesSinglePass()
+    {
+        String[][] rows = createRows();
+        TableColumnMetadata[] singlePass = inferSinglePass(rows);
+        
+        assertEquals(DataType.INTEGER, singlePass[0].getDataType());
+        assertEquals(DataType.REAL, singlePass[1].getDataType());
+        assertEquals(DataType.TEXT, singlePass[2].getDataType());
+        assertEquals(DataType.TEXT, singlePass[3].getDataType());
+        assertEquals(DataType.TEXT, singlePass[4].getDataType());
+        assertEquals(DataType.INTEGER, singlePass[5].getDataType());
+        
+        List<Integer> blockOrder = new ArrayList<Integer>();
+        for(int blockIndex = 0; blockIndex < ROW_COUNT / BLOCK_ROW_COUNT; blockIndex++)
+        {
+            blockOrder.add(blockIndex);
+        }
+        assertSameInference(singlePass, inferBlocks(rows, blockOrder, true));
+        
+        Collections.reverse(blockOrder);
+        assertSameInference(singlePass, inferBlocks(rows, blockOrder, true));
+        
+        Collections.shuffle(blockOrder, new Random(4));
+        assertSameInference(singlePass, inferBlocks(rows, blockOrder, true));
+    }
+    
+    /**
+     * The evidence row numbers have to be global file row numbers rather
+     * than row indices within the block
+     */
+    @Test
+    public void testEvidenceUsesGlobalRowNumbers()
+    {
+        String[][] rows = createRows();
+        TableColumnMetadata[] merged = inferBlocks(
+                rows,
+                Arrays.asList(6, 2, 0, 1, 3, 4, 5, 7, 8, 9),
+                false);
+        
+        // the 1st real in column 1 is at index 253 and the 1st text in
+        // column 2 is at index 640 (row numbers start at 1)
+        assertEquals(254, merged[1].getTypeInferenceEvidence().getRowNumber());
+        assertEquals("253.25", merged[1].getTypeInferenceEvidence().getCellContents());
+        assertEquals(641, merged[2].getTypeInferenceEvidence().getRowNumber());
+        assertEquals("n/a 640", merged[2].getTypeInferenceEvidence().getCellContents());
+        assertEquals(1, merged[0].getTypeInferenceEvidence().getRowNumber());
+    }
+    
+    /**
+     * The merged distinct values are the sorted union of all of the blocks
+     * and tracking stops once the union is too big even though every
+     * block is under the limit
+     */
+    @Test
+    public void testDistinctValueUnion()
+    {
+        String[][] rows = createRows();
+        List<Integer> blockOrder = new ArrayList<Integer>();
+        for(int blockIndex = ROW_COUNT / BLOCK_ROW_COUNT - 1; blockIndex >= 0; blockIndex--)
+        {
+            blockOrder.add(blockIndex);
+        }
+        TableColumnMetadata[] merged = inferBlocks(rows, blockOrder, true);
+        
+        for(int colIndex = 0; colIndex < COLUMN_COUNT; colIndex++)
+        {
+            Set<String> expectedValues = new TreeSet<String>();
+            for(String[] row: rows)
+            {
+                expectedValues.add(row[colIndex]);
+            }
+            
+            if(expectedValues.size() > ColumnTypeInferrer.MAX_DISTINCT_VALUES)
+            {
+                assertNull(
+                        "column " + colIndex,
+                        merged[colIndex].getDistinctValues());
+            }
+            else
+            {
+                assertArrayEquals(
+                        "column " + colIndex,
+                        expectedValues.toArray(new String[expectedValues.size()]),
+                        merged[colIndex].getDistinctValues());
+            }
+        }
+        
+        // column 5 only goes over the limit once the blocks are combined
+        String[][] firstBlock = new String[BLOCK_ROW_COUNT][];
+        System.arraycopy(rows, 0, firstBlock, 0, BLOCK_ROW_COUNT);
+        TableColumnMetadata[] firstBlockMetadata = ColumnTypeInferrer.inferBlock(
+                firstBlock,
+                BLOCK_ROW_COUNT,
+                1,
+                COLUMN_COUNT,
+                true);
+        assertEquals(34, firstBlockMetadata[5].getDistinctValues().length);
+        assertNull(merged[5].getDistinctValues());
+        assertArrayEquals(
+                new String[] {"", "group0", "group1", "group2", "group3"},
+                merged[4].getDistinctValues());
+    }
+    
+    /**
+     * Without tracking no column gets distinct values (even the ones with
+     * only a few of them) but the types are the same
+     */
+    @Test
+    public void testDistinctValuesNotTracked()
+    {
+        String[][] rows = createRows();
+        List<Integer> blockOrder = new ArrayList<Integer>();
+        for(int blockIndex = 0; blockIndex < ROW_COUNT / BLOCK_ROW_COUNT; blockIndex++)
+        {
+            blockOrder.add(blockIndex);
+        }
+        TableColumnMetadata[] untracked = inferBlocks(rows, blockOrder, false);
+        for(int colIndex = 0; colIndex < COLUMN_COUNT; colIndex++)
+        {
+            assertNull(
+                    "column " + colIndex,
+                    untracked[colIndex].getDistinctValues());
+        }
+        assertSameInference(inferBlocks(rows, blockOrder, true), untracked);
+    }
+    
+    /**
+     * Merging metadata with a different column count is an error
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeColumnCountMismatch()
+    {
+        ColumnTypeInferrer.merge(
+                createEmptyMetadata(),
+                new TableColumnMetadata[] {new TableColumnMetadata()});
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PackedProbeVector}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PackedProbeVectorTest
+{
+    private static final double[] VALUES = new double[] {
+        0.0,
+        -0.0,
+        1.0,
+        -3.25,
+        Math.PI,
+        12345.678901234,
+        1e-300,
+        Double.MAX_VALUE,
+        Double.NaN,
+        Double.POSITIVE_INFINITY,
+        Double.NEGATIVE_INFINITY};
+    
+    /**
+     * Doubles must come back bit for bit (missing values are NaN so they
+     * have to survive too)
+     */
+    @Test
+    public void testDoubleRoundTrip()
+    {
+        byte[] packed = PackedProbeVector.encode(VALUES, PackedProbeVector.DOUBLE_FORMAT);
+        assertEquals(
+                PackedProbeVector.getPackedLength(VALUES.length, PackedProbeVector.DOUBLE_FORMAT),
+                packed.length);
+        assertEquals(1 + 8 * VALUES.length, packed.length);
+        assertEquals(PackedProbeVector.DOUBLE_FORMAT, packed[0]);
+        
+        double[] decoded = PackedProbeVector.decode(packed);
+        assertEquals(VALUES.length, decoded.length);
+        for(int i = 0; i < VALUES.length; i++)
+        {
+            assertEquals(
+                    "value " + i,
+                    Double.doubleToRawLongBits(VALUES[i]),
+                    Double.doubleToRawLongBits(decoded[i]));
+        }
+    }
+    
+    /**
+     * Floats only keep single precision but NaN and the infinities must
+     * survive
+     */
+    @Test
+    public void testFloatRoundTrip()
+    {
+        byte[] packed = PackedProbeVector.encode(VALUES, PackedProbeVector.FLOAT_FORMAT);
+        assertEquals(1 + 4 * VALUES.length, packed.length);
+        assertEquals(PackedProbeVector.FLOAT_FORMAT, packed[0]);
+        
+        double[] decoded = PackedProbeVector.decode(packed);
+        assertEquals(VALUES.length, decoded.length);
+        for(int i = 0; i < VALUES.length; i++)
+        {
+            assertEquals("value " + i, (double)(float)VALUES[i], decoded[i], 0.0);
+        }
+        assertEquals(Math.PI, decoded[4], 1e-6);
+        assertTrue(Double.isNaN(decoded[8]));
+        assertEquals(Double.POSITIVE_INFINITY, decoded[9], 0.0);
+        
+        // these are out of float range
+        assertEquals(0.0, decoded[6], 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, decoded[7], 0.0);
+    }
+    
+    /**
+     * An empty vector is just the format byte
+     */
+    @Test
+    public void testEmptyVector()
+    {
+        byte[] packed = PackedProbeVector.encode(new double[0], PackedProbeVector.FLOAT_FORMAT);
+        assertEquals(PackedProbeVector.HEADER_LENGTH, packed.length);
+        assertEquals(0, PackedProbeVector.decode(packed).length);
+    }
+    
+    /**
+     * Decoding something with no format byte is an error
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeNothing()
+    {
+        PackedProbeVector.decode(new byte[0]);
+    }
+    
+    /**
+     * Decoding an unknown format is an error
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeUnknownFormat()
+    {
+        PackedProbeVector.decode(new byte[] {7, 0, 0, 0, 0});
+    }
+}
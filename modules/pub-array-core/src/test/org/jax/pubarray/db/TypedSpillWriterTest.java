@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.pubarray.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata;
+import org.jax.pubarray.gwtcommon.client.TableColumnMetadata.DataType;
+import org.jax.util.io.IllegalFormatException;
+import org.junit.Test;
+
+/**
+ * Round trip tests for {@link TypedSpillWriter} and {@link TypedSpillReader}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class TypedSpillWriterTest
+{
+    /**
+     * an integer column, a real column, a text column that holds numbers
+     * and an integer column that ends up real once every block is merged
+     */
+    private static final String[][] ROWS = new String[][] {
+        {"1", "1.5", "abc", "4"},
+        {"", "", "", ""},
+        {"  ", " ", "12", "5"},
+        {"007", "1.50", "1.0", "6"},
+        {"-2147483648", "1e3", "x y", "-7"},
+        {" 42 ", "NaN", "  ", "8"}};
+    
+    private static final DataType[] FINAL_TYPES = new DataType[] {
+        DataType.INTEGER,
+        DataType.REAL,
+        DataType.TEXT,
+        DataType.REAL};
+    
+    private static TableColumnMetadata[] toMetadata(DataType[] types)
+    {
+        TableColumnMetadata[] metadata = new TableColumnMetadata[types.length];
+        for(int colIndex = 0; colIndex < types.length; colIndex++)
+        {
+            metadata[colIndex] = new TableColumnMetadata();
+            metadata[colIndex].setDataType(types[colIndex]);
+        }
+        return metadata;
+    }
+    
+    /**
+     * Check that the reader gives back {@link #ROWS}. Blank cells of the
+     * numeric columns must come back null and text cells must come back
+     * exactly as they were written
+     * @param spill
+     *          the spill bytes
+     * @throws IOException
+     *          if reading fails
+     * @throws IllegalFormatException
+     *          if the spill is malformed
+     */
+    private static void assertReadsRows(byte[] spill)
+    throws IOException, IllegalFormatException
+    {
+        TypedSpillReader reader = new TypedSpillReader(
+                new ByteArrayInputStream(spill),
+                toMetadata(FINAL_TYPES));
+        try
+        {
+            assertTrue(reader.nextRow());
+            assertEquals(1, reader.getInt(0));
+            assertEquals(1.5, reader.getDouble(1), 0.0);
+            assertEquals("abc", reader.getString(2));
+            assertEquals(4.0, reader.getDouble(3), 0.0);
+            
+            assertTrue(reader.nextRow());
+            assertTrue(reader.isNull(0));
+            assertTrue(reader.isNull(1));
+            assertFalse(reader.isNull(2));
+            assertEquals("", reader.getString(2));
+            assertTrue(reader.isNull(3));
+            
+            assertTrue(reader.nextRow());
+            assertTrue(reader.isNull(0));
+            assertTrue(reader.isNull(1));
+            assertEquals("12", reader.getString(2));
+            assertFalse(reader.isNull(3));
+            assertEquals(5.0, reader.getDouble(3), 0.0);
+            
+            assertTrue(reader.nextRow());
+            assertFalse(reader.isNull(0));
+            assertEquals(7, reader.getInt(0));
+            assertEquals(1.5, reader.getDouble(1), 0.0);
+            assertEquals("1.0", reader.getString(2));
+            assertEquals(6.0, reader.getDouble(3), 0.0);
+            
+            assertTrue(reader.nextRow());
+            assertEquals(Integer.MIN_VALUE, reader.getInt(0));
+            assertEquals(1000.0, reader.getDouble(1), 0.0);
+            assertEquals("x y", reader.getString(2));
+            assertEquals(-7.0, reader.getDouble(3), 0.0);
+            
+            assertTrue(reader.nextRow());
+            assertEquals(42, reader.getInt(0));
+            assertTrue(Double.isNaN(reader.getDouble(1)));
+            assertFalse(reader.isNull(2));
+            assertEquals("  ", reader.getString(2));
+            assertEquals(8.0, reader.getDouble(3), 0.0);
+            
+            assertFalse(reader.nextRow());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Encode the rows in two blocks with their own block types (the last
+     * column looks like an integer to both blocks) and read them back with
+     * the final types
+     * @throws Exception
+     *          if the test fails
+     */
+    @Test
+    public void testEncodedBlockRoundTrip() throws Exception
+    {
+        ByteArrayOutputStream spill = new ByteArrayOutputStream();
+        TypedSpillWriter writer = new TypedSpillWriter(spill, FINAL_TYPES.length);
+        
+        String[][] block1 = new String[][] {ROWS[0], ROWS[1], ROWS[2]};
+        String[][] block2 = new String[][] {ROWS[3], ROWS[4], ROWS[5]};
+        for(String[][] block: new String[][][] {block1, block2})
+        {
+            TableColumnMetadata[] blockMetadata = ColumnTypeInferrer.inferBlock(
+                    block,
+                    block.length,
+                    1,
+                    FINAL_TYPES.length,
+                    false);
+            assertEquals(DataType.INTEGER, blockMetadata[3].getDataType());
+            writer.writeEncodedBlock(
+                    TypedSpillWriter.encodeBlock(block, block.length, blockMetadata),
+                    block.length);
+        }
+        assertEquals(ROWS.length, writer.getRowCount());
+        writer.close();
+        
+        assertReadsRows(spill.toByteArray());
+    }
+    
+    /**
+     * Write the rows one at a time (so every cell is parsed on its own)
+     * and read them back with the final types
+     * @throws Exception
+     *          if the test fails
+     */
+    @Test
+    public void testSingleRowRoundTrip() throws Exception
+    {
+        ByteArrayOutputStream spill = new ByteArrayOutputStream();
+        TypedSpillWriter writer = new TypedSpillWriter(spill, FINAL_TYPES.length);
+        for(String[] row: ROWS)
+        {
+            writer.writeRow(row);
+        }
+        assertEquals(ROWS.length, writer.getRowCount());
+        writer.close();
+        
+        assertReadsRows(spill.toByteArray());
+    }
+    
+    /**
+     * Columns without a type (a table with a header but no rows) are read
+     * as text
+     * @throws Exception
+     *          if the test fails
+     */
+    @Test
+    public void testEmptySpill() throws Exception
+    {
+        ByteArrayOutputStream spill = new ByteArrayOutputStream();
+        new TypedSpillWriter(spill, 2).close();
+        
+        TypedSpillReader reader = new TypedSpillReader(
+                new ByteArrayInputStream(spill.toByteArray()),
+                toMetadata(new DataType[2]));
+        assertEquals(DataType.TEXT, reader.getColumnTypes()[0]);
+        assertFalse(reader.nextRow());
+        reader.close();
+    }
+    
+    /**
+     * Reading a spill with the wrong column count is an error
+     * @throws Exception
+     *          if the test fails
+     */
+    @Test(expected = IllegalFormatException.class)
+    public void testColumnCountMismatch() throws Exception
+    {
+        ByteArrayOutputStream spill = new ByteArrayOutputStream();
+        new TypedSpillWriter(spill, 3).close();
+        
+        new TypedSpillReader(
+                new ByteArrayInputStream(spill.toByteArray()),
+                toMetadata(FINAL_TYPES));
+    }
+}
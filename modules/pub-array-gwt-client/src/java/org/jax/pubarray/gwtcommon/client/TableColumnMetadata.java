@@ -184,6 +184,10 @@ public class TableColumnMetadata implements Serializable
     public static final String LONGEST_STRING_LEN_PROP_STRING = "longestStringLength";
     private int longestStringLength = -1;
     
+    // transient so that the values stay on the server (GWT-RPC skips
+    // transient fields and so does java serialization)
+    private transient String[] distinctValues = null;
+    
     /**
      * Default constructor. Sets name datatype and description to null
      */
@@ -322,6 +326,30 @@ public class TableColumnMetadata implements Serializable
         this.longestStringLength = longestStringLength;
     }
     
+    /**
+     * Getter for the distinct values found in this column. These are only
+     * tracked during type inference and only for columns that have few
+     * enough of them to be worth remembering. They aren't serialized
+     * @return
+     *          the distinct values in sorted order or null if they weren't
+     *          tracked
+     */
+    public String[] getDistinctValues()
+    {
+        return this.distinctValues;
+    }
+    
+    /**
+     * Setter for the distinct values
+     * @see #getDistinctValues()
+     * @param distinctValues
+     *          the distinct values in sorted order or null
+     */
+    public void setDistinctValues(String[] distinctValues)
+    {
+        this.distinctValues = distinctValues;
+    }
+    
     /**
      * Getter for the type inference evidence. This is only used if the
      * {@link DataType} of this column was inferred using an inference
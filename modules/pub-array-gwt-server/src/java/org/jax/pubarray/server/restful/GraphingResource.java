@@ -73,7 +73,6 @@ public class GraphingResource
 {
     private static final Logger LOG = Logger.getLogger(
             GraphingResource.class.getName());
-    private static final double LOG2_FACTOR = Math.log(2);
     
     @Context
     private ServletContext context;
@@ -153,14 +152,12 @@ public class GraphingResource
         {
             Connection connection = this.getConnection();
             
+            // log2 rows have NaN wherever the intensity isn't positive
             String[] probeIds = graphConfiguration.getProbeIds();
-            double[][] probeDataRows = new double[probeIds.length][];
-            for(int i = 0; i < probeIds.length; i++)
-            {
-                probeDataRows[i] = this.persistenceManager.getDataRowForProbeID(
-                        connection,
-                        probeIds[i]);
-            }
+            double[][] probeDataRows = this.persistenceManager.getDataRowsForProbeIDs(
+                    connection,
+                    probeIds,
+                    graphConfiguration.getLog2TransformData());
             
             TableColumnMetadata orderBy = graphConfiguration.getOrderProbesBy();
             final List<Comparable> orderByItems;
@@ -213,15 +210,6 @@ public class GraphingResource
                 double[] currRow = probeDataRows[rowIndex];
                 assert currRow.length == metadata.getColumnMetadata().length - 1;
                 
-                // should we log2 transform the data?
-                if(graphConfiguration.getLog2TransformData())
-                {
-                    for(int i = 0; i < currRow.length; i++)
-                    {
-                        currRow[i] = Math.log(currRow[i])/LOG2_FACTOR;
-                    }
-                }
-                
                 // iterate through the columns in the data table (each column
                 // represents a different array)
                 List<ComparableContainer<Double, Comparable>> rowElemList =
@@ -341,8 +329,11 @@ public class GraphingResource
                         (DefaultCategoryDataset)categoryDataset;
                     for(ComparableContainer<Double, Comparable> rowElem: rowElemList)
                     {
+                        // a NaN (no log2 value) is left as a gap in the
+                        // line. the grouped datasets already drop NaNs
+                        Double value = rowElem.getElement();
                         dataset.addValue(
-                                rowElem.getElement(),
+                                value.isNaN() ? null : value,
                                 probeIds[rowIndex],
                                 rowElem.getComparable());
                     }